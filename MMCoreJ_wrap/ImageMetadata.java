@@ -0,0 +1,427 @@
+package mmcorej;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Metadata of an image, usable everywhere a JSONObject of image tags is
+ * expected. The image coordinates, size, pixel type and timing, which are
+ * read for every image on its way through the pipeline, are kept in
+ * primitive fields, so that MDUtils getters don't have to look up and unbox
+ * them. All other tags (device properties etc.) are kept in two layers: a
+ * read-only base map shared by copies, and a small map of the tags each
+ * copy has added, changed or removed since. Copying the metadata of an
+ * image (e.g. to derive the metadata of a processed image, or to add the
+ * tags of one camera image to the system state of a sequence acquisition)
+ * therefore costs a few fields and the changed tags rather than copying,
+ * or serializing and parsing, all tags.
+ * The metadata is only converted to JSON text when it is written, or when
+ * toString() is called.
+ *
+ * Values of the typed tags are only stored in their fields if they have
+ * the expected type (Integer, or Long in the int range, for the indices and
+ * sizes, Double for the times, String for the pixel type); values of other
+ * types are kept as they are in the map.
+ */
+public class ImageMetadata extends JSONObject {
+
+   private static final String[] INT_KEYS = {"ChannelIndex", "SliceIndex",
+      "FrameIndex", "PositionIndex", "Slice", "Frame", "Width", "Height",
+      "BitDepth"};
+   private static final String[] DOUBLE_KEYS = {"ElapsedTime-ms", "Exposure-ms"};
+   private static final String PIXEL_TYPE = "PixelType";
+
+   private static final int FIRST_DOUBLE = INT_KEYS.length;
+   private static final int PIXEL_TYPE_SLOT = FIRST_DOUBLE + DOUBLE_KEYS.length;
+   private static final int NUM_SLOTS = PIXEL_TYPE_SLOT + 1;
+   private static final HashMap<String, Integer> SLOTS = new HashMap<String, Integer>();
+
+   static {
+      for (int i = 0; i < INT_KEYS.length; i++) {
+         SLOTS.put(INT_KEYS[i], i);
+      }
+      for (int i = 0; i < DOUBLE_KEYS.length; i++) {
+         SLOTS.put(DOUBLE_KEYS[i], FIRST_DOUBLE + i);
+      }
+      SLOTS.put(PIXEL_TYPE, PIXEL_TYPE_SLOT);
+   }
+
+   // Bit i is set if slot i holds a value
+   private int present_ = 0;
+   private final int[] ints_ = new int[INT_KEYS.length];
+   private final double[] doubles_ = new double[DOUBLE_KEYS.length];
+   private String pixelType_;
+   // All other tags: those in changes_, where REMOVED marks a removed tag,
+   // over those in base_, which is never changed and may be shared by copies
+   private static final Object REMOVED = new Object();
+   private static final Map<String, Object> EMPTY = new HashMap<String, Object>(0);
+   private Map<String, Object> base_ = EMPTY;
+   private HashMap<String, Object> changes_ = new HashMap<String, Object>();
+   private int othersCount_ = 0;
+   // Whether any of the other tags has ever been a JSONObject or JSONArray
+   private boolean nested_ = false;
+
+   public ImageMetadata() {
+   }
+
+   /**
+    * @return tags as an ImageMetadata: tags itself if it already is one,
+    * otherwise a new ImageMetadata with the same tags
+    */
+   public static ImageMetadata from(JSONObject tags) {
+      if (tags instanceof ImageMetadata) {
+         return (ImageMetadata) tags;
+      }
+      ImageMetadata md = new ImageMetadata();
+      if (tags != null) {
+         Iterator<String> keys = tags.keys();
+         while (keys.hasNext()) {
+            String key = keys.next();
+            md.set(key, tags.opt(key));
+         }
+      }
+      return md;
+   }
+
+   /**
+    * A copy that can be changed independently of this metadata. The base
+    * map of the tags that aren't typed is shared; only the tags changed
+    * since it was made are copied. Once these are many, they are first
+    * merged into a new base map, which this metadata and its copies share.
+    * The copy itself is never changed by copying it, so a copy that isn't
+    * changed can be copied by several threads at once.
+    */
+   public ImageMetadata copy() {
+      ImageMetadata copy = new ImageMetadata(this);
+      if (nested_) {
+         // Changes inside nested objects wouldn't be noticed, so these
+         // are copied right away, as MDUtils.copy used to do
+         HashMap<String, Object> others = new HashMap<String, Object>(othersCount_ * 2);
+         for (Map.Entry<String, Object> entry : otherEntries()) {
+            others.put(entry.getKey(), copyValue(entry.getValue()));
+         }
+         copy.changes_ = others;
+         copy.nested_ = true;
+         return copy;
+      }
+      if (changes_.size() > Math.max(16, base_.size() / 4)) {
+         HashMap<String, Object> base = new HashMap<String, Object>(othersCount_ * 2);
+         for (Map.Entry<String, Object> entry : otherEntries()) {
+            base.put(entry.getKey(), entry.getValue());
+         }
+         base_ = base;
+         changes_ = new HashMap<String, Object>();
+      }
+      copy.base_ = base_;
+      copy.changes_ = new HashMap<String, Object>(changes_);
+      return copy;
+   }
+
+   private ImageMetadata(ImageMetadata source) {
+      present_ = source.present_;
+      System.arraycopy(source.ints_, 0, ints_, 0, ints_.length);
+      System.arraycopy(source.doubles_, 0, doubles_, 0, doubles_.length);
+      pixelType_ = source.pixelType_;
+      othersCount_ = source.othersCount_;
+   }
+
+   private static Object copyValue(Object value) {
+      try {
+         if (value instanceof JSONObject) {
+            return new JSONObject(value.toString());
+         } else if (value instanceof JSONArray) {
+            return new JSONArray(value.toString());
+         }
+      } catch (JSONException ex) {
+         // Can't happen for text written by toString()
+      }
+      return value;
+   }
+
+   private Object getOther(String key) {
+      Object value = changes_.get(key);
+      if (value == null) {
+         return base_.get(key);
+      }
+      return value == REMOVED ? null : value;
+   }
+
+   private void putOther(String key, Object value) {
+      Object old = changes_.put(key, value);
+      if (old == REMOVED || (old == null && !base_.containsKey(key))) {
+         othersCount_++;
+      }
+   }
+
+   private Object removeOther(String key) {
+      Object old = getOther(key);
+      if (old != null) {
+         if (base_.containsKey(key)) {
+            changes_.put(key, REMOVED);
+         } else {
+            changes_.remove(key);
+         }
+         othersCount_--;
+      }
+      return old;
+   }
+
+   /**
+    * The tags that aren't typed, in no particular order
+    */
+   private List<Map.Entry<String, Object>> otherEntries() {
+      List<Map.Entry<String, Object>> entries =
+              new ArrayList<Map.Entry<String, Object>>(othersCount_);
+      for (Map.Entry<String, Object> entry : base_.entrySet()) {
+         if (!changes_.containsKey(entry.getKey())) {
+            entries.add(entry);
+         }
+      }
+      for (Map.Entry<String, Object> entry : changes_.entrySet()) {
+         if (entry.getValue() != REMOVED) {
+            entries.add(entry);
+         }
+      }
+      return entries;
+   }
+
+   private static int slotOf(String key) {
+      Integer slot = key == null ? null : SLOTS.get(key);
+      return slot == null ? -1 : slot;
+   }
+
+   private boolean isPresent(int slot) {
+      return slot >= 0 && (present_ & (1 << slot)) != 0;
+   }
+
+   private Object getTyped(int slot) {
+      if (slot < FIRST_DOUBLE) {
+         return Integer.valueOf(ints_[slot]);
+      } else if (slot < PIXEL_TYPE_SLOT) {
+         return Double.valueOf(doubles_[slot - FIRST_DOUBLE]);
+      }
+      return pixelType_;
+   }
+
+   /**
+    * Store a value that is known to be valid, in its field if it has the
+    * type of one
+    */
+   private void set(String key, Object value) {
+      int slot = slotOf(key);
+      if (slot >= 0) {
+         boolean typed = true;
+         if (slot < FIRST_DOUBLE && value instanceof Integer) {
+            ints_[slot] = (Integer) value;
+         } else if (slot < FIRST_DOUBLE && value instanceof Long
+                 && (Long) value == ((Long) value).intValue()) {
+            ints_[slot] = ((Long) value).intValue();
+         } else if (slot >= FIRST_DOUBLE && slot < PIXEL_TYPE_SLOT
+                 && value instanceof Double) {
+            doubles_[slot - FIRST_DOUBLE] = (Double) value;
+         } else if (slot == PIXEL_TYPE_SLOT && value instanceof String) {
+            pixelType_ = (String) value;
+         } else {
+            typed = false;
+         }
+         if (typed) {
+            present_ |= 1 << slot;
+            removeOther(key);
+            return;
+         }
+         present_ &= ~(1 << slot);
+      }
+      if (value instanceof JSONObject || value instanceof JSONArray) {
+         nested_ = true;
+      }
+      putOther(key, value);
+   }
+
+   @Override
+   public Object opt(String key) {
+      int slot = slotOf(key);
+      if (isPresent(slot)) {
+         return getTyped(slot);
+      }
+      return key == null ? null : getOther(key);
+   }
+
+   @Override
+   public boolean has(String key) {
+      return isPresent(slotOf(key)) || (key != null && getOther(key) != null);
+   }
+
+   @Override
+   public int getInt(String key) throws JSONException {
+      int slot = slotOf(key);
+      if (slot < FIRST_DOUBLE && isPresent(slot)) {
+         return ints_[slot];
+      }
+      return super.getInt(key);
+   }
+
+   @Override
+   public double getDouble(String key) throws JSONException {
+      int slot = slotOf(key);
+      if (isPresent(slot)) {
+         if (slot < FIRST_DOUBLE) {
+            return ints_[slot];
+         } else if (slot < PIXEL_TYPE_SLOT) {
+            return doubles_[slot - FIRST_DOUBLE];
+         }
+      }
+      return super.getDouble(key);
+   }
+
+   @Override
+   public String getString(String key) throws JSONException {
+      if (pixelType_ != null && isPresent(PIXEL_TYPE_SLOT) && PIXEL_TYPE.equals(key)) {
+         return pixelType_;
+      }
+      return super.getString(key);
+   }
+
+   @Override
+   public JSONObject put(String key, int value) throws JSONException {
+      int slot = slotOf(key);
+      if (slot >= 0 && slot < FIRST_DOUBLE) {
+         ints_[slot] = value;
+         present_ |= 1 << slot;
+         removeOther(key);
+         return this;
+      }
+      return super.put(key, value);
+   }
+
+   @Override
+   public JSONObject put(String key, Object value) throws JSONException {
+      if (key == null) {
+         throw new JSONException("Null key.");
+      }
+      if (value == null) {
+         remove(key);
+         return this;
+      }
+      if ((value instanceof Double && (((Double) value).isInfinite() || ((Double) value).isNaN()))
+              || (value instanceof Float && (((Float) value).isInfinite() || ((Float) value).isNaN()))) {
+         throw new JSONException("JSON does not allow non-finite numbers");
+      }
+      set(key, value);
+      return this;
+   }
+
+   @Override
+   public Object remove(String key) {
+      int slot = slotOf(key);
+      if (isPresent(slot)) {
+         Object value = getTyped(slot);
+         present_ &= ~(1 << slot);
+         return value;
+      }
+      return key == null ? null : removeOther(key);
+   }
+
+   @Override
+   public int length() {
+      return Integer.bitCount(present_) + othersCount_;
+   }
+
+   @Override
+   public Iterator<String> keys() {
+      final List<String> keys = new ArrayList<String>(length());
+      for (int slot = 0; slot < NUM_SLOTS; slot++) {
+         if (isPresent(slot)) {
+            keys.add(slot < FIRST_DOUBLE ? INT_KEYS[slot]
+                    : slot < PIXEL_TYPE_SLOT ? DOUBLE_KEYS[slot - FIRST_DOUBLE] : PIXEL_TYPE);
+         }
+      }
+      for (Map.Entry<String, Object> entry : otherEntries()) {
+         keys.add(entry.getKey());
+      }
+      return new Iterator<String>() {
+         private int next_ = 0;
+
+         @Override
+         public boolean hasNext() {
+            return next_ < keys.size();
+         }
+
+         @Override
+         public String next() {
+            if (next_ >= keys.size()) {
+               throw new NoSuchElementException();
+            }
+            return keys.get(next_++);
+         }
+
+         @Override
+         public void remove() {
+            if (next_ == 0) {
+               throw new IllegalStateException();
+            }
+            ImageMetadata.this.remove(keys.get(next_ - 1));
+         }
+      };
+   }
+
+   /**
+    * JSON text of the metadata, as written by JSONObject.toString()
+    */
+   @Override
+   public String toString() {
+      StringBuilder sb = new StringBuilder(64 + 48 * othersCount_);
+      sb.append('{');
+      for (int slot = 0; slot < NUM_SLOTS; slot++) {
+         if (!isPresent(slot)) {
+            continue;
+         }
+         if (sb.length() > 1) {
+            sb.append(',');
+         }
+         if (slot < FIRST_DOUBLE) {
+            sb.append('"').append(INT_KEYS[slot]).append("\":").append(ints_[slot]);
+         } else if (slot < PIXEL_TYPE_SLOT) {
+            sb.append('"').append(DOUBLE_KEYS[slot - FIRST_DOUBLE]).append("\":")
+                    .append(formatDouble(doubles_[slot - FIRST_DOUBLE]));
+         } else {
+            sb.append('"').append(PIXEL_TYPE).append("\":").append(quote(pixelType_));
+         }
+      }
+      for (Map.Entry<String, Object> entry : otherEntries()) {
+         if (sb.length() > 1) {
+            sb.append(',');
+         }
+         sb.append(quote(entry.getKey())).append(':');
+         Object value = entry.getValue();
+         if (value instanceof Number) {
+            try {
+               sb.append(numberToString((Number) value));
+            } catch (JSONException ex) {
+               return null; // As JSONObject.toString() does
+            }
+         } else if (value instanceof Boolean || value instanceof JSONObject
+                 || value instanceof JSONArray || value.equals(null)) {
+            sb.append(value.toString());
+         } else {
+            sb.append(quote(value.toString()));
+         }
+      }
+      sb.append('}');
+      return sb.toString();
+   }
+
+   private static String formatDouble(double value) {
+      try {
+         return numberToString(value);
+      } catch (JSONException ex) {
+         return null; // Can't happen: only finite values are stored
+      }
+   }
+}
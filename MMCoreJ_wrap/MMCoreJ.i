@@ -628,9 +628,27 @@
 %ignore MetadataKeyError;
 %ignore MetadataIndexError;
 
+// The system state tags of images popped during a finite sequence
+// acquisition are captured when it is started (see getSequenceStateTags).
+// Those of a continuous one (e.g. live mode) aren't, since the system state
+// may be changed while it runs.
+%typemap(javaout) void startSequenceAcquisition {
+      // Copied once, which merges the tags into a base map, so that copying
+      // it for each image never changes it
+      ImageMetadata sequenceTags = getSystemStateTags().copy();
+      $jnicall;
+      sequenceTags_ = sequenceTags;
+   }
+%typemap(javaout) void startContinuousSequenceAcquisition, void stopSequenceAcquisition {
+      sequenceTags_ = null;
+      $jnicall;
+   }
+
 
 %typemap(javaimports) CMMCore %{
    import org.json.JSONObject;
+   import java.nio.ByteBuffer;
+   import java.nio.ByteOrder;
    import java.awt.geom.Point2D;
    import java.awt.Rectangle;
    import java.util.ArrayList;
@@ -638,14 +656,24 @@
 %}
 
 %typemap(javacode) CMMCore %{
-   private JSONObject metadataToMap(Metadata md) {
-      JSONObject tags = new JSONObject();
+   // System state tags of the finite sequence acquisition started last,
+   // the base of the tags of all images popped during it; null once it has
+   // been stopped, or a continuous one has been started
+   private volatile ImageMetadata sequenceTags_ = null;
+
+   /**
+    * Add the tags of md (the camera's metadata of an image) that aren't
+    * system state tags, which take precedence
+    */
+   private void putMetadata(JSONObject tags, Metadata md) {
       for (String key:md.GetKeys()) {
+         if (tags.has(key)) {
+            continue;
+         }
          try {
             tags.put(key, md.GetSingleTag(key).GetValue());
          } catch (Exception e) {} 
       }
-      return tags;
    }
 
    private String getROITag() throws java.lang.Exception {
@@ -699,9 +727,17 @@
    }
 
    private TaggedImage createTaggedImage(Object pixels, Metadata md, int cameraChannelIndex) throws java.lang.Exception {
-      TaggedImage image = createTaggedImage(pixels, md);
-      JSONObject tags = image.tags;
-      
+      return createTaggedImage(pixels, md, cameraChannelIndex, getSystemStateTags());
+   }
+
+   private TaggedImage createTaggedImage(Object pixels, Metadata md, int cameraChannelIndex,
+           ImageMetadata stateTags) throws java.lang.Exception {
+      TaggedImage image = createTaggedImage(pixels, md, stateTags);
+      putCameraChannel(image.tags, cameraChannelIndex);
+      return image;
+   }
+
+   private void putCameraChannel(JSONObject tags, int cameraChannelIndex) throws java.lang.Exception {
       if (!tags.has("CameraChannelIndex")) {
          tags.put("CameraChannelIndex", cameraChannelIndex);
          tags.put("ChannelIndex", cameraChannelIndex);
@@ -713,11 +749,29 @@
             tags.put("Channel",physicalCamera);
          }
       }
-      return image;
    }
 
    private TaggedImage createTaggedImage(Object pixels, Metadata md) throws java.lang.Exception {
-      JSONObject tags = metadataToMap(md);
+      return createTaggedImage(pixels, md, getSystemStateTags());
+   }
+
+   /**
+    * @param stateTags - system state tags of the image, which become its
+    * tags
+    */
+   private TaggedImage createTaggedImage(Object pixels, Metadata md, ImageMetadata stateTags) {
+      putMetadata(stateTags, md);
+      return new TaggedImage(pixels, stateTags);	
+   }
+
+   /**
+    * Tags describing the state of the system rather than a single image:
+    * the cached device properties, pixel size, ROI, etc. These take many
+    * calls into the core to collect, so they are collected only once per
+    * finite sequence acquisition for images popped from the sequence buffer.
+    */
+   private ImageMetadata getSystemStateTags() throws java.lang.Exception {
+      ImageMetadata tags = new ImageMetadata();
       PropertySetting setting;
       Configuration config = getSystemStateCache();
       for (int i = 0; i < config.size(); ++i) {
@@ -750,7 +804,19 @@
          tags.put("Binning", getProperty(getCameraDevice(), "Binning"));
       } catch (Exception ex) {}
       
-      return new TaggedImage(pixels, tags);	
+      return tags;
+   }
+
+   /**
+    * System state tags for an image popped from the sequence buffer: a copy
+    * of those captured when the last finite sequence acquisition was started,
+    * unless it has been stopped since, otherwise fresh ones. Copies share the
+    * map of device properties; the tags added for a single image (those of
+    * the camera, CameraChannelIndex etc.) are kept apart by each copy.
+    */
+   private ImageMetadata getSequenceStateTags() throws java.lang.Exception {
+      ImageMetadata sequenceTags = sequenceTags_;
+      return sequenceTags != null ? sequenceTags.copy() : getSystemStateTags();
    }
 
    public TaggedImage getTaggedImage(int cameraChannelIndex) throws java.lang.Exception {
@@ -782,13 +848,147 @@
    public TaggedImage popNextTaggedImage(int cameraChannelIndex) throws java.lang.Exception {
       Metadata md = new Metadata();
       Object pixels = popNextImageMD(cameraChannelIndex, 0, md);
-      return createTaggedImage(pixels, md, cameraChannelIndex);
+      return createTaggedImage(pixels, md, cameraChannelIndex, getSequenceStateTags());
    }
 
    public TaggedImage popNextTaggedImage() throws java.lang.Exception {
       return popNextTaggedImage(0);
    }
 
+   // Retrieval of images into memory supplied by the caller: pixels is
+   // reused if it can hold the image, which is the case for an array of the
+   // type and length that getImage() would return, or a direct ByteBuffer
+   // with enough capacity (e.g. one leased from a pool). Otherwise a new
+   // array is allocated, as by getImage(). Passing the pixels of the
+   // previous image, once done with it, lets a loop retrieve images without
+   // allocating memory for them. A ByteBuffer holding an image has position
+   // 0, its limit at the end of the image and native byte order.
+
+   private Object preparePixels(Object pixels) {
+      if (pixels instanceof ByteBuffer) {
+         prepareBuffer((ByteBuffer) pixels, getImageBufferSize());
+      }
+      return pixels;
+   }
+
+   private static void prepareBuffer(ByteBuffer buffer, long imageBytes) {
+      buffer.clear();
+      buffer.limit((int) imageBytes);
+      buffer.order(ByteOrder.nativeOrder());
+   }
+
+   /**
+    * As getImage(), but into pixels if it can hold the image
+    * @return pixels, or a new array if it can't hold the image
+    */
+   public Object getImageInto(Object pixels) throws java.lang.Exception {
+      return getImageInto(0, pixels);
+   }
+
+   public Object getImageInto(int cameraChannelIndex, Object pixels) throws java.lang.Exception {
+      return preparePixels(copyImage(cameraChannelIndex, pixels));
+   }
+
+   /**
+    * As popNextImage(), but into pixels if it can hold the image
+    * @return pixels, or a new array if it can't hold the image
+    */
+   public Object popNextImageInto(Object pixels) throws java.lang.Exception {
+      return preparePixels(copyNextImage(pixels));
+   }
+
+   public Object popNextImageMDInto(int channel, int slice, Metadata md, Object pixels)
+           throws java.lang.Exception {
+      return preparePixels(copyNextImageMD(channel, slice, md, pixels));
+   }
+
+   public Object getLastImageMDInto(int channel, int slice, Metadata md, Object pixels)
+           throws java.lang.Exception {
+      return preparePixels(copyLastImageMD(channel, slice, md, pixels));
+   }
+
+   /**
+    * As getLastTaggedImage(), but with the pixels in pixels if it can hold
+    * them. The image must be done with before pixels are reused.
+    */
+   public TaggedImage getLastTaggedImageInto(int cameraChannelIndex, Object pixels)
+           throws java.lang.Exception {
+      Metadata md = new Metadata();
+      Object pix = getLastImageMDInto(cameraChannelIndex, 0, md, pixels);
+      return createTaggedImage(pix, md, cameraChannelIndex);
+   }
+
+   public TaggedImage getLastTaggedImageInto(Object pixels) throws java.lang.Exception {
+      return getLastTaggedImageInto(0, pixels);
+   }
+
+   /**
+    * As popNextTaggedImage(), but with the pixels in pixels if it can hold
+    * them. The image must be done with (e.g. written to disk) before pixels
+    * are reused.
+    */
+   public TaggedImage popNextTaggedImageInto(int cameraChannelIndex, Object pixels)
+           throws java.lang.Exception {
+      Metadata md = new Metadata();
+      Object pix = popNextImageMDInto(cameraChannelIndex, 0, md, pixels);
+      return createTaggedImage(pix, md, cameraChannelIndex, getSequenceStateTags());
+   }
+
+   public TaggedImage popNextTaggedImageInto(Object pixels) throws java.lang.Exception {
+      return popNextTaggedImageInto(0, pixels);
+   }
+
+   /**
+    * Pop up to images.length images from the sequence buffer in a single
+    * call into the core, rather than one call (and metadata lookup) per
+    * image, e.g. to keep up with a camera running at kHz frame rates.
+    * @param pixels - memory for the pixels of the images, reused as by
+    * popNextImageInto(); on return pixels[i] holds the pixels of images[i].
+    * May be null, or hold nulls, if there is no memory to reuse.
+    * @param images - receives the images taken
+    * @return number of images taken; 0 if the buffer is empty
+    */
+   public int popNextTaggedImagesInto(int cameraChannelIndex, Object[] pixels,
+           TaggedImage[] images) throws java.lang.Exception {
+      int maxCount = images.length;
+      if (pixels == null) {
+         pixels = new Object[maxCount];
+      } else if (pixels.length < maxCount) {
+         throw new IllegalArgumentException("Fewer pixel buffers than images");
+      }
+      Object[] metadata = new Object[maxCount];
+      int count = copyNextImagesMD(cameraChannelIndex, maxCount, pixels, metadata);
+      if (count == 0) {
+         return 0;
+      }
+      ImageMetadata sequenceTags = sequenceTags_;
+      ImageMetadata stateTags = sequenceTags != null ? sequenceTags : getSystemStateTags();
+      long imageBytes = -1;
+      for (int i = 0; i < count; i++) {
+         if (pixels[i] instanceof ByteBuffer) {
+            if (imageBytes < 0) {
+               imageBytes = getImageBufferSize();
+            }
+            prepareBuffer((ByteBuffer) pixels[i], imageBytes);
+         }
+         ImageMetadata tags = stateTags.copy();
+         String[] keysAndValues = (String[]) metadata[i];
+         for (int k = 0; k < keysAndValues.length; k += 2) {
+            if (!tags.has(keysAndValues[k])) {
+               tags.put(keysAndValues[k], keysAndValues[k + 1]);
+            }
+         }
+         images[i] = new TaggedImage(pixels[i], tags);
+         putCameraChannel(tags, cameraChannelIndex);
+      }
+      return count;
+   }
+
+   public int popNextTaggedImagesInto(Object[] pixels, TaggedImage[] images)
+           throws java.lang.Exception {
+      return popNextTaggedImagesInto(0, pixels, images);
+   }
+
    // convenience functions follow
    
    /*
@@ -890,6 +1090,202 @@
 %}
 
 
+//
+// Image retrieval into memory supplied by the caller, so that images can be
+// retrieved without allocating a Java array for each of them. The copy*
+// methods are wrapped by the *Into methods of CMMCore (see above).
+//
+%{
+#include <cstring>
+
+static void CopyPixelsToArray(JNIEnv* jenv, jarray array, const void* pixels, jlong bytes)
+{
+   void* elements = JCALL2(GetPrimitiveArrayCritical, jenv, array, 0);
+   if (elements == 0)
+      return; // OutOfMemoryError is pending
+   memcpy(elements, pixels, (size_t) bytes);
+   JCALL3(ReleasePrimitiveArrayCritical, jenv, array, elements, 0);
+}
+
+// Copy an image of the current camera into dest if it can hold it: an array
+// of the type and length that getImage() returns (see the void* typemap), or
+// a direct buffer with enough capacity. Otherwise a new array is returned.
+static jobject CopyImagePixels(JNIEnv* jenv, CMMCore* core, const void* pixels, jobject dest)
+{
+   long lSize = core->getImageWidth() * core->getImageHeight();
+   unsigned bytesPerPixel = core->getBytesPerPixel();
+   char type;
+   long length = lSize;
+   if (bytesPerPixel == 1)
+      type = 'B';
+   else if (bytesPerPixel == 2)
+      type = 'S';
+   else if (bytesPerPixel == 4 && core->getNumberOfComponents() == 1)
+      type = 'F';
+   else if (bytesPerPixel == 4)
+   {
+      type = 'B';
+      length = lSize * 4;
+   }
+   else if (bytesPerPixel == 8)
+   {
+      type = 'S';
+      length = lSize * 4;
+   }
+   else
+      return 0; // don't know how to map
+   jlong bytes = (jlong) lSize * bytesPerPixel;
+
+   if (dest != 0)
+   {
+      void* address = JCALL1(GetDirectBufferAddress, jenv, dest);
+      if (address != 0)
+      {
+         if (JCALL1(GetDirectBufferCapacity, jenv, dest) >= bytes)
+         {
+            memcpy(address, pixels, (size_t) bytes);
+            return dest;
+         }
+      }
+      else
+      {
+         char className[3] = {'[', type, 0};
+         jclass arrayClass = JCALL1(FindClass, jenv, className);
+         bool fits = arrayClass != 0 && JCALL2(IsInstanceOf, jenv, dest, arrayClass)
+               && JCALL1(GetArrayLength, jenv, (jarray) dest) == length;
+         JCALL1(DeleteLocalRef, jenv, arrayClass);
+         if (fits)
+         {
+            CopyPixelsToArray(jenv, (jarray) dest, pixels, bytes);
+            return dest;
+         }
+      }
+   }
+
+   jarray data;
+   if (type == 'B')
+      data = JCALL1(NewByteArray, jenv, length);
+   else if (type == 'S')
+      data = JCALL1(NewShortArray, jenv, length);
+   else
+      data = JCALL1(NewFloatArray, jenv, length);
+   if (data == 0)
+   {
+      jclass excep = jenv->FindClass("java/lang/OutOfMemoryError");
+      if (excep)
+         jenv->ThrowNew(excep, "The system ran out of memory!");
+      return 0;
+   }
+   CopyPixelsToArray(jenv, data, pixels, bytes);
+   return data;
+}
+%}
+
+%javamethodmodifiers CMMCore::copyImage "private";
+%javamethodmodifiers CMMCore::copyNextImage "private";
+%javamethodmodifiers CMMCore::copyLastImageMD "private";
+%javamethodmodifiers CMMCore::copyNextImageMD "private";
+%javamethodmodifiers CMMCore::copyNextImagesMD "private";
+
+%extend CMMCore {
+   jobject copyImage(JNIEnv* jenv, unsigned cameraChannelIndex, jobject pixels) throw (CMMError)
+   {
+      return CopyImagePixels(jenv, $self, $self->getImage(cameraChannelIndex), pixels);
+   }
+
+   jobject copyNextImage(JNIEnv* jenv, jobject pixels) throw (CMMError)
+   {
+      return CopyImagePixels(jenv, $self, $self->popNextImage(), pixels);
+   }
+
+   jobject copyLastImageMD(JNIEnv* jenv, unsigned channel, unsigned slice, Metadata& md,
+         jobject pixels) throw (CMMError)
+   {
+      return CopyImagePixels(jenv, $self, $self->getLastImageMD(channel, slice, md), pixels);
+   }
+
+   jobject copyNextImageMD(JNIEnv* jenv, unsigned channel, unsigned slice, Metadata& md,
+         jobject pixels) throw (CMMError)
+   {
+      return CopyImagePixels(jenv, $self, $self->popNextImageMD(channel, slice, md), pixels);
+   }
+
+   // Pop up to maxCount images, with their pixels copied into the elements
+   // of pixels (which are replaced if they can't hold them) and their
+   // metadata as key, value, key, value... String arrays in metadata. If
+   // an image can't be taken, the images taken before it are returned, and
+   // the error is only thrown if there are none.
+   int copyNextImagesMD(JNIEnv* jenv, unsigned channel, int maxCount, jobjectArray pixels,
+         jobjectArray metadata) throw (CMMError)
+   {
+      jclass stringClass = JCALL1(FindClass, jenv, "java/lang/String");
+      if (stringClass == 0)
+         return 0;
+      int count = 0;
+      while (count < maxCount && $self->getRemainingImageCount() > 0)
+      {
+         Metadata md;
+         void* image;
+         try
+         {
+            image = $self->popNextImageMD(channel, 0, md);
+         }
+         catch (CMMError&)
+         {
+            if (count == 0)
+               throw;
+            break; // Return the images taken so far
+         }
+
+         jobject dest = JCALL2(GetObjectArrayElement, jenv, pixels, count);
+         jobject data = CopyImagePixels(jenv, $self, image, dest);
+         if (JCALL0(ExceptionCheck, jenv))
+            break;
+         JCALL3(SetObjectArrayElement, jenv, pixels, count, data);
+
+         std::vector<std::string> keys = md.GetKeys();
+         jobjectArray keysAndValues = JCALL3(NewObjectArray, jenv, (jsize) (2 * keys.size()),
+               stringClass, 0);
+         if (keysAndValues == 0)
+            break; // OutOfMemoryError is pending
+         bool copied = true;
+         for (size_t i = 0; i < keys.size() && copied; i++)
+         {
+            jstring key = JCALL1(NewStringUTF, jenv, keys[i].c_str());
+            jstring value = key == 0 ? 0 : JCALL1(NewStringUTF, jenv,
+                  md.GetSingleTag(keys[i].c_str()).GetValue().c_str());
+            copied = value != 0; // Otherwise OutOfMemoryError is pending
+            if (copied)
+            {
+               JCALL3(SetObjectArrayElement, jenv, keysAndValues, (jsize) (2 * i), key);
+               JCALL3(SetObjectArrayElement, jenv, keysAndValues, (jsize) (2 * i + 1), value);
+            }
+            if (key != 0)
+               JCALL1(DeleteLocalRef, jenv, key);
+            if (value != 0)
+               JCALL1(DeleteLocalRef, jenv, value);
+         }
+         if (!copied)
+            break;
+         JCALL3(SetObjectArrayElement, jenv, metadata, count, keysAndValues);
+
+         // Keep the number of local references independent of maxCount
+         JCALL1(DeleteLocalRef, jenv, keysAndValues);
+         if (dest != 0 && dest != data)
+            JCALL1(DeleteLocalRef, jenv, dest);
+         if (data != 0)
+            JCALL1(DeleteLocalRef, jenv, data);
+         count++;
+      }
+      // The image that failed is lost, but a pending exception would make
+      // the Java wrapper throw away the ones taken before it too
+      if (count > 0 && JCALL0(ExceptionCheck, jenv))
+         JCALL0(ExceptionClear, jenv);
+      return count;
+   }
+}
+
+
 // instantiate STL mappings
 
 namespace std {
@@ -14,4 +14,16 @@ public class TaggedImage {
       this.pix = pix;
       this.tags = tags;
    }
+
+   /**
+    * The tags as an ImageMetadata, with typed access to the image
+    * coordinates, size and timing. Tags that were created as a plain
+    * JSONObject are converted (once), without going through JSON text.
+    */
+   public ImageMetadata getMetadata() {
+      if (!(tags instanceof ImageMetadata)) {
+         tags = ImageMetadata.from(tags);
+      }
+      return (ImageMetadata) tags;
+   }
 }
@@ -41,6 +41,15 @@ public class MMOptions {
    private static final String PREF_WINDOW_MAG = "windowMag";
    private static final String MPTIFF_METADATA_FILE = "MakeMetadataFileWithMultipageTiff";
    private static final String MPTIFF_SEPARATE_FILES_FOR_POSITIONS = "SplitXYPostionsInFilesMPTiff";
+   private static final String MPTIFF_BIGTIFF = "BigTiffMPTiff";
+   private static final String MPTIFF_PARALLEL_WRITING = "ParallelWritingMPTiff";
+   private static final String WRITE_QUEUE_SIZE_MB = "WriteQueueSizeMB";
+   private static final String RAM_STORAGE_BUDGET_MB = "RamStorageBudgetMB";
+   private static final String MPTIFF_DELTA_METADATA = "DeltaMetadataMPTiff";
+   private static final String MPTIFF_COMPRESSION = "CompressMPTiff";
+   private static final String COMPRESSION_THREADS = "CompressionThreads";
+   private static final String MPTIFF_CHECKSUMS = "ChecksumsMPTiff";
+   private static final String MPTIFF_PLANE_STATS = "PlaneStatsMPTiff";
    private static final String SYNCEXPOSUREMAINANDMDA = "SyncExposureBetweenMainAndMDAWindows";
    private static final String HIDE_MDA_DISPLAY = "HideMDADisplay";
    private static final String FAST_STORAGE = "FastStorage"; // No longer used but should not be reused
@@ -57,6 +66,15 @@ public class MMOptions {
    public double windowMag_;
    public boolean mpTiffMetadataFile_;
    public boolean mpTiffSeparateFilesForPositions_;
+   public boolean mpTiffBigTiff_;
+   public boolean mpTiffParallelWriting_;
+   public int writeQueueSizeMB_;
+   public int ramStorageBudgetMB_;
+   public boolean mpTiffDeltaMetadata_;
+   public boolean mpTiffCompression_;
+   public int compressionThreads_;
+   public boolean mpTiffChecksums_;
+   public boolean mpTiffPlaneStats_;
    public boolean syncExposureMainAndMDA_;
    public boolean hideMDADisplay_;
    public boolean deleteOldCoreLogs_;
@@ -73,11 +91,21 @@ public class MMOptions {
       boolean is64BitJVM =
          System.getProperty("sun.arch.data.model", "32").equals("64");
       circularBufferSizeMB_ = is64BitJVM ? 250 : 25;
+      writeQueueSizeMB_ = is64BitJVM ? 256 : 32;
+      ramStorageBudgetMB_ =
+         (int) (Runtime.getRuntime().maxMemory() / (2 * 1024 * 1024));
       displayBackground_ = "Day";
       startupScript_ = "MMStartup.bsh";
       windowMag_ = 1.0;
       mpTiffMetadataFile_ = false;
       mpTiffSeparateFilesForPositions_ = true;
+      mpTiffBigTiff_ = false;
+      mpTiffParallelWriting_ = false;
+      mpTiffDeltaMetadata_ = false;
+      mpTiffCompression_ = false;
+      compressionThreads_ = Runtime.getRuntime().availableProcessors();
+      mpTiffChecksums_ = false;
+      mpTiffPlaneStats_ = false;
       syncExposureMainAndMDA_ = false;
       hideMDADisplay_ = false;
       deleteOldCoreLogs_ = false;
@@ -102,6 +130,15 @@ public class MMOptions {
       prefs.putDouble(PREF_WINDOW_MAG, windowMag_);
       prefs.putBoolean(MPTIFF_METADATA_FILE, mpTiffMetadataFile_);
       prefs.putBoolean(MPTIFF_SEPARATE_FILES_FOR_POSITIONS, mpTiffSeparateFilesForPositions_);
+      prefs.putBoolean(MPTIFF_BIGTIFF, mpTiffBigTiff_);
+      prefs.putBoolean(MPTIFF_PARALLEL_WRITING, mpTiffParallelWriting_);
+      prefs.putInt(WRITE_QUEUE_SIZE_MB, writeQueueSizeMB_);
+      prefs.putInt(RAM_STORAGE_BUDGET_MB, ramStorageBudgetMB_);
+      prefs.putBoolean(MPTIFF_DELTA_METADATA, mpTiffDeltaMetadata_);
+      prefs.putBoolean(MPTIFF_COMPRESSION, mpTiffCompression_);
+      prefs.putInt(COMPRESSION_THREADS, compressionThreads_);
+      prefs.putBoolean(MPTIFF_CHECKSUMS, mpTiffChecksums_);
+      prefs.putBoolean(MPTIFF_PLANE_STATS, mpTiffPlaneStats_);
       prefs.putBoolean(SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
       prefs.putBoolean(HIDE_MDA_DISPLAY, hideMDADisplay_);
       prefs.putBoolean(DELETE_OLD_CORELOGS, deleteOldCoreLogs_);
@@ -120,6 +157,15 @@ public class MMOptions {
       windowMag_ = prefs.getDouble(PREF_WINDOW_MAG, windowMag_);
       mpTiffMetadataFile_ = prefs.getBoolean(MPTIFF_METADATA_FILE, mpTiffMetadataFile_);
       mpTiffSeparateFilesForPositions_ = prefs.getBoolean(MPTIFF_SEPARATE_FILES_FOR_POSITIONS, mpTiffSeparateFilesForPositions_);
+      mpTiffBigTiff_ = prefs.getBoolean(MPTIFF_BIGTIFF, mpTiffBigTiff_);
+      mpTiffParallelWriting_ = prefs.getBoolean(MPTIFF_PARALLEL_WRITING, mpTiffParallelWriting_);
+      writeQueueSizeMB_ = prefs.getInt(WRITE_QUEUE_SIZE_MB, writeQueueSizeMB_);
+      ramStorageBudgetMB_ = prefs.getInt(RAM_STORAGE_BUDGET_MB, ramStorageBudgetMB_);
+      mpTiffDeltaMetadata_ = prefs.getBoolean(MPTIFF_DELTA_METADATA, mpTiffDeltaMetadata_);
+      mpTiffCompression_ = prefs.getBoolean(MPTIFF_COMPRESSION, mpTiffCompression_);
+      compressionThreads_ = prefs.getInt(COMPRESSION_THREADS, compressionThreads_);
+      mpTiffChecksums_ = prefs.getBoolean(MPTIFF_CHECKSUMS, mpTiffChecksums_);
+      mpTiffPlaneStats_ = prefs.getBoolean(MPTIFF_PLANE_STATS, mpTiffPlaneStats_);
       syncExposureMainAndMDA_ = prefs.getBoolean(SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
       hideMDADisplay_ = prefs.getBoolean(HIDE_MDA_DISPLAY, hideMDADisplay_);
       deleteOldCoreLogs_ =
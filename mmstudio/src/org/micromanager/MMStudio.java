@@ -418,6 +418,9 @@ public class MMStudio implements ScriptInterface {
       } catch (Exception ex) {
          ReportingUtils.showError(ex);
       }
+      ImageWriteQueue.getInstance().setCapacityMB(options_.writeQueueSizeMB_);
+      ImageArena.setBudgetMB(options_.ramStorageBudgetMB_);
+      TiffStripCodec.setNumThreads(options_.compressionThreads_);
 
       engine_.setParentGUI(studio_);
 
@@ -730,6 +733,30 @@ public class MMStudio implements ScriptInterface {
    public boolean getSeparateFilesForPositionsMPTiff() {
       return options_.mpTiffSeparateFilesForPositions_;
    }
+
+   public boolean getBigTiffMPTiff() {
+      return options_.mpTiffBigTiff_;
+   }
+
+   public boolean getParallelWritingMPTiff() {
+      return options_.mpTiffParallelWriting_;
+   }
+
+   public boolean getDeltaMetadataMPTiff() {
+      return options_.mpTiffDeltaMetadata_;
+   }
+
+   public boolean getCompressionMPTiff() {
+      return options_.mpTiffCompression_;
+   }
+
+   public boolean getChecksumsMPTiff() {
+      return options_.mpTiffChecksums_;
+   }
+
+   public boolean getPlaneStatsMPTiff() {
+      return options_.mpTiffPlaneStats_;
+   }
    
    @Override
    public boolean getHideMDADisplayOption() {
@@ -0,0 +1,251 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DatasetIndex.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.micromanager.utils.ImageIndexMap;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Binary index of all images in a multipage tiff data set, stored next to
+ * the tiff files. Entries are appended while the data set is being written,
+ * and every file is sealed with its final length once the data set is
+ * finished. When reopening, a complete index gives the location of every
+ * image without opening (or repairing) any of the tiff files, so that files
+ * can be opened lazily.
+ *
+ * The index is a sequence of records following an 8 byte header:
+ * file (id, name, BigTIFF flag), image (file id, channel, slice, frame,
+ * position, IFD offset) and seal (file id, file length). An index that is
+ * missing a seal, or whose files changed length since, is not used.
+ */
+public final class DatasetIndex {
+
+   public static final String FILENAME = "MMDatasetIndex.bin";
+
+   private static final int MAGIC = 0x4d4d4449; // "MMDI"
+   // Version 2 widened file ids from 16 to 32 bits
+   private static final int VERSION = 2;
+   private static final byte FILE_RECORD = 'F';
+   private static final byte IMAGE_RECORD = 'I';
+   private static final byte SEAL_RECORD = 'S';
+
+   private final ArrayList<File> files_ = new ArrayList<File>();
+   private final ArrayList<Boolean> bigTiff_ = new ArrayList<Boolean>();
+   private final ArrayList<ImageIndexMap> indexMaps_ = new ArrayList<ImageIndexMap>();
+   private final ArrayList<Long> sealedLengths_ = new ArrayList<Long>();
+   private DataOutputStream out_;
+
+   private DatasetIndex() {
+   }
+
+   /**
+    * Start a new index for a data set that is about to be written
+    * @param directory data set directory
+    */
+   public static DatasetIndex create(String directory) throws IOException {
+      DatasetIndex index = new DatasetIndex();
+      index.out_ = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(new File(directory, FILENAME))));
+      index.out_.writeInt(MAGIC);
+      index.out_.writeInt(VERSION);
+      return index;
+   }
+
+   /**
+    * Read the index of an existing data set
+    * @param directory data set directory
+    * @return the index, or null if there is none or it can not be trusted
+    */
+   public static DatasetIndex read(File directory) {
+      File indexFile = new File(directory, FILENAME);
+      if (!indexFile.exists()) {
+         return null;
+      }
+      DatasetIndex index = new DatasetIndex();
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+         }
+         while (true) {
+            int record = in.read();
+            if (record == -1) {
+               break;
+            }
+            if (record == FILE_RECORD) {
+               in.readInt();
+               index.files_.add(new File(directory, in.readUTF()));
+               index.bigTiff_.add(in.readBoolean());
+               index.indexMaps_.add(new ImageIndexMap());
+               index.sealedLengths_.add(-1L);
+            } else if (record == IMAGE_RECORD) {
+               int fileId = in.readInt();
+               long key = ImageKey.pack(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+               // Later entries replace earlier ones, as in the index maps
+               index.indexMaps_.get(fileId).put(key, in.readLong());
+            } else if (record == SEAL_RECORD) {
+               index.sealedLengths_.set(in.readInt(), in.readLong());
+            } else {
+               return null;
+            }
+         }
+      } catch (EOFException ex) {
+         // Truncated while being written
+         return null;
+      } catch (IndexOutOfBoundsException ex) {
+         return null;
+      } catch (IllegalArgumentException ex) {
+         // Corrupt image indices
+         return null;
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't read data set index");
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+      }
+      if (index.files_.isEmpty()) {
+         // Truncated right after the header
+         return null;
+      }
+      for (int i = 0; i < index.files_.size(); i++) {
+         if (index.sealedLengths_.get(i) != index.files_.get(i).length()) {
+            return null;
+         }
+      }
+      return index;
+   }
+
+   /**
+    * Register a new file of the data set
+    * @return id of the file, to be passed to addImage
+    */
+   public synchronized int addFile(String filename, boolean bigTiff) {
+      int fileId = files_.size();
+      files_.add(new File(filename));
+      if (out_ != null) {
+         try {
+            out_.writeByte(FILE_RECORD);
+            out_.writeInt(fileId);
+            out_.writeUTF(filename);
+            out_.writeBoolean(bigTiff);
+         } catch (IOException ex) {
+            abandon(ex);
+         }
+      }
+      return fileId;
+   }
+
+   /**
+    * Record the location of the IFD of an image
+    */
+   public synchronized void addImage(int fileId, long key, long ifdOffset) {
+      if (out_ == null) {
+         return;
+      }
+      try {
+         out_.writeByte(IMAGE_RECORD);
+         out_.writeInt(fileId);
+         out_.writeInt(ImageKey.getChannel(key));
+         out_.writeInt(ImageKey.getSlice(key));
+         out_.writeInt(ImageKey.getFrame(key));
+         out_.writeInt(ImageKey.getPosition(key));
+         out_.writeLong(ifdOffset);
+      } catch (IOException ex) {
+         abandon(ex);
+      }
+   }
+
+   /**
+    * Seal all files with their final length and close the index. Call once
+    * every file of the data set has been closed and truncated.
+    * @param directory data set directory
+    */
+   public synchronized void finish(String directory) {
+      if (out_ == null) {
+         return;
+      }
+      try {
+         for (int i = 0; i < files_.size(); i++) {
+            out_.writeByte(SEAL_RECORD);
+            out_.writeInt(i);
+            out_.writeLong(new File(directory, files_.get(i).getName()).length());
+         }
+      } catch (IOException ex) {
+         abandon(ex);
+      }
+      close();
+   }
+
+   /**
+    * Close the index without sealing it, e.g. when a data set is abandoned.
+    * An unsealed index is ignored when the data set is opened.
+    */
+   public synchronized void close() {
+      if (out_ != null) {
+         try {
+            out_.close();
+         } catch (IOException ex) {
+            ReportingUtils.logError(ex, "Couldn't close data set index");
+         }
+         out_ = null;
+      }
+   }
+
+   // An incomplete index must never be sealed, since it would then hide
+   // images when the data set is opened
+   private void abandon(IOException ex) {
+      ReportingUtils.logError(ex, "Couldn't write data set index");
+      close();
+   }
+
+   public int getNumFiles() {
+      return files_.size();
+   }
+
+   public File getFile(int fileId) {
+      return files_.get(fileId);
+   }
+
+   public boolean isBigTiff(int fileId) {
+      return bigTiff_.get(fileId);
+   }
+
+   public ImageIndexMap getIndexMap(int fileId) {
+      return indexMaps_.get(fileId);
+   }
+}
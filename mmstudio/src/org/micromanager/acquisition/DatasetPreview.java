@@ -0,0 +1,466 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DatasetPreview.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Small 8 bit previews of a multipage tiff data set, stored next to the tiff
+ * files so that a data set can be previewed without reading any of its
+ * images: a thumbnail of the first image of every channel and position, at
+ * most THUMBNAIL_SIZE pixels on a side and scaled from its own minimum to
+ * maximum, and a montage of all thumbnails (positions in a grid, the
+ * channels of each position side by side), at most MONTAGE_SIZE pixels on a
+ * side.
+ *
+ * While a data set is being written, the thumbnails are made on a
+ * background thread from the images that were put, so that the writing
+ * isn't slowed down, and the file is written when the data set is
+ * finished. The file is a sequence of thumbnail records following an 8
+ * byte header (channel, position, width, height, pixels, and the minimum
+ * and maximum of the full resolution image), and ends with the montage
+ * (width, height, pixels).
+ */
+public final class DatasetPreview {
+
+   public static final String FILENAME = "MMDatasetPreview.bin";
+   public static final int THUMBNAIL_SIZE = 128;
+   public static final int MONTAGE_SIZE = 1024;
+
+   private static final int MAGIC = 0x4d4d4450; // "MMDP"
+   private static final int VERSION = 1;
+   private static final byte THUMBNAIL_RECORD = 'T';
+   private static final byte MONTAGE_RECORD = 'M';
+
+   private final ConcurrentHashMap<Long, Thumbnail> thumbnails_ =
+           new ConcurrentHashMap<Long, Thumbnail>();
+   private volatile ByteProcessor montage_;
+   // Keys (channel and position) of the images that thumbnails are being
+   // made of; only used while writing
+   private final ConcurrentHashMap<Long, Boolean> offered_ =
+           new ConcurrentHashMap<Long, Boolean>();
+   private ThreadPoolExecutor executor_;
+
+   private DatasetPreview() {
+   }
+
+   /**
+    * Start making the preview of a data set that is about to be written
+    */
+   static DatasetPreview create() {
+      DatasetPreview preview = new DatasetPreview();
+      preview.executor_ = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Data set preview");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+         }
+      });
+      return preview;
+   }
+
+   /**
+    * Read the preview of an existing data set
+    * @param directory data set directory
+    * @return the preview, or null if there is none or it can't be read
+    */
+   public static DatasetPreview read(File directory) {
+      File previewFile = new File(directory, FILENAME);
+      if (!previewFile.exists()) {
+         return null;
+      }
+      DatasetPreview preview = new DatasetPreview();
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(previewFile)));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+         }
+         while (true) {
+            int record = in.read();
+            if (record == -1) {
+               break;
+            }
+            if (record == THUMBNAIL_RECORD) {
+               long key = ImageKey.pack(in.readInt(), 0, 0, in.readInt());
+               ByteProcessor pixels = readPixels(in);
+               int min = in.readInt();
+               int max = in.readInt();
+               preview.thumbnails_.put(key, new Thumbnail(pixels, min, max));
+            } else if (record == MONTAGE_RECORD) {
+               preview.montage_ = readPixels(in);
+            } else {
+               return null;
+            }
+         }
+      } catch (EOFException ex) {
+         return null;
+      } catch (IllegalArgumentException ex) {
+         // Corrupt indices or sizes
+         return null;
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't read data set preview");
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+      }
+      return preview;
+   }
+
+   /**
+    * Make a thumbnail of the image, on the background thread, if it is the
+    * first image of its channel and position. Returns immediately. The
+    * pixels of the image must not be changed afterwards (as for any image
+    * put into a storage).
+    */
+   void offer(TaggedImage image) {
+      final long key;
+      final int width, height;
+      try {
+         key = ImageKey.pack(MDUtils.getChannelIndex(image.tags), 0, 0,
+                 MDUtils.getPositionIndex(image.tags));
+         width = MDUtils.getWidth(image.tags);
+         height = MDUtils.getHeight(image.tags);
+      } catch (JSONException ex) {
+         return;
+      }
+      if (offered_.putIfAbsent(key, Boolean.TRUE) != null) {
+         return;
+      }
+      final Object pixels = image.pix;
+      try {
+         executor_.submit(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  Thumbnail thumbnail = makeThumbnail(pixels, width, height);
+                  if (thumbnail != null) {
+                     thumbnails_.put(key, thumbnail);
+                  }
+               } catch (RuntimeException ex) {
+                  ReportingUtils.logError(ex, "Couldn't make thumbnail");
+               }
+            }
+         });
+      } catch (RejectedExecutionException ex) {
+         // Already finished
+      }
+   }
+
+   /**
+    * Make the montage and write the preview file once all thumbnails have
+    * been made; returns immediately
+    * @param directory data set directory
+    */
+   void finish(final String directory) {
+      try {
+         executor_.submit(new Runnable() {
+            @Override
+            public void run() {
+               montage_ = makeMontage();
+               write(directory);
+            }
+         });
+      } catch (RejectedExecutionException ex) {
+         return;
+      }
+      executor_.shutdown();
+   }
+
+   /**
+    * Wait until the preview file has been written (see finish)
+    */
+   void awaitFinished() {
+      try {
+         while (!executor_.awaitTermination(4, TimeUnit.SECONDS)) {
+            ReportingUtils.logMessage("Waiting for data set preview to be written");
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Stop making thumbnails without writing the preview
+    */
+   void abandon() {
+      if (executor_ != null) {
+         executor_.shutdownNow();
+      }
+   }
+
+   /**
+    * Thumbnail of the first image of a channel at a position, scaled to 8
+    * bits from the minimum to the maximum of the image (see
+    * getThumbnailRange)
+    * @return null if there is none (yet)
+    */
+   public ByteProcessor getThumbnail(int channel, int position) {
+      Thumbnail thumbnail = thumbnails_.get(ImageKey.pack(channel, 0, 0, position));
+      return thumbnail == null ? null : thumbnail.pixels_;
+   }
+
+   /**
+    * Intensities of the full resolution image that are shown as 0 and 255
+    * in its thumbnail
+    * @return {minimum, maximum}, or null if there is no thumbnail
+    */
+   public int[] getThumbnailRange(int channel, int position) {
+      Thumbnail thumbnail = thumbnails_.get(ImageKey.pack(channel, 0, 0, position));
+      return thumbnail == null ? null : new int[] {thumbnail.min_, thumbnail.max_};
+   }
+
+   /**
+    * Montage of the thumbnails of all channels and positions. While the
+    * data set is being written, it is made from the thumbnails so far.
+    */
+   public ByteProcessor getMontage() {
+      ByteProcessor montage = montage_;
+      return montage != null ? montage : makeMontage();
+   }
+
+   private void write(String directory) {
+      File previewFile = new File(directory, FILENAME);
+      DataOutputStream out = null;
+      try {
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(previewFile)));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         for (long key : getSortedKeys()) {
+            Thumbnail thumbnail = thumbnails_.get(key);
+            out.writeByte(THUMBNAIL_RECORD);
+            out.writeInt(ImageKey.getChannel(key));
+            out.writeInt(ImageKey.getPosition(key));
+            writePixels(out, thumbnail.pixels_);
+            out.writeInt(thumbnail.min_);
+            out.writeInt(thumbnail.max_);
+         }
+         if (montage_ != null) {
+            out.writeByte(MONTAGE_RECORD);
+            writePixels(out, montage_);
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't write data set preview");
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+      }
+   }
+
+   private static void writePixels(DataOutputStream out, ByteProcessor pixels)
+           throws IOException {
+      out.writeInt(pixels.getWidth());
+      out.writeInt(pixels.getHeight());
+      out.write((byte[]) pixels.getPixels());
+   }
+
+   private static ByteProcessor readPixels(DataInputStream in) throws IOException {
+      int width = in.readInt();
+      int height = in.readInt();
+      if (width <= 0 || height <= 0 || width > MONTAGE_SIZE || height > MONTAGE_SIZE) {
+         throw new IllegalArgumentException("Invalid preview size");
+      }
+      byte[] pixels = new byte[width * height];
+      in.readFully(pixels);
+      return new ByteProcessor(width, height, pixels);
+   }
+
+   private List<Long> getSortedKeys() {
+      List<Long> keys = new ArrayList<Long>(thumbnails_.keySet());
+      Collections.sort(keys);
+      return keys;
+   }
+
+   /**
+    * Thumbnail of 8 bit, 16 bit or RGB pixels (RGB as the mean of the
+    * colors), given as an array or as a ByteBuffer laid out as in the file.
+    * Each thumbnail pixel is the mean of a square of image pixels.
+    */
+   private static Thumbnail makeThumbnail(Object pixels, int width, int height) {
+      int numPixels = width * height;
+      if (numPixels <= 0) {
+         return null;
+      }
+      ByteBuffer buffer = null;
+      int bytesPerPixel;
+      if (pixels instanceof byte[]) {
+         bytesPerPixel = ((byte[]) pixels).length / numPixels;
+      } else if (pixels instanceof short[]) {
+         bytesPerPixel = 2;
+      } else if (pixels instanceof ByteBuffer) {
+         buffer = ((ByteBuffer) pixels).duplicate().order(((ByteBuffer) pixels).order());
+         bytesPerPixel = buffer.remaining() / numPixels;
+      } else {
+         return null;
+      }
+      if (bytesPerPixel != 1 && bytesPerPixel != 2 && bytesPerPixel != 4) {
+         return null;
+      }
+
+      int factor = (Math.max(width, height) + THUMBNAIL_SIZE - 1) / THUMBNAIL_SIZE;
+      int thumbWidth = Math.max(1, width / factor);
+      int thumbHeight = Math.max(1, height / factor);
+      long[] sums = new long[thumbWidth * thumbHeight];
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      int start = buffer == null ? 0 : buffer.position();
+      for (int y = 0; y < thumbHeight * factor; y++) {
+         int row = (y / factor) * thumbWidth;
+         int offset = y * width;
+         for (int x = 0; x < thumbWidth * factor; x++) {
+            int i = offset + x;
+            int value;
+            if (buffer != null) {
+               if (bytesPerPixel == 1) {
+                  value = buffer.get(start + i) & 0xff;
+               } else if (bytesPerPixel == 2) {
+                  value = buffer.getShort(start + 2 * i) & 0xffff;
+               } else {
+                  int p = start + 4 * i;
+                  value = ((buffer.get(p) & 0xff) + (buffer.get(p + 1) & 0xff)
+                          + (buffer.get(p + 2) & 0xff)) / 3;
+               }
+            } else if (bytesPerPixel == 1) {
+               value = ((byte[]) pixels)[i] & 0xff;
+            } else if (bytesPerPixel == 2) {
+               value = ((short[]) pixels)[i] & 0xffff;
+            } else {
+               byte[] rgb = (byte[]) pixels;
+               value = ((rgb[4 * i] & 0xff) + (rgb[4 * i + 1] & 0xff)
+                       + (rgb[4 * i + 2] & 0xff)) / 3;
+            }
+            sums[row + x / factor] += value;
+            if (value < min) {
+               min = value;
+            }
+            if (value > max) {
+               max = value;
+            }
+         }
+      }
+
+      int area = factor * factor;
+      double scale = 255.0 / Math.max(1, max - min);
+      byte[] thumbPixels = new byte[sums.length];
+      for (int i = 0; i < sums.length; i++) {
+         thumbPixels[i] = (byte) Math.round((sums[i] / area - min) * scale);
+      }
+      return new Thumbnail(new ByteProcessor(thumbWidth, thumbHeight, thumbPixels), min, max);
+   }
+
+   /**
+    * Lay out the thumbnails of each position side by side by channel, and
+    * the positions in a roughly square grid, scaled to fit MONTAGE_SIZE
+    * @return null if there are no thumbnails
+    */
+   private ByteProcessor makeMontage() {
+      List<Long> keys = getSortedKeys();
+      if (keys.isEmpty()) {
+         return null;
+      }
+      int numChannels = 0;
+      int numPositions = 0;
+      int tileWidth = 1;
+      int tileHeight = 1;
+      for (long key : keys) {
+         numChannels = Math.max(numChannels, ImageKey.getChannel(key) + 1);
+         numPositions = Math.max(numPositions, ImageKey.getPosition(key) + 1);
+         ByteProcessor pixels = thumbnails_.get(key).pixels_;
+         tileWidth = Math.max(tileWidth, pixels.getWidth());
+         tileHeight = Math.max(tileHeight, pixels.getHeight());
+      }
+      int columns = (int) Math.max(1, Math.round(Math.sqrt(
+              (double) numPositions * tileHeight / (numChannels * tileWidth))));
+      columns = Math.min(columns, numPositions);
+      int rows = (numPositions + columns - 1) / columns;
+      double scale = Math.min(1.0, Math.min(
+              (double) MONTAGE_SIZE / (columns * numChannels * tileWidth),
+              (double) MONTAGE_SIZE / (rows * tileHeight)));
+      tileWidth = Math.max(1, (int) (tileWidth * scale));
+      tileHeight = Math.max(1, (int) (tileHeight * scale));
+
+      ByteProcessor montage = new ByteProcessor(
+              Math.min(MONTAGE_SIZE, columns * numChannels * tileWidth),
+              Math.min(MONTAGE_SIZE, rows * tileHeight));
+      for (long key : keys) {
+         ImageProcessor tile = thumbnails_.get(key).pixels_;
+         if (tile.getWidth() != tileWidth || tile.getHeight() != tileHeight) {
+            tile.setInterpolationMethod(ImageProcessor.BILINEAR);
+            tile = tile.resize(tileWidth, tileHeight);
+         }
+         int position = ImageKey.getPosition(key);
+         int x = ((position % columns) * numChannels + ImageKey.getChannel(key)) * tileWidth;
+         int y = (position / columns) * tileHeight;
+         montage.insert(tile, x, y);
+      }
+      return montage;
+   }
+
+   private static class Thumbnail {
+      final ByteProcessor pixels_;
+      final int min_;
+      final int max_;
+
+      Thumbnail(ByteProcessor pixels, int min, int max) {
+         pixels_ = pixels;
+         min_ = min;
+         max_ = max;
+      }
+   }
+}
@@ -0,0 +1,703 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DatasetTool.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import mmcorej.TaggedImage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.ImageIndexMap;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Command line tool for inspecting, verifying and converting Micro-Manager
+ * data sets without starting the GUI, e.g. on compute nodes:
+ *
+ * java -Djava.awt.headless=true -cp MMJ_.jar:ij.jar:...
+ *       org.micromanager.acquisition.DatasetTool COMMAND ...
+ *
+ * Commands:
+ *   list DIR              dimensions and size of a data set
+ *   verify DIR            read every image, and check the index maps of
+ *                         multipage tiff files, the data set index and
+ *                         the checksums of the pixels, if there are any
+ *   verifyChecksums DIR   only check the pixels of multipage tiff files
+ *                         written with checksums, which is faster
+ *   fixIndexMap DIR       rebuild the index maps of multipage tiff files
+ *                         that weren't finished
+ *   extract SRC DEST [-c FIRST-LAST] [-z FIRST-LAST] [-t FIRST-LAST]
+ *           [-p FIRST-LAST]
+ *                         copy a range of channels, slices, frames and
+ *                         positions to a new data set, numbered from 0;
+ *                         ranges are cut off at the end of the data set
+ *   convert SRC DEST      copy a data set to a new data set
+ *
+ * Options:
+ *   -threads N            number of files processed at once (default: one
+ *                         per processor)
+ *   -format mptiff|separate
+ *                         storage of the new data set of extract and
+ *                         convert: multipage tiff (default) or one file per
+ *                         image
+ *   -maxOpenFiles N       number of multipage tiff files of the source data
+ *                         set that are kept open at once (see
+ *                         FileChannelPool)
+ *
+ * Exits with status 1 if an error was found or a command failed, and 2 for
+ * usage errors.
+ */
+public final class DatasetTool {
+
+   private static final int FIRST = 0, LAST = 1;
+   private static final String[] AXES = {"-c", "-z", "-t", "-p"};
+
+   private int numThreads_ = Runtime.getRuntime().availableProcessors();
+   private boolean separateFiles_ = false;
+   // First and last channel, slice, frame and position to extract
+   private final int[][] ranges_ = new int[4][];
+
+   public static void main(String[] args) {
+      ReportingUtils.showErrorOn(false);
+      int status;
+      try {
+         status = new DatasetTool().run(args);
+      } catch (IllegalArgumentException ex) {
+         System.err.println(ex.getMessage());
+         printUsage();
+         status = 2;
+      } catch (Exception ex) {
+         ex.printStackTrace();
+         status = 1;
+      }
+      System.exit(status);
+   }
+
+   private static void printUsage() {
+      System.err.println("Usage: DatasetTool list|verify|verifyChecksums|fixIndexMap DIR"
+              + " [-threads N]");
+      System.err.println("       DatasetTool convert SRC DEST [-format mptiff|separate]"
+              + " [-maxOpenFiles N]");
+      System.err.println("       DatasetTool extract SRC DEST [-c FIRST-LAST] [-z FIRST-LAST]"
+              + " [-t FIRST-LAST] [-p FIRST-LAST] [-format mptiff|separate]");
+   }
+
+   private int run(String[] args) throws Exception {
+      List<String> operands = new ArrayList<String>();
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-threads")) {
+            numThreads_ = Math.max(1, Integer.parseInt(getValue(args, ++i)));
+         } else if (args[i].equals("-maxOpenFiles")) {
+            FileChannelPool.getInstance().setMaxOpenFiles(
+                    Integer.parseInt(getValue(args, ++i)));
+         } else if (args[i].equals("-format")) {
+            String format = getValue(args, ++i);
+            if (!format.equals("mptiff") && !format.equals("separate")) {
+               throw new IllegalArgumentException("Unknown format: " + format);
+            }
+            separateFiles_ = format.equals("separate");
+         } else if (Arrays.asList(AXES).contains(args[i])) {
+            ranges_[Arrays.asList(AXES).indexOf(args[i])] = parseRange(getValue(args, ++i));
+         } else {
+            operands.add(args[i]);
+         }
+      }
+      if (operands.isEmpty()) {
+         throw new IllegalArgumentException("No command given");
+      }
+      String command = operands.get(0);
+      if (command.equals("list") && operands.size() == 2) {
+         return list(operands.get(1));
+      } else if (command.equals("verify") && operands.size() == 2) {
+         return verify(operands.get(1), false);
+      } else if (command.equals("verifyChecksums") && operands.size() == 2) {
+         return verify(operands.get(1), true);
+      } else if (command.equals("fixIndexMap") && operands.size() == 2) {
+         return fixIndexMaps(operands.get(1));
+      } else if (command.equals("convert") && operands.size() == 3) {
+         return copy(operands.get(1), operands.get(2), false);
+      } else if (command.equals("extract") && operands.size() == 3) {
+         return copy(operands.get(1), operands.get(2), true);
+      }
+      throw new IllegalArgumentException("Unknown command or wrong number of arguments: "
+              + command);
+   }
+
+   private static String getValue(String[] args, int i) {
+      if (i >= args.length) {
+         throw new IllegalArgumentException("Missing value of " + args[i - 1]);
+      }
+      return args[i];
+   }
+
+   private static int[] parseRange(String range) {
+      try {
+         String[] parts = range.split("-");
+         int first = Integer.parseInt(parts[0]);
+         int last = parts.length > 1 ? Integer.parseInt(parts[1]) : first;
+         if (parts.length > 2 || first < 0 || last < first) {
+            throw new NumberFormatException();
+         }
+         return new int[] {first, last};
+      } catch (NumberFormatException ex) {
+         throw new IllegalArgumentException("Invalid range: " + range);
+      }
+   }
+
+   private static boolean isMultipageTiff(String dir) throws Exception {
+      return MultipageTiffReader.isMMMultipageTiff(dir);
+   }
+
+   private static TaggedImageStorage open(String dir) throws Exception {
+      if (!new File(dir).isDirectory()) {
+         throw new IllegalArgumentException("Not a directory: " + dir);
+      }
+      if (isMultipageTiff(dir)) {
+         return new TaggedImageStorageMultipageTiff(dir, false, null, false, true, true, false);
+      }
+      return new TaggedImageStorageDiskDefault(dir);
+   }
+
+   private static File[] getTiffFiles(String dir) {
+      File[] files = new File(dir).listFiles(new FileFilter() {
+         @Override
+         public boolean accept(File f) {
+            return f.isFile() && (f.getName().endsWith(".tif") || f.getName().endsWith(".TIF"));
+         }
+      });
+      Arrays.sort(files);
+      return files;
+   }
+
+   private static long getTotalLength(File[] files) {
+      long length = 0;
+      for (File f : files) {
+         length += f.length();
+      }
+      return length;
+   }
+
+   private static String formatThroughput(long bytes, long images, long startNanos) {
+      double seconds = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+      return String.format("%.1f s, %.1f MB/s, %.0f images/s",
+              seconds, bytes / 1e6 / seconds, images / seconds);
+   }
+
+   /**
+    * @return the number of channels, slices, frames and positions of the
+    * images of a storage
+    */
+   private static int[] getDimensions(TaggedImageStorage storage) {
+      int[] dims = new int[4];
+      for (String label : storage.imageKeys()) {
+         int[] indices = MDUtils.getIndices(label);
+         for (int i = 0; i < dims.length; i++) {
+            dims[i] = Math.max(dims[i], indices[i] + 1);
+         }
+      }
+      return dims;
+   }
+
+   private int list(String dir) throws Exception {
+      TaggedImageStorage storage = open(dir);
+      try {
+         JSONObject summary = storage.getSummaryMetadata();
+         int[] dims = getDimensions(storage);
+         List<File> files = new ArrayList<File>(Arrays.asList(getTiffFiles(dir)));
+         if (!(storage instanceof TaggedImageStorageMultipageTiff)) {
+            // One directory of images per position
+            for (File sub : new File(dir).listFiles()) {
+               if (sub.isDirectory()) {
+                  files.addAll(Arrays.asList(getTiffFiles(sub.getPath())));
+               }
+            }
+         }
+         System.out.println("Data set:   " + dir);
+         System.out.println("Storage:    " + (storage instanceof TaggedImageStorageMultipageTiff
+                 ? "multipage tiff" : "one file per image"));
+         if (summary != null) {
+            System.out.println("Image size: " + MDUtils.getWidth(summary) + " x "
+                    + MDUtils.getHeight(summary) + ", " + MDUtils.getPixelType(summary));
+            if (summary.has("ChNames")) {
+               System.out.println("Channels:   " + summary.get("ChNames"));
+            }
+         }
+         System.out.println(String.format(
+                 "Dimensions: %d channels, %d slices, %d frames, %d positions",
+                 dims[0], dims[1], dims[2], dims[3]));
+         System.out.println("Images:     " + storage.imageKeys().size());
+         System.out.println(String.format("Files:      %d, %.1f MB",
+                 files.size(), getTotalLength(files.toArray(new File[files.size()])) / 1e6));
+      } finally {
+         storage.close();
+      }
+      return 0;
+   }
+
+   /**
+    * Runs the tasks on numThreads_ threads
+    * @return their results, in the order of the tasks
+    */
+   private <T> List<T> runAll(List<Callable<T>> tasks) throws InterruptedException {
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads_);
+      try {
+         List<T> results = new ArrayList<T>();
+         for (Future<T> future : executor.invokeAll(tasks)) {
+            try {
+               results.add(future.get());
+            } catch (ExecutionException ex) {
+               ReportingUtils.logError(ex.getCause());
+               results.add(null);
+            }
+         }
+         return results;
+      } finally {
+         executor.shutdown();
+      }
+   }
+
+   private static final class FileResult {
+      final String message;
+      final boolean ok;
+      final long images;
+      final long bytes;
+
+      FileResult(String message, boolean ok, long images, long bytes) {
+         this.message = message;
+         this.ok = ok;
+         this.images = images;
+         this.bytes = bytes;
+      }
+   }
+
+   /**
+    * @param checksumsOnly - only check the pixels of the images against
+    * their checksums
+    */
+   private int verify(String dir, final boolean checksumsOnly) throws Exception {
+      if (!isMultipageTiff(dir)) {
+         if (checksumsOnly) {
+            throw new IllegalArgumentException("Not a multipage tiff data set: " + dir);
+         }
+         return verifySeparateFiles(dir);
+      }
+      // Index maps in the data set index, by file name
+      final Map<String, ImageIndexMap> datasetIndexMaps = new HashMap<String, ImageIndexMap>();
+      DatasetIndex datasetIndex = DatasetIndex.read(new File(dir));
+      if (datasetIndex != null) {
+         for (int i = 0; i < datasetIndex.getNumFiles(); i++) {
+            datasetIndexMaps.put(datasetIndex.getFile(i).getName(), datasetIndex.getIndexMap(i));
+         }
+      }
+      File[] files = getTiffFiles(dir);
+      List<Callable<FileResult>> tasks = new ArrayList<Callable<FileResult>>();
+      for (final File f : files) {
+         tasks.add(new Callable<FileResult>() {
+            @Override
+            public FileResult call() throws Exception {
+               return checksumsOnly ? verifyChecksums(f)
+                       : verifyFile(f, datasetIndexMaps.get(f.getName()));
+            }
+         });
+      }
+      long start = System.nanoTime();
+      List<FileResult> results = runAll(tasks);
+      int numErrors = 0;
+      long images = 0, bytes = 0;
+      for (int i = 0; i < files.length; i++) {
+         FileResult result = results.get(i);
+         if (result == null) {
+            result = new FileResult("couldn't be read", false, 0, 0);
+         }
+         System.out.println(files[i].getName() + ": " + result.message);
+         if (!result.ok) {
+            numErrors++;
+         }
+         images += result.images;
+         bytes += result.bytes;
+      }
+      if (checksumsOnly) {
+         // The data set index isn't checked
+      } else if (datasetIndex == null) {
+         System.out.println(DatasetIndex.FILENAME + ": missing or invalid; files are opened "
+                 + "without it, which is slower");
+      } else if (datasetIndex.getNumFiles() != files.length) {
+         System.out.println(DatasetIndex.FILENAME + ": lists " + datasetIndex.getNumFiles()
+                 + " files, found " + files.length);
+         numErrors++;
+      }
+      System.out.println(String.format("Verified %d images in %d files: %d problems (%s)",
+              images, files.length, numErrors, formatThroughput(bytes, images, start)));
+      return numErrors == 0 ? 0 : 1;
+   }
+
+   /**
+    * Reads all images of a file, and checks that they are where its index
+    * map and the data set index say
+    */
+   private static FileResult verifyFile(File f, ImageIndexMap datasetIndexMap) throws Exception {
+      MultipageTiffReader reader;
+      try {
+         reader = new MultipageTiffReader(f);
+      } catch (InvalidIndexMapException ex) {
+         return new FileResult("index map missing or invalid; run fixIndexMap", false, 0, 0);
+      }
+      try {
+         ImageIndexMap indexMap = reader.getIndexMap();
+         long images = 0, bytes = 0, checksums = 0;
+         List<String> problems = new ArrayList<String>();
+         for (long key : indexMap.keys()) {
+            TaggedImage image = reader.readImage(key);
+            if (image == null || image.pix == null) {
+               problems.add(ImageKey.toLabel(key) + " couldn't be read");
+            } else if (reader.hasChecksum(key) && !reader.verifyChecksum(key)) {
+               problems.add(ImageKey.toLabel(key) + " doesn't match its checksum");
+            } else if (image.tags == null || !image.tags.has("ChannelIndex")
+                    || ImageKey.fromTags(image.tags) != key) {
+               problems.add(ImageKey.toLabel(key) + " has metadata of another image");
+            } else {
+               images++;
+               bytes += getByteLength(image.pix);
+               if (reader.hasChecksum(key)) {
+                  checksums++;
+               }
+            }
+            if (datasetIndexMap != null && datasetIndexMap.get(key) != indexMap.get(key)) {
+               problems.add(ImageKey.toLabel(key) + " is at another offset in "
+                       + DatasetIndex.FILENAME);
+            }
+         }
+         if (datasetIndexMap != null && datasetIndexMap.size() != indexMap.size()) {
+            problems.add(DatasetIndex.FILENAME + " lists " + datasetIndexMap.size()
+                    + " images, index map " + indexMap.size());
+         }
+         if (problems.isEmpty()) {
+            return new FileResult(images + " images OK"
+                    + (checksums > 0 ? ", " + checksums + " with checksums" : ""),
+                    true, images, bytes);
+         }
+         return getProblemsResult(problems, images, bytes);
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Checks the pixels of all images of a file against their checksums,
+    * without decoding them or reading their metadata
+    */
+   private static FileResult verifyChecksums(File f) throws Exception {
+      MultipageTiffReader reader;
+      try {
+         reader = new MultipageTiffReader(f);
+      } catch (InvalidIndexMapException ex) {
+         return new FileResult("index map missing or invalid; run fixIndexMap", false, 0, 0);
+      }
+      try {
+         if (!reader.hasChecksums()) {
+            return new FileResult("written without checksums", true, 0, 0);
+         }
+         long images = 0;
+         List<String> problems = new ArrayList<String>();
+         for (long key : reader.getIndexMap().keys()) {
+            try {
+               if (!reader.verifyChecksum(key)) {
+                  problems.add(ImageKey.toLabel(key) + " doesn't match its checksum");
+               } else if (reader.hasChecksum(key)) {
+                  images++;
+               }
+            } catch (IOException ex) {
+               problems.add(ImageKey.toLabel(key) + " couldn't be read");
+            }
+         }
+         if (problems.isEmpty()) {
+            return new FileResult(images + " checksums OK", true, images, f.length());
+         }
+         return getProblemsResult(problems, images, f.length());
+      } finally {
+         reader.close();
+      }
+   }
+
+   private static FileResult getProblemsResult(List<String> problems, long images, long bytes) {
+      StringBuilder message = new StringBuilder(problems.size() + " problems");
+      for (String problem : problems.subList(0, Math.min(10, problems.size()))) {
+         message.append("\n  ").append(problem);
+      }
+      return new FileResult(message.toString(), false, images, bytes);
+   }
+
+   private int verifySeparateFiles(String dir) throws Exception {
+      final TaggedImageStorage storage = open(dir);
+      try {
+         // Each task gives the size of the pixels of an image, or null
+         List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+         final List<String> labels = new ArrayList<String>(storage.imageKeys());
+         for (final String label : labels) {
+            tasks.add(new Callable<Long>() {
+               @Override
+               public Long call() throws Exception {
+                  int[] pos = MDUtils.getIndices(label);
+                  TaggedImage image = storage.getImage(pos[0], pos[1], pos[2], pos[3]);
+                  if (image == null || image.pix == null) {
+                     return null;
+                  }
+                  return getByteLength(image.pix);
+               }
+            });
+         }
+         long start = System.nanoTime();
+         List<Long> results = runAll(tasks);
+         int numErrors = 0;
+         long bytes = 0;
+         for (int i = 0; i < labels.size(); i++) {
+            if (results.get(i) == null) {
+               System.out.println(labels.get(i) + " couldn't be read");
+               numErrors++;
+            } else {
+               bytes += results.get(i);
+            }
+         }
+         System.out.println(String.format("Verified %d images: %d problems (%s)",
+                 labels.size(), numErrors, formatThroughput(bytes, labels.size(), start)));
+         return numErrors == 0 ? 0 : 1;
+      } finally {
+         storage.close();
+      }
+   }
+
+   private int fixIndexMaps(String dir) throws Exception {
+      if (!isMultipageTiff(dir)) {
+         throw new IllegalArgumentException(dir + " isn't a multipage tiff data set");
+      }
+      File[] files = getTiffFiles(dir);
+      List<Callable<FileResult>> tasks = new ArrayList<Callable<FileResult>>();
+      for (final File f : files) {
+         tasks.add(new Callable<FileResult>() {
+            @Override
+            public FileResult call() throws Exception {
+               return fixIndexMap(f);
+            }
+         });
+      }
+      long start = System.nanoTime();
+      List<FileResult> results = runAll(tasks);
+      int numFixed = 0, numErrors = 0;
+      long images = 0;
+      for (int i = 0; i < files.length; i++) {
+         FileResult result = results.get(i);
+         if (result == null) {
+            result = new FileResult("couldn't be fixed", false, 0, 0);
+         }
+         System.out.println(files[i].getName() + ": " + result.message);
+         if (!result.ok) {
+            numErrors++;
+         } else if (result.bytes > 0) {
+            numFixed++;
+            images += result.images;
+         }
+      }
+      if (numFixed > 0) {
+         // The index was written before the files were fixed, if at all
+         File indexFile = new File(dir, DatasetIndex.FILENAME);
+         if (indexFile.exists() && !indexFile.delete()) {
+            System.out.println("Couldn't delete " + indexFile);
+            numErrors++;
+         }
+      }
+      System.out.println(String.format("Fixed %d of %d files, %d images (%s)",
+              numFixed, files.length, images,
+              formatThroughput(getTotalLength(files), images, start)));
+      return numErrors == 0 ? 0 : 1;
+   }
+
+   /**
+    * @return result with the file size as bytes if the index map was
+    * rebuilt, 0 if it was valid
+    */
+   private static FileResult fixIndexMap(File f) throws Exception {
+      try {
+         new MultipageTiffReader(f).close();
+         return new FileResult("index map OK", true, 0, 0);
+      } catch (InvalidIndexMapException ex) {
+         // Rebuild it below
+      }
+      new MultipageTiffReader(f, true).close();
+      try {
+         MultipageTiffReader reader = new MultipageTiffReader(f);
+         int images = reader.getIndexMap().size();
+         reader.close();
+         return new FileResult("index map rebuilt, " + images + " images", true,
+                 images, f.length());
+      } catch (InvalidIndexMapException ex) {
+         return new FileResult("index map couldn't be rebuilt", false, 0, 0);
+      }
+   }
+
+   private int copy(String sourceDir, String targetDir, boolean extract) throws Exception {
+      if (new File(targetDir).exists()) {
+         throw new IllegalArgumentException(targetDir + " already exists");
+      }
+      TaggedImageStorage source = open(sourceDir);
+      try {
+         final int[][] ranges = new int[4][];
+         List<String> labels = new ArrayList<String>();
+         int[] dims = getDimensions(source);
+         for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = new int[] {0, dims[i] - 1};
+            if (extract && ranges_[i] != null) {
+               if (ranges_[i][FIRST] >= dims[i]) {
+                  throw new IllegalArgumentException(String.format(
+                          "Range %s %d-%d starts after the last index (%d) of the data set",
+                          AXES[i], ranges_[i][FIRST], ranges_[i][LAST], dims[i] - 1));
+               }
+               ranges[i][FIRST] = ranges_[i][FIRST];
+               ranges[i][LAST] = Math.min(ranges_[i][LAST], dims[i] - 1);
+            }
+         }
+         for (String label : source.imageKeys()) {
+            int[] indices = MDUtils.getIndices(label);
+            boolean inRange = true;
+            for (int i = 0; i < indices.length; i++) {
+               inRange &= indices[i] >= ranges[i][FIRST] && indices[i] <= ranges[i][LAST];
+            }
+            if (inRange) {
+               labels.add(label);
+            }
+         }
+         if (labels.isEmpty()) {
+            throw new IllegalArgumentException("No images in the given ranges");
+         }
+
+         JSONObject summary = new JSONObject(source.getSummaryMetadata().toString());
+         JSONObject displayAndComments =
+                 new JSONObject(source.getDisplayAndComments().toString());
+         if (extract) {
+            extractSummary(summary, displayAndComments, ranges);
+         }
+         TaggedImageStorage target = separateFiles_
+                 ? new TaggedImageStorageDiskDefault(targetDir, true, summary)
+                 : new TaggedImageStorageMultipageTiff(targetDir, true, summary,
+                 false, true, true, false);
+         target.setSummaryMetadata(summary);
+         target.setDisplayAndComments(displayAndComments);
+
+         ImageStorageConverter converter = !extract
+                 ? new ImageStorageConverter(source, target)
+                 : new ImageStorageConverter(source, target) {
+                    @Override
+                    TaggedImage prepare(TaggedImage image) throws JSONException {
+                       JSONObject tags = MetadataDelta.copy(image.tags);
+                       MDUtils.setChannelIndex(tags,
+                               MDUtils.getChannelIndex(tags) - ranges[0][FIRST]);
+                       MDUtils.setSliceIndex(tags, MDUtils.getSliceIndex(tags) - ranges[1][FIRST]);
+                       MDUtils.setFrameIndex(tags, MDUtils.getFrameIndex(tags) - ranges[2][FIRST]);
+                       MDUtils.setPositionIndex(tags,
+                               MDUtils.getPositionIndex(tags) - ranges[3][FIRST]);
+                       return new TaggedImage(image.pix, tags);
+                    }
+                 };
+         // The statistics reported below are of the copy only, not of
+         // opening the source
+         FileChannelPool pool = FileChannelPool.getInstance();
+         pool.resetStatistics();
+         long start = System.nanoTime();
+         boolean ok;
+         try {
+            ok = converter.copy(labels, null);
+         } finally {
+            target.finished();
+            target.close();
+         }
+         System.out.println(String.format("%s %d images to %s (%s)",
+                 extract ? "Extracted" : "Converted",
+                 labels.size() - converter.getMissingImages(), targetDir,
+                 formatThroughput(converter.getCopiedBytes(), labels.size(), start)));
+         if (pool.getEvictionCount() > 0) {
+            System.out.println(String.format(
+                    "Files kept open: at most %d, reopened %d times (%.1f%% of reads)",
+                    pool.getPeakOpenFiles(), pool.getReopenCount(),
+                    100 * pool.getReopenRate()));
+         }
+         if (converter.getMissingImages() > 0) {
+            System.err.println(String.format("%d images could not be read, and were not copied",
+                    converter.getMissingImages()));
+         }
+         return ok && converter.getMissingImages() == 0 ? 0 : 1;
+      } finally {
+         source.close();
+      }
+   }
+
+   /**
+    * Adapt the summary metadata and display settings of a data set to the
+    * given ranges of channels, slices, frames and positions
+    */
+   private static void extractSummary(JSONObject summary, JSONObject displayAndComments,
+           int[][] ranges) throws JSONException {
+      summary.put("Channels", ranges[0][LAST] - ranges[0][FIRST] + 1);
+      summary.put("Slices", ranges[1][LAST] - ranges[1][FIRST] + 1);
+      summary.put("Frames", ranges[2][LAST] - ranges[2][FIRST] + 1);
+      summary.put("Positions", ranges[3][LAST] - ranges[3][FIRST] + 1);
+      for (String key : new String[] {"ChNames", "ChColors", "ChContrastMin", "ChContrastMax"}) {
+         if (summary.has(key)) {
+            summary.put(key, subArray(summary.getJSONArray(key), ranges[0]));
+         }
+      }
+      if (displayAndComments.has("Channels")) {
+         displayAndComments.put("Channels",
+                 subArray(displayAndComments.getJSONArray("Channels"), ranges[0]));
+      }
+   }
+
+   private static JSONArray subArray(JSONArray array, int[] range) throws JSONException {
+      JSONArray result = new JSONArray();
+      for (int i = range[FIRST]; i <= range[LAST] && i < array.length(); i++) {
+         result.put(array.get(i));
+      }
+      return result;
+   }
+
+   private static long getByteLength(Object pix) {
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return 2L * ((short[]) pix).length;
+      } else if (pix instanceof int[]) {
+         return 4L * ((int[]) pix).length;
+      }
+      return 0;
+   }
+}
@@ -0,0 +1,222 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FileChannelPool.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Process-wide limit on the number of multipage tiff files that are held
+ * open for reading. Data sets with thousands of files (many positions, or
+ * long acquisitions split into 4 GB files) would otherwise keep a file
+ * handle per file for as long as they are open, and run into the limit of
+ * the operating system. When more files than the limit are open, the
+ * channels of the least recently used ones are closed; they are reopened
+ * the next time an image is read from them. A channel is never closed while
+ * a reader is using it, so the limit can be exceeded briefly. Memory mapped
+ * regions stay valid after their channel has been closed.
+ * Files that are still being written are not counted.
+ */
+public final class FileChannelPool {
+
+   public static final int DEFAULT_MAX_OPEN_FILES = 256;
+
+   private static final FileChannelPool INSTANCE = new FileChannelPool();
+
+   // Readers of finished files whose channel is open, least recently used
+   // first
+   private final LinkedHashMap<MultipageTiffReader, Boolean> open_ =
+           new LinkedHashMap<MultipageTiffReader, Boolean>(16, 0.75f, true);
+   private int maxOpenFiles_ = DEFAULT_MAX_OPEN_FILES;
+   private int peakOpenFiles_ = 0;
+   private long acquireCount_ = 0;
+   private long reopenCount_ = 0;
+   private long evictionCount_ = 0;
+
+   private FileChannelPool() {
+   }
+
+   public static FileChannelPool getInstance() {
+      return INSTANCE;
+   }
+
+   /**
+    * Set the number of files that may be open at once; files beyond it are
+    * closed as soon as they aren't in use
+    */
+   public synchronized void setMaxOpenFiles(int maxOpenFiles) {
+      maxOpenFiles_ = Math.max(1, maxOpenFiles);
+      evictIdle();
+   }
+
+   public synchronized int getMaxOpenFiles() {
+      return maxOpenFiles_;
+   }
+
+   /**
+    * Start managing the open channel of a reader of a finished file
+    */
+   synchronized void register(MultipageTiffReader reader) {
+      reader.pooled_ = true;
+      open_.put(reader, Boolean.TRUE);
+      peakOpenFiles_ = Math.max(peakOpenFiles_, open_.size());
+      evictIdle();
+   }
+
+   /**
+    * Stop managing a reader, which closes its channel itself
+    */
+   synchronized void unregister(MultipageTiffReader reader) {
+      reader.pooled_ = false;
+      open_.remove(reader);
+   }
+
+   /**
+    * Called before a reader uses its channel: reopens the channel if it has
+    * been closed, and keeps it from being closed until release() is called.
+    * Calls may be nested. The file is reopened without holding the lock of
+    * the pool, so that other readers aren't held up by it; other threads
+    * acquiring the same reader wait until it has been reopened.
+    * @throws IOException if the file couldn't be reopened, in which case
+    * release() must not be called
+    */
+   void acquire(MultipageTiffReader reader) throws IOException {
+      synchronized (this) {
+         acquireCount_++;
+         reader.channelUsers_++;
+         // get() also moves the reader to the most recently used end
+         while (reader.pooled_ && open_.get(reader) == null && reader.reopening_) {
+            try {
+               wait();
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+               reader.channelUsers_--;
+               throw new InterruptedIOException("Interrupted while waiting for "
+                       + "a file to be reopened");
+            }
+         }
+         if (!reader.pooled_ || open_.get(reader) != null) {
+            evictIdle();
+            return;
+         }
+         reader.reopening_ = true;
+      }
+      boolean reopened = false;
+      try {
+         reader.reopenChannel();
+         reopened = true;
+      } finally {
+         synchronized (this) {
+            reader.reopening_ = false;
+            notifyAll();
+            if (!reopened) {
+               reader.channelUsers_--;
+            } else if (reader.pooled_) {
+               reopenCount_++;
+               open_.put(reader, Boolean.TRUE);
+               peakOpenFiles_ = Math.max(peakOpenFiles_, open_.size());
+               evictIdle();
+            } else {
+               // Closed while it was being reopened
+               reader.closeChannel();
+            }
+         }
+      }
+   }
+
+   synchronized void release(MultipageTiffReader reader) {
+      reader.channelUsers_--;
+      evictIdle();
+   }
+
+   /**
+    * @return whether any thread is between acquire() and release() for the
+    * reader
+    */
+   synchronized boolean isInUse(MultipageTiffReader reader) {
+      return reader.channelUsers_ > 0;
+   }
+
+   /**
+    * Close the least recently used channels that aren't in use until no
+    * more than the maximum number of files are open
+    */
+   private void evictIdle() {
+      Iterator<MultipageTiffReader> it = open_.keySet().iterator();
+      while (open_.size() > maxOpenFiles_ && it.hasNext()) {
+         MultipageTiffReader reader = it.next();
+         if (reader.channelUsers_ == 0) {
+            it.remove();
+            reader.closeChannel();
+            evictionCount_++;
+         }
+      }
+   }
+
+   /**
+    * @return number of files that are currently open for reading
+    */
+   public synchronized int getOpenFiles() {
+      return open_.size();
+   }
+
+   public synchronized int getPeakOpenFiles() {
+      return peakOpenFiles_;
+   }
+
+   /**
+    * @return number of times a reader used its channel
+    */
+   public synchronized long getAcquireCount() {
+      return acquireCount_;
+   }
+
+   /**
+    * @return number of times a file had to be reopened because its channel
+    * had been closed to stay within the limit
+    */
+   public synchronized long getReopenCount() {
+      return reopenCount_;
+   }
+
+   public synchronized long getEvictionCount() {
+      return evictionCount_;
+   }
+
+   /**
+    * @return fraction of the uses of a channel that had to reopen the file;
+    * if this is high, the limit is too low for the way the data are read
+    */
+   public synchronized double getReopenRate() {
+      return acquireCount_ == 0 ? 0 : (double) reopenCount_ / acquireCount_;
+   }
+
+   /**
+    * Reset the statistics, e.g. before opening a data set
+    */
+   public synchronized void resetStatistics() {
+      peakOpenFiles_ = open_.size();
+      acquireCount_ = 0;
+      reopenCount_ = 0;
+      evictionCount_ = 0;
+   }
+}
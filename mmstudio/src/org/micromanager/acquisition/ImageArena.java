@@ -0,0 +1,416 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageArena.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Off-heap memory for the images of TaggedImageStorageRamFast. Pixels and
+ * metadata are appended to large direct buffers ("slabs") instead of each
+ * getting buffers of their own. All arenas share a memory budget: when
+ * adding an image would exceed it, the oldest slab (of any arena) is
+ * written to its arena's scratch file and its memory reused, so that a
+ * long acquisition kept "in RAM" slows down to the speed of the disk
+ * instead of running out of memory. Images in spilled slabs are read back
+ * from the scratch file.
+ *
+ * Memory of images that are replaced is not reclaimed until the arena is
+ * closed.
+ */
+public final class ImageArena {
+
+   private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+   private static final boolean IS_64_BIT_JVM =
+      System.getProperty("sun.arch.data.model", "32").equals("64");
+   private static final int SLAB_BYTES = (IS_64_BIT_JVM ? 64 : 8) * 1024 * 1024;
+   // Idle slabs kept for reuse after arenas are closed
+   private static final int MAX_FREE_SLABS = 1;
+
+   /**
+    * Location of an image's pixels and tags
+    */
+   static final class Record {
+      private final Slab slab_;
+      private final int offset_;
+      private final int pixelBytes_;
+      private final int tagBytes_;
+      private final Class<?> pixelType_;
+
+      private Record(Slab slab, int offset, int pixelBytes, int tagBytes, Class<?> pixelType) {
+         slab_ = slab;
+         offset_ = offset;
+         pixelBytes_ = pixelBytes;
+         tagBytes_ = tagBytes;
+         pixelType_ = pixelType;
+      }
+   }
+
+   private static final class Slab {
+      final ImageArena owner;
+      ByteBuffer buffer; // null once spilled
+      int used = 0;
+      long fileOffset = -1;
+
+      Slab(ImageArena owner, ByteBuffer buffer) {
+         this.owner = owner;
+         this.buffer = buffer;
+      }
+   }
+
+   // Shared by all arenas, guarded by ImageArena.class
+   private static long budgetBytes_ = Runtime.getRuntime().maxMemory() / 2;
+   private static long allocatedBytes_ = 0;
+   private static long spilledBytes_ = 0;
+   private static long spillCount_ = 0;
+   // Slabs in memory, oldest first
+   private static final ArrayDeque<Slab> residentSlabs_ = new ArrayDeque<Slab>();
+   private static final ArrayDeque<ByteBuffer> freeSlabs_ = new ArrayDeque<ByteBuffer>();
+
+   // Guarded by ImageArena.class
+   private Slab current_;
+   private RandomAccessFile scratchFile_;
+   private FileChannel scratchChannel_;
+   private File scratchPath_;
+   private long scratchLength_ = 0;
+   private boolean closed_ = false;
+
+   /**
+    * Set the amount of memory that the images of all RAM storages may
+    * take up before the oldest are moved to disk
+    */
+   public static void setBudgetMB(int budgetMB) {
+      synchronized (ImageArena.class) {
+         budgetBytes_ = Math.max(1, budgetMB) * 1024L * 1024L;
+      }
+   }
+
+   public static int getBudgetMB() {
+      synchronized (ImageArena.class) {
+         return (int) (budgetBytes_ / (1024 * 1024));
+      }
+   }
+
+   /**
+    * @return memory currently allocated for images
+    */
+   public static long getAllocatedBytes() {
+      synchronized (ImageArena.class) {
+         return allocatedBytes_;
+      }
+   }
+
+   /**
+    * @return amount of image data that has been moved to scratch files
+    */
+   public static long getSpilledBytes() {
+      synchronized (ImageArena.class) {
+         return spilledBytes_;
+      }
+   }
+
+   public static long getSpillCount() {
+      synchronized (ImageArena.class) {
+         return spillCount_;
+      }
+   }
+
+   /**
+    * Store a copy of an image
+    * @param pixels - byte[], short[] or int[]
+    * @throws OutOfMemoryError if there is no room in memory and the oldest
+    * images couldn't be moved to disk
+    */
+   Record add(Object pixels, String tags) {
+      byte[] tagBytes;
+      try {
+         tagBytes = tags.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException ex) {
+         throw new RuntimeException(ex);
+      }
+      int pixelBytes = getByteLength(pixels);
+      int size = pixelBytes + tagBytes.length;
+      synchronized (ImageArena.class) {
+         if (closed_) {
+            throw new IllegalStateException("Image arena has been closed");
+         }
+         if (current_ != null && current_.buffer.capacity() - current_.used >= size) {
+            return append(pixels, pixelBytes, tagBytes);
+         }
+      }
+      // Making room may mean writing another slab to disk, which is done
+      // without holding the lock
+      ByteBuffer buffer = allocateSlabBuffer(size);
+      synchronized (ImageArena.class) {
+         if (closed_) {
+            freeSlabBuffer(buffer);
+            throw new IllegalStateException("Image arena has been closed");
+         }
+         current_ = new Slab(this, buffer);
+         residentSlabs_.addLast(current_);
+         return append(pixels, pixelBytes, tagBytes);
+      }
+   }
+
+   // Called with the ImageArena.class lock held, when current_ has room
+   private Record append(Object pixels, int pixelBytes, byte[] tagBytes) {
+      Record record = new Record(current_, current_.used, pixelBytes, tagBytes.length,
+              pixels.getClass());
+      ByteBuffer target = current_.buffer.duplicate().order(ORDER);
+      target.position(record.offset_);
+      if (pixels instanceof byte[]) {
+         target.put((byte[]) pixels);
+      } else if (pixels instanceof short[]) {
+         target.slice().order(ORDER).asShortBuffer().put((short[]) pixels);
+         target.position(target.position() + pixelBytes);
+      } else {
+         target.slice().order(ORDER).asIntBuffer().put((int[]) pixels);
+         target.position(target.position() + pixelBytes);
+      }
+      target.put(tagBytes);
+      current_.used += pixelBytes + tagBytes.length;
+      return record;
+   }
+
+   private static int getByteLength(Object pixels) {
+      if (pixels instanceof byte[]) {
+         return ((byte[]) pixels).length;
+      } else if (pixels instanceof short[]) {
+         return 2 * ((short[]) pixels).length;
+      } else if (pixels instanceof int[]) {
+         return 4 * ((int[]) pixels).length;
+      }
+      throw new IllegalArgumentException("Unsupported pixel array: " + pixels);
+   }
+
+   /**
+    * Find memory for a new slab, spilling the oldest slabs to disk while
+    * that would exceed the budget. Called without the ImageArena.class lock:
+    * a slab to spill is taken off the resident list under the lock, written
+    * without it (the slab no longer changes, and is still read from memory
+    * meanwhile), and only then marked as spilled.
+    */
+   private static ByteBuffer allocateSlabBuffer(int minSize) {
+      int size = Math.max(SLAB_BYTES, minSize);
+      for (;;) {
+         Slab slab;
+         ByteBuffer data;
+         FileChannel channel;
+         long fileOffset;
+         synchronized (ImageArena.class) {
+            if (size == SLAB_BYTES && !freeSlabs_.isEmpty()) {
+               return freeSlabs_.pop();
+            }
+            if (allocatedBytes_ + size <= budgetBytes_ || residentSlabs_.isEmpty()) {
+               try {
+                  ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+                  allocatedBytes_ += size;
+                  return buffer;
+               } catch (OutOfMemoryError ex) {
+                  // Less memory than budgeted
+                  if (residentSlabs_.isEmpty()) {
+                     throw ex;
+                  }
+               }
+            }
+            slab = residentSlabs_.removeFirst();
+            try {
+               fileOffset = slab.owner.reserveScratchSpace(slab);
+            } catch (IOException ex) {
+               residentSlabs_.addFirst(slab);
+               throw spillError(ex);
+            }
+            channel = slab.owner.scratchChannel_;
+            data = slab.buffer.duplicate();
+            data.position(0);
+            data.limit(slab.used);
+         }
+
+         IOException failure = null;
+         try {
+            long position = fileOffset;
+            while (data.hasRemaining()) {
+               position += channel.write(data, position);
+            }
+         } catch (IOException ex) {
+            failure = ex;
+         }
+
+         synchronized (ImageArena.class) {
+            ByteBuffer buffer = slab.buffer;
+            if (slab.owner.closed_) {
+               // Closed while being written, so the slab isn't needed anymore
+               slab.buffer = null;
+            } else if (failure != null) {
+               residentSlabs_.addFirst(slab);
+               throw spillError(failure);
+            } else {
+               slab.fileOffset = fileOffset;
+               slab.buffer = null;
+               spilledBytes_ += slab.used;
+               spillCount_++;
+            }
+            if (buffer.capacity() == size) {
+               return buffer;
+            }
+            allocatedBytes_ -= buffer.capacity();
+         }
+      }
+   }
+
+   private static OutOfMemoryError spillError(IOException ex) {
+      OutOfMemoryError error = new OutOfMemoryError(
+              "Images don't fit in memory, and couldn't be moved to disk: " + ex.getMessage());
+      error.initCause(ex);
+      return error;
+   }
+
+   /**
+    * Stop adding to the slab, and set aside the part of the scratch file it
+    * will be written to. Called with the ImageArena.class lock held.
+    * @return offset of the slab in the scratch file
+    */
+   private long reserveScratchSpace(Slab slab) throws IOException {
+      if (scratchChannel_ == null) {
+         scratchPath_ = File.createTempFile("MMRamStorage", ".tmp");
+         scratchPath_.deleteOnExit();
+         scratchFile_ = new RandomAccessFile(scratchPath_, "rw");
+         scratchChannel_ = scratchFile_.getChannel();
+         ReportingUtils.logMessage("Images exceed the RAM storage budget of "
+                 + (budgetBytes_ >> 20) + " MB; moving the oldest to " + scratchPath_);
+      }
+      if (slab == current_) {
+         current_ = null;
+      }
+      long offset = scratchLength_;
+      scratchLength_ += slab.used;
+      return offset;
+   }
+
+   // Called with the ImageArena.class lock held
+   private static void freeSlabBuffer(ByteBuffer buffer) {
+      if (buffer.capacity() == SLAB_BYTES && freeSlabs_.size() < MAX_FREE_SLABS) {
+         freeSlabs_.push(buffer);
+      } else {
+         allocatedBytes_ -= buffer.capacity();
+      }
+   }
+
+   /**
+    * @return a copy of the pixels of an image
+    */
+   Object readPixels(Record record) throws IOException {
+      ByteBuffer bytes = readPixelBuffer(record);
+      if (record.pixelType_ == byte[].class) {
+         return bytes.array();
+      } else if (record.pixelType_ == short[].class) {
+         short[] pixels = new short[record.pixelBytes_ / 2];
+         bytes.asShortBuffer().get(pixels);
+         return pixels;
+      } else {
+         int[] pixels = new int[record.pixelBytes_ / 4];
+         bytes.asIntBuffer().get(pixels);
+         return pixels;
+      }
+   }
+
+   /**
+    * @return a copy of the pixels of an image as bytes in native order
+    */
+   ByteBuffer readPixelBuffer(Record record) throws IOException {
+      return read(record, record.offset_, record.pixelBytes_).order(ORDER);
+   }
+
+   String readTags(Record record) throws IOException {
+      ByteBuffer bytes = read(record, record.offset_ + record.pixelBytes_, record.tagBytes_);
+      return new String(bytes.array(), "UTF-8");
+   }
+
+   private ByteBuffer read(Record record, int offset, int length) throws IOException {
+      ByteBuffer result = ByteBuffer.allocate(length);
+      long fileOffset;
+      FileChannel channel;
+      synchronized (ImageArena.class) {
+         Slab slab = record.slab_;
+         if (slab.buffer != null) {
+            ByteBuffer source = slab.buffer.duplicate();
+            source.limit(offset + length);
+            source.position(offset);
+            result.put(source);
+            result.clear();
+            return result;
+         }
+         if (closed_) {
+            throw new IOException("RAM storage has been closed");
+         }
+         fileOffset = slab.fileOffset + offset;
+         channel = scratchChannel_;
+      }
+      // Spilled data doesn't change, so it is read without holding the lock
+      while (result.hasRemaining()) {
+         if (channel.read(result, fileOffset + result.position()) < 0) {
+            throw new IOException("Unexpected end of RAM storage scratch file");
+         }
+      }
+      result.clear();
+      return result;
+   }
+
+   /**
+    * Free the memory and scratch file of this arena. Its records can no
+    * longer be read.
+    */
+   void close() {
+      synchronized (ImageArena.class) {
+         if (closed_) {
+            return;
+         }
+         closed_ = true;
+         current_ = null;
+         for (Iterator<Slab> it = residentSlabs_.iterator(); it.hasNext();) {
+            Slab slab = it.next();
+            if (slab.owner == this) {
+               it.remove();
+               freeSlabBuffer(slab.buffer);
+               slab.buffer = null;
+            }
+         }
+         if (scratchChannel_ != null) {
+            try {
+               scratchFile_.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+            if (!scratchPath_.delete()) {
+               ReportingUtils.logMessage("Couldn't delete " + scratchPath_);
+            }
+            scratchChannel_ = null;
+         }
+      }
+   }
+}
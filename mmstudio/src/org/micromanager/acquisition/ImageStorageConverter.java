@@ -0,0 +1,237 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageStorageConverter.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.ProgressBar;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Copies all images of one storage to another, for MMImageCache.saveAs.
+ * Images are read by a few threads ahead of the writer and written in their
+ * original order by the calling thread. When the pixels can be stored in
+ * the target the way they are stored in the source (multipage tiff to
+ * multipage tiff, or grayscale RAM storage to multipage tiff), they are
+ * copied as blocks of bytes, without converting them to pixel arrays.
+ */
+class ImageStorageConverter {
+
+   private static final int MAX_READERS = 4;
+   // Images read ahead of the writer, per reader
+   private static final int READ_AHEAD = 2;
+   private static final long PROGRESS_INTERVAL_MS = 100;
+
+   private final TaggedImageStorage source_;
+   private final TaggedImageStorage target_;
+   private final boolean rawCopy_;
+   private long copiedBytes_ = 0;
+   private int missingImages_ = 0;
+
+   ImageStorageConverter(TaggedImageStorage source, TaggedImageStorage target) {
+      source_ = source;
+      target_ = target;
+      rawCopy_ = target instanceof TaggedImageStorageMultipageTiff
+              && (source instanceof TaggedImageStorageMultipageTiff
+              || source instanceof TaggedImageStorageRamFast);
+   }
+
+   /**
+    * Copy the images with the given labels, in that order. Images that
+    * can't be read (or are refused by the target) are skipped, and an error
+    * tells how many; see getMissingImages.
+    * @param progressBar - may be null
+    * @return false if writing failed, in which case the copy was abandoned
+    */
+   boolean copy(List<String> labels, final ProgressBar progressBar) {
+      int numReaders = Math.max(1, Math.min(MAX_READERS,
+              Runtime.getRuntime().availableProcessors() - 1));
+      ExecutorService readers = Executors.newFixedThreadPool(numReaders,
+              new ThreadFactory() {
+                 @Override
+                 public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Image storage conversion reader");
+                    thread.setDaemon(true);
+                    return thread;
+                 }
+              });
+      LinkedList<Future<TaggedImage>> pending = new LinkedList<Future<TaggedImage>>();
+      int n = labels.size();
+      int next = 0;
+      long bytes = 0;
+      long start = System.currentTimeMillis();
+      long lastProgress = start;
+      boolean wasSuccessful = true;
+      int missing = 0;
+      try {
+         for (int i = 0; i < n; i++) {
+            while (next < n && next < i + numReaders * READ_AHEAD) {
+               pending.add(readers.submit(new Reader(labels.get(next))));
+               next++;
+            }
+            TaggedImage image = getResult(pending.removeFirst(), labels.get(i));
+            if (image == null) {
+               missing++;
+            } else {
+               bytes += getByteLength(image.pix);
+               try {
+                  target_.putImage(image);
+               } catch (MMException ex) {
+                  ReportingUtils.logError(ex);
+                  missing++;
+               } catch (IOException ex) {
+                  ReportingUtils.showError(ex, "Unable to write image " + i);
+                  wasSuccessful = false;
+                  break;
+               }
+            }
+            long now = System.currentTimeMillis();
+            if (progressBar != null
+                    && (now - lastProgress >= PROGRESS_INTERVAL_MS || i == n - 1)) {
+               lastProgress = now;
+               final int progress = i + 1;
+               SwingUtilities.invokeLater(new Runnable() {
+                  @Override
+                  public void run() {
+                     progressBar.setProgress(progress);
+                  }
+               });
+            }
+         }
+      } finally {
+         readers.shutdownNow();
+      }
+      double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+      ReportingUtils.logMessage(String.format(
+              "Copied %d images (%.1f MB) in %.1f s, %.1f MB/s%s",
+              n - missing, bytes / 1e6, seconds, bytes / 1e6 / seconds,
+              rawCopy_ ? " without pixel conversion" : ""));
+      copiedBytes_ = bytes;
+      missingImages_ = missing;
+      if (missing > 0) {
+         ReportingUtils.showError(String.format(
+                 "%d of %d images could not be read, and were not copied. "
+                 + "See the log for details.", missing, n));
+      }
+      return wasSuccessful;
+   }
+
+   /**
+    * @return amount of pixel data copied by the last call of copy()
+    */
+   long getCopiedBytes() {
+      return copiedBytes_;
+   }
+
+   /**
+    * @return number of images that were skipped by the last call of copy(),
+    * because they couldn't be read or were refused by the target
+    */
+   int getMissingImages() {
+      return missingImages_;
+   }
+
+   /**
+    * Called on a reader thread for each image before it is written. May
+    * return a modified copy of the image, but mustn't change the original.
+    */
+   TaggedImage prepare(TaggedImage image) throws JSONException {
+      return image;
+   }
+
+   private static TaggedImage getResult(Future<TaggedImage> future, String label) {
+      try {
+         return future.get();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return null;
+      } catch (ExecutionException ex) {
+         ReportingUtils.logError(ex.getCause(), "Couldn't read image " + label);
+         return null;
+      }
+   }
+
+   private class Reader implements Callable<TaggedImage> {
+      private final String label_;
+
+      Reader(String label) {
+         label_ = label;
+      }
+
+      @Override
+      public TaggedImage call() throws JSONException {
+         TaggedImage image = read();
+         return image == null ? null : prepare(image);
+      }
+
+      private TaggedImage read() {
+         int[] pos = MDUtils.getIndices(label_);
+         if (rawCopy_) {
+            ByteBuffer pix;
+            if (source_ instanceof TaggedImageStorageMultipageTiff) {
+               pix = ((TaggedImageStorageMultipageTiff) source_).getPixelBuffer(
+                       pos[0], pos[1], pos[2], pos[3]);
+            } else {
+               pix = ((TaggedImageStorageRamFast) source_).getPixelBuffer(
+                       pos[0], pos[1], pos[2], pos[3]);
+            }
+            if (pix != null) {
+               JSONObject tags = source_.getImageTags(pos[0], pos[1], pos[2], pos[3]);
+               if (tags != null) {
+                  return new TaggedImage(pix, tags);
+               }
+            }
+         }
+         TaggedImage image = source_.getImage(pos[0], pos[1], pos[2], pos[3]);
+         if (image == null) {
+            ReportingUtils.logError("Couldn't read image " + label_);
+         }
+         return image;
+      }
+   }
+
+   private static long getByteLength(Object pix) {
+      if (pix instanceof ByteBuffer) {
+         return ((ByteBuffer) pix).remaining();
+      } else if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return 2L * ((short[]) pix).length;
+      } else if (pix instanceof int[]) {
+         return 4L * ((int[]) pix).length;
+      }
+      return 0;
+   }
+}
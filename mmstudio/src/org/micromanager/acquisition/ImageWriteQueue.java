@@ -0,0 +1,160 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageWriteQueue.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Process-wide budget for the data that image files have queued up for
+ * writing on background threads. Submitting a writing task blocks while the
+ * bytes held by queued and running tasks would exceed the capacity, so that
+ * an acquisition faster than the disk is throttled instead of filling up
+ * memory. The statistics can be read at any time, e.g. to show how far
+ * behind the disk is.
+ */
+public final class ImageWriteQueue {
+
+   private static final ImageWriteQueue INSTANCE = new ImageWriteQueue();
+
+   private long capacityBytes_;
+   private long bytesInFlight_ = 0;
+   private long peakBytesInFlight_ = 0;
+   private int depth_ = 0;
+   private long stallCount_ = 0;
+   private long stallNanos_ = 0;
+
+   private ImageWriteQueue() {
+      boolean is64BitJVM =
+         System.getProperty("sun.arch.data.model", "32").equals("64");
+      capacityBytes_ = (is64BitJVM ? 256 : 32) * 1024L * 1024L;
+   }
+
+   public static ImageWriteQueue getInstance() {
+      return INSTANCE;
+   }
+
+   /**
+    * Set the amount of data that may be waiting to be written before
+    * writers are made to wait
+    */
+   public synchronized void setCapacityMB(int capacityMB) {
+      capacityBytes_ = Math.max(1, capacityMB) * 1024L * 1024L;
+      notifyAll();
+   }
+
+   public synchronized int getCapacityMB() {
+      return (int) (capacityBytes_ / (1024 * 1024));
+   }
+
+   /**
+    * Run task on executor, first waiting until there is room for bytes more
+    * in the queue. The bytes are counted until the task has finished.
+    * A task larger than the whole capacity is let through once the queue is
+    * empty. Tasks that don't count any bytes never wait.
+    */
+   public void execute(Executor executor, final Runnable task, final long bytes) {
+      acquire(bytes);
+      try {
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  task.run();
+               } finally {
+                  release(bytes);
+               }
+            }
+         });
+      } catch (RejectedExecutionException ex) {
+         release(bytes);
+         throw ex;
+      }
+   }
+
+   private synchronized void acquire(long bytes) {
+      // A task larger than the capacity leaves bytesInFlight_ above it, so
+      // tasks without bytes must not wait for room
+      if (bytes > 0 && bytesInFlight_ > 0 && bytesInFlight_ + bytes > capacityBytes_) {
+         ReportingUtils.logMessage("Warning: writing queue behind by " + depth_
+                 + " tasks (" + (bytesInFlight_ >> 20) + " MB)");
+         stallCount_++;
+         long start = System.nanoTime();
+         try {
+            while (bytesInFlight_ > 0 && bytesInFlight_ + bytes > capacityBytes_) {
+               wait();
+            }
+         } catch (InterruptedException ex) {
+            // Better to exceed the budget than to drop data
+            ReportingUtils.logError(ex);
+            Thread.currentThread().interrupt();
+         }
+         stallNanos_ += System.nanoTime() - start;
+      }
+      bytesInFlight_ += bytes;
+      peakBytesInFlight_ = Math.max(peakBytesInFlight_, bytesInFlight_);
+      depth_++;
+   }
+
+   private synchronized void release(long bytes) {
+      bytesInFlight_ -= bytes;
+      depth_--;
+      notifyAll();
+   }
+
+   /**
+    * @return number of writing tasks queued or running
+    */
+   public synchronized int getQueueDepth() {
+      return depth_;
+   }
+
+   public synchronized long getBytesInFlight() {
+      return bytesInFlight_;
+   }
+
+   public synchronized long getPeakBytesInFlight() {
+      return peakBytesInFlight_;
+   }
+
+   /**
+    * @return number of times a writer had to wait for the queue to drain
+    */
+   public synchronized long getStallCount() {
+      return stallCount_;
+   }
+
+   /**
+    * @return total time writers spent waiting for the queue to drain
+    */
+   public synchronized long getStallTimeMs() {
+      return stallNanos_ / 1000000;
+   }
+
+   /**
+    * Reset the peak and stall statistics, e.g. at the start of an acquisition
+    */
+   public synchronized void resetStatistics() {
+      peakBytesInFlight_ = bytesInFlight_;
+      stallCount_ = 0;
+      stallNanos_ = 0;
+   }
+}
@@ -129,6 +129,8 @@ public class MMAcquisition {
                String acqDirectory = createAcqDirectory(summaryMetadata.getString("Directory"), summaryMetadata.getString("Prefix"));
                summaryMetadata.put("Prefix", acqDirectory);
                String acqPath = summaryMetadata.getString("Directory") + File.separator + acqDirectory;
+               // Write queue statistics are per acquisition
+               ImageWriteQueue.getInstance().resetStatistics();
                imageFileManager = ImageUtils.newImageStorageInstance(acqPath, true, (JSONObject) null);
                imageCache_ = new MMImageCache(imageFileManager);
                if (!virtual_) {
@@ -293,6 +295,8 @@ public class MMAcquisition {
             boolean multipageTiff = MultipageTiffReader.isMMMultipageTiff(dirName);
             if (multipageTiff) {
                imageFileManager = new TaggedImageStorageMultipageTiff(dirName, false, null);
+            } else if (TaggedImageStorageChunked.isChunkedDataSet(dirName)) {
+               imageFileManager = new TaggedImageStorageChunked(dirName, false, null);
             } else {
                imageFileManager = new TaggedImageStorageDiskDefault(dirName, false, null);
             }
@@ -319,6 +323,7 @@ public class MMAcquisition {
             }
          }
          
+         ImageWriteQueue.getInstance().resetStatistics();
          imageFileManager = ImageUtils.newImageStorageInstance(dirName, true, summary_);
          imageCache_ = new MMImageCache(imageFileManager);
       }
@@ -336,6 +341,8 @@ public class MMAcquisition {
             multipageTiff = MultipageTiffReader.isMMMultipageTiff(dirName);
             if (multipageTiff) {
                tempImageFileManager = new TaggedImageStorageMultipageTiff(dirName, false, null);
+            } else if (TaggedImageStorageChunked.isChunkedDataSet(dirName)) {
+               tempImageFileManager = new TaggedImageStorageChunked(dirName, false, null);
             } else {
                tempImageFileManager = new TaggedImageStorageDiskDefault(dirName, false, null);
             }
@@ -23,7 +23,6 @@ package org.micromanager.acquisition;
 import ij.CompositeImage;
 
 import java.awt.Color;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -33,8 +32,6 @@ import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-import javax.swing.SwingUtilities;
-
 import mmcorej.TaggedImage;
 
 import org.json.JSONArray;
@@ -45,7 +42,6 @@ import org.micromanager.api.ImageCache;
 import org.micromanager.api.ImageCacheListener;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.utils.MDUtils;
-import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ProgressBar;
 import org.micromanager.utils.ReportingUtils;
@@ -66,6 +62,7 @@ public class MMImageCache implements ImageCache {
    private int lastFrame_ = -1;
    private JSONObject lastTags_;
    private final ExecutorService listenerExecutor_;
+   private final PlaneCache planeCache_;
 
    @Override
    public void addImageCacheListener(ImageCacheListener l) {
@@ -92,6 +89,7 @@ public class MMImageCache implements ImageCache {
       imageStorage_ = imageStorage;
       changingKeys_ = new HashSet<String>();
       listenerExecutor_ = Executors.newFixedThreadPool(1);
+      planeCache_ = new PlaneCache(imageStorage);
    }
 
    public void finished() {
@@ -133,6 +131,7 @@ public class MMImageCache implements ImageCache {
    }
 
    public void close() {
+      planeCache_.close();
       imageStorage_.close();
       synchronized (imageStorageListeners_) {
          imageStorageListeners_.clear();
@@ -161,26 +160,8 @@ public class MMImageCache implements ImageCache {
       progressBar.setRange(0, n);
       progressBar.setProgress(0);
       progressBar.setVisible(true);
-      boolean wasSuccessful = true;
-      for (int i = 0; i < n; ++i) {
-         final int i1 = i;
-         int pos[] = MDUtils.getIndices(keys.get(i));
-         try {
-            newImageFileManager.putImage(getImage(pos[0], pos[1], pos[2], pos[3]));
-         } catch (MMException ex) {
-            ReportingUtils.logError(ex);
-         } catch (IOException ex) {
-            ReportingUtils.showError(ex, "Unable to write image " + i);
-            wasSuccessful = false;
-            break;
-         }
-         SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-               progressBar.setProgress(i1);
-            }
-         });
-      }
+      boolean wasSuccessful =
+              new ImageStorageConverter(imageStorage_, newImageFileManager).copy(keys, progressBar);
       if (wasSuccessful) {
          // Successfully saved all images.
          newImageFileManager.finished();
@@ -188,6 +169,7 @@ public class MMImageCache implements ImageCache {
       progressBar.setVisible(false);
       if (useNewStorage) {
          imageStorage_ = newImageFileManager;
+         planeCache_.setStorage(newImageFileManager);
       }
    }
 
@@ -196,6 +178,10 @@ public class MMImageCache implements ImageCache {
          
          checkForChangingTags(taggedImg);
          imageStorage_.putImage(taggedImg);
+         planeCache_.invalidate(MDUtils.getChannelIndex(taggedImg.tags),
+                 MDUtils.getSliceIndex(taggedImg.tags),
+                 MDUtils.getFrameIndex(taggedImg.tags),
+                 MDUtils.getPositionIndex(taggedImg.tags));
          
            synchronized (this) {
             lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImg.tags));
@@ -239,23 +225,90 @@ public class MMImageCache implements ImageCache {
 
    @Override
    public TaggedImage getImage(int channel, int slice, int frame, int position) {
-      TaggedImage taggedImg = null;
-      if (taggedImg == null) {
-         taggedImg = imageStorage_.getImage(channel, slice, frame, position);
-         if (taggedImg != null) {
-            checkForChangingTags(taggedImg);
-         }
+      TaggedImage taggedImg = planeCache_.getImage(channel, slice, frame, position);
+      if (taggedImg != null) {
+         checkForChangingTags(taggedImg);
       }
       return taggedImg;
    }
 
    public JSONObject getImageTags(int channel, int slice, int frame, int position) {
-      String label = MDUtils.generateLabel(channel, slice, frame, position);
-      JSONObject tags = null;
-      if (tags == null) {
-         tags = imageStorage_.getImageTags(channel, slice, frame, position);
+      return planeCache_.getImageTags(channel, slice, frame, position);
+   }
+
+   /**
+    * Returns only the pixels of an image. For multipage tiff storage this
+    * avoids reading and parsing the image metadata.
+    */
+   public Object getPixels(int channel, int slice, int frame, int position) {
+      return planeCache_.getPixels(channel, slice, frame, position);
+   }
+
+   /**
+    * Start loading images that are likely to be displayed next, so that
+    * they are in memory by the time they are needed.
+    * @param keys - in the order in which they will be needed; see ImageKey
+    */
+   public void prefetch(List<Long> keys) {
+      planeCache_.prefetch(keys);
+   }
+
+   /**
+    * Intensity statistics of an image that were stored with it when it was
+    * written; no pixels are read
+    * @return null if the storage has no statistics of the image (only
+    * multipage tiff storage keeps them)
+    */
+   public PlaneStats getPlaneStats(int channel, int slice, int frame, int position) {
+      if (!(imageStorage_ instanceof TaggedImageStorageMultipageTiff)) {
+         return null;
+      }
+      return ((TaggedImageStorageMultipageTiff) imageStorage_).getPlaneStats(
+              channel, slice, frame, position);
+   }
+
+   /**
+    * Intensity statistics of all images of a channel at a position together
+    * (all slices and frames), from the statistics stored with the images, so
+    * that the contrast can be set for all of them without reading pixels
+    * @return null if the storage has no statistics of any of the images
+    */
+   public PlaneStats getChannelStats(int channel, int position) {
+      if (!(imageStorage_ instanceof TaggedImageStorageMultipageTiff)) {
+         return null;
+      }
+      List<PlaneStats> planes = new ArrayList<PlaneStats>();
+      for (String label : imageStorage_.imageKeys()) {
+         int[] indices = MDUtils.getIndices(label);
+         if (indices[0] == channel && indices[3] == position) {
+            PlaneStats stats = getPlaneStats(indices[0], indices[1], indices[2], indices[3]);
+            if (stats != null) {
+               planes.add(stats);
+            }
+         }
       }
-      return tags;
+      return PlaneStats.combine(planes);
+   }
+
+   /**
+    * Thumbnails and montage of the data set, for previewing it without
+    * reading any images
+    * @return null if the storage has none (only multipage tiff storage
+    * makes them)
+    */
+   public DatasetPreview getPreview() {
+      if (!(imageStorage_ instanceof TaggedImageStorageMultipageTiff)) {
+         return null;
+      }
+      return ((TaggedImageStorageMultipageTiff) imageStorage_).getPreview();
+   }
+
+   /**
+    * Cache of recently displayed and prefetched images, for access to its
+    * hit and miss counts
+    */
+   public PlaneCache getPlaneCache() {
+      return planeCache_;
    }
 
    private void checkForChangingTags(TaggedImage taggedImg) {
@@ -365,11 +418,35 @@ public class MMImageCache implements ImageCache {
       imageStorage_.setSummaryMetadata(tags);
    }
 
+   /**
+    * For data sets that were opened rather than acquired, the changing keys
+    * come from the stored metadata table, if there is one
+    */
    @Override
    public Set<String> getChangingKeys() {
+      if (changingKeys_.isEmpty()) {
+         MetadataTable table = getMetadataTable();
+         if (table != null) {
+            return table.getChangingKeys();
+         }
+      }
       return changingKeys_;
    }
 
+   /**
+    * Get a table of the metadata of all images, which can be queried
+    * (e.g. for the elapsed time of every image, or the images of a
+    * position) without reading the metadata of every image.
+    * @return null if the storage doesn't keep such a table (only
+    * multipage tiff storage does)
+    */
+   public MetadataTable getMetadataTable() {
+      if (!(imageStorage_ instanceof TaggedImageStorageMultipageTiff)) {
+         return null;
+      }
+      return ((TaggedImageStorageMultipageTiff) imageStorage_).getMetadataTable();
+   }
+
    public Set<String> imageKeys() {
      return imageStorage_.imageKeys();
    }
@@ -0,0 +1,143 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MetadataDelta.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.util.Iterator;
+import mmcorej.ImageMetadata;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Delta encoding of image metadata in multipage tiff files. Most of the
+ * tags of an image (device properties in particular) are the same as those
+ * of the previous one, so instead of the full tags an image can store only
+ * the keys that differ from a template: the full tags of an earlier image
+ * in the same file, identified by the offset of its IFD.
+ */
+final class MetadataDelta {
+
+   // Offset of the IFD whose metadata is the template
+   static final String BASE_KEY = "MMDeltaBaseIFD";
+   // Keys of the template that the image doesn't have
+   static final String REMOVED_KEY = "MMDeltaRemovedKeys";
+
+   private MetadataDelta() {
+   }
+
+   /**
+    * @return the keys of tags that differ from template, or null if so many
+    * differ that tags should rather be stored in full (and become the new
+    * template)
+    */
+   static JSONObject encode(JSONObject tags, JSONObject template, long templateOffset)
+           throws JSONException {
+      JSONObject delta = new JSONObject();
+      int maxChanges = template.length() / 2;
+      Iterator<?> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = (String) keys.next();
+         Object value = tags.get(key);
+         if (!valuesEqual(value, template.opt(key))) {
+            if (delta.length() >= maxChanges) {
+               return null;
+            }
+            delta.put(key, value);
+         }
+      }
+      // Every key that is not in the template is in the delta, so unless
+      // this holds no template key can be missing from tags
+      if (template.length() + delta.length() > tags.length()) {
+         JSONArray removed = new JSONArray();
+         keys = template.keys();
+         while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (!tags.has(key)) {
+               removed.put(key);
+            }
+         }
+         if (removed.length() > 0) {
+            delta.put(REMOVED_KEY, removed);
+         }
+      }
+      delta.put(BASE_KEY, templateOffset);
+      return delta;
+   }
+
+   static boolean isDelta(JSONObject md) {
+      return md.has(BASE_KEY);
+   }
+
+   static long getBaseOffset(JSONObject md) throws JSONException {
+      return md.getLong(BASE_KEY);
+   }
+
+   /**
+    * Rebuild the full tags of an image from its delta and template
+    */
+   static JSONObject decode(JSONObject delta, JSONObject template) throws JSONException {
+      JSONObject tags = copy(template);
+      JSONArray removed = delta.optJSONArray(REMOVED_KEY);
+      if (removed != null) {
+         for (int i = 0; i < removed.length(); i++) {
+            tags.remove(removed.getString(i));
+         }
+      }
+      Iterator<?> keys = delta.keys();
+      while (keys.hasNext()) {
+         String key = (String) keys.next();
+         if (!key.equals(BASE_KEY) && !key.equals(REMOVED_KEY)) {
+            tags.put(key, delta.get(key));
+         }
+      }
+      return tags;
+   }
+
+   /**
+    * Shallow copy, for keeping tags as a template after the image has been
+    * handed on
+    */
+   static JSONObject copy(JSONObject tags) throws JSONException {
+      if (tags instanceof ImageMetadata) {
+         return ((ImageMetadata) tags).copy();
+      }
+      JSONObject copy = new JSONObject();
+      Iterator<?> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = (String) keys.next();
+         copy.put(key, tags.get(key));
+      }
+      return copy;
+   }
+
+   private static boolean valuesEqual(Object a, Object b) {
+      if (a == b) {
+         return true;
+      }
+      if (a == null || b == null) {
+         return false;
+      }
+      if (a.getClass() == b.getClass() && !(a instanceof JSONObject)
+              && !(a instanceof JSONArray)) {
+         return a.equals(b);
+      }
+      return a.toString().equals(b.toString());
+   }
+}
@@ -0,0 +1,835 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MetadataTable.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * The metadata of all images of a data set as a table with a row per image
+ * put and a column per metadata key, so that questions like "which images
+ * had a different exposure" or "elapsed time per frame" can be answered
+ * without reading and parsing the metadata of every image.
+ *
+ * Only keys whose value changes between images get a column of their own:
+ * the value of every other key is kept once, as in the first image. The
+ * image indices, ElapsedTime-ms and the stage positions always have a
+ * column. Changing numbers are kept as doubles, other values as codes into
+ * a dictionary of the distinct values of the column. Keys with more than
+ * MAX_DISTINCT_VALUES distinct values that are not numbers (such as the
+ * time stamp) are not kept at all; they are still reported as changing.
+ *
+ * The table is built while a data set is written (see
+ * TaggedImageStorageMultipageTiff), by a single thread, and can be queried
+ * concurrently. It is stored next to the tiff files when the data set is
+ * finished.
+ */
+public final class MetadataTable {
+
+   public static final String FILENAME = "MMMetadataTable.bin";
+   public static final int MAX_DISTINCT_VALUES = 1 << 16;
+
+   private static final int MAGIC = 0x4d4d4d54; // "MMMT"
+   private static final int VERSION = 1;
+   private static final byte NUMBER_COLUMN = 'N';
+   private static final byte STRING_COLUMN = 'S';
+   private static final String ENCODING = "UTF-8";
+
+   private static final String[] INDEX_KEYS = {
+      "ChannelIndex", "SliceIndex", "FrameIndex", "PositionIndex"};
+   private static final String[] NUMBER_KEYS = {
+      "ElapsedTime-ms", "XPositionUm", "YPositionUm", "ZPositionUm"};
+
+   private int numRows_ = 0;
+   private long[] imageKeys_ = new long[256];
+   // Values of the keys that haven't changed, as in the first image
+   private final HashMap<String, String> constants_ = new HashMap<String, String>();
+   private final HashMap<String, Column> columns_ = new HashMap<String, Column>();
+   // Changing keys that have too many distinct values to be kept
+   private final Set<String> dropped_ = new HashSet<String>();
+   // Result of getChangingKeys, until the next row is added
+   private Set<String> changingKeys_;
+
+   /**
+    * New table for a data set that is about to be written
+    */
+   public MetadataTable() {
+      for (String key : NUMBER_KEYS) {
+         columns_.put(key, new NumberColumn(imageKeys_.length, true));
+      }
+   }
+
+   /**
+    * Add a row with the metadata of an image
+    * @param imageKey indices of the image, as packed by ImageKey
+    */
+   public synchronized void addImage(long imageKey, JSONObject tags) {
+      changingKeys_ = null;
+      int row = numRows_;
+      if (row == imageKeys_.length) {
+         int capacity = row * 2;
+         imageKeys_ = Arrays.copyOf(imageKeys_, capacity);
+         for (Column column : columns_.values()) {
+            column.grow(capacity);
+         }
+      }
+      imageKeys_[row] = imageKey;
+
+      int constantsSeen = 0;
+      Iterator<String> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         if (isIndexKey(key)) {
+            continue;
+         }
+         Object value = tags.opt(key);
+         Column column = columns_.get(key);
+         if (column == null) {
+            if (dropped_.contains(key)) {
+               continue;
+            }
+            String text = toText(value);
+            if (row == 0) {
+               constants_.put(key, text);
+               continue;
+            }
+            String constant = constants_.get(key);
+            if (text.equals(constant)) {
+               constantsSeen++;
+               continue;
+            }
+            column = addColumn(key, value instanceof Number);
+         }
+         if (!column.set(row, value)) {
+            if (column instanceof NumberColumn) {
+               // Not a number after all
+               column = convertToStringColumn(key, (NumberColumn) column);
+               if (column != null && !column.set(row, value)) {
+                  drop(key);
+               }
+            } else {
+               drop(key);
+            }
+         }
+      }
+      if (row > 0 && constantsSeen < constants_.size()) {
+         // Keys that are missing from this image
+         for (String key : new ArrayList<String>(constants_.keySet())) {
+            if (!tags.has(key)) {
+               addColumn(key, false);
+            }
+         }
+      }
+      numRows_++;
+   }
+
+   /**
+    * Give a key that has been constant so far a column, holding its
+    * constant value in all earlier rows
+    */
+   private Column addColumn(String key, boolean number) {
+      String constant = constants_.remove(key);
+      Column column;
+      if (number && (constant == null || isNumber(constant))) {
+         column = new NumberColumn(imageKeys_.length, false);
+      } else {
+         column = new StringColumn(imageKeys_.length);
+      }
+      if (constant != null) {
+         for (int row = 0; row < numRows_; row++) {
+            column.setText(row, constant);
+         }
+      }
+      columns_.put(key, column);
+      return column;
+   }
+
+   private Column convertToStringColumn(String key, NumberColumn numbers) {
+      StringColumn column = new StringColumn(imageKeys_.length);
+      for (int row = 0; row < numRows_; row++) {
+         String text = numbers.getString(row);
+         if (text != null && !column.setText(row, text)) {
+            drop(key);
+            return null;
+         }
+      }
+      columns_.put(key, column);
+      return column;
+   }
+
+   private void drop(String key) {
+      columns_.remove(key);
+      dropped_.add(key);
+   }
+
+   private static boolean isIndexKey(String key) {
+      for (String indexKey : INDEX_KEYS) {
+         if (indexKey.equals(key)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * A value of a JSONObject as getString returns it once the object has
+    * been written and parsed again
+    */
+   private static String toText(Object value) {
+      if (value instanceof Number) {
+         try {
+            return JSONObject.numberToString((Number) value);
+         } catch (JSONException ex) {
+            // Infinite or NaN
+         }
+      }
+      return String.valueOf(value);
+   }
+
+   private static boolean isNumber(String text) {
+      try {
+         Double.parseDouble(text);
+         return true;
+      } catch (NumberFormatException ex) {
+         return false;
+      }
+   }
+
+   public synchronized int getNumImages() {
+      return numRows_;
+   }
+
+   public synchronized int getChannel(int row) {
+      return ImageKey.getChannel(getImageKey(row));
+   }
+
+   public synchronized int getSlice(int row) {
+      return ImageKey.getSlice(getImageKey(row));
+   }
+
+   public synchronized int getFrame(int row) {
+      return ImageKey.getFrame(getImageKey(row));
+   }
+
+   public synchronized int getPosition(int row) {
+      return ImageKey.getPosition(getImageKey(row));
+   }
+
+   /**
+    * Label of the image of a row, as used by ImageCache.imageKeys()
+    */
+   public synchronized String getLabel(int row) {
+      return ImageKey.toLabel(getImageKey(row));
+   }
+
+   private long getImageKey(int row) {
+      if (row < 0 || row >= numRows_) {
+         throw new IndexOutOfBoundsException("Row " + row + " of " + numRows_);
+      }
+      return imageKeys_[row];
+   }
+
+   /**
+    * All metadata keys of the images
+    */
+   public synchronized Set<String> getKeys() {
+      Set<String> keys = new TreeSet<String>(constants_.keySet());
+      keys.addAll(dropped_);
+      for (Map.Entry<String, Column> entry : columns_.entrySet()) {
+         if (!entry.getValue().isEmpty(numRows_)) {
+            keys.add(entry.getKey());
+         }
+      }
+      keys.addAll(Arrays.asList(INDEX_KEYS));
+      return keys;
+   }
+
+   /**
+    * Keys whose value isn't the same in all images (including keys that
+    * are missing from some)
+    * @return unmodifiable set, which is computed once for every row added
+    */
+   public synchronized Set<String> getChangingKeys() {
+      if (changingKeys_ == null) {
+         Set<String> keys = new TreeSet<String>(dropped_);
+         for (Map.Entry<String, Column> entry : columns_.entrySet()) {
+            if (entry.getValue().varies(numRows_)) {
+               keys.add(entry.getKey());
+            }
+         }
+         changingKeys_ = Collections.unmodifiableSet(keys);
+      }
+      return changingKeys_;
+   }
+
+   /**
+    * Value of a key in the image of a row, as JSONObject.getString returns
+    * it for the metadata read from the file, except that the ElapsedTime-ms
+    * and stage position columns hold numbers, also if the metadata has them
+    * as strings
+    * @return null if the image doesn't have the key, or its values are not
+    * kept
+    */
+   public synchronized String getString(int row, String key) {
+      long imageKey = getImageKey(row);
+      for (int i = 0; i < INDEX_KEYS.length; i++) {
+         if (INDEX_KEYS[i].equals(key)) {
+            return Integer.toString(getIndex(imageKey, i));
+         }
+      }
+      Column column = columns_.get(key);
+      if (column != null) {
+         return column.getString(row);
+      }
+      return constants_.get(key);
+   }
+
+   /**
+    * Value of a key in the image of a row as a number
+    * @return NaN if the image doesn't have the key, or its value is not a
+    * number
+    */
+   public synchronized double getNumber(int row, String key) {
+      Column column = columns_.get(key);
+      if (column instanceof NumberColumn) {
+         getImageKey(row);
+         return ((NumberColumn) column).values_[row];
+      }
+      String text = getString(row, key);
+      if (text == null) {
+         return Double.NaN;
+      }
+      try {
+         return Double.parseDouble(text);
+      } catch (NumberFormatException ex) {
+         return Double.NaN;
+      }
+   }
+
+   /**
+    * Values of a key in all images as numbers (NaN where an image doesn't
+    * have the key or its value is not a number), e.g. ElapsedTime-ms
+    */
+   public synchronized double[] getNumbers(String key) {
+      Column column = columns_.get(key);
+      if (column instanceof NumberColumn) {
+         return Arrays.copyOf(((NumberColumn) column).values_, numRows_);
+      }
+      double[] values = new double[numRows_];
+      for (int row = 0; row < numRows_; row++) {
+         values[row] = getNumber(row, key);
+      }
+      return values;
+   }
+
+   /**
+    * Rows of the images with the given indices; an index of -1 matches
+    * all images
+    */
+   public synchronized int[] select(int channel, int slice, int frame, int position) {
+      int[] wanted = {channel, slice, frame, position};
+      int[] rows = new int[numRows_];
+      int count = 0;
+      for (int row = 0; row < numRows_; row++) {
+         boolean match = true;
+         for (int i = 0; i < wanted.length && match; i++) {
+            match = wanted[i] == -1 || wanted[i] == getIndex(imageKeys_[row], i);
+         }
+         if (match) {
+            rows[count++] = row;
+         }
+      }
+      return Arrays.copyOf(rows, count);
+   }
+
+   /**
+    * Rows of the images whose value of key is value (as returned by
+    * getString; null for images that don't have the key)
+    */
+   public synchronized int[] find(String key, String value) {
+      Column column = columns_.get(key);
+      int[] rows = new int[numRows_];
+      int count = 0;
+      if (column instanceof StringColumn) {
+         StringColumn strings = (StringColumn) column;
+         Integer code = value == null ? Integer.valueOf(StringColumn.ABSENT) : strings.codes_.get(value);
+         if (code != null) {
+            for (int row = 0; row < numRows_; row++) {
+               if (strings.values_[row] == code) {
+                  rows[count++] = row;
+               }
+            }
+         }
+      } else if (column instanceof NumberColumn && value != null) {
+         double number;
+         try {
+            number = Double.parseDouble(value);
+         } catch (NumberFormatException ex) {
+            return new int[0];
+         }
+         double[] values = ((NumberColumn) column).values_;
+         for (int row = 0; row < numRows_; row++) {
+            if (values[row] == number) {
+               rows[count++] = row;
+            }
+         }
+      } else {
+         for (int row = 0; row < numRows_; row++) {
+            String text = getString(row, key);
+            if (value == null ? text == null : value.equals(text)) {
+               rows[count++] = row;
+            }
+         }
+      }
+      return Arrays.copyOf(rows, count);
+   }
+
+   /**
+    * Rows of the images by their value of key (as returned by getString),
+    * e.g. to find the images whose exposure differs from most others
+    * @return values in order of their first appearance
+    */
+   public synchronized Map<String, int[]> groupBy(String key) {
+      // Number the distinct values in order of appearance
+      int[] ids = new int[numRows_];
+      ArrayList<String> values = new ArrayList<String>();
+      Column column = columns_.get(key);
+      if (column instanceof StringColumn) {
+         int[] codes = ((StringColumn) column).values_;
+         int[] idsByCode = new int[((StringColumn) column).dictionary_.size() + 1];
+         Arrays.fill(idsByCode, -1);
+         for (int row = 0; row < numRows_; row++) {
+            int code = codes[row] + 1;
+            if (idsByCode[code] == -1) {
+               idsByCode[code] = values.size();
+               values.add(column.getString(row));
+            }
+            ids[row] = idsByCode[code];
+         }
+      } else if (column instanceof NumberColumn) {
+         double[] numbers = ((NumberColumn) column).values_;
+         HashMap<Double, Integer> idsByValue = new HashMap<Double, Integer>();
+         for (int row = 0; row < numRows_; row++) {
+            Integer id = idsByValue.get(numbers[row]);
+            if (id == null) {
+               id = values.size();
+               idsByValue.put(numbers[row], id);
+               values.add(column.getString(row));
+            }
+            ids[row] = id;
+         }
+      } else if (numRows_ > 0) {
+         // Index or constant key
+         HashMap<String, Integer> idsByText = new HashMap<String, Integer>();
+         for (int row = 0; row < numRows_; row++) {
+            String text = getString(row, key);
+            Integer id = idsByText.get(text);
+            if (id == null) {
+               id = values.size();
+               idsByText.put(text, id);
+               values.add(text);
+            }
+            ids[row] = id;
+         }
+      }
+
+      int[] counts = new int[values.size()];
+      for (int row = 0; row < numRows_; row++) {
+         counts[ids[row]]++;
+      }
+      int[][] groups = new int[values.size()][];
+      for (int id = 0; id < groups.length; id++) {
+         groups[id] = new int[counts[id]];
+         counts[id] = 0;
+      }
+      for (int row = 0; row < numRows_; row++) {
+         int id = ids[row];
+         groups[id][counts[id]++] = row;
+      }
+      LinkedHashMap<String, int[]> result = new LinkedHashMap<String, int[]>();
+      for (int id = 0; id < groups.length; id++) {
+         result.put(values.get(id), groups[id]);
+      }
+      return result;
+   }
+
+   private static int getIndex(long imageKey, int index) {
+      switch (index) {
+         case 0:
+            return ImageKey.getChannel(imageKey);
+         case 1:
+            return ImageKey.getSlice(imageKey);
+         case 2:
+            return ImageKey.getFrame(imageKey);
+         default:
+            return ImageKey.getPosition(imageKey);
+      }
+   }
+
+   /**
+    * Store the table in the data set directory
+    */
+   public synchronized void write(String directory) {
+      DataOutputStream out = null;
+      try {
+         out = new DataOutputStream(new BufferedOutputStream(
+                 new FileOutputStream(new File(directory, FILENAME))));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(numRows_);
+         for (int row = 0; row < numRows_; row++) {
+            out.writeLong(imageKeys_[row]);
+         }
+         out.writeInt(constants_.size());
+         for (Map.Entry<String, String> entry : new TreeMap<String, String>(constants_).entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+         }
+         out.writeInt(dropped_.size());
+         for (String key : new TreeSet<String>(dropped_)) {
+            writeString(out, key);
+         }
+         out.writeInt(columns_.size());
+         for (Map.Entry<String, Column> entry : new TreeMap<String, Column>(columns_).entrySet()) {
+            writeString(out, entry.getKey());
+            entry.getValue().write(out, numRows_);
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't write metadata table");
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+      }
+   }
+
+   /**
+    * Read the table of an existing data set
+    * @param directory data set directory
+    * @return the table, or null if there is none or it can't be read
+    */
+   public static MetadataTable read(File directory) {
+      File tableFile = new File(directory, FILENAME);
+      if (!tableFile.exists()) {
+         return null;
+      }
+      MetadataTable table = new MetadataTable();
+      table.columns_.clear();
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(tableFile)));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+         }
+         int numRows = in.readInt();
+         if (numRows < 0) {
+            return null;
+         }
+         table.imageKeys_ = new long[Math.max(1, numRows)];
+         for (int row = 0; row < numRows; row++) {
+            table.imageKeys_[row] = in.readLong();
+         }
+         table.numRows_ = numRows;
+         int numConstants = in.readInt();
+         for (int i = 0; i < numConstants; i++) {
+            table.constants_.put(readString(in), readString(in));
+         }
+         int numDropped = in.readInt();
+         for (int i = 0; i < numDropped; i++) {
+            table.dropped_.add(readString(in));
+         }
+         int numColumns = in.readInt();
+         for (int i = 0; i < numColumns; i++) {
+            String key = readString(in);
+            byte type = in.readByte();
+            Column column;
+            if (type == NUMBER_COLUMN) {
+               column = new NumberColumn(table.imageKeys_.length, in.readBoolean());
+            } else if (type == STRING_COLUMN) {
+               column = new StringColumn(table.imageKeys_.length);
+            } else {
+               return null;
+            }
+            column.read(in, numRows);
+            table.columns_.put(key, column);
+         }
+      } catch (EOFException ex) {
+         return null;
+      } catch (IllegalArgumentException ex) {
+         // Corrupt sizes
+         return null;
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't read metadata table");
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+      }
+      return table;
+   }
+
+   private static void writeString(DataOutputStream out, String text) throws IOException {
+      byte[] bytes = text.getBytes(ENCODING);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(DataInputStream in) throws IOException {
+      int length = in.readInt();
+      if (length < 0) {
+         throw new IllegalArgumentException("Invalid string length");
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, ENCODING);
+   }
+
+   private static abstract class Column {
+      /**
+       * Store the value (from a JSONObject) of a row
+       * @return false if the column can't hold it
+       */
+      abstract boolean set(int row, Object value);
+
+      /**
+       * Store the value of a row, as getString returns it
+       * @return false if the column can't hold it
+       */
+      abstract boolean setText(int row, String text);
+
+      abstract String getString(int row);
+
+      abstract void grow(int capacity);
+
+      abstract boolean varies(int numRows);
+
+      boolean isEmpty(int numRows) {
+         for (int row = 0; row < numRows; row++) {
+            if (getString(row) != null) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      abstract void write(DataOutputStream out, int numRows) throws IOException;
+
+      abstract void read(DataInputStream in, int numRows) throws IOException;
+   }
+
+   private static final class NumberColumn extends Column {
+      // Absent values are NaN
+      double[] values_;
+      // Whether values that are strings are parsed, instead of the column
+      // being unable to hold them
+      final boolean parseStrings_;
+
+      NumberColumn(int capacity, boolean parseStrings) {
+         values_ = new double[capacity];
+         Arrays.fill(values_, Double.NaN);
+         parseStrings_ = parseStrings;
+      }
+
+      @Override
+      boolean set(int row, Object value) {
+         if (value instanceof Number) {
+            values_[row] = ((Number) value).doubleValue();
+            return true;
+         }
+         if (parseStrings_) {
+            try {
+               values_[row] = Double.parseDouble(String.valueOf(value));
+            } catch (NumberFormatException ex) {
+               values_[row] = Double.NaN;
+            }
+            return true;
+         }
+         return false;
+      }
+
+      @Override
+      boolean setText(int row, String text) {
+         try {
+            values_[row] = Double.parseDouble(text);
+         } catch (NumberFormatException ex) {
+            return false;
+         }
+         return true;
+      }
+
+      @Override
+      String getString(int row) {
+         double value = values_[row];
+         if (Double.isNaN(value)) {
+            return null;
+         }
+         return toText(value);
+      }
+
+      @Override
+      void grow(int capacity) {
+         int oldLength = values_.length;
+         values_ = Arrays.copyOf(values_, capacity);
+         Arrays.fill(values_, oldLength, capacity, Double.NaN);
+      }
+
+      @Override
+      boolean varies(int numRows) {
+         for (int row = 1; row < numRows; row++) {
+            if (Double.compare(values_[row], values_[0]) != 0) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      @Override
+      void write(DataOutputStream out, int numRows) throws IOException {
+         out.writeByte(NUMBER_COLUMN);
+         out.writeBoolean(parseStrings_);
+         for (int row = 0; row < numRows; row++) {
+            out.writeDouble(values_[row]);
+         }
+      }
+
+      @Override
+      void read(DataInputStream in, int numRows) throws IOException {
+         for (int row = 0; row < numRows; row++) {
+            values_[row] = in.readDouble();
+         }
+      }
+   }
+
+   private static final class StringColumn extends Column {
+      static final int ABSENT = -1;
+      // Codes of the values of the rows, into dictionary_
+      int[] values_;
+      final ArrayList<String> dictionary_ = new ArrayList<String>();
+      final HashMap<String, Integer> codes_ = new HashMap<String, Integer>();
+
+      StringColumn(int capacity) {
+         values_ = new int[capacity];
+         Arrays.fill(values_, ABSENT);
+      }
+
+      @Override
+      boolean set(int row, Object value) {
+         return setText(row, String.valueOf(value));
+      }
+
+      @Override
+      boolean setText(int row, String text) {
+         Integer code = codes_.get(text);
+         if (code == null) {
+            if (dictionary_.size() == MAX_DISTINCT_VALUES) {
+               return false;
+            }
+            code = dictionary_.size();
+            dictionary_.add(text);
+            codes_.put(text, code);
+         }
+         values_[row] = code;
+         return true;
+      }
+
+      @Override
+      String getString(int row) {
+         int code = values_[row];
+         return code == ABSENT ? null : dictionary_.get(code);
+      }
+
+      @Override
+      void grow(int capacity) {
+         int oldLength = values_.length;
+         values_ = Arrays.copyOf(values_, capacity);
+         Arrays.fill(values_, oldLength, capacity, ABSENT);
+      }
+
+      @Override
+      boolean varies(int numRows) {
+         for (int row = 1; row < numRows; row++) {
+            if (values_[row] != values_[0]) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      @Override
+      void write(DataOutputStream out, int numRows) throws IOException {
+         out.writeByte(STRING_COLUMN);
+         out.writeInt(dictionary_.size());
+         for (String text : dictionary_) {
+            writeString(out, text);
+         }
+         for (int row = 0; row < numRows; row++) {
+            out.writeInt(values_[row]);
+         }
+      }
+
+      @Override
+      void read(DataInputStream in, int numRows) throws IOException {
+         int size = in.readInt();
+         for (int code = 0; code < size; code++) {
+            String text = readString(in);
+            dictionary_.add(text);
+            codes_.put(text, code);
+         }
+         for (int row = 0; row < numRows; row++) {
+            int code = in.readInt();
+            if (code < ABSENT || code >= size) {
+               throw new IllegalArgumentException("Invalid value code");
+            }
+            values_[row] = code;
+         }
+      }
+   }
+}
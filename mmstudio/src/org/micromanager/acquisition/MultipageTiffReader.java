@@ -26,11 +26,19 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
@@ -38,6 +46,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.imagedisplay.DisplaySettings;
+import org.micromanager.utils.ImageIndexMap;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
@@ -50,32 +61,87 @@ public class MultipageTiffReader {
    private static final long BIGGEST_INT_BIT = (long) Math.pow(2, 31);
 
    
+   public static final char WIDTH = MultipageTiffWriter.WIDTH;
+   public static final char HEIGHT = MultipageTiffWriter.HEIGHT;
    public static final char BITS_PER_SAMPLE = MultipageTiffWriter.BITS_PER_SAMPLE;
+   public static final char COMPRESSION = MultipageTiffWriter.COMPRESSION;
    public static final char STRIP_OFFSETS = MultipageTiffWriter.STRIP_OFFSETS;    
    public static final char SAMPLES_PER_PIXEL = MultipageTiffWriter.SAMPLES_PER_PIXEL;
+   public static final char ROWS_PER_STRIP = MultipageTiffWriter.ROWS_PER_STRIP;
    public static final char STRIP_BYTE_COUNTS = MultipageTiffWriter.STRIP_BYTE_COUNTS;
+   public static final char PREDICTOR = MultipageTiffWriter.PREDICTOR;
    public static final char IMAGE_DESCRIPTION = MultipageTiffWriter.IMAGE_DESCRIPTION;
    
    public static final char MM_METADATA = MultipageTiffWriter.MM_METADATA;
+   public static final char PLANE_STATS = MultipageTiffWriter.PLANE_STATS;
+
+   // Finished files are mapped in overlapping regions, so that any block of
+   // up to MAPPED_REGION_OVERLAP bytes lies entirely within a single region
+   // regardless of where it starts. This keeps files larger than 2 GB (the
+   // limit of a single MappedByteBuffer) mappable without copying.
+   private static final long MAPPED_REGION_SIZE = 256L * 1024 * 1024;
+   private static final long MAPPED_REGION_OVERLAP = 64L * 1024 * 1024;
+   private static final long MAPPED_REGION_STEP = MAPPED_REGION_SIZE - MAPPED_REGION_OVERLAP;
    
    private ByteOrder byteOrder_;  
+   private boolean bigTiff_ = false;
    private File file_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_;
+   // Files written in this session are reopened for writing, so that their
+   // comments and display settings can still be rewritten
+   private boolean readWrite_ = false;
+   // Guarded by the FileChannelPool: whether the pool manages the channel,
+   // how many readImage etc. calls are using it, and whether one of them is
+   // reopening it
+   boolean pooled_ = false;
+   int channelUsers_ = 0;
+   boolean reopening_ = false;
       
    private JSONObject displayAndComments_;
    private JSONObject summaryMetadata_;
    private int byteDepth_ = 0;;
    private boolean rgb_;
    private boolean writingFinished_;
+   private MappedByteBuffer[] mappedRegions_;
+   private long mappedFileSize_;
+   private boolean openPending_ = false;
+   private boolean mapOnOpen_ = false;
    
-   private HashMap<String,Long> indexMap_;
+   private ImageIndexMap indexMap_;
+   // Locations of images whose indices are too large to be packed into an
+   // ImageKey, by label. Files written before those limits existed can hold
+   // such images; null if there are none
+   private Map<String, Long> labelIndexMap_;
+   // Checksums of the pixels of the images, if the index map has them (see
+   // PixelChecksum). Read with the index map, or when first needed by files
+   // opened with an index map from the DatasetIndex
+   private ImageIndexMap checksums_;
+   private boolean checksumsRead_ = false;
+   private boolean indexMapChecksums_ = false;
+   private volatile boolean verifyChecksums_ = false;
+   private ImageKeyMap<PlaneStats> planeStats_;
+   private boolean planeStatsRead_ = false;
+   private long firstIFDOffset_ = -1;
+   // Metadata of the IFDs used as templates by delta encoded image metadata
+   private final ConcurrentHashMap<Long, JSONObject> metadataTemplates_ =
+           new ConcurrentHashMap<Long, JSONObject>();
    
    /**
     * This constructor is used for a file that is currently being written
     * @param summaryMD - summary metadata in JSON format
     */
    public MultipageTiffReader(JSONObject summaryMD) {
+      this(summaryMD, false);
+   }
+
+   /**
+    * This constructor is used for a file that is currently being written
+    * @param summaryMD - summary metadata in JSON format
+    * @param bigTiff - whether the file is being written as a BigTIFF
+    */
+   public MultipageTiffReader(JSONObject summaryMD, boolean bigTiff) {
+      bigTiff_ = bigTiff;
       displayAndComments_ = new JSONObject();
       summaryMetadata_ = summaryMD;
       byteOrder_ = MultipageTiffWriter.BYTE_ORDER;
@@ -83,13 +149,43 @@ public class MultipageTiffReader {
       writingFinished_ = false;
    }
    
-   public void setIndexMap(HashMap<String,Long> indexMap) {
+   public void setIndexMap(ImageIndexMap indexMap) {
       indexMap_ = indexMap;
    }
    
    public void setFileChannel(FileChannel fc) {
       fileChannel_ = fc;
    }
+
+   /**
+    * Used for a file that is currently being written: the file that the
+    * channel is on, so that it can be reopened once it has been closed by
+    * the FileChannelPool after writing has finished
+    */
+   public void setFile(File file) {
+      file_ = file;
+      readWrite_ = true;
+   }
+
+   /**
+    * Used for a file that is currently being written with checksums
+    * @param checksums - checksums of the pixels, by ImageKey, as they are
+    * added by the writer
+    */
+   public synchronized void setChecksumMap(ImageIndexMap checksums) {
+      checksums_ = checksums;
+      checksumsRead_ = true;
+   }
+
+   /**
+    * Used for a file that is currently being written with plane statistics
+    * @param planeStats - statistics of the pixels, by ImageKey, as they are
+    * added by the writer
+    */
+   public synchronized void setPlaneStatsMap(ImageKeyMap<PlaneStats> planeStats) {
+      planeStats_ = planeStats;
+      planeStatsRead_ = true;
+   }
   
    /**
     * This constructor is used for opening datasets that have already been saved
@@ -108,7 +204,7 @@ public class MultipageTiffReader {
       long firstIFD = readHeader();
       summaryMetadata_ = readSummaryMD();
       try {
-         readIndexMap();
+         readIndexMap(false);
       }
       catch (IOException e) {
          // Convert IOException to InvalidIndexMapException so we can catch it
@@ -125,6 +221,118 @@ public class MultipageTiffReader {
       if (summaryMetadata_ != null) {
          getRGBAndByteDepth(summaryMetadata_);
       }
+      FileChannelPool.getInstance().register(this);
+   }
+
+   /**
+    * This constructor is used for opening files of saved datasets lazily,
+    * with an index map taken from the dataset's DatasetIndex. The file
+    * itself is not touched until open() is called or the first image is read.
+    * @param file File to be opened
+    * @param indexMap labels and IFD offsets of all images in the file
+    * @param bigTiff whether the file is a BigTIFF
+    */
+   public MultipageTiffReader(File file, ImageIndexMap indexMap, boolean bigTiff) {
+      displayAndComments_ = new JSONObject();
+      file_ = file;
+      indexMap_ = indexMap;
+      bigTiff_ = bigTiff;
+      writingFinished_ = true;
+      openPending_ = true;
+   }
+
+   /**
+    * Reads the header, summary metadata, display settings and comments of a
+    * file created by the lazy constructor. Does nothing if the file has
+    * already been opened.
+    */
+   public synchronized void open() throws IOException {
+      if (!openPending_) {
+         return;
+      }
+      openPending_ = false;
+      createFileChannel(false);
+      readHeader();
+      summaryMetadata_ = readSummaryMD();
+      try {
+         displayAndComments_.put("Channels", readDisplaySettings());
+         displayAndComments_.put("Comments", readComments());
+      } catch (JSONException ex) {
+         ReportingUtils.logError("Problem with JSON Representation of DisplayAndComments");
+      }
+      if (summaryMetadata_ != null) {
+         getRGBAndByteDepth(summaryMetadata_);
+      }
+      FileChannelPool.getInstance().register(this);
+      if (mapOnOpen_) {
+         enableMemoryMapping();
+      }
+   }
+
+   private boolean ensureOpen() {
+      try {
+         open();
+         return true;
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Can't successfully open file: " + file_.getName());
+         return false;
+      }
+   }
+
+   /**
+    * Opens the file if necessary, and keeps the FileChannelPool from
+    * closing its channel until releaseChannel() is called. Must be called
+    * before anything is read from (or written to) the channel.
+    * @return false if the file couldn't be opened, in which case
+    * releaseChannel() must not be called
+    */
+   private boolean acquireChannel() {
+      if (!ensureOpen()) {
+         return false;
+      }
+      try {
+         FileChannelPool.getInstance().acquire(this);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Can't reopen file: " + getFileName());
+         return false;
+      }
+      if (fileChannel_ == null) {
+         FileChannelPool.getInstance().release(this);
+         ReportingUtils.logError("Attempted to read image on FileChannel that is null");
+         return false;
+      }
+      return true;
+   }
+
+   private void releaseChannel() {
+      FileChannelPool.getInstance().release(this);
+   }
+
+   /**
+    * Called by the FileChannelPool, while no one is using the channel
+    */
+   void reopenChannel() throws IOException {
+      createFileChannel(readWrite_);
+   }
+
+   /**
+    * Called by the FileChannelPool to close the file while no one is using
+    * it. Unlike close() this keeps the memory mapped regions, which remain
+    * valid without the channel, and the file can be reopened.
+    */
+   void closeChannel() {
+      try {
+         if (fileChannel_ != null) {
+            fileChannel_.close();
+         }
+         if (raFile_ != null) {
+            raFile_.close();
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't close " + getFileName());
+      }
+      fileChannel_ = null;
+      raFile_ = null;
    }
 
    /**
@@ -182,7 +390,8 @@ public class MultipageTiffReader {
         return false;
       }
       FileChannel channel = ra.getChannel();
-      ByteBuffer tiffHeader = ByteBuffer.allocate(36);
+      ByteBuffer tiffHeader = ByteBuffer.allocate(
+              (int) MultipageTiffWriter.getHeaderSlotPosition(MultipageTiffWriter.SUMMARY_MD_SLOT, true) + 4);
       ByteOrder bo;
       channel.read(tiffHeader,0);
       char zeroOne = tiffHeader.getChar(0);
@@ -195,7 +404,9 @@ public class MultipageTiffReader {
          throw new IOException("Error reading Tiff header");
       }
       tiffHeader.order(bo);
-      int summaryMDHeader = tiffHeader.getInt(32);
+      boolean bigTiff = tiffHeader.getShort(2) == 43;
+      int summaryMDHeader = tiffHeader.getInt(
+              (int) MultipageTiffWriter.getHeaderSlotPosition(MultipageTiffWriter.SUMMARY_MD_SLOT, bigTiff));
       channel.close();
       ra.close();
       return summaryMDHeader == MultipageTiffWriter.SUMMARY_MD_HEADER;
@@ -204,6 +415,38 @@ public class MultipageTiffReader {
 
    public void finishedWriting() {
       writingFinished_ = true;
+      if (file_ != null) {
+         FileChannelPool.getInstance().register(this);
+      }
+   }
+
+   /**
+    * Read planes and metadata of a finished file through memory mapped
+    * regions of the file rather than through FileChannel reads into freshly
+    * allocated buffers. Regions are mapped lazily, the first time something
+    * inside of them is read. Has no effect on files that are still being
+    * written, since those change size underneath the mapping.
+    * The mappings are released on close(), so that the file is no longer
+    * locked (on Windows) once the reader is closed.
+    */
+   public synchronized void enableMemoryMapping() throws IOException {
+      if (openPending_) {
+         mapOnOpen_ = true;
+         return;
+      }
+      if (!writingFinished_ || mappedRegions_ != null || !acquireChannel()) {
+         return;
+      }
+      try {
+         mappedFileSize_ = fileChannel_.size();
+         mappedRegions_ = new MappedByteBuffer[(int) (mappedFileSize_ / MAPPED_REGION_STEP) + 1];
+      } finally {
+         releaseChannel();
+      }
+   }
+
+   public boolean isMemoryMapped() {
+      return mappedRegions_ != null;
    }
 
    private void getRGBAndByteDepth(JSONObject md) {
@@ -226,43 +469,395 @@ public class MultipageTiffReader {
    public JSONObject getSummaryMetadata() {
       return summaryMetadata_;
    }
+
+   public boolean isBigTiff() {
+      return bigTiff_;
+   }
+
+   /**
+    * @return byte order of the file, and so of the buffers returned by
+    * getPixelBuffer
+    */
+   public ByteOrder getByteOrder() {
+      return byteOrder_;
+   }
    
    public JSONObject getDisplayAndComments() {
       return displayAndComments_;
    }
    
    public TaggedImage readImage(String label) {
-      if (indexMap_.containsKey(label)) {
-         if (fileChannel_ == null) {
-            ReportingUtils.logError("Attempted to read image on FileChannel that is null");
+      Long byteOffset = labelIndexMap_ == null ? null : labelIndexMap_.get(label);
+      if (byteOffset != null) {
+         return readImage(ImageKey.NO_KEY, byteOffset);
+      }
+      return readImage(ImageKey.fromLabel(label));
+   }
+
+   /**
+    * @param key image coordinates as packed by ImageKey
+    */
+   public TaggedImage readImage(long key) {
+      long byteOffset = indexMap_.get(key);
+      if (byteOffset == ImageIndexMap.NO_VALUE) {
+         //label not in map--either writer hasnt finished writing it 
+         return null;
+      }
+      return readImage(key, byteOffset);
+   }
+
+   private TaggedImage readImage(long key, long byteOffset) {
+      if (!acquireChannel()) {
+         return null;
+      }
+      try {
+         IFDData data = readIFD(byteOffset);
+         checkPixels(key, data);
+         return readTaggedImage(data);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      } finally {
+         releaseChannel();
+      }
+   }  
+   
+   /**
+    * Read only the metadata of an image, skipping its pixels
+    * @param key image coordinates as packed by ImageKey
+    * @return metadata, or null if the image is not (yet) in this file
+    */
+   public JSONObject readImageTags(long key) {
+      long byteOffset = indexMap_ == null ? ImageIndexMap.NO_VALUE : indexMap_.get(key);
+      if (byteOffset == ImageIndexMap.NO_VALUE || !acquireChannel()) {
+         return null;
+      }
+      try {
+         return readImageTags(readIFD(byteOffset));
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      } finally {
+         releaseChannel();
+      }
+   }
+
+   public Object readPixels(String label) {
+      return readPixels(ImageKey.fromLabel(label));
+   }
+
+   /**
+    * Read only the pixels of an image, skipping the parsing of its metadata.
+    * The returned array is of the same type as TaggedImage.pix would be
+    * for readImage(key).
+    * @param key image coordinates as packed by ImageKey
+    * @return pixel array, or null if the image is not (yet) in this file
+    */
+   public Object readPixels(long key) {
+      if (indexMap_ == null || !indexMap_.containsKey(key) || !ensureOpen()) {
+         return null;
+      }
+      if (byteDepth_ == 0) {
+         // Pixel type unknown without the image metadata
+         TaggedImage image = readImage(key);
+         return image == null ? null : image.pix;
+      }
+      // Hold on to the channel while copying, so that close() can't unmap
+      // the region underneath the pixel buffer
+      if (!acquireChannel()) {
+         return null;
+      }
+      try {
+         ByteBuffer pixelBuffer = getPixelBuffer(key, false);
+         if (pixelBuffer == null) {
             return null;
          }
+         return convertPixels(pixelBuffer);
+      } finally {
+         releaseChannel();
+      }
+   }
+
+   public boolean readPixels(String label, Object destination) {
+      return readPixels(ImageKey.fromLabel(label), destination);
+   }
+
+   /**
+    * Read the pixels of a grayscale image into a caller supplied array,
+    * so that no new array has to be allocated for every plane.
+    * @param key image coordinates as packed by ImageKey
+    * @param destination byte[] (8 bit) or short[] (16 bit) that is large
+    * enough to hold the plane
+    * @return false if the image is not in this file, or if it can not be
+    * stored into destination
+    */
+   public boolean readPixels(long key, Object destination) {
+      if (!ensureOpen() || rgb_ || byteDepth_ == 0 || !acquireChannel()) {
+         return false;
+      }
+      try {
+         ByteBuffer pixelBuffer = getPixelBuffer(key, false);
+         if (pixelBuffer == null) {
+            return false;
+         }
+         if (byteDepth_ == 1 && destination instanceof byte[]
+                 && ((byte[]) destination).length >= pixelBuffer.remaining()) {
+            pixelBuffer.get((byte[]) destination, 0, pixelBuffer.remaining());
+            return true;
+         } else if (byteDepth_ == 2 && destination instanceof short[]
+                 && ((short[]) destination).length >= pixelBuffer.remaining() / 2) {
+            pixelBuffer.asShortBuffer().get((short[]) destination, 0, pixelBuffer.remaining() / 2);
+            return true;
+         }
+         return false;
+      } finally {
+         releaseChannel();
+      }
+   }
+
+   public ByteBuffer getPixelBuffer(String label) {
+      return getPixelBuffer(ImageKey.fromLabel(label));
+   }
+
+   /**
+    * Returns the pixels of an image exactly as they are stored in the file
+    * (in the byte order of the file, RGB stored as BGR without alpha), in a
+    * new heap buffer. Pixels are copied out of the mapped file if memory
+    * mapping is enabled, so the buffer remains valid after the reader has
+    * been closed. Compressed images are decompressed into the buffer.
+    * @param key image coordinates as packed by ImageKey
+    * @return buffer positioned at the first pixel, or null if the image is
+    * not (yet) in this file
+    */
+   public ByteBuffer getPixelBuffer(long key) {
+      return getPixelBuffer(key, true);
+   }
+
+   /**
+    * @param copyMapped whether to copy pixels out of the mapped file. If
+    * not, the buffer may be a read-only view on the mapped file, which the
+    * caller may only use while it holds the channel (see acquireChannel),
+    * as close() unmaps the file once the channel is no longer in use.
+    */
+   private ByteBuffer getPixelBuffer(long key, boolean copyMapped) {
+      long byteOffset = indexMap_ == null ? ImageIndexMap.NO_VALUE : indexMap_.get(key);
+      if (byteOffset == ImageIndexMap.NO_VALUE || !acquireChannel()) {
+         return null;
+      }
+      try {
+         IFDData data = readIFD(byteOffset);
+         checkPixels(key, data);
+         ByteBuffer pixelBuffer = readPixelBuffer(data);
+         if (copyMapped && pixelBuffer.isDirect()) {
+            ByteBuffer copy = ByteBuffer.allocate(pixelBuffer.remaining()).order(byteOrder_);
+            copy.put(pixelBuffer);
+            copy.clear();
+            return copy;
+         }
+         return pixelBuffer;
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      } finally {
+         releaseChannel();
+      }
+   }
+
+   /**
+    * In verification mode, the pixels of every image that is read are
+    * checked against their checksum, and images whose pixels don't match
+    * can't be read (readImage etc. log an error and return null). Has no
+    * effect on files without checksums.
+    */
+   public void setVerifyChecksums(boolean verify) {
+      verifyChecksums_ = verify;
+   }
+
+   /**
+    * @return whether the index map of the file holds checksums of the
+    * pixels of its images
+    */
+   public boolean hasChecksums() {
+      return getChecksumMap() != null;
+   }
+
+   /**
+    * @param key image coordinates as packed by ImageKey
+    * @return whether there is a checksum of the pixels of the image
+    */
+   public boolean hasChecksum(long key) {
+      ImageIndexMap checksums = getChecksumMap();
+      return checksums != null && checksums.containsKey(key);
+   }
+
+   /**
+    * Checks the pixels of an image, exactly as they are stored in the file,
+    * against the checksum in the index map
+    * @param key image coordinates as packed by ImageKey
+    * @return false if they don't match; true if they do, or if there is no
+    * checksum of the image
+    * @throws IOException if the image is not in this file or can't be read
+    */
+   public boolean verifyChecksum(long key) throws IOException {
+      long byteOffset = indexMap_ == null ? ImageIndexMap.NO_VALUE : indexMap_.get(key);
+      if (byteOffset == ImageIndexMap.NO_VALUE || !acquireChannel()) {
+         throw new IOException("Image " + ImageKey.toLabel(key) + " is not in " + getFileName());
+      }
+      try {
+         return matchesChecksum(key, readIFD(byteOffset));
+      } finally {
+         releaseChannel();
+      }
+   }
+
+   private void checkPixels(long key, IFDData data) throws IOException {
+      if (verifyChecksums_ && !matchesChecksum(key, data)) {
+         throw new IOException("Pixels of image " + ImageKey.toLabel(key) + " in "
+                 + getFileName() + " don't match their checksum");
+      }
+   }
+
+   private boolean matchesChecksum(long key, IFDData data) throws IOException {
+      ImageIndexMap checksums = getChecksumMap();
+      long checksum = checksums == null ? ImageIndexMap.NO_VALUE : checksums.get(key);
+      if (checksum == ImageIndexMap.NO_VALUE) {
+         return true;
+      }
+      long actual;
+      if (data.compression == TiffStripCodec.COMPRESSION_NONE) {
+         actual = PixelChecksum.compute(readPixelBuffer(data));
+      } else {
+         List<ByteBuffer> strips = new ArrayList<ByteBuffer>();
+         for (byte[] strip : readStrips(data)) {
+            strips.add(ByteBuffer.wrap(strip));
+         }
+         actual = PixelChecksum.compute(strips);
+      }
+      return actual == checksum;
+   }
+
+   private synchronized ImageIndexMap getChecksumMap() {
+      if (!checksumsRead_ && acquireChannel()) {
+         checksumsRead_ = true;
          try {
-            long byteOffset = indexMap_.get(label);
-            
-            IFDData data = readIFD(byteOffset);
-            return readTaggedImage(data);
+            readIndexMap(true);
          } catch (IOException ex) {
-            ReportingUtils.logError(ex);
-            return null;
+            // Including InvalidIndexMapException
+            ReportingUtils.logError(ex, "Couldn't read checksums of " + getFileName());
+         } finally {
+            releaseChannel();
          }
-         
-      } else {
-         //label not in map--either writer hasnt finished writing it 
-         return null;
       }
-   }  
-   
+      return checksums_;
+   }
+
+   /**
+    * Intensity statistics of an image, as computed when it was written. Only
+    * the small statistics block at the end of the file is read (once), not
+    * the pixels.
+    * @param key image coordinates as packed by ImageKey
+    * @return null if the file has no statistics of the image
+    */
+   public PlaneStats getPlaneStats(long key) {
+      ImageKeyMap<PlaneStats> planeStats = getPlaneStatsMap();
+      return planeStats == null ? null : planeStats.get(key);
+   }
+
+   /**
+    * @return whether statistics of the images were stored in the file
+    */
+   public boolean hasPlaneStats() {
+      return getPlaneStatsMap() != null;
+   }
+
+   private synchronized ImageKeyMap<PlaneStats> getPlaneStatsMap() {
+      if (!planeStatsRead_ && acquireChannel()) {
+         planeStatsRead_ = true;
+         try {
+            readPlaneStats();
+         } catch (IOException ex) {
+            ReportingUtils.logError(ex, "Couldn't read image statistics of " + getFileName());
+         } finally {
+            releaseChannel();
+         }
+      }
+      return planeStats_;
+   }
+
+   private void readPlaneStats() throws IOException {
+      if (firstIFDOffset_ <= 0) {
+         return;
+      }
+      IFDData firstIFD = readIFD(firstIFDOffset_);
+      if (firstIFD.planeStatsLength < MultipageTiffWriter.PLANE_STATS_BLOCK_HEADER_BYTES) {
+         return; // Written without statistics, or not closed
+      }
+      ByteBuffer block = readIntoBuffer(firstIFD.planeStatsOffset, (int) firstIFD.planeStatsLength);
+      block.rewind();
+      if (block.getInt() != MultipageTiffWriter.PLANE_STATS_HEADER) {
+         throw new IOException("Image statistics header not found");
+      }
+      int numEntries = block.getInt();
+      int binShift = block.getInt();
+      if (block.remaining() < (long) numEntries * MultipageTiffWriter.PLANE_STATS_ENTRY_BYTES) {
+         throw new IOException("Image statistics block is truncated");
+      }
+      ImageKeyMap<PlaneStats> planeStats = new ImageKeyMap<PlaneStats>(numEntries);
+      for (int i = 0; i < numEntries; i++) {
+         int channel = block.getInt();
+         int slice = block.getInt();
+         int frame = block.getInt();
+         int position = block.getInt();
+         planeStats.put(ImageKey.pack(channel, slice, frame, position),
+                 PlaneStats.read(block, binShift));
+      }
+      planeStats_ = planeStats;
+   }
+
+   private String getFileName() {
+      return file_ == null ? "file being written" : file_.getName();
+   }
+
+   /**
+    * String adapter: the labels of all images in this file
+    */
    public Set<String> getIndexKeys() {
       if (indexMap_ == null)
          return null;
-      return indexMap_.keySet();
+      Set<String> labels = new HashSet<String>();
+      for (long key : indexMap_.keys()) {
+         labels.add(ImageKey.toLabel(key));
+      }
+      labels.addAll(getOutOfRangeLabels());
+      return labels;
+   }
+
+   /**
+    * @return labels of the images whose indices are too large for an
+    * ImageKey, and so are not in getIndexMap(). These can only be read
+    * with readImage(String).
+    */
+   public Set<String> getOutOfRangeLabels() {
+      Set<String> labels = new HashSet<String>();
+      if (labelIndexMap_ != null) {
+         labels.addAll(labelIndexMap_.keySet());
+      }
+      return labels;
+   }
+
+   /**
+    * @return locations of all images in this file, by ImageKey
+    */
+   public ImageIndexMap getIndexMap() {
+      return indexMap_;
    }
 
    private JSONObject readSummaryMD() {
       try {
+         long summaryMDPosition = MultipageTiffWriter.getHeaderSlotPosition(
+                 MultipageTiffWriter.SUMMARY_MD_SLOT, bigTiff_);
          ByteBuffer mdInfo = ByteBuffer.allocate(8).order(byteOrder_);
-         fileChannel_.read(mdInfo, 32);
+         fileChannel_.read(mdInfo, summaryMDPosition);
          int header = mdInfo.getInt(0);
          int length = mdInfo.getInt(4);
          
@@ -272,7 +867,7 @@ public class MultipageTiffReader {
          }
 
          ByteBuffer mdBuffer = ByteBuffer.allocate(length).order(byteOrder_);
-         fileChannel_.read(mdBuffer, 40);
+         fileChannel_.read(mdBuffer, summaryMDPosition + 8);
          JSONObject summaryMD = new JSONObject(getString(mdBuffer));
 
          //Summary MD written start of acquisition and never changed, this code makes sure acquisition comment
@@ -293,7 +888,7 @@ public class MultipageTiffReader {
    
    private JSONObject readComments()  {
       try {
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER, 24);
+         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER, MultipageTiffWriter.COMMENTS_SLOT);
          ByteBuffer header = readIntoBuffer(offset, 8);
          if (header.getInt(0) != MultipageTiffWriter.COMMENTS_HEADER) {
             ReportingUtils.logError("Can't find image comments in file: " + file_.getName());
@@ -311,36 +906,46 @@ public class MultipageTiffReader {
    }
    
    public void rewriteComments(JSONObject comments) throws IOException, JSONException {
-      if (writingFinished_) {
-         byte[] bytes = getBytesFromString(comments.toString());
-         ByteBuffer byteCount = ByteBuffer.wrap(new byte[4]).order(byteOrder_).putInt(0,bytes.length);
-         ByteBuffer buffer = ByteBuffer.wrap(bytes);
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER, 24);
-         fileChannel_.write(byteCount,offset + 4);
-         fileChannel_.write(buffer, offset +8);
+      open();
+      if (writingFinished_ && acquireChannel()) {
+         try {
+            byte[] bytes = getBytesFromString(comments.toString());
+            ByteBuffer byteCount = ByteBuffer.wrap(new byte[4]).order(byteOrder_).putInt(0,bytes.length);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER, MultipageTiffWriter.COMMENTS_SLOT);
+            fileChannel_.write(byteCount,offset + 4);
+            fileChannel_.write(buffer, offset +8);
+         } finally {
+            releaseChannel();
+         }
       }
       displayAndComments_.put("Comments", comments);
    }
 
    public void rewriteDisplaySettings(JSONArray settings) throws IOException, JSONException {
-      if (writingFinished_) {
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER, 16);        
-         int numReservedBytes = readIntoBuffer(offset + 4, 4).getInt(0);
-         byte[] blank = new byte[numReservedBytes];
-         for (int i = 0; i < blank.length; i++) {
-            blank[i] = 0;
+      open();
+      if (writingFinished_ && acquireChannel()) {
+         try {
+            long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER, MultipageTiffWriter.DISPLAY_SETTINGS_SLOT);        
+            int numReservedBytes = readIntoBuffer(offset + 4, 4).getInt(0);
+            byte[] blank = new byte[numReservedBytes];
+            for (int i = 0; i < blank.length; i++) {
+               blank[i] = 0;
+            }
+            fileChannel_.write(ByteBuffer.wrap(blank), offset+8);
+            byte[] bytes = getBytesFromString(settings.toString());
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            fileChannel_.write(buffer, offset+8);
+         } finally {
+            releaseChannel();
          }
-         fileChannel_.write(ByteBuffer.wrap(blank), offset+8);
-         byte[] bytes = getBytesFromString(settings.toString());
-         ByteBuffer buffer = ByteBuffer.wrap(bytes);
-         fileChannel_.write(buffer, offset+8);
       }
       displayAndComments_.put("Channels", settings);
    }
 
    private JSONArray readDisplaySettings() {
       try {
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER,16);
+         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER, MultipageTiffWriter.DISPLAY_SETTINGS_SLOT);
           ByteBuffer header = readIntoBuffer(offset, 8);
           if (header.getInt(0) != MultipageTiffWriter.DISPLAY_SETTINGS_HEADER) {
              ReportingUtils.logError("Can't find display settings in file: " + file_.getName());
@@ -359,44 +964,121 @@ public class MultipageTiffReader {
    
    private ByteBuffer readIntoBuffer(long position, int length) throws IOException {
       ByteBuffer buffer = ByteBuffer.allocate(length).order(byteOrder_);
-      fileChannel_.read(buffer, position);
+      ByteBuffer mapped = getMappedBuffer(position, length);
+      if (mapped != null) {
+         buffer.put(mapped);
+         buffer.clear();
+      } else {
+         fileChannel_.read(buffer, position);
+      }
       return buffer;
    }
+
+   /**
+    * Returns a read-only view on the given part of the file if it has
+    * been memory mapped, or null if it has to be read through the channel
+    */
+   private ByteBuffer getMappedBuffer(long position, int length) throws IOException {
+      MappedByteBuffer region;
+      int index;
+      synchronized (this) {
+         if (mappedRegions_ == null || length > MAPPED_REGION_OVERLAP
+                 || position < 0 || position + length > mappedFileSize_) {
+            return null;
+         }
+         index = (int) (position / MAPPED_REGION_STEP);
+         if (mappedRegions_[index] == null) {
+            long regionStart = index * MAPPED_REGION_STEP;
+            mappedRegions_[index] = fileChannel_.map(FileChannel.MapMode.READ_ONLY, 
+                    regionStart, Math.min(MAPPED_REGION_SIZE, mappedFileSize_ - regionStart));
+         }
+         region = mappedRegions_[index];
+      }
+      // Duplicates share the mapping but have their own position and limit,
+      // so concurrent readers don't interfere with each other
+      ByteBuffer view = region.asReadOnlyBuffer();
+      int start = (int) (position - index * MAPPED_REGION_STEP);
+      view.limit(start + length);
+      view.position(start);
+      return view.slice().order(byteOrder_);
+   }
    
-   private long readOffsetHeaderAndOffset(int offsetHeaderVal, int startOffset) throws IOException  {
-      ByteBuffer buffer1 = readIntoBuffer(startOffset,8);
+   private long readOffsetHeaderAndOffset(int offsetHeaderVal, int slot) throws IOException  {
+      ByteBuffer buffer1 = readIntoBuffer(MultipageTiffWriter.getHeaderSlotPosition(slot, bigTiff_),
+              bigTiff_ ? 16 : 8);
       int offsetHeader = buffer1.getInt(0);
       if ( offsetHeader != offsetHeaderVal) {
          throw new IOException("Offset header incorrect, expected: " + offsetHeaderVal +"   found: " + offsetHeader);
       }
-      return unsignInt(buffer1.getInt(4));     
+      return bigTiff_ ? buffer1.getLong(8) : unsignInt(buffer1.getInt(4));     
    }
 
-   private void readIndexMap() throws IOException, InvalidIndexMapException {
-      long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER, 8);
+   /**
+    * @param checksumsOnly - only read the checksums, for files whose index
+    * map was taken from the DatasetIndex
+    */
+   private void readIndexMap(boolean checksumsOnly) throws IOException, InvalidIndexMapException {
+      long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER, MultipageTiffWriter.INDEX_MAP_SLOT);
       ByteBuffer header = readIntoBuffer(offset, 8);
-      if (header.getInt(0) != MultipageTiffWriter.INDEX_MAP_HEADER) {
+      int headerValue = header.getInt(0);
+      if (headerValue != MultipageTiffWriter.INDEX_MAP_HEADER
+              && headerValue != MultipageTiffWriter.INDEX_MAP_CHECKSUM_HEADER) {
          throw new InvalidIndexMapException();
       }
+      indexMapChecksums_ = headerValue == MultipageTiffWriter.INDEX_MAP_CHECKSUM_HEADER;
+      checksumsRead_ = true;
+      if (!indexMapChecksums_ && checksumsOnly) {
+         return;
+      }
       int numMappings = header.getInt(4);
-      indexMap_ = new HashMap<String, Long>();
-      ByteBuffer mapBuffer = readIntoBuffer(offset+8, 20*numMappings);     
+      int entryBytes = getIndexMapEntryBytes();
+      ImageIndexMap indexMap = new ImageIndexMap(numMappings);
+      ImageIndexMap checksums = indexMapChecksums_ ? new ImageIndexMap(numMappings) : null;
+      Map<String, Long> labelIndexMap = null;
+      ByteBuffer mapBuffer = readIntoBuffer(offset+8, entryBytes*numMappings);     
       for (int i = 0; i < numMappings; i++) {
-         int channel = mapBuffer.getInt(i*20);
-         int slice = mapBuffer.getInt(i*20+4);
-         int frame = mapBuffer.getInt(i*20+8);
-         int position = mapBuffer.getInt(i*20+12);
-         long imageOffset = unsignInt(mapBuffer.getInt(i*20+16));
+         int channel = mapBuffer.getInt(i*entryBytes);
+         int slice = mapBuffer.getInt(i*entryBytes+4);
+         int frame = mapBuffer.getInt(i*entryBytes+8);
+         int position = mapBuffer.getInt(i*entryBytes+12);
+         long imageOffset = bigTiff_ ? mapBuffer.getLong(i*entryBytes+16) 
+                 : unsignInt(mapBuffer.getInt(i*entryBytes+16));
          if (imageOffset == 0) {
             break; // end of index map reached
          }
          //If a duplicate label is read, forget about the previous one
          //if data has been intentionally overwritten, this gives the most current version
-         indexMap_.put(MDUtils.generateLabel(channel, slice, frame, position), imageOffset);
+         if (!ImageKey.isValid(channel, slice, frame, position)) {
+            if (labelIndexMap == null) {
+               labelIndexMap = new HashMap<String, Long>();
+            }
+            labelIndexMap.put(MDUtils.generateLabel(channel, slice, frame, position), imageOffset);
+            continue;
+         }
+         long key = ImageKey.pack(channel, slice, frame, position);
+         indexMap.put(key, imageOffset);
+         if (checksums != null) {
+            checksums.put(key, unsignInt(mapBuffer.getInt(
+                    (i + 1) * entryBytes - MultipageTiffWriter.INDEX_MAP_CHECKSUM_BYTES)));
+         }
+      }
+      if (!checksumsOnly) {
+         indexMap_ = indexMap;
+         labelIndexMap_ = labelIndexMap;
       }
+      checksums_ = checksums;
+   }
+
+   private int getIndexMapEntryBytes() {
+      return (bigTiff_ ? MultipageTiffWriter.BIGTIFF_INDEX_MAP_ENTRY_BYTES
+              : MultipageTiffWriter.INDEX_MAP_ENTRY_BYTES)
+              + (indexMapChecksums_ ? MultipageTiffWriter.INDEX_MAP_CHECKSUM_BYTES : 0);
    }
 
    private IFDData readIFD(long byteOffset) throws IOException {
+      if (bigTiff_) {
+         return readBigTiffIFD(byteOffset);
+      }
       ByteBuffer buff = readIntoBuffer(byteOffset,2);
       int numEntries = buff.getChar(0);
      
@@ -407,17 +1089,77 @@ public class MultipageTiffReader {
          if (entry.tag == MM_METADATA) {
             data.mdOffset = entry.value;
             data.mdLength = entry.count;
-         } else if (entry.tag == STRIP_OFFSETS) {
-            data.pixelOffset = entry.value;
-         } else if (entry.tag == STRIP_BYTE_COUNTS) {
-            data.bytesPerImage = entry.value;
-         } 
+         } else if (entry.tag == PLANE_STATS) {
+            data.planeStatsOffset = entry.value;
+            data.planeStatsLength = entry.count;
+         } else if (entry.tag == BITS_PER_SAMPLE) {
+            //RGB bits per sample are stored after the IFD
+            data.bitsPerSample = entry.count == 1 ? (int) entry.value : 0;
+            data.bitsPerSampleOffset = entry.value;
+         } else {
+            readStripEntry(entry, data);
+         }
       }
       data.nextIFD = unsignInt(entries.getInt(numEntries*12));
       data.nextIFDOffsetLocation = byteOffset + 2 + numEntries*12;
       return data;
    }
 
+   private IFDData readBigTiffIFD(long byteOffset) throws IOException {
+      ByteBuffer buff = readIntoBuffer(byteOffset, 8);
+      int numEntries = (int) buff.getLong(0);
+
+      ByteBuffer entries = readIntoBuffer(byteOffset + 8, numEntries*20 + 8);
+      IFDData data = new IFDData();
+      for (int i = 0; i < numEntries; i++) {
+         IFDEntry entry = readBigTiffDirectoryEntry(i*20, entries);
+         if (entry.tag == MM_METADATA) {
+            data.mdLength = entry.count;
+            //Strings of up to 8 bytes are stored in the entry itself
+            data.mdOffset = entry.count <= 8 ? byteOffset + 8 + i*20 + 12 : entry.value;
+         } else if (entry.tag == PLANE_STATS) {
+            data.planeStatsOffset = entry.value;
+            data.planeStatsLength = entry.count;
+         } else if (entry.tag == BITS_PER_SAMPLE) {
+            //RGB bits per sample are stored in the entry itself
+            data.bitsPerSample = entries.getChar(i*20 + 12);
+         } else {
+            readStripEntry(entry, data);
+         }
+      }
+      data.nextIFD = entries.getLong(numEntries*20);
+      data.nextIFDOffsetLocation = byteOffset + 8 + numEntries*20;
+      return data;
+   }
+
+   /**
+    * Record the entries that describe how the pixels of an image are laid
+    * out in the file
+    */
+   private void readStripEntry(IFDEntry entry, IFDData data) {
+      if (entry.tag == STRIP_OFFSETS) {
+         //Offset of the pixels, or of the strip offsets if there are several
+         data.pixelOffset = entry.value;
+         data.stripCount = (int) entry.count;
+         data.stripOffsetsType = entry.type;
+      } else if (entry.tag == STRIP_BYTE_COUNTS) {
+         data.bytesPerImage = entry.value;
+         data.stripByteCountsType = entry.type;
+      } else if (entry.tag == COMPRESSION) {
+         data.compression = (int) entry.value;
+      } else if (entry.tag == PREDICTOR) {
+         data.predictor = (int) entry.value;
+      } else if (entry.tag == ROWS_PER_STRIP) {
+         data.rowsPerStrip = (int) entry.value;
+      } else if (entry.tag == WIDTH) {
+         data.width = (int) entry.value;
+      } else if (entry.tag == HEIGHT) {
+         data.height = (int) entry.value;
+      } else if (entry.tag == SAMPLES_PER_PIXEL) {
+         data.samplesPerPixel = (int) entry.value;
+      }
+   }
+
    private String getString(ByteBuffer buffer) {
       try {
          return new String(buffer.array(), "UTF-8");
@@ -428,29 +1170,117 @@ public class MultipageTiffReader {
    }
    
    private TaggedImage readTaggedImage(IFDData data) throws IOException {
-      ByteBuffer pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
-      ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
-      fileChannel_.read(pixelBuffer, data.pixelOffset);
-      fileChannel_.read(mdBuffer, data.mdOffset);
+      ByteBuffer pixelBuffer = readPixelBuffer(data);
+      JSONObject md = readImageTags(data);
+      if ( byteDepth_ == 0) {
+         getRGBAndByteDepth(md);
+      }
+      return new TaggedImage(convertPixels(pixelBuffer), md);
+   }
+
+   private JSONObject readImageTags(IFDData data) throws IOException {
+      ByteBuffer mdBuffer = readIntoBuffer(data.mdOffset, (int) data.mdLength);
       JSONObject md = new JSONObject();
       try {
          md = new JSONObject(getString(mdBuffer));
+         if (MetadataDelta.isDelta(md)) {
+            md = MetadataDelta.decode(md, getMetadataTemplate(MetadataDelta.getBaseOffset(md)));
+         }
       } catch (JSONException ex) {
          ReportingUtils.logError("Error reading image metadata from file");
       }
-      
-      if ( byteDepth_ == 0) {
-         getRGBAndByteDepth(md);
+      return md;
+   }
+
+   private JSONObject getMetadataTemplate(long ifdOffset) throws IOException, JSONException {
+      JSONObject template = metadataTemplates_.get(ifdOffset);
+      if (template == null) {
+         IFDData data = readIFD(ifdOffset);
+         template = new JSONObject(getString(readIntoBuffer(data.mdOffset, (int) data.mdLength)));
+         metadataTemplates_.put(ifdOffset, template);
       }
-      
+      return template;
+   }
+
+   private ByteBuffer readPixelBuffer(IFDData data) throws IOException {
+      if (data.compression != TiffStripCodec.COMPRESSION_NONE) {
+         return readCompressedPixelBuffer(data);
+      }
+      ByteBuffer pixelBuffer = getMappedBuffer(data.pixelOffset, (int) data.bytesPerImage);
+      if (pixelBuffer == null) {
+         pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage).order(byteOrder_);
+         fileChannel_.read(pixelBuffer, data.pixelOffset);
+         pixelBuffer.clear();
+      }
+      return pixelBuffer;
+   }
+
+   /**
+    * Read the strips of a compressed image and decompress them in parallel
+    */
+   private ByteBuffer readCompressedPixelBuffer(IFDData data) throws IOException {
+      if (data.compression != TiffStripCodec.COMPRESSION_DEFLATE) {
+         throw new IOException("Unsupported compression: " + data.compression);
+      }
+      List<byte[]> strips = readStrips(data);
+      int bitsPerSample = data.bitsPerSample != 0 ? data.bitsPerSample
+              : readIntoBuffer(data.bitsPerSampleOffset, 2).getChar(0);
+      int bytesPerSample = bitsPerSample / 8;
+      int rowBytes = data.width * data.samplesPerPixel * bytesPerSample;
+      int rowsPerStrip = data.rowsPerStrip > 0 ? data.rowsPerStrip : data.height;
+      ByteBuffer pixelBuffer = ByteBuffer.allocate(rowBytes * data.height).order(byteOrder_);
+      TiffStripCodec.decode(strips, pixelBuffer, rowBytes, data.height, rowsPerStrip,
+              bytesPerSample, data.samplesPerPixel,
+              data.predictor == TiffStripCodec.PREDICTOR_HORIZONTAL, byteOrder_);
+      return pixelBuffer;
+   }
+
+   /**
+    * Read the strips of a compressed image as they are stored
+    */
+   private List<byte[]> readStrips(IFDData data) throws IOException {
+      int numStrips = data.stripCount;
+      long[] offsets = new long[numStrips];
+      long[] byteCounts = new long[numStrips];
+      if (numStrips == 1) {
+         offsets[0] = data.pixelOffset;
+         byteCounts[0] = data.bytesPerImage;
+      } else {
+         readStripArray(data.pixelOffset, data.stripOffsetsType, offsets);
+         readStripArray(data.bytesPerImage, data.stripByteCountsType, byteCounts);
+      }
+      List<byte[]> strips = new ArrayList<byte[]>(numStrips);
+      for (int i = 0; i < numStrips; i++) {
+         strips.add(readIntoBuffer(offsets[i], (int) byteCounts[i]).array());
+      }
+      return strips;
+   }
+
+   private void readStripArray(long offset, char type, long[] values) throws IOException {
+      int valueBytes = type == 3 ? 2 : (type == MultipageTiffWriter.LONG8 ? 8 : 4);
+      ByteBuffer buffer = readIntoBuffer(offset, values.length * valueBytes);
+      for (int i = 0; i < values.length; i++) {
+         if (valueBytes == 2) {
+            values[i] = buffer.getChar(2 * i);
+         } else if (valueBytes == 8) {
+            values[i] = buffer.getLong(8 * i);
+         } else {
+            values[i] = unsignInt(buffer.getInt(4 * i));
+         }
+      }
+   }
+
+   private Object convertPixels(ByteBuffer pixelBuffer) {
+      int numBytes = pixelBuffer.remaining();
       if (rgb_) {
          if (byteDepth_ == 1) {
             // This gets a little unpleasant. Our source pixels array is in
             // BGR format (see MultipageTiffWriter.getPixelBuffer()), and we
             // need to transform it into RGBA format -- swapping the R and B
             // components and inserting a blank alpha component.
-            byte[] pixels = new byte[(int) (4 * data.bytesPerImage / 3)];
-            byte[] source = pixelBuffer.array();
+            byte[] pixels = new byte[4 * numBytes / 3];
+            byte[] source = new byte[numBytes];
+            pixelBuffer.get(source);
             int numPixels = 0;
             int numComponents = 0;
             for (int i = 0; i < source.length; ++i) {
@@ -463,9 +1293,9 @@ public class MultipageTiffReader {
                   numComponents = 0;
                }
             }
-            return new TaggedImage(pixels, md);
+            return pixels;
          } else {
-             short[] pixels = new short[(int) (2 * (data.bytesPerImage/3))];
+             short[] pixels = new short[2 * (numBytes / 3)];
             int i = 0;           
             while ( i < pixels.length) {                
                pixels[i] = pixelBuffer.getShort( 2*((i/4)*3 + (i%4)) );        
@@ -475,17 +1305,21 @@ public class MultipageTiffReader {
                   i++;
                }
             }
-            return new TaggedImage(pixels, md);
+            return pixels;
          }
       } else {
          if (byteDepth_ == 1) {
-            return new TaggedImage(pixelBuffer.array(), md);
-         } else {
-            short[] pix = new short[pixelBuffer.capacity()/2];
-            for (int i = 0; i < pix.length; i++ ) {
-               pix[i] = pixelBuffer.getShort(i*2);
+            if (pixelBuffer.hasArray() && pixelBuffer.arrayOffset() == 0
+                    && pixelBuffer.array().length == numBytes) {
+               return pixelBuffer.array();
             }
-            return new TaggedImage(pix, md);
+            byte[] pix = new byte[numBytes];
+            pixelBuffer.get(pix);
+            return pix;
+         } else {
+            short[] pix = new short[numBytes / 2];
+            pixelBuffer.asShortBuffer().get(pix);
+            return pix;
          }
       }
    }
@@ -503,9 +1337,24 @@ public class MultipageTiffReader {
       return (new IFDEntry(tag,type,count,value));
    }
 
+   private IFDEntry readBigTiffDirectoryEntry(int offset, ByteBuffer buffer) throws IOException {
+      char tag =  buffer.getChar(offset); 
+      char type = buffer.getChar(offset + 2);
+      long count = buffer.getLong(offset + 4);
+      long value;
+      if ( type == 3 && count == 1) {
+         value = buffer.getChar(offset + 12);
+      } else if (type == 4 && count == 1) {
+         value = unsignInt(buffer.getInt(offset + 12));
+      } else {
+         value = buffer.getLong(offset + 12);
+      }
+      return (new IFDEntry(tag,type,count,value));
+   }
+
    //returns byteoffset of first IFD
    private long readHeader() throws IOException {           
-      ByteBuffer tiffHeader = ByteBuffer.allocate(8);
+      ByteBuffer tiffHeader = ByteBuffer.allocate(16);
       fileChannel_.read(tiffHeader,0);
       char zeroOne = tiffHeader.getChar(0);
       if (zeroOne == 0x4949 ) {
@@ -517,10 +1366,15 @@ public class MultipageTiffReader {
       }
       tiffHeader.order( byteOrder_ );  
       short twoThree = tiffHeader.getShort(2);
-      if (twoThree != 42) {
+      if (twoThree == 43) {
+         bigTiff_ = true;
+         firstIFDOffset_ = tiffHeader.getLong(8);
+      } else if (twoThree != 42) {
          throw new IOException("Tiff identifier code incorrect");
+      } else {
+         firstIFDOffset_ = unsignInt(tiffHeader.getInt(4));
       }
-      return unsignInt(tiffHeader.getInt(4));
+      return firstIFDOffset_;
    }
    
    private byte[] getBytesFromString(String s) {
@@ -538,6 +1392,22 @@ public class MultipageTiffReader {
    }
    
    public void close() throws IOException {
+      FileChannelPool.getInstance().unregister(this);
+      MappedByteBuffer[] regions;
+      synchronized (this) {
+         regions = mappedRegions_;
+         mappedRegions_ = null;
+      }
+      // Readers that got hold of a region before it was dropped keep the
+      // channel acquired while they use it. In that case unmapping would
+      // pull the memory out from under them, so leave it to the GC
+      if (regions != null && !FileChannelPool.getInstance().isInUse(this)) {
+         for (MappedByteBuffer region : regions) {
+            if (region != null) {
+               unmap(region);
+            }
+         }
+      }
       if (fileChannel_ != null) {
          fileChannel_.close();
          fileChannel_ = null;
@@ -548,6 +1418,39 @@ public class MultipageTiffReader {
       }
    }
       
+   /**
+    * Release a mapping right away instead of when the buffer is garbage
+    * collected, since Windows won't let a mapped file be deleted or renamed.
+    * There is no public API for this, so fall back on the JDK internals:
+    * Unsafe.invokeCleaner on Java 9 and later, the buffer's Cleaner before.
+    * If neither is available the mapping is left to the garbage collector.
+    */
+   private static void unmap(MappedByteBuffer buffer) {
+      try {
+         Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+         Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+         Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+         theUnsafe.setAccessible(true);
+         invokeCleaner.invoke(theUnsafe.get(null), buffer);
+         return;
+      } catch (NoSuchMethodException ex) {
+         // Java 8 and earlier, try the Cleaner below
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Couldn't unmap file region");
+         return;
+      }
+      try {
+         Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+         cleanerMethod.setAccessible(true);
+         Object cleaner = cleanerMethod.invoke(buffer);
+         if (cleaner != null) {
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+         }
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Couldn't unmap file region");
+      }
+   }
+
    private long unsignInt(int i) {
       long val = Integer.MAX_VALUE & i;
       if (i < 0) {
@@ -562,7 +1465,8 @@ public class MultipageTiffReader {
    // the ImageDescription tag location 
    private void fixIndexMap(long firstIFD, String fileName) throws IOException {
       long filePosition = firstIFD;
-      indexMap_ = new HashMap<String, Long>();
+      indexMap_ = new ImageIndexMap();
+      labelIndexMap_ = new HashMap<String, Long>();
       long progBarMax = (fileChannel_.size() / 2L);
       final ProgressBar progressBar = new ProgressBar("Fixing " + fileName, 0, 
               progBarMax >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) progBarMax);
@@ -583,12 +1487,16 @@ public class MultipageTiffReader {
                nextIFDOffsetLocation = data.nextIFDOffsetLocation;
                continue;
             }
-            String label;
-            label = MDUtils.getLabel(ti.tags);
-            if (label == null ) {
-               break;
-            }          
-            indexMap_.put(label, filePosition);
+            int channel = MDUtils.getChannelIndex(ti.tags);
+            int slice = MDUtils.getSliceIndex(ti.tags);
+            int frame = MDUtils.getFrameIndex(ti.tags);
+            int position = MDUtils.getPositionIndex(ti.tags);
+            if (ImageKey.isValid(channel, slice, frame, position)) {
+               indexMap_.put(ImageKey.pack(channel, slice, frame, position), filePosition);
+            } else {
+               labelIndexMap_.put(MDUtils.generateLabel(channel, slice, frame, position),
+                       filePosition);
+            }
             
             final int progress = (int) (filePosition/2L);
             SwingUtilities.invokeLater(new Runnable() {
@@ -611,8 +1519,7 @@ public class MultipageTiffReader {
      
       filePosition += writeIndexMap(filePosition);
       
-      ByteBuffer buffer = ByteBuffer.allocate(4).order(byteOrder_);
-      buffer.putInt(0, 0);
+      ByteBuffer buffer = ByteBuffer.allocate(bigTiff_ ? 8 : 4).order(byteOrder_);
       fileChannel_.write(buffer, nextIFDOffsetLocation); 
       
       JSONArray settings = null;
@@ -642,43 +1549,77 @@ public class MultipageTiffReader {
        fileChannel_.write(header, filePosition);
        fileChannel_.write(buffer, filePosition + 8);
 
-      ByteBuffer offsetHeader = ByteBuffer.allocate(8).order(MultipageTiffWriter.BYTE_ORDER);
-      offsetHeader.putInt(0, MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER);
-      offsetHeader.putInt(4, (int) filePosition);
-      fileChannel_.write(offsetHeader, 16);
+      fileChannel_.write(getOffsetHeaderBuffer(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER, filePosition),
+              MultipageTiffWriter.getHeaderSlotPosition(MultipageTiffWriter.DISPLAY_SETTINGS_SLOT, bigTiff_));
       return numReservedBytes + 8;
    }
    
    private int writeIndexMap(long filePosition) throws IOException {
-      //Write 4 byte header, 4 byte number of entries, and 20 bytes for each entry
-      int numMappings = indexMap_.size();
-      ByteBuffer buffer = ByteBuffer.allocate(8 + 20 * numMappings).order(byteOrder_);
+      //Write 4 byte header, 4 byte number of entries, and 20 (24 for BigTIFF) bytes for each entry
+      int numMappings = indexMap_.size() + labelIndexMap_.size();
+      int entryBytes = getIndexMapEntryBytes();
+      ByteBuffer buffer = ByteBuffer.allocate(8 + entryBytes * numMappings).order(byteOrder_);
       buffer.putInt(0, MultipageTiffWriter.INDEX_MAP_HEADER);
       buffer.putInt(4, numMappings);
-      int position = 2;
-      for (String label : indexMap_.keySet()) {
-         String[] indecies = label.split("_");
-         for (String index : indecies) {
-            buffer.putInt(4 * position, Integer.parseInt(index));
-            position++;
-         }
-         buffer.putInt(4 * position, indexMap_.get(label).intValue());
-         position++;
+      int position = 8;
+      for (long key : indexMap_.keys()) {
+         position = putIndexMapEntry(buffer, position, ImageKey.getChannel(key),
+                 ImageKey.getSlice(key), ImageKey.getFrame(key), ImageKey.getPosition(key),
+                 indexMap_.get(key));
+      }
+      for (Map.Entry<String, Long> entry : labelIndexMap_.entrySet()) {
+         int[] indices = MDUtils.getIndices(entry.getKey());
+         position = putIndexMapEntry(buffer, position, indices[0], indices[1], indices[2],
+                 indices[3], entry.getValue());
       }
       fileChannel_.write(buffer, filePosition);
 
-      ByteBuffer header = ByteBuffer.allocate(8).order(byteOrder_);
-      header.putInt(0, MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER);
-      header.putInt(4, (int) filePosition);
-      fileChannel_.write(header, 8);
+      fileChannel_.write(getOffsetHeaderBuffer(MultipageTiffWriter.INDEX_MAP_OFFSET_HEADER, filePosition),
+              MultipageTiffWriter.getHeaderSlotPosition(MultipageTiffWriter.INDEX_MAP_SLOT, bigTiff_));
       return buffer.capacity();
    }
 
+   private int putIndexMapEntry(ByteBuffer buffer, int position, int channel, int slice,
+           int frame, int imagePosition, long offset) {
+      buffer.putInt(position, channel);
+      buffer.putInt(position + 4, slice);
+      buffer.putInt(position + 8, frame);
+      buffer.putInt(position + 12, imagePosition);
+      position += 16;
+      if (bigTiff_) {
+         buffer.putLong(position, offset);
+         position += 8;
+      } else {
+         buffer.putInt(position, (int) offset);
+         position += 4;
+      }
+      return position;
+   }
+
+   private ByteBuffer getOffsetHeaderBuffer(int offsetHeader, long offset) {
+      ByteBuffer buffer = ByteBuffer.allocate(bigTiff_ ? 16 : 8).order(byteOrder_);
+      buffer.putInt(0, offsetHeader);
+      if (bigTiff_) {
+         buffer.putLong(8, offset);
+      } else {
+         buffer.putInt(4, (int) offset);
+      }
+      return buffer;
+   }
+
    private class IFDData {
       public long pixelOffset;
       public long bytesPerImage;
+      public int stripCount = 1;
+      public char stripOffsetsType, stripByteCountsType;
+      public int compression = TiffStripCodec.COMPRESSION_NONE;
+      public int predictor = TiffStripCodec.PREDICTOR_NONE;
+      public int rowsPerStrip, width, height, samplesPerPixel = 1;
+      public int bitsPerSample;
+      public long bitsPerSampleOffset;
       public long mdOffset;
       public long mdLength;
+      public long planeStatsOffset, planeStatsLength;
       public long nextIFD;
       public long nextIFDOffsetLocation;
       
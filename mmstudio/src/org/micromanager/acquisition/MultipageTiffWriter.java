@@ -34,18 +34,24 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
 import java.util.concurrent.ThreadPoolExecutor;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
+import org.micromanager.utils.DirectBufferPool;
+import org.micromanager.utils.ImageIndexMap;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.JSONEncoder;
 import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
@@ -55,15 +61,33 @@ public class MultipageTiffWriter {
 //   private static final long MAX_FILE_SIZE = 15*BYTES_PER_MEG;
    private static final long BYTES_PER_GIG = 1073741824;
    private static final long MAX_FILE_SIZE = 4 * BYTES_PER_GIG;
+   //BigTIFF files use 64 bit offsets, so this limit is only there to keep the
+   //preallocated index map and file length within reason
+   private static final long BIGTIFF_MAX_FILE_SIZE = 1024 * BYTES_PER_GIG;
+   //The index map is preallocated, so it is limited to the largest buffer the
+   //DirectBufferPool hands out. Files with tiny images start anew once it is full
+   private static final long MAX_INDEX_MAP_BYTES = 64 * 1048576;
    public static final int DISPLAY_SETTINGS_BYTES_PER_CHANNEL = 256;
    //1 MB for now...might have to increase
    public static final long SPACE_FOR_COMMENTS = 1048576;
    public static final int INDEX_MAP_OFFSET_HEADER = 54773648;
    public static final int INDEX_MAP_HEADER = 3453623;
+   //Index map whose entries end with a checksum of the image's pixels
+   public static final int INDEX_MAP_CHECKSUM_HEADER = 72937141;
    public static final int DISPLAY_SETTINGS_OFFSET_HEADER = 483765892;
    public static final int DISPLAY_SETTINGS_HEADER = 347834724;
    public static final int COMMENTS_OFFSET_HEADER = 99384722;
    public static final int COMMENTS_HEADER = 84720485;
+   //Slots in the file header holding offset headers and offsets of MM specific data
+   public static final int INDEX_MAP_SLOT = 0;
+   public static final int DISPLAY_SETTINGS_SLOT = 1;
+   public static final int COMMENTS_SLOT = 2;
+   public static final int SUMMARY_MD_SLOT = 3;
+   //4 ints of image indices + offset of the image's IFD
+   public static final int INDEX_MAP_ENTRY_BYTES = 20;
+   public static final int BIGTIFF_INDEX_MAP_ENTRY_BYTES = 24;
+   //CRC32 of the pixel data (see PixelChecksum) added to the entries above
+   public static final int INDEX_MAP_CHECKSUM_BYTES = 4;
   
    public static final char ENTRIES_PER_IFD = 13;
    //Required tags
@@ -80,15 +104,29 @@ public class MultipageTiffWriter {
    public static final char X_RESOLUTION = 282;
    public static final char Y_RESOLUTION = 283;
    public static final char RESOLUTION_UNIT = 296;
+   public static final char PREDICTOR = 317;
    public static final char IJ_METADATA_BYTE_COUNTS = TiffDecoder.META_DATA_BYTE_COUNTS;
    public static final char IJ_METADATA = TiffDecoder.META_DATA;
    public static final char MM_METADATA = 51123;
+   // Offset and length of the plane statistics block, in the first IFD
+   public static final char PLANE_STATS = 51124;
+   public static final char UNDEFINED = 7;
+   //BigTIFF 64 bit unsigned integer type
+   public static final char LONG8 = 16;
    
    public static final int SUMMARY_MD_HEADER = 2355492;
+   // Plane statistics block: header, number of entries and histogram bin
+   // shift, followed by the indices and PlaneStats of each image
+   public static final int PLANE_STATS_HEADER = 61820375;
+   public static final int PLANE_STATS_BLOCK_HEADER_BYTES = 12;
+   public static final int PLANE_STATS_ENTRY_BYTES = 16 + PlaneStats.BYTES;
          
    public static final ByteOrder BYTE_ORDER = ByteOrder.nativeOrder();
    
    final private boolean omeTiff_;
+   final private boolean bigTiff_;
+   final private long maxFileSize_;
+   final private int indexMapEntryBytes_;
    
    private TaggedImageStorageMultipageTiff masterMPTiffStorage_;
    private RandomAccessFile raFile_;
@@ -98,8 +136,9 @@ public class MultipageTiffWriter {
    private long indexMapPosition_; //current position of the dynamically written index map
    private long indexMapFirstEntry_; // mark position of first entry so that number of entries can be written at end
    private int bufferPosition_;
-   private int numChannels_ = 1, numFrames_ = 1, numSlices_ = 1;
-   private HashMap<String, Long> indexMap_;
+   private int numChannels_ = 1, numFrames_ = 1, numSlices_ = 1, numPositions_ = 1;
+   private long maxImagesInFile_;
+   private ImageIndexMap indexMap_;
    private long nextIFDOffsetLocation_ = -1;
    private boolean rgb_ = false;
    private int byteDepth_, imageWidth_, imageHeight_, bytesPerImagePixels_;
@@ -113,16 +152,72 @@ public class MultipageTiffWriter {
    private long ijMetadataTagPosition_;
    //Reader associated with this file
    private MultipageTiffReader reader_;
+   private DatasetIndex datasetIndex_;
+   private int datasetIndexFileId_;
    private long blankPixelsOffset_ = -1;
+   // Delta encoding of image metadata (see MetadataDelta)
+   private final boolean deltaMetadata_;
+   private JSONObject metadataTemplate_;
+   private long metadataTemplateOffset_;
+   private int metadataTemplateLength_;
+   // Image metadata is encoded into the same memory for every image
+   private final JSONEncoder mdEncoder_ = new JSONEncoder();
+   private int lastMetadataLength_ = 0;
+   // Lossless compression of pixels into strips (see TiffStripCodec)
+   private final boolean compressed_;
+   private int rowBytes_, rowsPerStrip_;
    private boolean fastStorageMode_;
+   // Checksums of the pixels of the images in the index map
+   private final boolean checksums_;
+   private ImageIndexMap checksumMap_;
+   // Buffers holding the pixel data of the last IFD
+   private final List<ByteBuffer> pixelBuffers_ = new ArrayList<ByteBuffer>();
+   private ChecksumEntry pendingChecksumEntry_;
+   // Time spent on checksums
+   private long checksumNanos_ = 0, checksumBytes_ = 0;
+
+   private final boolean planeStats_;
+   private int planeStatsBinShift_;
+   private ImageKeyMap<PlaneStats> planeStatsMap_;
+   private PlaneStats pendingPlaneStats_;
+   private long planeStatsTagPosition_ = -1;
    
    public MultipageTiffWriter(String directory, String filename, 
            JSONObject summaryMD, TaggedImageStorageMultipageTiff mpTiffStorage,
            boolean fastStorageMode, boolean splitByPositions) throws IOException {
+      this(directory, filename, summaryMD, mpTiffStorage, fastStorageMode, splitByPositions, false);
+   }
+
+   /**
+    * @param bigTiff - write a BigTIFF (64 bit offsets) file, which is not
+    * limited to 4 GB, instead of a classic Tiff
+    */
+   public MultipageTiffWriter(String directory, String filename, 
+           JSONObject summaryMD, TaggedImageStorageMultipageTiff mpTiffStorage,
+           boolean fastStorageMode, boolean splitByPositions, boolean bigTiff) throws IOException {
+      this(directory, filename, summaryMD, mpTiffStorage, fastStorageMode, splitByPositions,
+              bigTiff, mpTiffStorage.getWritingExecutor());
+   }
+
+   /**
+    * @param writingExecutor - single-thread executor that all writing to the
+    * file is done on in fast storage mode. Writers of different files may use
+    * different executors, so that the files are written concurrently
+    */
+   MultipageTiffWriter(String directory, String filename, 
+           JSONObject summaryMD, TaggedImageStorageMultipageTiff mpTiffStorage,
+           boolean fastStorageMode, boolean splitByPositions, boolean bigTiff,
+           ThreadPoolExecutor writingExecutor) throws IOException {
       fastStorageMode_ = fastStorageMode;
       masterMPTiffStorage_ = mpTiffStorage;
       omeTiff_ = mpTiffStorage.omeTiff_;        
-      reader_ = new MultipageTiffReader(summaryMD);
+      bigTiff_ = bigTiff;
+      deltaMetadata_ = mpTiffStorage.getDeltaMetadata();
+      maxFileSize_ = bigTiff ? BIGTIFF_MAX_FILE_SIZE : MAX_FILE_SIZE;
+      checksums_ = mpTiffStorage.getChecksums();
+      indexMapEntryBytes_ = (bigTiff ? BIGTIFF_INDEX_MAP_ENTRY_BYTES : INDEX_MAP_ENTRY_BYTES)
+              + (checksums_ ? INDEX_MAP_CHECKSUM_BYTES : 0);
+      reader_ = new MultipageTiffReader(summaryMD, bigTiff);
       File f = new File(directory + "/" + filename); 
       
       try {
@@ -132,9 +227,25 @@ public class MultipageTiffWriter {
       } catch (JSONException ex) {
          ReportingUtils.logError(ex);
       }
+      // Only 8 and 16 bit samples can be compressed with a predictor
+      compressed_ = mpTiffStorage.getCompression() && (byteDepth_ == 1 || byteDepth_ == 2);
+      rowBytes_ = imageWidth_ * byteDepth_ * (rgb_ ? 3 : 1);
+      rowsPerStrip_ = TiffStripCodec.getRowsPerStrip(rowBytes_, imageHeight_);
+      planeStats_ = mpTiffStorage.getPlaneStats() && !rgb_ && (byteDepth_ == 1 || byteDepth_ == 2);
+      if (planeStats_) {
+         int bitDepth = byteDepth_ * 8;
+         try {
+            if (MDUtils.hasBitDepth(summaryMD)) {
+               bitDepth = Math.min(bitDepth, MDUtils.getBitDepth(summaryMD));
+            }
+         } catch (JSONException ex) {
+            ReportingUtils.logError(ex);
+         }
+         planeStatsBinShift_ = PlaneStats.getBinShift(bitDepth);
+      }
       
       //This is an overestimate of file size because file gets truncated at end
-      long fileSize = Math.min(MAX_FILE_SIZE, summaryMD.toString().length() + 2000000
+      long fileSize = Math.min(maxFileSize_, summaryMD.toString().length() + 2000000
               + numFrames_ * numChannels_ * numSlices_ * ((long) bytesPerImagePixels_ + 2000));
       
       f.createNewFile();
@@ -153,41 +264,51 @@ public class MultipageTiffWriter {
              ReportingUtils.showError("Insufficent space on disk: no room to write data");
       }
       fileChannel_ = raFile_.getChannel();
-      writingExecutor_ = masterMPTiffStorage_.getWritingExecutor();
-      indexMap_ = new HashMap<String, Long>();
+      writingExecutor_ = writingExecutor;
+      int expectedImages = (int) Math.min((long) numFrames_ * numChannels_ * numSlices_, 1 << 16);
+      indexMap_ = new ImageIndexMap(expectedImages);
       reader_.setFileChannel(fileChannel_);
+      reader_.setFile(f);
       reader_.setIndexMap(indexMap_);
+      if (checksums_) {
+         checksumMap_ = new ImageIndexMap(expectedImages);
+         reader_.setChecksumMap(checksumMap_);
+      }
+      if (planeStats_) {
+         planeStatsMap_ = new ImageKeyMap<PlaneStats>(expectedImages);
+         reader_.setPlaneStatsMap(planeStatsMap_);
+      }
       buffers_ = new LinkedList<ByteBuffer>();
+      datasetIndex_ = masterMPTiffStorage_.getDatasetIndex();
+      if (datasetIndex_ != null) {
+         datasetIndexFileId_ = datasetIndex_.addFile(filename, bigTiff);
+      }
       
       writeMMHeaderAndSummaryMD(summaryMD);
    }
    
+   // Buffers are leased from the DirectBufferPool, and given back once
+   // they have been written to the file (see fileChannelWrite)
    private ByteBuffer allocateByteBuffer(int capacity) {
-      return ByteBuffer.allocateDirect(capacity).order(BYTE_ORDER);
+      return DirectBufferPool.getInstance().leaseZeroed(capacity).order(BYTE_ORDER);
    }
-   
-   private BlockingQueue<ByteBuffer> currentImageByteBuffers_ = new LinkedBlockingQueue<ByteBuffer>(10);
-   private int currentImageByteBufferCapacity_ = 0;
-           
+
+   // For buffers that are completely overwritten, so need not be cleared
    private ByteBuffer allocateByteBufferMemo(int capacity) {
-       // HACK: if we are running on 32-bit mode, then we don't want to cache
-       // our direct buffers, due to increased memory constraints on 32-bit
-       // systems.
-       if (System.getProperty("sun.arch.data.model").equals("32")) {
-           return allocateByteBuffer(capacity);
-       }
-       if (capacity != currentImageByteBufferCapacity_) {
-           currentImageByteBuffers_.clear();
-           currentImageByteBufferCapacity_ = capacity;
-       }
-       
-       ByteBuffer cachedBuf = currentImageByteBuffers_.poll();
-       return (cachedBuf != null) ? cachedBuf : allocateByteBuffer(capacity);
+      return DirectBufferPool.getInstance().lease(capacity).order(BYTE_ORDER);
    }
    
    private void executeWritingTask(Runnable writingTask) {
+      executeWritingTask(writingTask, 0);
+   }
+
+   /**
+    * @param bytes - amount of data held by the task until it has run, which
+    * counts against the capacity of the ImageWriteQueue
+    */
+   private void executeWritingTask(Runnable writingTask, long bytes) {
       if (fastStorageMode_) {
-         writingExecutor_.execute(writingTask);
+         ImageWriteQueue.getInstance().execute(writingExecutor_, writingTask, bytes);
       } else {
          writingTask.run();
       }
@@ -201,33 +322,46 @@ public class MultipageTiffWriter {
              try {
                 buffer.rewind();
                 fileChannel_.write(buffer, position);
-                if (buffer.limit() == currentImageByteBufferCapacity_) {
-                    currentImageByteBuffers_.offer(buffer);
-                }
               } catch (IOException e) {
                 ReportingUtils.logError(e);
+              } finally {
+                DirectBufferPool.getInstance().release(buffer);
               }
            }
-        });
+        }, buffer.limit());
    }
    
    private void fileChannelWrite(final ByteBuffer[] buffers) {
+      fileChannelWrite(buffers, null);
+   }
+
+   /**
+    * @param checksumEntry - index map entry with the checksum of the pixels
+    * among buffers, to write after them; may be null
+    */
+   private void fileChannelWrite(final ByteBuffer[] buffers, final ChecksumEntry checksumEntry) {
+      long bytes = 0;
+      for (ByteBuffer buffer : buffers) {
+         bytes += buffer.limit();
+      }
       executeWritingTask(
         new Runnable() {
            @Override
            public void run() {
              try {
                 fileChannel_.write(buffers);
-                for (ByteBuffer buffer:buffers) {
-                    if (buffer.limit() == currentImageByteBufferCapacity_) {
-                        currentImageByteBuffers_.offer(buffer);
-                    }
+                if (checksumEntry != null) {
+                   checksumEntry.write();
                 }
               } catch (IOException e) {
                 ReportingUtils.logError(e);
-              } 
+              } finally {
+                for (ByteBuffer buffer : buffers) {
+                   DirectBufferPool.getInstance().release(buffer);
+                }
+              }
            }
-        });
+        }, bytes);
    }
    
    public MultipageTiffReader getReader() {
@@ -238,42 +372,107 @@ public class MultipageTiffWriter {
       return fileChannel_;
    }
    
-   public HashMap<String, Long> getIndexMap() {
+   public ImageIndexMap getIndexMap() {
       return indexMap_;
    }
    
+   public boolean isBigTiff() {
+      return bigTiff_;
+   }
+
+   /**
+    * Position in the file header of one of the MM offset headers (or of the
+    * summary metadata header). BigTIFF headers are 16 bytes long and use 16
+    * byte slots to hold 8 byte offsets
+    */
+   static long getHeaderSlotPosition(int slot, boolean bigTiff) {
+      return bigTiff ? 16 + 16 * slot : 8 + 8 * slot;
+   }
+
+   /**
+    * Position of the offset value following an offset header in the file header
+    */
+   static long getHeaderSlotOffsetPosition(int slot, boolean bigTiff) {
+      return getHeaderSlotPosition(slot, bigTiff) + (bigTiff ? 8 : 4);
+   }
+
+   /**
+    * Buffer containing an offset header and a 4 (classic Tiff) or 8 (BigTIFF) byte
+    * offset, to be written at getHeaderSlotPosition
+    */
+   private ByteBuffer getOffsetHeaderBuffer(int offsetHeader, long offset) {
+      ByteBuffer buffer = allocateByteBuffer(bigTiff_ ? 16 : 8);
+      buffer.putInt(0, offsetHeader);
+      if (bigTiff_) {
+         buffer.putLong(8, offset);
+      } else {
+         buffer.putInt(4, (int) offset);
+      }
+      return buffer;
+   }
+   
    private void writeMMHeaderAndSummaryMD(JSONObject summaryMD) throws IOException {      
       if (summaryMD.has("Comment")) {
          summaryMD.remove("Comment");
       }
       byte[] summaryMDBytes = getBytesFromString(summaryMD.toString());
       int mdLength = summaryMDBytes.length;
-      //20 bytes plus 8 header for index map
-      long maxImagesInFile = MAX_FILE_SIZE / bytesPerImagePixels_;
-      long indexMapSpace = 8 + 20 * maxImagesInFile;
+      //20 (24 for BigTIFF) bytes plus 8 header for index map
+      long maxImagesInFile = maxFileSize_ / bytesPerImagePixels_;
+      if (bigTiff_) {
+         //The size limit of BigTIFF is too large to preallocate an index map entry
+         //for every image that could fit, so only make space for the expected number
+         //of images, but at least for as many as a classic Tiff file holds, in case
+         //more arrive than expected (e.g. a Frames count that is too low). If even
+         //more arrive, hasSpaceToWrite starts a new file
+         long expectedImages = (long) numFrames_ * numChannels_ * numSlices_ * numPositions_;
+         maxImagesInFile = Math.min(maxImagesInFile,
+                 Math.max(expectedImages, MAX_FILE_SIZE / bytesPerImagePixels_));
+      }
+      maxImagesInFile = Math.max(1, Math.min(maxImagesInFile,
+              (MAX_INDEX_MAP_BYTES - 8) / indexMapEntryBytes_));
+      maxImagesInFile_ = maxImagesInFile;
+      long indexMapSpace = 8 + indexMapEntryBytes_ * maxImagesInFile;
+      if (indexMapSpace > Integer.MAX_VALUE) {
+         throw new IOException("Index map of " + maxImagesInFile + " images is too large");
+      }
       
-      ByteBuffer headerBuffer = allocateByteBuffer(40);
-      //8 bytes for file header
+      //40 bytes (72 for BigTIFF): Tiff header, 3 offset headers with offsets and summary md header
+      int headerSize = (int) getHeaderSlotPosition(SUMMARY_MD_SLOT, bigTiff_) + 8;
+      ByteBuffer headerBuffer = allocateByteBuffer(headerSize);
+      //8 bytes for file header (16 for BigTIFF)
       if (BYTE_ORDER.equals(ByteOrder.BIG_ENDIAN)) {
          headerBuffer.asCharBuffer().put(0,(char) 0x4d4d);
       } else {
          headerBuffer.asCharBuffer().put(0,(char) 0x4949);
       }
-      headerBuffer.asCharBuffer().put(1,(char) 42);
-      headerBuffer.putInt(4,40 + (int) (mdLength + indexMapSpace));
+      if (bigTiff_) {
+         headerBuffer.asCharBuffer().put(1,(char) 43);
+         //byte size of offsets, followed by 2 bytes of 0
+         headerBuffer.asCharBuffer().put(2,(char) 8);
+         headerBuffer.asCharBuffer().put(3,(char) 0);
+         headerBuffer.putLong(8, headerSize + mdLength + indexMapSpace);
+      } else {
+         headerBuffer.asCharBuffer().put(1,(char) 42);
+         headerBuffer.putInt(4,headerSize + (int) (mdLength + indexMapSpace));
+      }
       
-      //8 bytes for index map offset header and offset
-      headerBuffer.putInt(8,INDEX_MAP_OFFSET_HEADER);
-      headerBuffer.putInt(12,headerBuffer.capacity() + mdLength);
+      //index map offset header and offset
+      headerBuffer.putInt((int) getHeaderSlotPosition(INDEX_MAP_SLOT, bigTiff_), INDEX_MAP_OFFSET_HEADER);
+      if (bigTiff_) {
+         headerBuffer.putLong((int) getHeaderSlotOffsetPosition(INDEX_MAP_SLOT, bigTiff_), headerSize + mdLength);
+      } else {
+         headerBuffer.putInt((int) getHeaderSlotOffsetPosition(INDEX_MAP_SLOT, bigTiff_), headerSize + mdLength);
+      }
       
-      //8 bytes for display settings offset header and display settings offset--written later
-      //8 bytes for comments offset header and comments offset--written later
+      //display settings offset header and display settings offset--written later
+      //comments offset header and comments offset--written later
       //8 bytes for summaryMD header  summary md length + 
-      headerBuffer.putInt(32,SUMMARY_MD_HEADER);
-      headerBuffer.putInt(36,mdLength);
+      headerBuffer.putInt((int) getHeaderSlotPosition(SUMMARY_MD_SLOT, bigTiff_), SUMMARY_MD_HEADER);
+      headerBuffer.putInt((int) getHeaderSlotPosition(SUMMARY_MD_SLOT, bigTiff_) + 4, mdLength);
       
       ByteBuffer indexMapBuffer = allocateByteBuffer((int) indexMapSpace);
-      indexMapBuffer.putInt(0,INDEX_MAP_HEADER);
+      indexMapBuffer.putInt(0, checksums_ ? INDEX_MAP_CHECKSUM_HEADER : INDEX_MAP_HEADER);
       indexMapBuffer.putInt(4,(int) maxImagesInFile);  
       indexMapPosition_ = headerBuffer.capacity() + mdLength + 8;
       indexMapFirstEntry_ = indexMapPosition_;
@@ -302,7 +501,7 @@ public class MultipageTiffWriter {
       //The MultipageTiffReader no longer needs this because it interperets 0's as the 
       //the end of the index map. It is added here for backwards compatibility of reading
       //using versions of MM before 6-6-2014. Without it, old versions wouldn't correctly read image 0_0_0_0
-      int numImages = (int) ((indexMapPosition_ - indexMapFirstEntry_) / 20);
+      int numImages = (int) ((indexMapPosition_ - indexMapFirstEntry_) / indexMapEntryBytes_);
       ByteBuffer indexMapNumEntries = allocateByteBuffer(4);
       indexMapNumEntries.putInt(0, numImages);
       fileChannelWrite(indexMapNumEntries, indexMapFirstEntry_ - 4);
@@ -314,6 +513,19 @@ public class MultipageTiffWriter {
     * OME/IJ metadata, and truncates the file to a reasonable length
     */
    public void close(String omeXML) throws IOException {
+      close(omeXML, null);
+   }
+
+   /**
+    * Like close(String), but with the complete OME-XML metadata of the data
+    * set, which is copied into the file from the scratch files of omeMetadata
+    * rather than built as a String
+    */
+   public void close(OMEMetadata omeMetadata) throws IOException {
+      close(null, omeMetadata);
+   }
+
+   private void close(String omeXML, OMEMetadata omeMetadata) throws IOException {
       String summaryComment = "";
       try 
       {
@@ -328,19 +540,30 @@ public class MultipageTiffWriter {
 
       if (omeTiff_) {
          try {
-            writeImageDescription(omeXML, omeDescriptionTagPosition_);
+            if (omeMetadata != null) {
+               writeImageDescription(omeMetadata, omeDescriptionTagPosition_);
+            } else {
+               writeImageDescription(omeXML, omeDescriptionTagPosition_);
+            }
          } catch (Exception ex) {
             ReportingUtils.showError("Error writing OME metadata");
          }
       }
       writeImageDescription(getIJDescriptionString(), ijDescriptionTagPosition_); 
       
+      writePlaneStats();
       writeDisplaySettings();
       writeComments();
 
       executeWritingTask(new Runnable() {
          @Override
          public void run() {
+            if (checksumBytes_ > 0) {
+               ReportingUtils.logMessage(String.format(
+                       "Checksums of %.1f MB of pixels took %.0f ms (%.0f MB/s)",
+                       checksumBytes_ / 1e6, checksumNanos_ / 1e6,
+                       checksumBytes_ / 1e6 / Math.max(1e-9, checksumNanos_ / 1e9)));
+            }
             try {
                //extra byte of space, just to make sure nothing gets cut off
                raFile_.setLength(filePosition_ + 8);
@@ -355,28 +578,45 @@ public class MultipageTiffWriter {
       });
    }
    
-   public boolean hasSpaceForFullOMEMetadata(int length) {
+   public boolean hasSpaceForFullOMEMetadata(long length) {
       //5 MB extra padding..just to be safe
       int extraPadding = 5000000; 
-      long size = length + SPACE_FOR_COMMENTS + numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_;
-      if (size >= MAX_FILE_SIZE) {
+      long size = length + SPACE_FOR_COMMENTS + numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_
+              + getPlaneStatsBlockBytes(0);
+      if (size >= maxFileSize_) {
          return false;
       }
       return true;
    }
    
    public boolean hasSpaceToWrite(TaggedImage img, int omeMDLength) {
-      int mdLength = img.tags.toString().length();
-      int IFDSize = ENTRIES_PER_IFD*12 + 4 + 16;
+      // With delta metadata an image stores at most the template's length,
+      // or becomes a new template of about the same size. Without it, the
+      // metadata is taken to be at most twice as long as that of the
+      // previous image, so that it needn't be encoded twice.
+      int mdLength;
+      if (deltaMetadata_ && metadataTemplate_ != null) {
+         mdLength = 2 * metadataTemplateLength_;
+      } else if (lastMetadataLength_ > 0) {
+         mdLength = 2 * lastMetadataLength_;
+      } else {
+         mdLength = img.tags.toString().length();
+      }
+      int IFDSize = bigTiff_ ? (ENTRIES_PER_IFD*20 + 16) : (ENTRIES_PER_IFD*12 + 4 + 16);
       //5 MB extra padding...just to be safe...
       int extraPadding = 5000000; 
       long size = mdLength+IFDSize+bytesPerImagePixels_+SPACE_FOR_COMMENTS+
-      numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_;
+      numChannels_ * DISPLAY_SETTINGS_BYTES_PER_CHANNEL + extraPadding + filePosition_
+              + getPlaneStatsBlockBytes(1);
       if (omeTiff_) {
          size += omeMDLength;
       }
       
-      if ( size >= MAX_FILE_SIZE) {
+      if ( size >= maxFileSize_) {
+         return false;
+      }
+      //no more room in the preallocated index map
+      if (indexMapPosition_ + indexMapEntryBytes_ > indexMapFirstEntry_ + maxImagesInFile_ * indexMapEntryBytes_) {
          return false;
       }
       return true;
@@ -392,25 +632,19 @@ public class MultipageTiffWriter {
    }
         
    public void writeImage(TaggedImage img) throws IOException {
-      if (writingExecutor_ != null) {
-         int queueSize = writingExecutor_.getQueue().size();
-         int attemptCount = 0;
-         while (queueSize > 20) {
-            if (attemptCount == 0) {
-               ReportingUtils.logMessage("Warning: writing queue behind by " + queueSize + " images.");
-            }
-            ++attemptCount;
-            try {
-               Thread.sleep(5);
-               queueSize = writingExecutor_.getQueue().size();
-            } catch (InterruptedException ex) {
-               ReportingUtils.logError(ex);
-            }
-         }
+      // Throttling of writers that get ahead of the disk is done by the
+      // ImageWriteQueue when the writing tasks are submitted
+      long key;
+      try {
+         key = ImageKey.fromTags(img.tags);
+      } catch (JSONException ex) {
+         throw new IOException("Image indices missing from tags", ex);
+      } catch (MMException ex) {
+         throw new IOException(ex.getMessage(), ex);
       }
       long offset = filePosition_;
       writeIFD(img);
-      addToIndexMap(MDUtils.getLabel(img.tags), offset);
+      addToIndexMap(key, offset);
       writeBuffers();
       //wait until image has finished writing to return
 //      int size = writingExecutor_.getQueue().size();
@@ -419,18 +653,135 @@ public class MultipageTiffWriter {
 //      }
    }
    
-   private void addToIndexMap(String label, long offset) {
+   private void addToIndexMap(long key, long offset) {
       //If a duplicate label is received, forget about the previous one
       //this allows overwriting of images without loss of data
-      indexMap_.put(label, offset);
-      ByteBuffer buffer = allocateByteBuffer( 20 );
-      String[] indices = label.split("_");
-      for (int i = 0; i < 4; i++) {
-         buffer.putInt( 4*i , Integer.parseInt(indices[i]));
-      }
-      buffer.putInt(16, new Long(offset).intValue());
-      fileChannelWrite(buffer,indexMapPosition_);
-      indexMapPosition_ += 20;  
+      addPlaneStats(key);
+      indexMap_.put(key, offset);
+      if (datasetIndex_ != null) {
+         datasetIndex_.addImage(datasetIndexFileId_, key, offset);
+      }
+      writeIndexMapEntry(key, offset);
+   }
+
+   /**
+    * Record the statistics computed by the last getPixelBuffer as those of
+    * the image with the given key
+    */
+   private void addPlaneStats(long key) {
+      if (pendingPlaneStats_ != null) {
+         planeStatsMap_.put(key, pendingPlaneStats_);
+         pendingPlaneStats_ = null;
+      }
+   }
+
+   /**
+    * Space needed for the plane statistics block if the given number of
+    * images are added
+    */
+   private long getPlaneStatsBlockBytes(int additionalImages) {
+      if (!planeStats_) {
+         return 0;
+      }
+      return PLANE_STATS_BLOCK_HEADER_BYTES
+              + (long) (planeStatsMap_.size() + additionalImages) * PLANE_STATS_ENTRY_BYTES;
+   }
+
+   /**
+    * Write the statistics of all images after the last image, and point the
+    * PLANE_STATS entry of the first IFD to them
+    */
+   private void writePlaneStats() throws IOException {
+      if (!planeStats_ || planeStatsTagPosition_ < 0) {
+         return;
+      }
+      long[] keys = planeStatsMap_.keys();
+      Arrays.sort(keys);
+      int length = PLANE_STATS_BLOCK_HEADER_BYTES + keys.length * PLANE_STATS_ENTRY_BYTES;
+      ByteBuffer buffer = ByteBuffer.allocate(length).order(BYTE_ORDER);
+      buffer.putInt(PLANE_STATS_HEADER);
+      buffer.putInt(keys.length);
+      buffer.putInt(planeStatsBinShift_);
+      for (long key : keys) {
+         buffer.putInt(ImageKey.getChannel(key));
+         buffer.putInt(ImageKey.getSlice(key));
+         buffer.putInt(ImageKey.getFrame(key));
+         buffer.putInt(ImageKey.getPosition(key));
+         planeStatsMap_.get(key).write(buffer);
+      }
+      buffer.rewind();
+      writeIFDEntryCountAndValue(planeStatsTagPosition_, length, filePosition_);
+      fileChannelWrite(buffer, filePosition_);
+      filePosition_ += length;
+   }
+
+   /**
+    * Append an entry to the index map in the file. With checksums, the
+    * checksum of the pixel buffers of the last IFD is computed here, and the
+    * entry is written after them by the next call of writeBuffers.
+    */
+   private void writeIndexMapEntry(long key, long offset) {
+      ByteBuffer buffer = allocateByteBuffer( indexMapEntryBytes_ );
+      buffer.putInt(0, ImageKey.getChannel(key));
+      buffer.putInt(4, ImageKey.getSlice(key));
+      buffer.putInt(8, ImageKey.getFrame(key));
+      buffer.putInt(12, ImageKey.getPosition(key));
+      if (bigTiff_) {
+         buffer.putLong(16, offset);
+      } else {
+         buffer.putInt(16, new Long(offset).intValue());
+      }
+      if (!checksums_) {
+         fileChannelWrite(buffer, indexMapPosition_);
+         indexMapPosition_ += indexMapEntryBytes_;
+         return;
+      }
+      pendingChecksumEntry_ = new ChecksumEntry(key, buffer, indexMapPosition_,
+              pixelBuffers_.toArray(new ByteBuffer[pixelBuffers_.size()]));
+      pixelBuffers_.clear();
+      pendingChecksumEntry_.computeChecksum();
+      indexMapPosition_ += indexMapEntryBytes_;
+   }
+
+   /**
+    * Index map entry of an image, completed with the checksum of its pixels.
+    * The checksum is computed on the thread that puts the image, right after
+    * the pixels have been copied or compressed into the buffers, while they
+    * are still in the processor's cache. By the time the writing thread gets
+    * to them they usually aren't, and reading them once more from memory
+    * would slow down writing much more.
+    */
+   private class ChecksumEntry {
+      private final long key_;
+      private final ByteBuffer entry_;
+      private final long position_;
+      private final ByteBuffer[] pixels_;
+
+      ChecksumEntry(long key, ByteBuffer entry, long position, ByteBuffer[] pixels) {
+         key_ = key;
+         entry_ = entry;
+         position_ = position;
+         pixels_ = pixels;
+      }
+
+      void computeChecksum() {
+         long start = System.nanoTime();
+         long checksum = PixelChecksum.compute(Arrays.asList(pixels_));
+         checksumNanos_ += System.nanoTime() - start;
+         for (ByteBuffer pixelBuffer : pixels_) {
+            checksumBytes_ += pixelBuffer.remaining();
+         }
+         entry_.putInt(indexMapEntryBytes_ - INDEX_MAP_CHECKSUM_BYTES, (int) checksum);
+         checksumMap_.put(key_, checksum);
+      }
+
+      void write() throws IOException {
+         try {
+            fileChannel_.write(entry_, position_);
+         } finally {
+            DirectBufferPool.getInstance().release(entry_);
+         }
+      }
    }
    
    private void writeBuffers() throws IOException {
@@ -438,7 +789,9 @@ public class MultipageTiffWriter {
       for (int i = 0; i < buffs.length; i++) {
          buffs[i] = buffers_.removeFirst();
       }
-      fileChannelWrite(buffs);
+      ChecksumEntry entry = pendingChecksumEntry_;
+      pendingChecksumEntry_ = null;
+      fileChannelWrite(buffs, entry);
    }
    
     private long unsignInt(int i) {
@@ -450,24 +803,39 @@ public class MultipageTiffWriter {
    }
    
    public void overwritePixels(Object pixels, int channel, int slice, int frame, int position) throws IOException {
-      long byteOffset = indexMap_.get(MDUtils.generateLabel(channel, slice, frame, position));      
-      ByteBuffer buffer = ByteBuffer.allocate(2).order(BYTE_ORDER);
+      if (compressed_) {
+         // Compressed pixels need not fit in the space of the old ones
+         ReportingUtils.showError("Couldn't overwrite pixel data of compressed image");
+         return;
+      }
+      long key = ImageKey.packIfValid(channel, slice, frame, position);
+      long byteOffset = indexMap_.get(key);
+      if (byteOffset == ImageIndexMap.NO_VALUE) {
+         throw new IOException("Can't overwrite pixels of image "
+                 + MDUtils.generateLabel(channel, slice, frame, position) + ", it is not in this file");
+      }
+      int countBytes = bigTiff_ ? 8 : 2;
+      int entryBytes = bigTiff_ ? 20 : 12;
+      ByteBuffer buffer = ByteBuffer.allocate(countBytes).order(BYTE_ORDER);
       fileChannel_.read(buffer, byteOffset);
-      int numEntries = buffer.getChar(0);
-      ByteBuffer entries = ByteBuffer.allocate(numEntries*12 + 4).order(BYTE_ORDER);
-      fileChannel_.read(entries, byteOffset + 2);        
+      int numEntries = bigTiff_ ? (int) buffer.getLong(0) : buffer.getChar(0);
+      ByteBuffer entries = ByteBuffer.allocate(numEntries*entryBytes).order(BYTE_ORDER);
+      fileChannel_.read(entries, byteOffset + countBytes);        
 
       long pixelOffset = -1, bytesPerImage = -1;
       //read Tiff tags to find pixel offset
       for (int i = 0; i < numEntries; i++) {
-         char tag = entries.getChar(i*12);
-         char type = entries.getChar(i*12 + 2);
-         long count = unsignInt(entries.getInt(i*12 + 4));
+         char tag = entries.getChar(i*entryBytes);
+         char type = entries.getChar(i*entryBytes + 2);
+         long count = bigTiff_ ? entries.getLong(i*entryBytes + 4) : unsignInt(entries.getInt(i*entryBytes + 4));
+         int valuePosition = i*entryBytes + (bigTiff_ ? 12 : 8);
          long value;
          if (type == 3 && count == 1) {
-            value = entries.getChar(i*12 + 8);
+            value = entries.getChar(valuePosition);
+         } else if (type == LONG8) {
+            value = entries.getLong(valuePosition);
          } else {
-            value = unsignInt(entries.getInt(i * 12 + 8));
+            value = unsignInt(entries.getInt(valuePosition));
          }
          if (tag == STRIP_OFFSETS) {
             pixelOffset = value;
@@ -481,22 +849,107 @@ public class MultipageTiffWriter {
       }
       
       ByteBuffer pixBuff = getPixelBuffer(pixels);
-      fileChannelWrite(pixBuff, pixelOffset); 
+      addPlaneStats(key);
+      ChecksumEntry checksumEntry = null;
+      if (checksums_) {
+         // A later entry for the same image replaces the earlier one, so the
+         // new checksum is appended to the index map
+         if (indexMapPosition_ + indexMapEntryBytes_ > indexMapFirstEntry_ + maxImagesInFile_ * indexMapEntryBytes_) {
+            ReportingUtils.logError("No space in index map for checksum of overwritten pixels");
+         } else {
+            // The checksum is computed here, before the pixel buffer is
+            // queued to be written and released
+            pixelBuffers_.clear();
+            pixelBuffers_.add(pixBuff);
+            writeIndexMapEntry(key, byteOffset);
+            checksumEntry = pendingChecksumEntry_;
+            pendingChecksumEntry_ = null;
+         }
+      }
+      // The checksum entry is written after the pixels, so that it never
+      // describes pixels that aren't in the file yet
+      fileChannelWrite(pixBuff, pixelOffset);
+      if (checksumEntry != null) {
+         final ChecksumEntry entry = checksumEntry;
+         executeWritingTask(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  entry.write();
+               } catch (IOException e) {
+                  ReportingUtils.logError(e);
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    * Encode the metadata to store in the IFD about to be written at
+    * filePosition_, as a null terminated TIFF ASCII string: in delta mode
+    * only the keys that differ from the current template, otherwise (or if
+    * there is no suitable template) the full tags
+    * @return pooled buffer holding the string, to be released once written
+    */
+   private ByteBuffer encodeMetadata(JSONObject tags) {
+      mdEncoder_.reset();
+      if (deltaMetadata_ && metadataTemplate_ != null) {
+         try {
+            JSONObject delta = MetadataDelta.encode(tags, metadataTemplate_, metadataTemplateOffset_);
+            if (delta != null) {
+               mdEncoder_.append(delta);
+            }
+         } catch (JSONException ex) {
+            ReportingUtils.logError(ex, "Couldn't delta encode image metadata");
+            metadataTemplate_ = null;
+            mdEncoder_.reset();
+         }
+      }
+      if (mdEncoder_.length() == 0) {
+         try {
+            mdEncoder_.append(tags);
+            if (deltaMetadata_) {
+               metadataTemplate_ = MetadataDelta.copy(tags);
+               metadataTemplateOffset_ = filePosition_;
+               metadataTemplateLength_ = mdEncoder_.length();
+            }
+         } catch (JSONException ex) {
+            ReportingUtils.logError(ex, "Couldn't encode image metadata");
+            metadataTemplate_ = null;
+            mdEncoder_.reset().append("{}");
+         }
+      }
+      lastMetadataLength_ = mdEncoder_.length();
+      mdEncoder_.appendByte(0); // null terminate TIFF ASCII string
+      return mdEncoder_.toPooledBuffer();
    }
 
    private void writeIFD(TaggedImage img) throws IOException {
-      char numEntries = ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD));
+      char numEntries = (char) ((firstIFD_  ? ENTRIES_PER_IFD + 4 : ENTRIES_PER_IFD)
+              + (firstIFD_ && planeStats_ ? 1 : 0));
       if (img.tags.has("Summary")) {
          img.tags.remove("Summary");
       }
-      byte[] mdBytes = getBytesFromString(img.tags.toString() + " ");
-      mdBytes[mdBytes.length - 1] = 0; // null terminate TIFF ASCII string
+      ByteBuffer mdBuffer = encodeMetadata(img.tags);
+      ByteBuffer pixelBuffer = getPixelBuffer(img.pix);
+      byte[][] strips = compressed_ ? compressPixels(pixelBuffer) : null;
+      if (bigTiff_) {
+         writeBigTiffIFD(mdBuffer, pixelBuffer, strips);
+         return;
+      }
+      if (strips != null) {
+         numEntries++; // predictor
+      }
+      int numStrips = strips == null ? 1 : strips.length;
+      int pixelBytes = strips == null ? bytesPerImagePixels_ : getTotalLength(strips);
+      // Offsets and byte counts of more than one strip follow the bit depths
+      int stripArrayBytes = numStrips > 1 ? 8 * numStrips : 0;
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
      //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
      //number of bytes for pixels
-     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdBytes.length + bytesPerImagePixels_;
-     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
+     int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + stripArrayBytes + 16 + mdBuffer.limit() + pixelBytes;
+     int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0) + stripArrayBytes;
      
      ByteBuffer ifdBuffer = allocateByteBuffer(IFDandBitDepthBytes);
      CharBuffer charView = ifdBuffer.asCharBuffer();
@@ -513,7 +966,11 @@ public class MultipageTiffWriter {
       if (rgb_) {
          tagDataOffset += 6;
       }
-      writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,1);
+      long stripArrayOffset = tagDataOffset;
+      tagDataOffset += stripArrayBytes;
+      long pixelOffset = tagDataOffset;
+      writeIFDEntry(ifdBuffer,charView,COMPRESSION,(char)3,1,
+              strips == null ? TiffStripCodec.COMPRESSION_NONE : TiffStripCodec.COMPRESSION_DEFLATE);
       writeIFDEntry(ifdBuffer,charView,PHOTOMETRIC_INTERPRETATION,(char)3,1,rgb_?2:1);
       
       if (firstIFD_ ) {
@@ -523,24 +980,34 @@ public class MultipageTiffWriter {
          writeIFDEntry(ifdBuffer, charView, IMAGE_DESCRIPTION, (char) 2, 0, 0);
       }
            
-      writeIFDEntry(ifdBuffer,charView,STRIP_OFFSETS,(char)4,1, tagDataOffset );
-      tagDataOffset += bytesPerImagePixels_;
+      writeIFDEntry(ifdBuffer,charView,STRIP_OFFSETS,(char)4,numStrips,
+              numStrips == 1 ? pixelOffset : stripArrayOffset);
+      tagDataOffset += pixelBytes;
       writeIFDEntry(ifdBuffer,charView,SAMPLES_PER_PIXEL,(char)3,1,(rgb_?3:1));
-      writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1, imageHeight_);
-      writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, 1, bytesPerImagePixels_ );
+      writeIFDEntry(ifdBuffer,charView,ROWS_PER_STRIP, (char) 3, 1,
+              strips == null ? imageHeight_ : rowsPerStrip_);
+      writeIFDEntry(ifdBuffer,charView,STRIP_BYTE_COUNTS, (char) 4, numStrips,
+              numStrips == 1 ? pixelBytes : stripArrayOffset + 4 * numStrips);
       writeIFDEntry(ifdBuffer,charView,X_RESOLUTION, (char)5, 1, tagDataOffset);
       tagDataOffset += 8;
       writeIFDEntry(ifdBuffer,charView,Y_RESOLUTION, (char)5, 1, tagDataOffset);
       tagDataOffset += 8;
       writeIFDEntry(ifdBuffer,charView,RESOLUTION_UNIT, (char) 3,1,3);
+      if (strips != null) {
+         writeIFDEntry(ifdBuffer,charView,PREDICTOR, (char) 3,1,TiffStripCodec.PREDICTOR_HORIZONTAL);
+      }
       if (firstIFD_) {         
          ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
          writeIFDEntry(ifdBuffer,charView,IJ_METADATA_BYTE_COUNTS,(char)4,0,0);
          ijMetadataTagPosition_ = filePosition_ + bufferPosition_;
          writeIFDEntry(ifdBuffer,charView,IJ_METADATA,(char)1,0,0);
       }
-      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
-      tagDataOffset += mdBytes.length;
+      writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBuffer.limit(),tagDataOffset);
+      tagDataOffset += mdBuffer.limit();
+      if (firstIFD_ && planeStats_) {
+         planeStatsTagPosition_ = filePosition_ + bufferPosition_;
+         writeIFDEntry(ifdBuffer, charView, PLANE_STATS, UNDEFINED, 0, 0);
+      }
       //NextIFDOffset
       ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
       bufferPosition_ += 4;
@@ -551,14 +1018,220 @@ public class MultipageTiffWriter {
          charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
       }
       buffers_.add(ifdBuffer);
-      buffers_.add(getPixelBuffer(img.pix));
+      pixelBuffers_.clear();
+      if (strips == null) {
+         buffers_.add(pixelBuffer);
+         pixelBuffers_.add(pixelBuffer);
+      } else {
+         if (numStrips > 1) {
+            putStripArrays(ifdBuffer, bufferPosition_ + (rgb_ ? 6 : 0), 4, pixelOffset, strips);
+         }
+         addStripBuffers(strips);
+      }
       buffers_.add(getResolutionValuesBuffer());   
-      buffers_.add(ByteBuffer.wrap(mdBytes));
+      buffers_.add(mdBuffer);
       
       filePosition_ += totalBytes;
       firstIFD_ = false;
    }
 
+   /**
+    * BigTIFF version of writeIFD/writeBlankIFD: 8 byte entry count, 20 byte
+    * entries, and an 8 byte next IFD offset. Values that fit in 8 bytes (RGB
+    * bits per sample, resolutions, short metadata strings) must be stored in
+    * the entry itself, so no resolution or bit depth buffers follow the IFD.
+    * If strips isn't null, the image is stored as those compressed strips
+    * instead of pixelBuffer, with their offsets and byte counts following
+    * the IFD.
+    */
+   private void writeBigTiffIFD(ByteBuffer mdBuffer, ByteBuffer pixelBuffer, byte[][] strips)
+           throws IOException {
+      char numEntries = (char) (ENTRIES_PER_IFD + (firstIFD_ ? (omeTiff_ ? 4 : 3) : 0)
+              + (strips != null ? 1 : 0) + (firstIFD_ && planeStats_ ? 1 : 0));
+      int mdLength = mdBuffer.limit();
+      boolean mdInline = mdLength <= 8;
+      int numStrips = strips == null ? 1 : strips.length;
+      int pixelBytes = strips == null ? bytesPerImagePixels_ : getTotalLength(strips);
+      int stripArrayBytes = numStrips > 1 ? 16 * numStrips : 0;
+      int ifdBytes = 8 + numEntries * 20 + 8;
+      int totalBytes = ifdBytes + stripArrayBytes + pixelBytes + (mdInline ? 0 : mdLength);
+
+      ByteBuffer ifdBuffer = allocateByteBuffer(ifdBytes + stripArrayBytes);
+      long stripArrayOffset = filePosition_ + ifdBytes;
+      long tagDataOffset = stripArrayOffset + stripArrayBytes;
+      long pixelOffset = tagDataOffset;
+      nextIFDOffsetLocation_ = filePosition_ + 8 + numEntries * 20;
+
+      bufferPosition_ = 0;
+      ifdBuffer.putLong(bufferPosition_, numEntries);
+      bufferPosition_ += 8;
+      writeBigTiffIFDEntry(ifdBuffer, WIDTH, (char) 4, 1, imageWidth_);
+      writeBigTiffIFDEntry(ifdBuffer, HEIGHT, (char) 4, 1, imageHeight_);
+      writeBigTiffIFDEntry(ifdBuffer, BITS_PER_SAMPLE, (char) 3, rgb_ ? 3 : 1, byteDepth_ * 8);
+      if (rgb_) {
+         ifdBuffer.putChar(bufferPosition_ - 6, (char) (byteDepth_ * 8));
+         ifdBuffer.putChar(bufferPosition_ - 4, (char) (byteDepth_ * 8));
+      }
+      writeBigTiffIFDEntry(ifdBuffer, COMPRESSION, (char) 3, 1,
+              strips == null ? TiffStripCodec.COMPRESSION_NONE : TiffStripCodec.COMPRESSION_DEFLATE);
+      writeBigTiffIFDEntry(ifdBuffer, PHOTOMETRIC_INTERPRETATION, (char) 3, 1, rgb_ ? 2 : 1);
+
+      if (firstIFD_) {
+         if (omeTiff_) {
+            omeDescriptionTagPosition_ = filePosition_ + bufferPosition_;
+            writeBigTiffIFDEntry(ifdBuffer, IMAGE_DESCRIPTION, (char) 2, 0, 0);
+         }
+         ijDescriptionTagPosition_ = filePosition_ + bufferPosition_;
+         writeBigTiffIFDEntry(ifdBuffer, IMAGE_DESCRIPTION, (char) 2, 0, 0);
+      }
+
+      writeBigTiffIFDEntry(ifdBuffer, STRIP_OFFSETS, LONG8, numStrips,
+              numStrips == 1 ? pixelOffset : stripArrayOffset);
+      tagDataOffset += pixelBytes;
+      writeBigTiffIFDEntry(ifdBuffer, SAMPLES_PER_PIXEL, (char) 3, 1, (rgb_ ? 3 : 1));
+      writeBigTiffIFDEntry(ifdBuffer, ROWS_PER_STRIP, (char) 3, 1,
+              strips == null ? imageHeight_ : rowsPerStrip_);
+      if (numStrips == 1) {
+         writeBigTiffIFDEntry(ifdBuffer, STRIP_BYTE_COUNTS, (char) 4, 1, pixelBytes);
+      } else {
+         writeBigTiffIFDEntry(ifdBuffer, STRIP_BYTE_COUNTS, LONG8, numStrips,
+                 stripArrayOffset + 8 * numStrips);
+      }
+      writeBigTiffIFDEntry(ifdBuffer, X_RESOLUTION, (char) 5, 1, 0);
+      ifdBuffer.putInt(bufferPosition_ - 8, (int) resNumerator_);
+      ifdBuffer.putInt(bufferPosition_ - 4, (int) resDenomenator_);
+      writeBigTiffIFDEntry(ifdBuffer, Y_RESOLUTION, (char) 5, 1, 0);
+      ifdBuffer.putInt(bufferPosition_ - 8, (int) resNumerator_);
+      ifdBuffer.putInt(bufferPosition_ - 4, (int) resDenomenator_);
+      writeBigTiffIFDEntry(ifdBuffer, RESOLUTION_UNIT, (char) 3, 1, 3);
+      if (strips != null) {
+         writeBigTiffIFDEntry(ifdBuffer, PREDICTOR, (char) 3, 1, TiffStripCodec.PREDICTOR_HORIZONTAL);
+      }
+      if (firstIFD_) {
+         ijMetadataCountsTagPosition_ = filePosition_ + bufferPosition_;
+         writeBigTiffIFDEntry(ifdBuffer, IJ_METADATA_BYTE_COUNTS, (char) 4, 0, 0);
+         ijMetadataTagPosition_ = filePosition_ + bufferPosition_;
+         writeBigTiffIFDEntry(ifdBuffer, IJ_METADATA, (char) 1, 0, 0);
+      }
+      if (mdInline) {
+         writeBigTiffIFDEntry(ifdBuffer, MM_METADATA, (char) 2, mdLength, 0);
+         for (int i = 0; i < mdLength; i++) {
+            ifdBuffer.put(bufferPosition_ - 8 + i, mdBuffer.get(i));
+         }
+         DirectBufferPool.getInstance().release(mdBuffer);
+      } else {
+         writeBigTiffIFDEntry(ifdBuffer, MM_METADATA, (char) 2, mdLength, tagDataOffset);
+         tagDataOffset += mdLength;
+      }
+      if (firstIFD_ && planeStats_) {
+         planeStatsTagPosition_ = filePosition_ + bufferPosition_;
+         writeBigTiffIFDEntry(ifdBuffer, PLANE_STATS, UNDEFINED, 0, 0);
+      }
+      //NextIFDOffset
+      ifdBuffer.putLong(bufferPosition_, tagDataOffset);
+      bufferPosition_ += 8;
+
+      buffers_.add(ifdBuffer);
+      pixelBuffers_.clear();
+      if (strips == null) {
+         buffers_.add(pixelBuffer);
+         pixelBuffers_.add(pixelBuffer);
+      } else {
+         if (numStrips > 1) {
+            putStripArrays(ifdBuffer, bufferPosition_, 8, pixelOffset, strips);
+         }
+         addStripBuffers(strips);
+      }
+      if (!mdInline) {
+         buffers_.add(mdBuffer);
+      }
+
+      filePosition_ += totalBytes;
+      firstIFD_ = false;
+   }
+
+   /**
+    * Compress the pixels of an image into strips, giving back pixelBuffer
+    */
+   private byte[][] compressPixels(ByteBuffer pixelBuffer) throws IOException {
+      try {
+         return TiffStripCodec.encode(pixelBuffer, rowBytes_, imageHeight_, rowsPerStrip_,
+                 byteDepth_, rgb_ ? 3 : 1, BYTE_ORDER);
+      } finally {
+         DirectBufferPool.getInstance().release(pixelBuffer);
+      }
+   }
+
+   private static int getTotalLength(byte[][] strips) {
+      int length = 0;
+      for (byte[] strip : strips) {
+         length += strip.length;
+      }
+      return length;
+   }
+
+   /**
+    * Put the offsets of strips, which are written one after the other from
+    * firstStripOffset, followed by their byte counts, as values of
+    * valueBytes bytes at position in buffer
+    */
+   private static void putStripArrays(ByteBuffer buffer, int position, int valueBytes,
+           long firstStripOffset, byte[][] strips) {
+      long stripOffset = firstStripOffset;
+      for (int i = 0; i < strips.length; i++) {
+         int offsetPosition = position + i * valueBytes;
+         int countPosition = offsetPosition + strips.length * valueBytes;
+         if (valueBytes == 8) {
+            buffer.putLong(offsetPosition, stripOffset);
+            buffer.putLong(countPosition, strips[i].length);
+         } else {
+            buffer.putInt(offsetPosition, (int) stripOffset);
+            buffer.putInt(countPosition, strips[i].length);
+         }
+         stripOffset += strips[i].length;
+      }
+   }
+
+   private void addStripBuffers(byte[][] strips) {
+      for (byte[] strip : strips) {
+         ByteBuffer buffer = ByteBuffer.wrap(strip);
+         buffers_.add(buffer);
+         pixelBuffers_.add(buffer);
+      }
+   }
+
+   private void writeBigTiffIFDEntry(ByteBuffer buffer, char tag, char type, long count, long value) {
+      buffer.putChar(bufferPosition_, tag);
+      buffer.putChar(bufferPosition_ + 2, type);
+      buffer.putLong(bufferPosition_ + 4, count);
+      //Left justify in 8 byte value field
+      buffer.putLong(bufferPosition_ + 12, 0);
+      if (type == 3) {
+         buffer.putChar(bufferPosition_ + 12, (char) value);
+      } else if (type == 4) {
+         buffer.putInt(bufferPosition_ + 12, (int) value);
+      } else {
+         buffer.putLong(bufferPosition_ + 12, value);
+      }
+      bufferPosition_ += 20;
+   }
+
+   /**
+    * Fill in the count and value of an IFD entry that was written with
+    * placeholder values
+    */
+   private void writeIFDEntryCountAndValue(long entryPosition, long count, long value) {
+      ByteBuffer buffer = allocateByteBuffer(bigTiff_ ? 16 : 8);
+      if (bigTiff_) {
+         buffer.putLong(0, count);
+         buffer.putLong(8, value);
+      } else {
+         buffer.putInt(0, (int) count);
+         buffer.putInt(4, (int) value);
+      }
+      fileChannelWrite(buffer, entryPosition + 4);
+   }
+
    private void writeIFDEntry(ByteBuffer buffer, CharBuffer cBuffer, char tag, char type, long count, long value) throws IOException {
       cBuffer.put(bufferPosition_ / 2, tag);
       cBuffer.put(bufferPosition_ / 2 + 1, type);
@@ -585,7 +1258,20 @@ public class MultipageTiffWriter {
       numFrames_ = n;
    }
 
+   /**
+    * The pixels laid out as in the file. With plane statistics, those of the
+    * pixels are computed as they are copied, and kept in pendingPlaneStats_
+    * until the image's key is known
+    */
    private ByteBuffer getPixelBuffer(Object pixels) throws IOException {
+      if (pixels instanceof ByteBuffer) {
+         // Already laid out as in the file
+         ByteBuffer buffer = ((ByteBuffer) pixels).slice().order(BYTE_ORDER);
+         if (planeStats_) {
+            pendingPlaneStats_ = PlaneStats.compute(buffer, byteDepth_, planeStatsBinShift_);
+         }
+         return buffer;
+      }
       if (rgb_) {
          if (byteDepth_ == 1) {
             byte[] originalPix = (byte[]) pixels;
@@ -630,12 +1316,20 @@ public class MultipageTiffWriter {
          }
       } else {
          if (byteDepth_ == 1) {
+            if (planeStats_) {
+               pendingPlaneStats_ = PlaneStats.compute((byte[]) pixels, planeStatsBinShift_);
+            }
             return ByteBuffer.wrap((byte[]) pixels);
          } else {
             short[] pix = (short[]) pixels;
             ByteBuffer buffer = allocateByteBufferMemo(pix.length * 2);
             buffer.rewind();
-            buffer.asShortBuffer().put(pix);
+            if (planeStats_) {
+               pendingPlaneStats_ = PlaneStats.copyAndCompute(pix, buffer.asShortBuffer(),
+                       planeStatsBinShift_);
+            } else {
+               buffer.asShortBuffer().put(pix);
+            }
             return buffer;
          }
       }
@@ -648,6 +1342,9 @@ public class MultipageTiffWriter {
       numSlices_ = MDUtils.getNumSlices(summaryMD);
       imageWidth_ = MDUtils.getWidth(summaryMD);
       imageHeight_ = MDUtils.getHeight(summaryMD);
+      if (!splitByPosition && summaryMD.has("Positions")) {
+         numPositions_ = Math.max(1, MDUtils.getNumPositions(summaryMD));
+      }
       String pixelType = MDUtils.getPixelType(summaryMD);
       if (pixelType.equals("GRAY8") || pixelType.equals("RGB32") || pixelType.equals("RGB24")) {
          byteDepth_ = 1;
@@ -733,10 +1430,7 @@ public class MultipageTiffWriter {
 
       //Header (1) File info (1) display ranges (1) LUTS (1 per channel)
       int numMDEntries = 3 + numChannels;
-      ByteBuffer ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, numMDEntries);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
-      fileChannelWrite(ifdCountAndValueBuffer, ijMetadataCountsTagPosition_ + 4);
+      writeIFDEntryCountAndValue(ijMetadataCountsTagPosition_, numMDEntries, filePosition_);
 
       fileChannelWrite(mdByteCountsBuffer, filePosition_);
       filePosition_ += mdByteCountsBufferSize;
@@ -802,10 +1496,7 @@ public class MultipageTiffWriter {
          ReportingUtils.logError("Problem with displayAndComments: Couldn't write ImageJ display settings as a result");
       }
 
-      ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, mdBufferSize);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
-      fileChannelWrite(ifdCountAndValueBuffer, ijMetadataTagPosition_ + 4);
+      writeIFDEntryCountAndValue(ijMetadataTagPosition_, mdBufferSize, filePosition_);
 
 
       fileChannelWrite(mdBuffer, filePosition_);
@@ -865,16 +1556,34 @@ public class MultipageTiffWriter {
       bytes[bytes.length - 1] = 0; // null terminate TIFF ASCII string
 
       //write first image IFD
-      ByteBuffer ifdCountAndValueBuffer = allocateByteBuffer(8);
-      ifdCountAndValueBuffer.putInt(0, bytes.length);
-      ifdCountAndValueBuffer.putInt(4, (int) filePosition_);
-      fileChannelWrite(ifdCountAndValueBuffer, imageDescriptionTagOffset + 4);
+      writeIFDEntryCountAndValue(imageDescriptionTagOffset, bytes.length, filePosition_);
 
       //write String
       fileChannelWrite(ByteBuffer.wrap(bytes), filePosition_);
       filePosition_ += bytes.length;
    }
 
+   private void writeImageDescription(final OMEMetadata omeMetadata,
+           long imageDescriptionTagOffset) throws IOException {
+      // Null terminated, like the String version
+      final long length = omeMetadata.getXMLLength() + 1;
+      writeIFDEntryCountAndValue(imageDescriptionTagOffset, length, filePosition_);
+
+      final long position = filePosition_;
+      executeWritingTask(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               long written = omeMetadata.writeXML(fileChannel_, position);
+               fileChannel_.write(ByteBuffer.wrap(new byte[] {0}), position + written);
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex, "Error writing OME metadata");
+            }
+         }
+      });
+      filePosition_ += length;
+   }
+
    private byte[] getBytesFromString(String s) {
       try {
          return s.getBytes("UTF-8");
@@ -885,8 +1594,12 @@ public class MultipageTiffWriter {
    }
 
    private void writeNullOffsetAfterLastImage() throws IOException {
-      ByteBuffer buffer = allocateByteBuffer(4);
-      buffer.putInt(0, 0);
+      ByteBuffer buffer = allocateByteBuffer(bigTiff_ ? 8 : 4);
+      if (bigTiff_) {
+         buffer.putLong(0, 0);
+      } else {
+         buffer.putInt(0, 0);
+      }
       fileChannelWrite(buffer, nextIFDOffsetLocation_);
    }
 
@@ -906,10 +1619,8 @@ public class MultipageTiffWriter {
       fileChannelWrite(header, filePosition_);
       fileChannelWrite(buffer, filePosition_ + 8);
 
-      ByteBuffer offsetHeader = allocateByteBuffer(8);
-      offsetHeader.putInt(0, COMMENTS_OFFSET_HEADER);
-      offsetHeader.putInt(4, (int) filePosition_);
-      fileChannelWrite(offsetHeader, 24);
+      ByteBuffer offsetHeader = getOffsetHeaderBuffer(COMMENTS_OFFSET_HEADER, filePosition_);
+      fileChannelWrite(offsetHeader, getHeaderSlotPosition(COMMENTS_SLOT, bigTiff_));
       filePosition_ += 8 + commentsBytes.length;
    }
 
@@ -928,10 +1639,8 @@ public class MultipageTiffWriter {
       fileChannelWrite(header, filePosition_);
       fileChannelWrite(buffer, filePosition_ + 8);
 
-      ByteBuffer offsetHeader = allocateByteBuffer(8);
-      offsetHeader.putInt(0, DISPLAY_SETTINGS_OFFSET_HEADER);
-      offsetHeader.putInt(4, (int) filePosition_);
-      fileChannelWrite(offsetHeader, 16);
+      ByteBuffer offsetHeader = getOffsetHeaderBuffer(DISPLAY_SETTINGS_OFFSET_HEADER, filePosition_);
+      fileChannelWrite(offsetHeader, getHeaderSlotPosition(DISPLAY_SETTINGS_SLOT, bigTiff_));
       filePosition_ += numReservedBytes + 8;
    }
   
@@ -940,9 +1649,13 @@ public class MultipageTiffWriter {
       boolean blankPixelsAlreadyWritten = false;
 
       char numEntries = (char) (((firstIFD_ && omeTiff_) ? ENTRIES_PER_IFD + 2 : ENTRIES_PER_IFD)
-              + (firstIFD_ ? 2 : 0));
+              + (firstIFD_ ? (planeStats_ ? 3 : 2) : 0));
      
       byte[] mdBytes = getBytesFromString("NULL ");
+      if (bigTiff_) {
+         writeBigTiffIFD(ByteBuffer.wrap(mdBytes), ByteBuffer.wrap(new byte[bytesPerImagePixels_]), null);
+         return;
+      }
 
       //2 bytes for number of directory entries, 12 bytes per directory entry, 4 byte offset of next IFD
      //6 bytes for bits per sample if RGB, 16 bytes for x and y resolution, 1 byte per character of MD string
@@ -1002,6 +1715,10 @@ public class MultipageTiffWriter {
       }
       writeIFDEntry(ifdBuffer,charView,MM_METADATA,(char)2,mdBytes.length,tagDataOffset);
       tagDataOffset += mdBytes.length;
+      if (firstIFD_ && planeStats_) {
+         planeStatsTagPosition_ = filePosition_ + bufferPosition_;
+         writeIFDEntry(ifdBuffer, charView, PLANE_STATS, UNDEFINED, 0, 0);
+      }
       //NextIFDOffset
       ifdBuffer.putInt(bufferPosition_, (int)tagDataOffset);
       bufferPosition_ += 4;
@@ -21,7 +21,9 @@
 //
 package org.micromanager.acquisition;
 
+import java.io.IOException;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.TreeMap;
 import loci.common.DateTools;
 import loci.common.services.ServiceFactory;
@@ -32,7 +34,6 @@ import ome.units.UNITS;
 import ome.units.quantity.Length;
 import ome.units.quantity.Time;
 import ome.xml.model.primitives.Color;
-import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
 import ome.xml.model.primitives.Timestamp;
 import org.json.JSONArray;
@@ -42,25 +43,29 @@ import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
+/**
+ * OME-XML metadata of a multipage tiff data set. The metadata of each
+ * series is kept in an OME-XML model; the TiffData and Plane elements of
+ * each image are streamed to scratch files by an OMEXMLPlaneWriter, so that
+ * memory use doesn't grow during long acquisitions.
+ */
 public class OMEMetadata {
 
    private IMetadata metadata_;
    private TaggedImageStorageMultipageTiff mptStorage_;
    private TreeMap<Integer, Indices> seriesIndices_ = new TreeMap<Integer, Indices>();
    private int numSlices_, numChannels_;
-   private TreeMap<String, Integer> tiffDataIndexMap_;
+   private final OMEXMLPlaneWriter planeWriter_;
    
    private class Indices {
-      //specific to each series independent of file
-      int tiffDataIndex_ = -1;
       //specific to each series indpeendent of file
       int planeIndex_ = 0;
    }
    
    public OMEMetadata(TaggedImageStorageMultipageTiff mpt) {
       mptStorage_ = mpt;
-      tiffDataIndexMap_ = new TreeMap<String,Integer>();
       metadata_ = MetadataTools.createOMEXMLMetadata();
+      planeWriter_ = new OMEXMLPlaneWriter();
    }
    
    public static String getOMEStringPointerToMasterFile(String filename, String uuid)  {
@@ -75,17 +80,41 @@ public class OMEMetadata {
       }
    }
 
-   @Override
-   public String toString() {
+   /**
+    * OME-XML without the TiffData and Plane elements
+    */
+   private String getSeriesXML() throws IOException {
       try {
          OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
          return service.getOMEXML(metadata_) + " ";
       } catch (Exception ex) {
-         ReportingUtils.logError(ex);
-         return "";
+         throw new IOException("Couldn't generate OME-XML metadata: " + ex.getMessage());
       }
    }
 
+   /**
+    * @return the length in bytes of the complete OME-XML, as it will be
+    * written by writeXML
+    */
+   public long getXMLLength() throws IOException {
+      return planeWriter_.getLength(getSeriesXML());
+   }
+
+   /**
+    * Write the complete OME-XML (in UTF-8) to a file
+    * @return the number of bytes written
+    */
+   public long writeXML(FileChannel channel, long position) throws IOException {
+      return planeWriter_.write(getSeriesXML(), channel, position);
+   }
+
+   /**
+    * Delete the scratch files. Call once the OME-XML has been written.
+    */
+   public void close() {
+      planeWriter_.close();
+   }
+
    public void setNumFrames(int seriesIndex, int numFrames) {
       metadata_.setPixelsSizeT(new PositiveInteger(numFrames), seriesIndex);
    }
@@ -94,7 +123,6 @@ public class OMEMetadata {
            throws JSONException, MMScriptException {
       Indices indices = new Indices();
       indices.planeIndex_ = 0;
-      indices.tiffDataIndex_ = 0;
       seriesIndices_.put(seriesIndex, indices);  
       //Last one is samples per pixel
       JSONObject summaryMD = mptStorage_.getSummaryMetadata();
@@ -158,69 +186,7 @@ public class OMEMetadata {
     */
    public void fillInMissingTiffDatas(int frame, int position) {
       try {
-      for (int slice = 0; slice < numSlices_; slice++) {
-         for (int channel = 0; channel < numChannels_; channel++) {
-            //make sure each tiffdata entry is present. If it is missing, link Tiffdata entry
-            //to a a preveious IFD
-            Integer tiffDataIndex =  tiffDataIndexMap_.get(MDUtils.generateLabel(channel, slice, frame, position));
-            if (tiffDataIndex == null) {
-               //this plane was never added, so link to another IFD
-               //find substitute channel, frame, slice
-               int s = slice;
-               int backIndex = slice - 1, forwardIndex = slice + 1;
-               int frameSearchIndex = frame;
-               //If some but not all channels have z stacks, find the closest slice for the given
-               //channel that has an image.  Also if time point missing, go back until image is found
-               while (tiffDataIndex == null) {
-                  
-                              
-                  tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, s, frameSearchIndex, position));
-                  if (tiffDataIndex != null) {
-                     break;
-                  }
-
-                  if (backIndex >= 0) {
-                     tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, backIndex, frameSearchIndex, position));
-                     if (tiffDataIndex != null) {                   
-                        break;
-                     }
-                     backIndex--;
-                  }
-                  if (forwardIndex < numSlices_) {
-                     tiffDataIndex = tiffDataIndexMap_.get(MDUtils.generateLabel(channel, forwardIndex, frameSearchIndex, position));
-                     if (tiffDataIndex != null) {                  
-                        break;
-                     }
-                     forwardIndex++;
-                  }
-
-                  if (backIndex < 0 && forwardIndex >= numSlices_) {
-                     frameSearchIndex--;
-                     backIndex = slice - 1;
-                     forwardIndex = slice + 1;
-                     if (frameSearchIndex < 0) {
-                        break;
-                     }
-                  }
-               }
-               NonNegativeInteger ifd = metadata_.getTiffDataIFD(position, tiffDataIndex);
-               String filename = metadata_.getUUIDFileName(position, tiffDataIndex);
-               String uuid = metadata_.getUUIDValue(position, tiffDataIndex);
-               Indices indices = seriesIndices_.get(position);
-
-               metadata_.setTiffDataFirstZ(new NonNegativeInteger(slice), position, indices.tiffDataIndex_);
-               metadata_.setTiffDataFirstC(new NonNegativeInteger(channel), position, indices.tiffDataIndex_);
-               metadata_.setTiffDataFirstT(new NonNegativeInteger(frame), position, indices.tiffDataIndex_);
-
-               metadata_.setTiffDataIFD(ifd, position, indices.tiffDataIndex_);
-               metadata_.setUUIDFileName(filename, position, indices.tiffDataIndex_);
-               metadata_.setUUIDValue(uuid, position, indices.tiffDataIndex_);
-               metadata_.setTiffDataPlaneCount(new NonNegativeInteger(1), position, indices.tiffDataIndex_);
-
-               indices.tiffDataIndex_++;
-            }
-         }
-      }
+         planeWriter_.fillInMissingTiffDatas(position, frame, numChannels_, numSlices_);
       } catch (Exception e) {
          ReportingUtils.logError("Couldn't fill in missing tiffdata entries in ome metadata");
       }
@@ -266,69 +232,32 @@ public class OMEMetadata {
          int slice = MDUtils.getSliceIndex(tags);
          int frame = MDUtils.getFrameIndex(tags);
          int channel = MDUtils.getChannelIndex(tags);
-             
-         // ifdCount is 0 when a new file started, tiff data plane count is 0 at a new position
-         metadata_.setTiffDataFirstZ(new NonNegativeInteger(slice), position, indices.tiffDataIndex_);         
-         metadata_.setTiffDataFirstC(new NonNegativeInteger(channel), position, indices.tiffDataIndex_);
-         metadata_.setTiffDataFirstT(new NonNegativeInteger(frame), position, indices.tiffDataIndex_);
-         metadata_.setTiffDataIFD(new NonNegativeInteger(ifdCount), position, indices.tiffDataIndex_);
-         metadata_.setUUIDFileName(currentFileName, position, indices.tiffDataIndex_);
-         metadata_.setUUIDValue(uuid, position, indices.tiffDataIndex_);
-         tiffDataIndexMap_.put(MDUtils.generateLabel(channel, slice, frame, position), indices.tiffDataIndex_);
-         metadata_.setTiffDataPlaneCount(new NonNegativeInteger(1), position, indices.tiffDataIndex_);
-
-         metadata_.setPlaneTheZ(new NonNegativeInteger(slice), position, indices.planeIndex_);
-         metadata_.setPlaneTheC(new NonNegativeInteger(channel), position, indices.planeIndex_);
-         metadata_.setPlaneTheT(new NonNegativeInteger(frame), position, indices.planeIndex_);
+         // ifdCount is 0 when a new file started
+         planeWriter_.addPlane(position, channel, slice, frame, ifdCount,
+                 currentFileName, uuid, tags);
       } catch (JSONException ex) {
          ReportingUtils.showError("Image Metadata missing ChannelIndex, SliceIndex, or FrameIndex");
       } catch (Exception e) {
          ReportingUtils.logError("Couldn't add to OME metadata");
       }
 
-      //Optional tags
-      try {
-
-         if (MDUtils.hasExposureMs(tags)) {
-            metadata_.setPlaneExposureTime(
-                  new Time(MDUtils.getExposureMs(tags), UNITS.MS),
-                  position, indices.planeIndex_);
-         }
-         if (MDUtils.hasXPositionUm(tags)) {
-            final Length xPosition =
-                  new Length(MDUtils.getXPositionUm(tags), UNITS.MICROM);
-            metadata_.setPlanePositionX(xPosition, position,
-                  indices.planeIndex_);
-            if (indices.planeIndex_ == 0) { //should be set at start, but dont have position coordinates then
-               metadata_.setStageLabelX(xPosition, position);
+      //should be set at start, but dont have position coordinates then
+      if (indices.planeIndex_ == 0) {
+         try {
+            if (MDUtils.hasXPositionUm(tags)) {
+               metadata_.setStageLabelX(
+                     new Length(MDUtils.getXPositionUm(tags), UNITS.MICROM), position);
             }
-         }
-         if (MDUtils.hasYPositionUm(tags)) {
-            final Length yPosition =
-                  new Length(MDUtils.getYPositionUm(tags), UNITS.MICROM);
-            metadata_.setPlanePositionY(yPosition, position,
-                  indices.planeIndex_);
-            if (indices.planeIndex_ == 0) {
-               metadata_.setStageLabelY(yPosition, position);
+            if (MDUtils.hasYPositionUm(tags)) {
+               metadata_.setStageLabelY(
+                     new Length(MDUtils.getYPositionUm(tags), UNITS.MICROM), position);
             }
+         } catch (JSONException e) {
+            ReportingUtils.logError("Problem adding tags to OME Metadata");
          }
-         if (MDUtils.hasZPositionUm(tags)) {
-            metadata_.setPlanePositionZ(
-                  new Length(MDUtils.getZPositionUm(tags), UNITS.MICROM),
-                  position, indices.planeIndex_);
-         }
-         if (MDUtils.hasElapsedTimeMs(tags)) {
-            metadata_.setPlaneDeltaT(
-                  new Time(MDUtils.getElapsedTimeMs(tags), UNITS.MS),
-                  position, indices.planeIndex_);
-         }
-
-      } catch (JSONException e) {
-         ReportingUtils.logError("Problem adding tags to OME Metadata");
       }
 
       indices.planeIndex_++;
-      indices.tiffDataIndex_++;
    }
 
    private void setOMEDetectorMetadata(JSONObject tags) throws JSONException {
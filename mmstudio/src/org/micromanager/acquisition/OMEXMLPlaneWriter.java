@@ -0,0 +1,390 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          OMEXMLPlaneWriter.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Writes the per-plane TiffData and Plane elements of OME-XML metadata to
+ * scratch files as images are acquired, instead of keeping them in memory,
+ * and splices them into the rest of the OME-XML when the data set is
+ * finished. Memory use doesn't grow with the number of frames.
+ *
+ * The elements are formatted the way the OME-XML library would format them.
+ */
+final class OMEXMLPlaneWriter {
+
+   private static final int BUFFER_CHARS = 16 * 1024;
+   private static final String MICROMETER = "\u00B5m";
+
+   /**
+    * The most recent plane written for a channel and slice of a series,
+    * used to find planes to point to for missing ones
+    */
+   private static final class PlaneLocation {
+      final int frame;
+      final int ifd;
+      final String fileName;
+      final String uuid;
+
+      PlaneLocation(int frame, int ifd, String fileName, String uuid) {
+         this.frame = frame;
+         this.ifd = ifd;
+         this.fileName = fileName;
+         this.uuid = uuid;
+      }
+   }
+
+   private final class Series {
+      final File tiffDataFile;
+      final File planeFile;
+      final StringBuilder tiffData = new StringBuilder();
+      final StringBuilder planes = new StringBuilder();
+      final Map<Long, PlaneLocation> latest = new HashMap<Long, PlaneLocation>();
+
+      Series(int index) throws IOException {
+         tiffDataFile = createScratchFile("MMOMEXMLSeries" + index + "_TiffData");
+         try {
+            planeFile = createScratchFile("MMOMEXMLSeries" + index + "_Plane");
+         } catch (IOException ex) {
+            tiffDataFile.delete();
+            throw ex;
+         }
+      }
+
+      void flush() throws IOException {
+         append(tiffDataFile, tiffData);
+         append(planeFile, planes);
+      }
+   }
+
+   private final TreeMap<Integer, Series> series_ = new TreeMap<Integer, Series>();
+
+   /**
+    * Scratch files go in the temporary directory rather than next to the
+    * data set, so that none are left behind there if Micro-Manager quits
+    * before the data set is finished
+    */
+   private static File createScratchFile(String prefix) throws IOException {
+      File file = File.createTempFile(prefix, ".tmp");
+      file.deleteOnExit();
+      return file;
+   }
+
+   private Series getSeries(int index) throws IOException {
+      Series series = series_.get(index);
+      if (series == null) {
+         series = new Series(index);
+         series_.put(index, series);
+      }
+      return series;
+   }
+
+   private static long getLatestKey(int channel, int slice) {
+      return ((long) channel << 32) | (slice & 0xffffffffL);
+   }
+
+   /**
+    * Add the TiffData and Plane elements of an image
+    */
+   synchronized void addPlane(int seriesIndex, int channel, int slice, int frame,
+           int ifd, String fileName, String uuid, JSONObject tags) throws IOException {
+      Series series = getSeries(seriesIndex);
+      appendTiffData(series.tiffData, channel, slice, frame, ifd, fileName, uuid);
+      series.latest.put(getLatestKey(channel, slice),
+              new PlaneLocation(frame, ifd, fileName, uuid));
+
+      StringBuilder sb = series.planes;
+      sb.append("<Plane");
+      try {
+         if (MDUtils.hasElapsedTimeMs(tags)) {
+            appendAttribute(sb, "DeltaT", String.valueOf(MDUtils.getElapsedTimeMs(tags)));
+            appendAttribute(sb, "DeltaTUnit", "ms");
+         }
+         if (MDUtils.hasExposureMs(tags)) {
+            appendAttribute(sb, "ExposureTime", String.valueOf(MDUtils.getExposureMs(tags)));
+            appendAttribute(sb, "ExposureTimeUnit", "ms");
+         }
+         if (MDUtils.hasXPositionUm(tags)) {
+            appendAttribute(sb, "PositionX", String.valueOf(MDUtils.getXPositionUm(tags)));
+            appendAttribute(sb, "PositionXUnit", MICROMETER);
+         }
+         if (MDUtils.hasYPositionUm(tags)) {
+            appendAttribute(sb, "PositionY", String.valueOf(MDUtils.getYPositionUm(tags)));
+            appendAttribute(sb, "PositionYUnit", MICROMETER);
+         }
+         if (MDUtils.hasZPositionUm(tags)) {
+            appendAttribute(sb, "PositionZ", String.valueOf(MDUtils.getZPositionUm(tags)));
+            appendAttribute(sb, "PositionZUnit", MICROMETER);
+         }
+      } catch (JSONException e) {
+         ReportingUtils.logError("Problem adding tags to OME Metadata");
+      }
+      appendAttribute(sb, "TheC", String.valueOf(channel));
+      appendAttribute(sb, "TheT", String.valueOf(frame));
+      appendAttribute(sb, "TheZ", String.valueOf(slice));
+      sb.append("/>");
+
+      if (series.tiffData.length() > BUFFER_CHARS || series.planes.length() > BUFFER_CHARS) {
+         series.flush();
+      }
+   }
+
+   /**
+    * Point each plane of a frame that wasn't acquired to an image that
+    * was: the nearest slice of the same channel, or else one from an earlier
+    * frame. Only the most recent image of each channel and slice is known,
+    * so a plane is taken to be present if a later frame of its channel and
+    * slice has been written.
+    */
+   synchronized void fillInMissingTiffDatas(int seriesIndex, int frame, int numChannels,
+           int numSlices) throws IOException {
+      Series series = series_.get(seriesIndex);
+      if (series == null) {
+         return;
+      }
+      for (int slice = 0; slice < numSlices; slice++) {
+         for (int channel = 0; channel < numChannels; channel++) {
+            PlaneLocation present = series.latest.get(getLatestKey(channel, slice));
+            if (present != null && present.frame >= frame) {
+               continue;
+            }
+            PlaneLocation substitute = findSubstitute(series, channel, slice, frame, numSlices);
+            if (substitute != null) {
+               appendTiffData(series.tiffData, channel, slice, frame, substitute.ifd,
+                       substitute.fileName, substitute.uuid);
+            }
+         }
+      }
+   }
+
+   // Same choice as searching back frame by frame, and within a frame
+   // outward from the slice
+   private PlaneLocation findSubstitute(Series series, int channel, int slice, int frame,
+           int numSlices) {
+      PlaneLocation best = null;
+      PlaneLocation later = null;
+      for (int distance = 0; distance < numSlices; distance++) {
+         for (int s : new int[] {slice - distance, slice + distance}) {
+            if (s < 0 || s >= numSlices) {
+               continue;
+            }
+            PlaneLocation location = series.latest.get(getLatestKey(channel, s));
+            if (location == null) {
+               continue;
+            }
+            if (location.frame > frame) {
+               if (later == null) {
+                  later = location;
+               }
+            } else if (best == null || location.frame > best.frame) {
+               best = location;
+            }
+         }
+      }
+      // Only planes of later frames are known
+      return best != null ? best : later;
+   }
+
+   private static void appendTiffData(StringBuilder sb, int channel, int slice, int frame,
+           int ifd, String fileName, String uuid) {
+      sb.append("<TiffData");
+      appendAttribute(sb, "FirstC", String.valueOf(channel));
+      appendAttribute(sb, "FirstT", String.valueOf(frame));
+      appendAttribute(sb, "FirstZ", String.valueOf(slice));
+      appendAttribute(sb, "IFD", String.valueOf(ifd));
+      appendAttribute(sb, "PlaneCount", "1");
+      sb.append("><UUID");
+      appendAttribute(sb, "FileName", fileName);
+      sb.append('>');
+      appendEscaped(sb, uuid);
+      sb.append("</UUID></TiffData>");
+   }
+
+   private static void appendAttribute(StringBuilder sb, String name, String value) {
+      sb.append(' ').append(name).append("=\"");
+      appendEscaped(sb, value);
+      sb.append('"');
+   }
+
+   private static void appendEscaped(StringBuilder sb, String text) {
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         switch (c) {
+            case '&':
+               sb.append("&amp;");
+               break;
+            case '<':
+               sb.append("&lt;");
+               break;
+            case '>':
+               sb.append("&gt;");
+               break;
+            case '"':
+               sb.append("&quot;");
+               break;
+            default:
+               sb.append(c);
+         }
+      }
+   }
+
+   private static void append(File file, StringBuilder sb) throws IOException {
+      if (sb.length() == 0) {
+         return;
+      }
+      FileOutputStream out = new FileOutputStream(file, true);
+      try {
+         out.write(getBytes(sb.toString()));
+      } finally {
+         out.close();
+      }
+      sb.setLength(0);
+   }
+
+   private static byte[] getBytes(String s) {
+      try {
+         return s.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException ex) {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   /**
+    * Split the rest of the OME-XML at the end of each Pixels element, where
+    * the elements of the corresponding series go. Returns null if the
+    * Pixels elements can't be found.
+    */
+   private static String[] splitAtPixelsEnds(String xml, int numSeries) {
+      // An empty Pixels element may have been written as <Pixels .../>
+      xml = xml.replaceAll("(<Pixels\\b[^>]*?)\\s*/>", "$1></Pixels>");
+      String[] parts = new String[numSeries + 1];
+      int start = 0;
+      for (int i = 0; i < numSeries; i++) {
+         int end = xml.indexOf("</Pixels>", start);
+         if (end < 0) {
+            return null;
+         }
+         parts[i] = xml.substring(start, end);
+         start = end;
+      }
+      parts[numSeries] = xml.substring(start);
+      return parts;
+   }
+
+   private ByteBuffer[] getParts(String xml) throws IOException {
+      int numSeries = series_.isEmpty() ? 0 : series_.lastKey() + 1;
+      String[] parts = splitAtPixelsEnds(xml, numSeries);
+      if (parts == null) {
+         throw new IOException("Couldn't find where to add planes to the OME-XML metadata");
+      }
+      ByteBuffer[] buffers = new ByteBuffer[parts.length];
+      for (int i = 0; i < parts.length; i++) {
+         buffers[i] = ByteBuffer.wrap(getBytes(parts[i]));
+      }
+      return buffers;
+   }
+
+   /**
+    * @param xml - the OME-XML without TiffData and Plane elements
+    * @return the length in bytes of the complete OME-XML
+    */
+   synchronized long getLength(String xml) throws IOException {
+      long length = 0;
+      for (ByteBuffer buffer : getParts(xml)) {
+         length += buffer.remaining();
+      }
+      for (Series series : series_.values()) {
+         series.flush();
+         length += series.tiffDataFile.length() + series.planeFile.length();
+      }
+      return length;
+   }
+
+   /**
+    * Write the complete OME-XML
+    * @param xml - the OME-XML without TiffData and Plane elements
+    * @return the number of bytes written
+    */
+   synchronized long write(String xml, FileChannel channel, long position) throws IOException {
+      ByteBuffer[] parts = getParts(xml);
+      long start = position;
+      for (int i = 0; i < parts.length; i++) {
+         position = write(channel, parts[i], position);
+         Series series = series_.get(i);
+         if (series != null) {
+            series.flush();
+            position = copy(series.tiffDataFile, channel, position);
+            position = copy(series.planeFile, channel, position);
+         }
+      }
+      return position - start;
+   }
+
+   private static long write(FileChannel channel, ByteBuffer buffer, long position)
+           throws IOException {
+      while (buffer.hasRemaining()) {
+         position += channel.write(buffer, position);
+      }
+      return position;
+   }
+
+   private static long copy(File file, FileChannel channel, long position) throws IOException {
+      if (!file.exists()) {
+         return position;
+      }
+      FileInputStream in = new FileInputStream(file);
+      try {
+         FileChannel source = in.getChannel();
+         long size = source.size();
+         long copied = 0;
+         while (copied < size) {
+            copied += source.transferTo(copied, size - copied, channel.position(position + copied));
+         }
+         return position + size;
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Delete the scratch files
+    */
+   synchronized void close() {
+      for (Series series : series_.values()) {
+         series.tiffDataFile.delete();
+         series.planeFile.delete();
+      }
+      series_.clear();
+   }
+}
@@ -0,0 +1,103 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelChecksum.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 checksums of the pixel data of images in multipage tiff files, over
+ * the bytes exactly as they are stored: the uncompressed pixels, or the
+ * compressed strips one after the other. (CRC32C would be faster, but is
+ * only available from Java 9.)
+ */
+final class PixelChecksum {
+
+   // Direct buffers are checksummed by copying them in chunks of this size
+   private static final int CHUNK_BYTES = 64 * 1024;
+
+   private static final ThreadLocal<byte[]> chunk_ = new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue() {
+         return new byte[CHUNK_BYTES];
+      }
+   };
+
+   // CRC32.update(ByteBuffer) of Java 8 and later, which checksums direct
+   // buffers in place
+   private static final Method updateBuffer_;
+   static {
+      Method method = null;
+      try {
+         method = CRC32.class.getMethod("update", ByteBuffer.class);
+      } catch (NoSuchMethodException ex) {
+         // Java 6 or 7
+      }
+      updateBuffer_ = method;
+   }
+
+   private PixelChecksum() {
+   }
+
+   /**
+    * Checksum of the remaining bytes of buffer, whose position is not changed
+    */
+   static long compute(ByteBuffer buffer) {
+      CRC32 crc = new CRC32();
+      update(crc, buffer);
+      return crc.getValue();
+   }
+
+   /**
+    * Checksum of the remaining bytes of all buffers, in order
+    */
+   static long compute(List<ByteBuffer> buffers) {
+      CRC32 crc = new CRC32();
+      for (ByteBuffer buffer : buffers) {
+         update(crc, buffer);
+      }
+      return crc.getValue();
+   }
+
+   private static void update(CRC32 crc, ByteBuffer buffer) {
+      if (buffer.hasArray()) {
+         crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                 buffer.remaining());
+         return;
+      }
+      ByteBuffer view = buffer.duplicate();
+      if (updateBuffer_ != null) {
+         try {
+            updateBuffer_.invoke(crc, view);
+            return;
+         } catch (Exception ex) {
+            view = buffer.duplicate();
+         }
+      }
+      byte[] chunk = chunk_.get();
+      while (view.hasRemaining()) {
+         int length = Math.min(chunk.length, view.remaining());
+         view.get(chunk, 0, length);
+         crc.update(chunk, 0, length);
+      }
+   }
+}
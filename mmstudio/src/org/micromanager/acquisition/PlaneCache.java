@@ -0,0 +1,428 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PlaneCache.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.json.JSONObject;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Least-recently-used cache of the planes of a disk-backed data set, limited
+ * by the number of bytes of pixel data it holds. Used by MMImageCache so
+ * that the display doesn't go to disk on every frame change. Background
+ * threads can load planes ahead of the display (see prefetch()); a request
+ * for a plane that is being loaded waits for that load instead of starting
+ * another.
+ *
+ * Planes may be cached with or without their metadata, since the display
+ * usually only needs the pixels. Callers get their own copies of cached
+ * pixels and metadata, which they are free to change. Cached planes are
+ * never changed, so they are copied without holding the lock of the cache.
+ */
+public final class PlaneCache {
+
+   private static final int PREFETCH_THREADS = 2;
+
+   private static final class Entry {
+      final Object pix;
+      final JSONObject tags; // null if only the pixels were read
+      final long bytes;
+
+      Entry(Object pix, JSONObject tags) {
+         this.pix = pix;
+         this.tags = tags;
+         bytes = getByteLength(pix);
+      }
+   }
+
+   // Guarded by this
+   private final LinkedHashMap<Long, Entry> entries_ =
+           new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+   private final Set<Long> loading_ = new HashSet<Long>();
+   private long bytes_ = 0;
+   private long lastPlaneBytes_ = 0;
+   private long budgetBytes_ = Runtime.getRuntime().maxMemory() / 8;
+   // Changed whenever cached planes may have become stale, so that loads
+   // started before don't store old data
+   private long version_ = 0;
+   private long hitCount_ = 0;
+   private long missCount_ = 0;
+   private long missNanos_ = 0;
+   private long prefetchCount_ = 0;
+
+   private volatile TaggedImageStorage storage_;
+   private ThreadPoolExecutor prefetchExecutor_;
+   private boolean closed_ = false;
+
+   public PlaneCache(TaggedImageStorage storage) {
+      storage_ = storage;
+   }
+
+   /**
+    * Images of RAM storage are already in memory; keeping copies on the heap
+    * would only use up memory
+    */
+   private boolean isCached(TaggedImageStorage storage) {
+      return !(storage instanceof TaggedImageStorageRamFast
+              || storage instanceof TaggedImageStorageLive);
+   }
+
+   synchronized void setStorage(TaggedImageStorage storage) {
+      storage_ = storage;
+      clear();
+   }
+
+   /**
+    * Set the maximum amount of pixel data held by the cache. 0 disables
+    * caching.
+    */
+   public synchronized void setBudgetBytes(long budgetBytes) {
+      budgetBytes_ = Math.max(0, budgetBytes);
+      trim();
+   }
+
+   public synchronized long getBudgetBytes() {
+      return budgetBytes_;
+   }
+
+   public synchronized long getCachedBytes() {
+      return bytes_;
+   }
+
+   public synchronized int getCachedPlaneCount() {
+      return entries_.size();
+   }
+
+   /**
+    * @return number of requests answered from the cache, including those
+    * that waited for a load already in progress
+    */
+   public synchronized long getHitCount() {
+      return hitCount_;
+   }
+
+   /**
+    * @return number of requests that had to read from storage
+    */
+   public synchronized long getMissCount() {
+      return missCount_;
+   }
+
+   /**
+    * @return mean time taken to read a plane from storage on a miss
+    */
+   public synchronized double getMeanMissLatencyMs() {
+      return missCount_ == 0 ? 0 : missNanos_ / 1e6 / missCount_;
+   }
+
+   /**
+    * @return number of planes read by prefetching
+    */
+   public synchronized long getPrefetchCount() {
+      return prefetchCount_;
+   }
+
+   public TaggedImage getImage(int channel, int slice, int frame, int position) {
+      Entry entry = get(ImageKey.packIfValid(channel, slice, frame, position), true);
+      return entry == null ? null : new TaggedImage(entry.pix, entry.tags);
+   }
+
+   public Object getPixels(int channel, int slice, int frame, int position) {
+      Entry entry = get(ImageKey.packIfValid(channel, slice, frame, position), false);
+      return entry == null ? null : entry.pix;
+   }
+
+   /**
+    * Returns cached metadata if there is any, and otherwise reads it from
+    * storage without caching it.
+    */
+   public JSONObject getImageTags(int channel, int slice, int frame, int position) {
+      long key = ImageKey.packIfValid(channel, slice, frame, position);
+      Entry entry;
+      synchronized (this) {
+         entry = entries_.get(key);
+         if (entry != null && entry.tags != null) {
+            hitCount_++;
+         }
+      }
+      if (entry != null && entry.tags != null) {
+         return copyTags(entry.tags);
+      }
+      return storage_.getImageTags(channel, slice, frame, position);
+   }
+
+   private Entry get(long key, boolean withTags) {
+      TaggedImageStorage storage = storage_;
+      if (key == ImageKey.NO_KEY || !isCached(storage)) {
+         return read(storage, key, withTags);
+      }
+      long version;
+      Entry cached = null;
+      synchronized (this) {
+         for (;;) {
+            Entry entry = entries_.get(key);
+            if (entry != null && (entry.tags != null || !withTags)) {
+               hitCount_++;
+               cached = entry;
+               break;
+            }
+            if (!loading_.contains(key)) {
+               break;
+            }
+            try {
+               wait();
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+               return null;
+            }
+         }
+         if (cached == null) {
+            missCount_++;
+            loading_.add(key);
+         }
+         version = version_;
+      }
+      if (cached != null) {
+         return copy(cached, withTags);
+      }
+      long start = System.nanoTime();
+      Entry entry = load(storage, key, withTags, version);
+      synchronized (this) {
+         missNanos_ += System.nanoTime() - start;
+      }
+      // The metadata that was read is not cached, only a copy of it
+      return entry == null ? null : new Entry(copyPixels(entry.pix), entry.tags);
+   }
+
+   /**
+    * Read a plane and cache it, with a copy of its metadata.
+    * The key must have been added to loading_ by the caller.
+    * @return the plane as read; its pixels are cached
+    */
+   private Entry load(TaggedImageStorage storage, long key, boolean withTags, long version) {
+      Entry entry = null;
+      Entry cached = null;
+      try {
+         entry = read(storage, key, withTags);
+         if (entry != null) {
+            cached = new Entry(entry.pix, copyTags(entry.tags));
+         }
+      } finally {
+         synchronized (this) {
+            loading_.remove(key);
+            if (cached != null && version == version_ && !closed_) {
+               put(key, cached);
+            }
+            notifyAll();
+         }
+      }
+      return entry;
+   }
+
+   private static Entry read(TaggedImageStorage storage, long key, boolean withTags) {
+      if (key == ImageKey.NO_KEY) {
+         return null;
+      }
+      int channel = ImageKey.getChannel(key);
+      int slice = ImageKey.getSlice(key);
+      int frame = ImageKey.getFrame(key);
+      int position = ImageKey.getPosition(key);
+      if (!withTags && storage instanceof TaggedImageStorageMultipageTiff) {
+         Object pix = ((TaggedImageStorageMultipageTiff) storage).getPixels(
+                 channel, slice, frame, position);
+         return pix == null ? null : new Entry(pix, null);
+      }
+      TaggedImage image = storage.getImage(channel, slice, frame, position);
+      return image == null || image.pix == null ? null : new Entry(image.pix, image.tags);
+   }
+
+   // Called with the lock held
+   private void put(long key, Entry entry) {
+      if (entry.bytes > budgetBytes_) {
+         return;
+      }
+      Entry existing = entries_.get(key);
+      if (existing != null && existing.tags != null && entry.tags == null) {
+         return;
+      }
+      Entry replaced = entries_.put(key, entry);
+      if (replaced != null) {
+         bytes_ -= replaced.bytes;
+      }
+      bytes_ += entry.bytes;
+      lastPlaneBytes_ = entry.bytes;
+      trim();
+   }
+
+   // Called with the lock held
+   private void trim() {
+      Iterator<Map.Entry<Long, Entry>> it = entries_.entrySet().iterator();
+      while (bytes_ > budgetBytes_ && it.hasNext()) {
+         bytes_ -= it.next().getValue().bytes;
+         it.remove();
+      }
+   }
+
+   /**
+    * Forget a plane, because it has been replaced in storage. Loads in
+    * progress are only kept from caching what they read if the plane is
+    * cached or being loaded, so that adding new planes (e.g. during an
+    * acquisition) doesn't waste the prefetching of others.
+    */
+   public synchronized void invalidate(int channel, int slice, int frame, int position) {
+      long key = ImageKey.packIfValid(channel, slice, frame, position);
+      Entry entry = entries_.remove(key);
+      if (entry != null) {
+         bytes_ -= entry.bytes;
+      }
+      if (entry != null || loading_.contains(key)) {
+         version_++;
+      }
+   }
+
+   public synchronized void clear() {
+      entries_.clear();
+      bytes_ = 0;
+      version_++;
+   }
+
+   /**
+    * Load planes in the background, in the given order, replacing any
+    * earlier prefetch requests that haven't started yet. At most half of
+    * the cache is filled by one request.
+    * @param keys - see ImageKey
+    */
+   public void prefetch(List<Long> keys) {
+      final TaggedImageStorage storage = storage_;
+      if (!isCached(storage)) {
+         return;
+      }
+      ThreadPoolExecutor executor;
+      int maxCount = keys.size();
+      synchronized (this) {
+         if (closed_ || budgetBytes_ == 0) {
+            return;
+         }
+         if (prefetchExecutor_ == null) {
+            prefetchExecutor_ = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+                    0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                       @Override
+                       public Thread newThread(Runnable r) {
+                          Thread thread = new Thread(r, "Plane cache prefetch");
+                          thread.setDaemon(true);
+                          return thread;
+                       }
+                    });
+         }
+         executor = prefetchExecutor_;
+         if (lastPlaneBytes_ > 0) {
+            maxCount = (int) Math.min(maxCount, budgetBytes_ / 2 / lastPlaneBytes_);
+         }
+      }
+      executor.getQueue().clear();
+      for (final Long key : keys.subList(0, maxCount)) {
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               long version;
+               synchronized (PlaneCache.this) {
+                  Entry entry = entries_.get(key);
+                  if (closed_ || storage != storage_ || loading_.contains(key)
+                          || (entry != null && entry.tags != null)) {
+                     return;
+                  }
+                  prefetchCount_++;
+                  loading_.add(key);
+                  version = version_;
+               }
+               try {
+                  load(storage, key, true, version);
+               } catch (Exception ex) {
+                  ReportingUtils.logError(ex, "Failed to prefetch " + ImageKey.toLabel(key));
+               }
+            }
+         });
+      }
+   }
+
+   public void close() {
+      synchronized (this) {
+         closed_ = true;
+         clear();
+         if (prefetchExecutor_ != null) {
+            prefetchExecutor_.shutdownNow();
+            prefetchExecutor_ = null;
+         }
+         if (hitCount_ + missCount_ > 0) {
+            ReportingUtils.logMessage(String.format(
+                    "Plane cache: %d hits, %d misses (mean %.1f ms), %d prefetched",
+                    hitCount_, missCount_, getMeanMissLatencyMs(), prefetchCount_));
+         }
+      }
+   }
+
+   private static Entry copy(Entry entry, boolean withTags) {
+      return new Entry(copyPixels(entry.pix), withTags ? copyTags(entry.tags) : null);
+   }
+
+   private static JSONObject copyTags(JSONObject tags) {
+      return tags == null ? null : MDUtils.copy(tags);
+   }
+
+   private static Object copyPixels(Object pix) {
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).clone();
+      } else if (pix instanceof short[]) {
+         return ((short[]) pix).clone();
+      } else if (pix instanceof int[]) {
+         return ((int[]) pix).clone();
+      } else if (pix instanceof float[]) {
+         return ((float[]) pix).clone();
+      }
+      return pix;
+   }
+
+   private static long getByteLength(Object pix) {
+      if (pix instanceof byte[]) {
+         return ((byte[]) pix).length;
+      } else if (pix instanceof short[]) {
+         return 2L * ((short[]) pix).length;
+      } else if (pix instanceof int[]) {
+         return 4L * ((int[]) pix).length;
+      } else if (pix instanceof float[]) {
+         return 4L * ((float[]) pix).length;
+      }
+      return 0;
+   }
+}
@@ -0,0 +1,326 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PlaneStats.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Collection;
+
+/**
+ * Intensity statistics of a grayscale image plane: minimum, maximum, mean,
+ * standard deviation and a coarse histogram of NUM_BINS bins, each
+ * 2^binShift intensity values wide. They are computed when multipage tiff
+ * files are written, while the pixels are copied into the file buffers, and
+ * are stored in the files so that displays can set their contrast without
+ * reading the pixels (see MultipageTiffReader.getPlaneStats).
+ */
+public final class PlaneStats {
+
+   public static final int NUM_BINS = 256;
+   // Bytes of a plane's statistics in the file: min, max, sum, sum of
+   // squares and the histogram
+   static final int BYTES = 4 + 4 + 8 + 8 + 4 * NUM_BINS;
+   // Pixels are copied in chunks of this many values, so that they are
+   // still in the processor's cache when they are copied after having been
+   // counted
+   private static final int CHUNK_PIXELS = 8 * 1024;
+
+   private final int min_;
+   private final int max_;
+   private final long count_;
+   private final long sum_;
+   private final long sumOfSquares_;
+   private final int binShift_;
+   private final int[] histogram_;
+
+   PlaneStats(int min, int max, long sum, long sumOfSquares, int binShift, int[] histogram) {
+      min_ = min;
+      max_ = max;
+      sum_ = sum;
+      sumOfSquares_ = sumOfSquares;
+      binShift_ = binShift;
+      histogram_ = histogram;
+      long count = 0;
+      for (int n : histogram) {
+         count += n;
+      }
+      count_ = count;
+   }
+
+   /**
+    * Number of bits to shift pixel values right by to get their histogram
+    * bin, so that NUM_BINS bins cover all values of the given bit depth
+    */
+   static int getBinShift(int bitDepth) {
+      return Math.max(0, bitDepth - 8);
+   }
+
+   public int getMin() {
+      return min_;
+   }
+
+   public int getMax() {
+      return max_;
+   }
+
+   public long getPixelCount() {
+      return count_;
+   }
+
+   public double getMean() {
+      return count_ == 0 ? 0 : (double) sum_ / count_;
+   }
+
+   public double getStdDev() {
+      if (count_ < 2) {
+         return 0;
+      }
+      double mean = getMean();
+      double variance = (sumOfSquares_ - count_ * mean * mean) / (count_ - 1);
+      return Math.sqrt(Math.max(0, variance));
+   }
+
+   /**
+    * Width of the histogram bins in intensity values
+    */
+   public int getBinWidth() {
+      return 1 << binShift_;
+   }
+
+   /**
+    * Pixel counts of the NUM_BINS histogram bins; bin i holds the values
+    * from i * getBinWidth() to (i + 1) * getBinWidth() - 1, and the last
+    * bin also all larger values
+    */
+   public int[] getHistogram() {
+      return histogram_.clone();
+   }
+
+   /**
+    * Lowest intensity after ignoring the given fraction of the darkest
+    * pixels, to the resolution of the histogram bins
+    */
+   public int getMinAfterRejectingOutliers(double fraction) {
+      long ignored = (long) (fraction * count_);
+      long seen = 0;
+      for (int i = 0; i < NUM_BINS; i++) {
+         seen += histogram_[i];
+         if (seen > ignored) {
+            return Math.max(min_, i << binShift_);
+         }
+      }
+      return max_;
+   }
+
+   /**
+    * Highest intensity after ignoring the given fraction of the brightest
+    * pixels, to the resolution of the histogram bins
+    */
+   public int getMaxAfterRejectingOutliers(double fraction) {
+      long ignored = (long) (fraction * count_);
+      long seen = 0;
+      for (int i = NUM_BINS - 1; i >= 0; i--) {
+         seen += histogram_[i];
+         if (seen > ignored) {
+            return Math.min(max_, ((i + 1) << binShift_) - 1);
+         }
+      }
+      return min_;
+   }
+
+   /**
+    * Statistics of all pixels of the given planes together, or null if there
+    * are none. The planes must have the same bin width.
+    */
+   public static PlaneStats combine(Collection<PlaneStats> planes) {
+      if (planes.isEmpty()) {
+         return null;
+      }
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      long sum = 0;
+      long sumOfSquares = 0;
+      int binShift = -1;
+      int[] histogram = new int[NUM_BINS];
+      for (PlaneStats plane : planes) {
+         if (binShift == -1) {
+            binShift = plane.binShift_;
+         } else if (binShift != plane.binShift_) {
+            throw new IllegalArgumentException("Planes have different histogram bin widths");
+         }
+         min = Math.min(min, plane.min_);
+         max = Math.max(max, plane.max_);
+         sum += plane.sum_;
+         sumOfSquares += plane.sumOfSquares_;
+         for (int i = 0; i < NUM_BINS; i++) {
+            histogram[i] += plane.histogram_[i];
+         }
+      }
+      return new PlaneStats(min, max, sum, sumOfSquares, binShift, histogram);
+   }
+
+   /**
+    * Statistics of 8 bit pixels
+    */
+   static PlaneStats compute(byte[] pixels, int binShift) {
+      Accumulator accumulator = new Accumulator(binShift);
+      accumulator.add(pixels, 0, pixels.length);
+      return accumulator.getStats();
+   }
+
+   /**
+    * Copy 16 bit pixels into destination and compute their statistics in the
+    * same pass over them
+    */
+   static PlaneStats copyAndCompute(short[] pixels, ShortBuffer destination, int binShift) {
+      Accumulator accumulator = new Accumulator(binShift);
+      try {
+         for (int start = 0; start < pixels.length; start += CHUNK_PIXELS) {
+            int length = Math.min(CHUNK_PIXELS, pixels.length - start);
+            accumulator.add(pixels, start, length);
+            destination.put(pixels, start, length);
+         }
+      } catch (RuntimeException ex) {
+         accumulator.getStats(); // clears the counts
+         throw ex;
+      }
+      return accumulator.getStats();
+   }
+
+   /**
+    * Statistics of the pixels in the remaining bytes of buffer, which are
+    * laid out as in the file; the buffer's position is not changed
+    */
+   static PlaneStats compute(ByteBuffer buffer, int byteDepth, int binShift) {
+      Accumulator accumulator = new Accumulator(binShift);
+      if (byteDepth == 1) {
+         ByteBuffer view = buffer.duplicate();
+         byte[] chunk = new byte[Math.min(CHUNK_PIXELS, view.remaining())];
+         while (view.hasRemaining()) {
+            int length = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, length);
+            accumulator.add(chunk, 0, length);
+         }
+      } else {
+         ShortBuffer view = buffer.duplicate().order(buffer.order()).asShortBuffer();
+         short[] chunk = new short[Math.min(CHUNK_PIXELS, view.remaining())];
+         while (view.hasRemaining()) {
+            int length = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, length);
+            accumulator.add(chunk, 0, length);
+         }
+      }
+      return accumulator.getStats();
+   }
+
+   /**
+    * Write the statistics at the current position of buffer
+    */
+   void write(ByteBuffer buffer) {
+      buffer.putInt(min_);
+      buffer.putInt(max_);
+      buffer.putLong(sum_);
+      buffer.putLong(sumOfSquares_);
+      for (int n : histogram_) {
+         buffer.putInt(n);
+      }
+   }
+
+   /**
+    * Read statistics written by write() from the current position of buffer
+    */
+   static PlaneStats read(ByteBuffer buffer, int binShift) {
+      int min = buffer.getInt();
+      int max = buffer.getInt();
+      long sum = buffer.getLong();
+      long sumOfSquares = buffer.getLong();
+      int[] histogram = new int[NUM_BINS];
+      for (int i = 0; i < NUM_BINS; i++) {
+         histogram[i] = buffer.getInt();
+      }
+      return new PlaneStats(min, max, sum, sumOfSquares, binShift, histogram);
+   }
+
+   /**
+    * Counts the pixels of every intensity value; the statistics are derived
+    * from the counts at the end. Counting is a single increment per pixel,
+    * which is several times faster than keeping the running minimum,
+    * maximum and sums. The counts are kept per thread and cleared as they
+    * are read, so that the 256 kB array for 16 bit pixels isn't allocated
+    * for every image.
+    */
+   private static class Accumulator {
+      private static final ThreadLocal<int[]> threadCounts_ = new ThreadLocal<int[]>() {
+         @Override
+         protected int[] initialValue() {
+            return new int[1 << 16];
+         }
+      };
+
+      private final int binShift_;
+      private final int[] counts_ = threadCounts_.get();
+      // Number of intensity values that may have been counted
+      private int range_ = 0;
+
+      Accumulator(int binShift) {
+         binShift_ = binShift;
+      }
+
+      void add(byte[] pixels, int start, int length) {
+         int[] counts = counts_;
+         range_ = Math.max(range_, 1 << 8);
+         for (int i = start; i < start + length; i++) {
+            counts[pixels[i] & 0xff]++;
+         }
+      }
+
+      void add(short[] pixels, int start, int length) {
+         int[] counts = counts_;
+         range_ = 1 << 16;
+         for (int i = start; i < start + length; i++) {
+            counts[pixels[i] & 0xffff]++;
+         }
+      }
+
+      PlaneStats getStats() {
+         int[] counts = counts_;
+         int[] histogram = new int[NUM_BINS];
+         int min = -1;
+         int max = 0;
+         long sum = 0;
+         long sumOfSquares = 0;
+         for (int value = 0; value < range_; value++) {
+            int n = counts[value];
+            if (n == 0) {
+               continue;
+            }
+            counts[value] = 0;
+            if (min == -1) {
+               min = value;
+            }
+            max = value;
+            sum += (long) n * value;
+            sumOfSquares += (long) n * value * value;
+            histogram[Math.min(NUM_BINS - 1, value >> binShift_)] += n;
+         }
+         return new PlaneStats(Math.max(0, min), max, sum, sumOfSquares, binShift_, histogram);
+      }
+   }
+}
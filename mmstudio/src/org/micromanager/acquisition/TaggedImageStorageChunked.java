@@ -0,0 +1,679 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TaggedImageStorageChunked.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import mmcorej.TaggedImage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.api.TaggedImageStorage;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
+import org.micromanager.utils.JavaUtils;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.MMException;
+import org.micromanager.utils.MMScriptException;
+import org.micromanager.utils.ReportingUtils;
+import org.micromanager.utils.TextUtils;
+
+/**
+ * Image storage in a directory of chunks, in the manner of N5 and Zarr.
+ * Each image is cut into rectangular chunks that are stored, optionally
+ * compressed, in separate files, so that chunks are written in parallel and
+ * any crop of an image can be read without reading the whole image:
+ *
+ * <pre>
+ * attributes.json                geometry, pixel type, summary metadata
+ * display_and_comments.txt
+ * channel/slice/frame/position/
+ *    tags.json                   image metadata
+ *    row.column                  chunk at the given chunk grid position
+ * </pre>
+ *
+ * A chunk file has an N5 block header (big-endian 16 bit mode 0, 16 bit
+ * number of dimensions 2, 32 bit width and height of the chunk, which are
+ * smaller than the chunk size at the right and bottom edges of the image),
+ * followed by the samples in big-endian order, zlib compressed if so stated
+ * in the attributes.
+ */
+public class TaggedImageStorageChunked implements TaggedImageStorage {
+
+   public static final String ATTRIBUTES_FILE = "attributes.json";
+   private static final String TAGS_FILE = "tags.json";
+   private static final String DISPLAY_SETTINGS_FILE = "display_and_comments.txt";
+   private static final String FORMAT_KEY = "MicroManagerChunkedVersion";
+   private static final int FORMAT_VERSION = 1;
+   private static final int DEFAULT_CHUNK_SIZE = 256;
+   private static final int CHUNK_HEADER_BYTES = 12;
+
+   private final String dir_;
+   private boolean newDataSet_;
+   private JSONObject summaryMetadata_;
+   private JSONObject displayAndComments_;
+   private boolean slicesFirst_ = true, timeFirst_ = false;
+   // Stored images (values unused)
+   private final ImageKeyMap<Boolean> keys_ = new ImageKeyMap<Boolean>();
+   private int lastFrame_ = -1;
+   // Images whose chunks are still being written
+   private final ConcurrentHashMap<Long, TaggedImage> writePendingImages_ =
+      new ConcurrentHashMap<Long, TaggedImage>();
+   // Images of which a chunk or the metadata couldn't be written (values
+   // unused)
+   private final ConcurrentHashMap<Long, Boolean> failedImages_ =
+      new ConcurrentHashMap<Long, Boolean>();
+   private ThreadPoolExecutor writingExecutor_;
+
+   // Geometry, set by the first image or read from the attributes
+   private int width_, height_;
+   private String pixelType_;
+   private int bytesPerPixel_, bytesPerSample_;
+   private int chunkWidth_ = DEFAULT_CHUNK_SIZE, chunkHeight_ = DEFAULT_CHUNK_SIZE;
+   private boolean compression_ = true;
+
+   public TaggedImageStorageChunked(String dir, Boolean newDataSet, JSONObject summaryMetadata)
+           throws IOException {
+      dir_ = dir;
+      newDataSet_ = newDataSet;
+      setSummaryMetadata(summaryMetadata);
+      if (newDataSet_) {
+         File directory = new File(dir_);
+         if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir_);
+         }
+      } else {
+         openExistingDataSet();
+      }
+   }
+
+   /**
+    * @return true if directory holds a data set in this format
+    */
+   public static boolean isChunkedDataSet(String directory) {
+      File attributes = new File(directory, ATTRIBUTES_FILE);
+      if (!attributes.isFile()) {
+         return false;
+      }
+      try {
+         return new JSONObject(TextUtils.readTextFile(attributes.getPath())).has(FORMAT_KEY);
+      } catch (Exception ex) {
+         return false;
+      }
+   }
+
+   /**
+    * Set the size of the chunks images are cut into. Smaller chunks make
+    * reading small crops cheaper, larger ones make for fewer files. Must be
+    * set before the first image is put.
+    */
+   public void setChunkSize(int chunkWidth, int chunkHeight) {
+      chunkWidth_ = Math.max(1, chunkWidth);
+      chunkHeight_ = Math.max(1, chunkHeight);
+   }
+
+   public int getChunkWidth() {
+      return chunkWidth_;
+   }
+
+   public int getChunkHeight() {
+      return chunkHeight_;
+   }
+
+   /**
+    * Whether chunks are zlib compressed (the default). Must be set before
+    * the first image is put.
+    */
+   public void setCompression(boolean compression) {
+      compression_ = compression;
+   }
+
+   @Override
+   public void putImage(TaggedImage taggedImage) throws MMException, IOException {
+      if (!newDataSet_) {
+         throw new MMException("This ImageFileManager is read-only.");
+      }
+      final long key;
+      try {
+         key = ImageKey.fromTags(taggedImage.tags);
+         if (pixelType_ == null) {
+            setGeometry(MDUtils.getWidth(taggedImage.tags), MDUtils.getHeight(taggedImage.tags),
+                    MDUtils.getPixelType(taggedImage.tags));
+            writeAttributes();
+         }
+      } catch (JSONException ex) {
+         throw new MMException("Image indices or size missing from tags: " + ex.getMessage());
+      } catch (MMScriptException ex) {
+         throw new MMException(ex.getMessage());
+      }
+      if (writingExecutor_ == null) {
+         writingExecutor_ = createWritingExecutor();
+      }
+      final File planeDir = getPlaneDirectory(key);
+      if (!planeDir.isDirectory() && !planeDir.mkdirs()) {
+         throw new IOException("Unable to create directory " + planeDir);
+      }
+      // Hold on to the image until all of its chunks have been written, so
+      // that it can be returned if asked for in the meantime. Listed only
+      // after that, so that anyone who finds the key also finds the image.
+      writePendingImages_.put(key, taggedImage);
+      synchronized (keys_) {
+         keys_.put(key, Boolean.TRUE);
+         lastFrame_ = Math.max(lastFrame_, ImageKey.getFrame(key));
+      }
+      final Object pixels = taggedImage.pix;
+      final String tags = taggedImage.tags.toString();
+      int rows = (height_ + chunkHeight_ - 1) / chunkHeight_;
+      int columns = (width_ + chunkWidth_ - 1) / chunkWidth_;
+      final AtomicInteger remaining = new AtomicInteger(rows * columns + 1);
+      ImageWriteQueue.getInstance().execute(writingExecutor_, new Runnable() {
+         @Override
+         public void run() {
+            try {
+               writeTextFile(new File(planeDir, TAGS_FILE), tags);
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex, "Failed to write image metadata");
+               failedImages_.put(key, Boolean.TRUE);
+            } finally {
+               if (remaining.decrementAndGet() == 0) {
+                  writePendingImages_.remove(key);
+               }
+            }
+         }
+      }, tags.length());
+      for (int row = 0; row < rows; row++) {
+         for (int column = 0; column < columns; column++) {
+            final int x = column * chunkWidth_;
+            final int y = row * chunkHeight_;
+            final int w = Math.min(chunkWidth_, width_ - x);
+            final int h = Math.min(chunkHeight_, height_ - y);
+            final File chunkFile = new File(planeDir, row + "." + column);
+            ImageWriteQueue.getInstance().execute(writingExecutor_, new Runnable() {
+               @Override
+               public void run() {
+                  try {
+                     writeChunk(chunkFile, copyRegion(pixels, x, y, w, h), w, h);
+                  } catch (IOException ex) {
+                     ReportingUtils.logError(ex, "Failed to write " + chunkFile);
+                     failedImages_.put(key, Boolean.TRUE);
+                  } finally {
+                     if (remaining.decrementAndGet() == 0) {
+                        writePendingImages_.remove(key);
+                     }
+                  }
+               }
+            }, (long) w * h * bytesPerPixel_);
+         }
+      }
+   }
+
+   private static ThreadPoolExecutor createWritingExecutor() {
+      int numThreads = Runtime.getRuntime().availableProcessors();
+      // Not daemon threads, so that pending chunks are written before the
+      // JVM exits. Idle threads time out, so that a data set that is never
+      // finished or closed doesn't keep them (and the JVM) alive.
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads,
+              10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            return new Thread(r, "Chunked storage writing thread");
+         }
+      });
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+   }
+
+   private void setGeometry(int width, int height, String pixelType) throws MMException {
+      width_ = width;
+      height_ = height;
+      pixelType_ = pixelType;
+      if (pixelType.equals("GRAY8")) {
+         bytesPerSample_ = 1;
+         bytesPerPixel_ = 1;
+      } else if (pixelType.equals("GRAY16")) {
+         bytesPerSample_ = 2;
+         bytesPerPixel_ = 2;
+      } else if (pixelType.equals("GRAY32")) {
+         bytesPerSample_ = 4;
+         bytesPerPixel_ = 4;
+      } else if (pixelType.equals("RGB32")) {
+         bytesPerSample_ = 1;
+         bytesPerPixel_ = 4;
+      } else if (pixelType.equals("RGB64")) {
+         bytesPerSample_ = 2;
+         bytesPerPixel_ = 8;
+      } else {
+         throw new MMException("Unsupported pixel type: " + pixelType);
+      }
+   }
+
+   private File getPlaneDirectory(long key) {
+      return new File(dir_, ImageKey.getChannel(key) + File.separator + ImageKey.getSlice(key)
+              + File.separator + ImageKey.getFrame(key) + File.separator
+              + ImageKey.getPosition(key));
+   }
+
+   /**
+    * @return the samples of the given region of an image's pixel array,
+    * row by row in big-endian order
+    */
+   private ByteBuffer copyRegion(Object pixels, int x, int y, int w, int h) {
+      ByteBuffer region = ByteBuffer.allocate(w * h * bytesPerPixel_);
+      int samplesPerPixel = bytesPerPixel_ / bytesPerSample_;
+      int rowSamples = w * samplesPerPixel;
+      for (int row = 0; row < h; row++) {
+         int start = ((y + row) * width_ + x) * samplesPerPixel;
+         int position = row * rowSamples;
+         if (pixels instanceof byte[]) {
+            region.position(position);
+            region.put((byte[]) pixels, start, rowSamples);
+         } else if (pixels instanceof short[]) {
+            ShortBuffer view = region.asShortBuffer();
+            view.position(position);
+            view.put((short[]) pixels, start, rowSamples);
+         } else {
+            FloatBuffer view = region.asFloatBuffer();
+            view.position(position);
+            view.put((float[]) pixels, start, rowSamples);
+         }
+      }
+      region.clear();
+      return region;
+   }
+
+   private void writeChunk(File file, ByteBuffer samples, int w, int h) throws IOException {
+      byte[] data = samples.array();
+      if (compression_) {
+         data = TiffStripCodec.deflate(data);
+      }
+      DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+      try {
+         out.writeShort(0); // N5 default block mode
+         out.writeShort(2);
+         out.writeInt(w);
+         out.writeInt(h);
+         out.write(data);
+      } finally {
+         out.close();
+      }
+   }
+
+   private ByteBuffer readChunk(File file) throws IOException {
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+         in.readShort();
+         if (in.readShort() != 2) {
+            throw new IOException("Not a two-dimensional chunk: " + file);
+         }
+         int w = in.readInt();
+         int h = in.readInt();
+         int rawLength = w * h * bytesPerPixel_;
+         byte[] data = new byte[compression_
+                 ? (int) file.length() - CHUNK_HEADER_BYTES : rawLength];
+         in.readFully(data);
+         if (compression_) {
+            data = TiffStripCodec.inflate(data, rawLength);
+         }
+         return ByteBuffer.wrap(data);
+      } finally {
+         in.close();
+      }
+   }
+
+   @Override
+   public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+      long key = ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex);
+      TaggedImage image = writePendingImages_.get(key);
+      if (image != null) {
+         return image;
+      }
+      JSONObject tags = getImageTags(channelIndex, sliceIndex, frameIndex, positionIndex);
+      if (tags == null) {
+         return null;
+      }
+      Object pixels = getPixels(channelIndex, sliceIndex, frameIndex, positionIndex,
+              0, 0, width_, height_);
+      return pixels == null ? null : new TaggedImage(pixels, tags);
+   }
+
+   /**
+    * Returns the pixels of a rectangular region of an image, reading only
+    * the chunks that overlap it.
+    * @return pixel array of the same type as the images', with w * h pixels,
+    * or null if the image is not available or the region is out of bounds
+    */
+   public Object getPixels(int channelIndex, int sliceIndex, int frameIndex, int positionIndex,
+           int x, int y, int w, int h) {
+      long key = ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex);
+      if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width_ || y + h > height_) {
+         return null;
+      }
+      TaggedImage image = writePendingImages_.get(key);
+      if (image != null) {
+         return toPixelArray(copyRegion(image.pix, x, y, w, h));
+      }
+      synchronized (keys_) {
+         if (!keys_.containsKey(key)) {
+            return null;
+         }
+      }
+      File planeDir = getPlaneDirectory(key);
+      ByteBuffer region = ByteBuffer.allocate(w * h * bytesPerPixel_);
+      try {
+         for (int row = y / chunkHeight_; row <= (y + h - 1) / chunkHeight_; row++) {
+            for (int column = x / chunkWidth_; column <= (x + w - 1) / chunkWidth_; column++) {
+               int chunkX = column * chunkWidth_;
+               int chunkY = row * chunkHeight_;
+               int chunkW = Math.min(chunkWidth_, width_ - chunkX);
+               ByteBuffer chunk = readChunk(new File(planeDir, row + "." + column));
+               // Overlap of the chunk and the region
+               int left = Math.max(x, chunkX);
+               int right = Math.min(x + w, chunkX + chunkW);
+               int top = Math.max(y, chunkY);
+               int bottom = Math.min(y + h, chunkY + chunkHeight_);
+               int length = (right - left) * bytesPerPixel_;
+               for (int line = top; line < bottom; line++) {
+                  chunk.limit(((line - chunkY) * chunkW + left - chunkX) * bytesPerPixel_ + length);
+                  chunk.position(chunk.limit() - length);
+                  region.position(((line - y) * w + left - x) * bytesPerPixel_);
+                  region.put(chunk);
+               }
+            }
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+      region.clear();
+      return toPixelArray(region);
+   }
+
+   private Object toPixelArray(ByteBuffer samples) {
+      if (bytesPerSample_ == 1) {
+         return samples.array();
+      } else if (bytesPerSample_ == 2) {
+         short[] pixels = new short[samples.capacity() / 2];
+         samples.asShortBuffer().get(pixels);
+         return pixels;
+      } else {
+         float[] pixels = new float[samples.capacity() / 4];
+         samples.asFloatBuffer().get(pixels);
+         return pixels;
+      }
+   }
+
+   @Override
+   public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+      long key = ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex);
+      TaggedImage image = writePendingImages_.get(key);
+      if (image != null) {
+         return image.tags;
+      }
+      synchronized (keys_) {
+         if (!keys_.containsKey(key)) {
+            return null;
+         }
+      }
+      try {
+         return new JSONObject(TextUtils.readTextFile(
+                 new File(getPlaneDirectory(key), TAGS_FILE).getPath()));
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+
+   @Override
+   public Set<String> imageKeys() {
+      synchronized (keys_) {
+         return ImageKey.toLabelSet(keys_.keys(), slicesFirst_, timeFirst_);
+      }
+   }
+
+   /**
+    * Waits for all chunks to be written, and records the final extent of
+    * the data set in the attributes. Shows an error if any image couldn't
+    * be written completely.
+    */
+   @Override
+   public synchronized void finished() {
+      if (!newDataSet_) {
+         return;
+      }
+      newDataSet_ = false;
+      if (writingExecutor_ != null) {
+         writingExecutor_.shutdown();
+         try {
+            while (!writingExecutor_.awaitTermination(4, TimeUnit.SECONDS)) {
+               ReportingUtils.logMessage("Waiting for chunks to be written");
+            }
+         } catch (InterruptedException ex) {
+            ReportingUtils.logError("Chunk writing thread interrupted");
+            Thread.currentThread().interrupt();
+         }
+      }
+      if (pixelType_ != null) {
+         writeAttributes();
+      }
+      if (!failedImages_.isEmpty()) {
+         ReportingUtils.showError(String.format(
+                 "Failed to write %d images to %s. See the log for details.",
+                 failedImages_.size(), dir_));
+      }
+   }
+
+   /**
+    * @return number of images of which a chunk or the metadata couldn't be
+    * written
+    */
+   public int getFailedImageCount() {
+      return failedImages_.size();
+   }
+
+   @Override
+   public boolean isFinished() {
+      return !newDataSet_;
+   }
+
+   private void writeAttributes() {
+      try {
+         int[] extent = new int[4];
+         synchronized (keys_) {
+            for (long key : keys_.keys()) {
+               extent[0] = Math.max(extent[0], ImageKey.getChannel(key) + 1);
+               extent[1] = Math.max(extent[1], ImageKey.getSlice(key) + 1);
+               extent[2] = Math.max(extent[2], ImageKey.getFrame(key) + 1);
+               extent[3] = Math.max(extent[3], ImageKey.getPosition(key) + 1);
+            }
+         }
+         JSONObject attributes = new JSONObject();
+         attributes.put(FORMAT_KEY, FORMAT_VERSION);
+         attributes.put("dimensions", new JSONArray().put(width_).put(height_)
+                 .put(extent[0]).put(extent[1]).put(extent[2]).put(extent[3]));
+         attributes.put("axes", new JSONArray().put("x").put("y")
+                 .put("channel").put("slice").put("frame").put("position"));
+         attributes.put("chunkSize", new JSONArray().put(chunkWidth_).put(chunkHeight_));
+         attributes.put("dataType", bytesPerSample_ == 4 ? "float32"
+                 : (bytesPerSample_ == 2 ? "uint16" : "uint8"));
+         attributes.put("samplesPerPixel", bytesPerPixel_ / bytesPerSample_);
+         attributes.put("byteOrder", "big");
+         attributes.put("compression", compression_ ? "zlib" : "raw");
+         attributes.put("PixelType", pixelType_);
+         if (summaryMetadata_ != null) {
+            attributes.put("Summary", summaryMetadata_);
+         }
+         writeTextFile(new File(dir_, ATTRIBUTES_FILE), attributes.toString(2));
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Failed to write " + ATTRIBUTES_FILE);
+      }
+   }
+
+   private void openExistingDataSet() throws IOException {
+      try {
+         JSONObject attributes = new JSONObject(
+                 TextUtils.readTextFile(dir_ + File.separator + ATTRIBUTES_FILE));
+         if (attributes.getInt(FORMAT_KEY) > FORMAT_VERSION) {
+            throw new IOException("Data set was written by a newer version of Micro-Manager");
+         }
+         JSONArray dimensions = attributes.getJSONArray("dimensions");
+         JSONArray chunkSize = attributes.getJSONArray("chunkSize");
+         setGeometry(dimensions.getInt(0), dimensions.getInt(1), attributes.getString("PixelType"));
+         chunkWidth_ = chunkSize.getInt(0);
+         chunkHeight_ = chunkSize.getInt(1);
+         compression_ = attributes.getString("compression").equals("zlib");
+         setSummaryMetadata(attributes.optJSONObject("Summary"));
+      } catch (JSONException ex) {
+         throw new IOException("Invalid " + ATTRIBUTES_FILE + ": " + ex.getMessage());
+      } catch (MMException ex) {
+         throw new IOException(ex.getMessage());
+      }
+      // The images are the channel/slice/frame/position directories that
+      // have metadata
+      for (File channel : listIndexDirectories(new File(dir_))) {
+         for (File slice : listIndexDirectories(channel)) {
+            for (File frame : listIndexDirectories(slice)) {
+               for (File position : listIndexDirectories(frame)) {
+                  if (new File(position, TAGS_FILE).isFile()) {
+                     int frameIndex = Integer.parseInt(frame.getName());
+                     keys_.put(ImageKey.pack(Integer.parseInt(channel.getName()),
+                             Integer.parseInt(slice.getName()), frameIndex,
+                             Integer.parseInt(position.getName())), Boolean.TRUE);
+                     lastFrame_ = Math.max(lastFrame_, frameIndex);
+                  }
+               }
+            }
+         }
+      }
+      readDisplaySettings();
+   }
+
+   private static File[] listIndexDirectories(File parent) {
+      File[] files = parent.listFiles(new FileFilter() {
+         @Override
+         public boolean accept(File file) {
+            return file.isDirectory() && file.getName().matches("\\d+");
+         }
+      });
+      return files == null ? new File[0] : files;
+   }
+
+   private static void writeTextFile(File file, String text) throws IOException {
+      Writer writer = new FileWriter(file);
+      try {
+         writer.write(text);
+      } finally {
+         writer.close();
+      }
+   }
+
+   @Override
+   public final void setSummaryMetadata(JSONObject md) {
+      summaryMetadata_ = md;
+      if (summaryMetadata_ != null) {
+         slicesFirst_ = summaryMetadata_.optBoolean("SlicesFirst", true);
+         timeFirst_ = summaryMetadata_.optBoolean("TimeFirst", false);
+      }
+   }
+
+   @Override
+   public JSONObject getSummaryMetadata() {
+      return summaryMetadata_;
+   }
+
+   @Override
+   public void setDisplayAndComments(JSONObject settings) {
+      displayAndComments_ = settings;
+   }
+
+   @Override
+   public JSONObject getDisplayAndComments() {
+      return displayAndComments_;
+   }
+
+   @Override
+   public void writeDisplaySettings() {
+      if (displayAndComments_ == null) {
+         return;
+      }
+      try {
+         writeTextFile(new File(dir_, DISPLAY_SETTINGS_FILE), displayAndComments_.toString(2));
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Failed to write display settings");
+      }
+   }
+
+   private void readDisplaySettings() {
+      String jsonText = JavaUtils.readTextFile(dir_ + File.separator + DISPLAY_SETTINGS_FILE);
+      if (jsonText == null) {
+         return;
+      }
+      try {
+         displayAndComments_ = new JSONObject(jsonText);
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex);
+      }
+   }
+
+   @Override
+   public void close() {
+      // Closed without being finished (e.g. an aborted acquisition): still
+      // write the pending chunks and stop the writing threads
+      finished();
+      writeDisplaySettings();
+   }
+
+   @Override
+   public String getDiskLocation() {
+      return dir_;
+   }
+
+   @Override
+   public int lastAcquiredFrame() {
+      synchronized (keys_) {
+         return lastFrame_;
+      }
+   }
+
+   @Override
+   public long getDataSetSize() {
+      synchronized (keys_) {
+         return (long) keys_.size() * width_ * height_ * bytesPerPixel_;
+      }
+   }
+}
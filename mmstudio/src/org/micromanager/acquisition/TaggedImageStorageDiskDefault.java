@@ -13,11 +13,13 @@ import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.util.*;
 import mmcorej.TaggedImage;
@@ -34,7 +36,10 @@ import org.micromanager.utils.*;
 public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    private final String dir_;
    private boolean firstElement_;
-   private HashMap<Integer,Writer> metadataStreams_;
+   private HashMap<Integer,OutputStream> metadataStreams_;
+   // Escapes non-ASCII characters, as metadata.txt is read with the default
+   // charset
+   private final JSONEncoder metadataEncoder_ = new JSONEncoder(true);
    private boolean newDataSet_;
    private JSONObject summaryMetadata_;
    private TreeMap<String,String> filenameTable_;
@@ -53,7 +58,7 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
       dir_ = dir;
       newDataSet_ = newDataSet;
       filenameTable_ = new TreeMap<String,String>(new ImageLabelComparator());
-      metadataStreams_ = new HashMap<Integer,Writer>();
+      metadataStreams_ = new HashMap<Integer,OutputStream>();
       metadataTable_ = new HashMap<String, JSONObject>();
       displaySettings_ = new JSONObject();
       positionNames_ = new HashMap<Integer,String>();
@@ -255,12 +260,13 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
 
    private void writeMetadata(int pos, JSONObject md, String title) {
       try {
-         Writer metadataStream = metadataStreams_.get(pos);
+         OutputStream metadataStream = metadataStreams_.get(pos);
+         metadataEncoder_.reset();
          if (!firstElement_) {
-            metadataStream.write(",\n");
+            metadataEncoder_.append(",\n");
          }
-         metadataStream.write("\"" + title + "\": ");
-         metadataStream.write(md.toString(2));
+         metadataEncoder_.append("\"" + title + "\": ");
+         metadataEncoder_.append(md, 2).writeTo(metadataStream);
          metadataStream.flush();
          firstElement_ = false;
       } catch (Exception e) {
@@ -373,9 +379,11 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
       positionNames_.put(pos, posName);
       JavaUtils.createDirectory(dir_ + "/" + posName);
       firstElement_ = true;
-      Writer metadataStream = new BufferedWriter(new FileWriter(dir_ + "/" + posName + "/metadata.txt"));
+      OutputStream metadataStream = new BufferedOutputStream(
+              new FileOutputStream(dir_ + "/" + posName + "/metadata.txt"));
       metadataStreams_.put(pos, metadataStream);
-      metadataStream.write("{" + "\n");
+      metadataStream.write('{');
+      metadataStream.write('\n');
       JSONObject summaryMetadata = getSummaryMetadata();
       summaryMetadata.put("Time", time);
       summaryMetadata.put("Date", time.split(" ")[0]);
@@ -397,8 +405,8 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    private void closeMetadataStreams() {
       if (newDataSet_) {
          try {
-            for (Writer metadataStream:metadataStreams_.values()) {
-               metadataStream.write("\n}\n");
+            for (OutputStream metadataStream:metadataStreams_.values()) {
+               metadataEncoder_.reset().append("\n}\n").writeTo(metadataStream);
                metadataStream.close();
             }
          } catch (IOException ex) {
@@ -21,15 +21,16 @@
 //
 package org.micromanager.acquisition;
 
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -43,7 +44,9 @@ import org.json.JSONObject;
 import org.micromanager.MMStudio;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.imagedisplay.DisplaySettings;
-import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
+import org.micromanager.utils.JSONEncoder;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
@@ -55,6 +58,7 @@ import org.micromanager.utils.ReportingUtils;
 public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage {
    
    private static final int SPACE_FOR_PARTIAL_OME_MD = 2000; //this should be more than enough
+   private static final int MAX_WRITE_LANES = 8;
    
    private JSONObject summaryMetadata_;
    private String summaryMetadataString_ = null;
@@ -65,6 +69,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    final public boolean omeTiff_;
    final private boolean separateMetadataFile_;
    private boolean splitByXYPosition_ = true;
+   final private boolean bigTiff_;
    private volatile boolean finished_ = false;
    private boolean expectedImageOrder_ = true;
    private int numChannels_, numSlices_;
@@ -74,24 +79,50 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    private final boolean fastStorageMode_;
    private int lastAcquiredPosition_ = 0;
    private ThreadPoolExecutor writingExecutor_;
+   // Single-thread executors ("write lanes") that file sets are spread over
+   // when writing in parallel. writeLanes_[0] is writingExecutor_
+   private ThreadPoolExecutor[] writeLanes_;
+   private boolean parallelWriting_ = false;
+   private boolean deltaMetadata_ = false;
+   private boolean compression_ = false;
+   private boolean checksums_ = false;
+   private boolean verifyChecksums_ = false;
+   private boolean planeStats_ = false;
+   private DatasetIndex datasetIndex_;
+   // Thumbnails being made while writing, or read from an existing data set
+   private volatile DatasetPreview preview_;
+   private volatile boolean previewRead_ = false;
+   // Metadata of all images put, or read from an existing data set
+   private volatile MetadataTable metadataTable_;
+   private volatile boolean metadataTableRead_ = false;
 
    // Images currently being written (need to keep around so that they can be
    // returned upon request via getImage()). The data structure must be
    // synchronized because the write completion is detected on a background
    // thread.
-   private ConcurrentHashMap<String, TaggedImage> writePendingImages_ =
-      new ConcurrentHashMap<String, TaggedImage>();
+   private ConcurrentHashMap<Long, TaggedImage> writePendingImages_ =
+      new ConcurrentHashMap<Long, TaggedImage>();
 
    //map of position indices to objects associated with each
    private HashMap<Integer, FileSet> fileSets_;
    
-   //Map of image labels to file 
-   private TreeMap<String, MultipageTiffReader> tiffReadersByLabel_;
+   //Map of image keys (see ImageKey) to file 
+   private ImageKeyMap<MultipageTiffReader> tiffReadersByKey_;
+   //Readers of images of opened data sets whose indices are too large for an
+   //ImageKey, by label (see MultipageTiffReader.getOutOfRangeLabels)
+   private final HashMap<String, MultipageTiffReader> tiffReadersByLabel_ =
+           new HashMap<String, MultipageTiffReader>();
+   private boolean slicesFirst_ = false, timeFirst_ = false;
   
    public TaggedImageStorageMultipageTiff(String dir, Boolean newDataSet, JSONObject summaryMetadata) throws IOException {            
       this(dir, newDataSet, summaryMetadata, MMStudio.getInstance().getMetadataFileWithMultipageTiff(),
               MMStudio.getInstance().getSeparateFilesForPositionsMPTiff(),
-              true);
+              true, MMStudio.getInstance().getBigTiffMPTiff());
+      setParallelWriting(MMStudio.getInstance().getParallelWritingMPTiff());
+      setDeltaMetadata(MMStudio.getInstance().getDeltaMetadataMPTiff());
+      setCompression(MMStudio.getInstance().getCompressionMPTiff());
+      setChecksums(MMStudio.getInstance().getChecksumsMPTiff());
+      setPlaneStats(MMStudio.getInstance().getPlaneStatsMPTiff());
    }
    
    /*
@@ -99,14 +130,26 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
     */
    public TaggedImageStorageMultipageTiff(String dir, boolean newDataSet, JSONObject summaryMetadata, 
          boolean separateMDFile, boolean separateFilesForPositions, boolean fastStorageMode) throws IOException {
+      this(dir, newDataSet, summaryMetadata, separateMDFile, separateFilesForPositions, fastStorageMode, false);
+   }
+
+   /*
+    * As above, but new files are written as BigTIFF (64 bit offsets) when bigTiff is true,
+    * so that each file set streams into a single file instead of being split every 4 GB.
+    * Existing data sets are read in whichever format they were written
+    */
+   public TaggedImageStorageMultipageTiff(String dir, boolean newDataSet, JSONObject summaryMetadata, 
+         boolean separateMDFile, boolean separateFilesForPositions, boolean fastStorageMode,
+         boolean bigTiff) throws IOException {
       fastStorageMode_ = fastStorageMode;
+      bigTiff_ = bigTiff;
       omeTiff_ = true;
       separateMetadataFile_ = separateMDFile;
       splitByXYPosition_ = separateFilesForPositions;
 
       newDataSet_ = newDataSet;
       directory_ = dir;
-      tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator());
+      tiffReadersByKey_ = new ImageKeyMap<MultipageTiffReader>();
       setSummaryMetadata(summaryMetadata);
 
       // TODO: throw error if no existing dataset
@@ -135,13 +178,113 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    public ThreadPoolExecutor getWritingExecutor() {
       return writingExecutor_;
    }
+
+   /**
+    * When positions are split into separate files, write the files of
+    * different positions concurrently, each on one of a bounded number of
+    * background threads. The images of any one position are still written
+    * in order. Only has an effect in fast storage mode, and must be set
+    * before the first image is put.
+    */
+   public void setParallelWriting(boolean parallel) {
+      parallelWriting_ = parallel;
+   }
+
+   /**
+    * Store in each image only the metadata that differs from a template (the
+    * full metadata of an earlier image in the same file), instead of the full
+    * metadata. Reading the images rebuilds the full metadata, but other
+    * readers of the files will only see the changes. Must be set before the
+    * first image is put.
+    */
+   public void setDeltaMetadata(boolean delta) {
+      deltaMetadata_ = delta;
+   }
+
+   boolean getDeltaMetadata() {
+      return deltaMetadata_;
+   }
+
+   /**
+    * Store 8 and 16 bit pixels losslessly compressed (Deflate with
+    * horizontal differencing, split into strips that are compressed in
+    * parallel by the TiffStripCodec threads). Compressed images can't be
+    * overwritten. Must be set before the first image is put.
+    */
+   public void setCompression(boolean compression) {
+      compression_ = compression;
+   }
+
+   boolean getCompression() {
+      return compression_;
+   }
+
+   /**
+    * Store a CRC32 checksum of the pixel data of every image in the index
+    * maps of the files, so that damaged images can be detected (see
+    * MultipageTiffReader.verifyChecksum). Must be set before the first image
+    * is put.
+    */
+   public void setChecksums(boolean checksums) {
+      checksums_ = checksums;
+   }
+
+   boolean getChecksums() {
+      return checksums_;
+   }
+
+   /**
+    * Compute the minimum, maximum, mean and a coarse histogram of every 8
+    * and 16 bit grayscale image as it is written, and store them in the
+    * files, so that displays can set their contrast without reading pixels
+    * (see getPlaneStats). Off by default, as computing them slows down
+    * writing; must be set before the first image is put.
+    */
+   public void setPlaneStats(boolean planeStats) {
+      planeStats_ = planeStats;
+   }
+
+   boolean getPlaneStats() {
+      return planeStats_;
+   }
+
+   /**
+    * Check the pixels of every image read from the files against their
+    * checksum (for files written with checksums). Images whose pixels don't
+    * match are logged and can't be read.
+    */
+   public void setVerifyChecksums(boolean verify) {
+      verifyChecksums_ = verify;
+      for (MultipageTiffReader reader : getReaders()) {
+         reader.setVerifyChecksums(verify);
+      }
+   }
+
+   /**
+    * The executor that all writing to the files of a file set is done on
+    */
+   private ThreadPoolExecutor getWriteLane(int fileSetIndex) {
+      if (writeLanes_ == null) {
+         return writingExecutor_;
+      }
+      return writeLanes_[fileSetIndex % writeLanes_.length];
+   }
+
+   private static ThreadPoolExecutor createWriteLane() {
+      return new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
+              new LinkedBlockingQueue<java.lang.Runnable>());
+   }
+
+   DatasetIndex getDatasetIndex() {
+      return datasetIndex_;
+   }
    
    boolean slicesFirst() {
-      return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getSlicesFirst();
+      return slicesFirst_;
    }
    
    boolean timeFirst() {
-      return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getTimeFirst();
+      return timeFirst_;
    }
    
    public boolean getFixIndexMap() {
@@ -156,6 +299,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       //Need to throw error if file not found
       MultipageTiffReader reader = null;
       File dir = new File(directory_);
+      if (openFromDatasetIndex(dir)) {
+         return;
+      }
 
       ProgressBar progressBar = new ProgressBar("Reading " + directory_, 0, dir.listFiles().length);
       int numRead = 0;
@@ -171,7 +317,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       progressBar.setVisible(false);
 
       if (reader != null) {
-         setSummaryMetadata(reader.getSummaryMetadata(), true);
+         setSummaryMetadata(reader.getSummaryMetadata());
          displayAndComments_ = reader.getDisplayAndComments();
       }
 
@@ -179,6 +325,53 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       progressBar.setVisible(false);
    }
 
+   /*
+    * Opens a data set using the index written alongside it during acquisition.
+    * Only the first file is read here; every other file is opened the first
+    * time one of its images is requested. Returns false if the data set has no
+    * usable index, in which case all files have to be opened and read.
+    */
+   private boolean openFromDatasetIndex(File dir) {
+      DatasetIndex index = DatasetIndex.read(dir);
+      if (index == null || index.getNumFiles() == 0) {
+         return false;
+      }
+      MultipageTiffReader[] readers = new MultipageTiffReader[index.getNumFiles()];
+      for (int i = 0; i < readers.length; i++) {
+         readers[i] = new MultipageTiffReader(index.getFile(i), index.getIndexMap(i), 
+                 index.isBigTiff(i));
+      }
+      // Summary and display settings come from the file that is listed
+      // last, same as when all files are read
+      MultipageTiffReader settingsReader = readers[readers.length - 1];
+      for (File f : dir.listFiles()) {
+         for (int i = 0; i < readers.length; i++) {
+            if (index.getFile(i).getName().equals(f.getName())) {
+               settingsReader = readers[i];
+            }
+         }
+      }
+      try {
+         settingsReader.open();
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't open data set from its index");
+         return false;
+      }
+      for (MultipageTiffReader reader : readers) {
+         if (!System.getProperty("sun.arch.data.model", "32").equals("32")) {
+            try {
+               reader.enableMemoryMapping();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+         addReader(reader);
+      }
+      setSummaryMetadata(settingsReader.getSummaryMetadata());
+      displayAndComments_ = settingsReader.getDisplayAndComments();
+      return true;
+   }
+
    private MultipageTiffReader loadFile(File f) {
       MultipageTiffReader reader = null;
       try {
@@ -186,6 +379,11 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             reader = new MultipageTiffReader(f);
          }
          catch (InvalidIndexMapException e) {
+            if (GraphicsEnvironment.isHeadless()) {
+               ReportingUtils.logError("Index map of " + f.getName() + " is missing or invalid; "
+                       + "it can be rebuilt with DatasetTool fixIndexMap");
+               return null;
+            }
             // Prompt to repair it.
             int choice = JOptionPane.showConfirmDialog(null,
                   "This file cannot be opened bcause it appears to have \n" +
@@ -203,41 +401,183 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             // Open the file normally.
             reader = new MultipageTiffReader(f);
          }
-         Set<String> labels = reader.getIndexKeys();
-         for (String label : labels) {
-            tiffReadersByLabel_.put(label, reader);
-            int frameIndex = Integer.parseInt(label.split("_")[2]);
-            lastFrameOpenedDataSet_ = Math.max(frameIndex, lastFrameOpenedDataSet_);
+         // Finished files don't change anymore, so they can be read through
+         // memory mappings. Address space is too scarce on 32 bit JVMs.
+         if (!System.getProperty("sun.arch.data.model", "32").equals("32")) {
+            reader.enableMemoryMapping();
          }
+         addReader(reader);
       } catch (IOException ex) {
          ReportingUtils.showError("Couldn't open file: " + f.toString());
       }
       return reader;
    }
 
+   private void addReader(MultipageTiffReader reader) {
+      reader.setVerifyChecksums(verifyChecksums_);
+      for (long key : reader.getIndexMap().keys()) {
+         tiffReadersByKey_.put(key, reader);
+         lastFrameOpenedDataSet_ = Math.max(ImageKey.getFrame(key), lastFrameOpenedDataSet_);
+      }
+      for (String label : reader.getOutOfRangeLabels()) {
+         tiffReadersByLabel_.put(label, reader);
+         lastFrameOpenedDataSet_ = Math.max(MDUtils.getIndices(label)[2], lastFrameOpenedDataSet_);
+      }
+   }
+
+   private Set<MultipageTiffReader> getReaders() {
+      Set<MultipageTiffReader> readers = tiffReadersByKey_.values();
+      readers.addAll(tiffReadersByLabel_.values());
+      return readers;
+   }
+
+   /**
+    * Images whose indices don't fit into an ImageKey can only be in data sets
+    * that were opened, and are looked up by label instead
+    */
+   private TaggedImage getOutOfRangeImage(int channelIndex, int sliceIndex, int frameIndex,
+           int positionIndex) {
+      if (tiffReadersByLabel_.isEmpty()) {
+         return null;
+      }
+      String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
+      MultipageTiffReader reader = tiffReadersByLabel_.get(label);
+      return reader == null ? null : reader.readImage(label);
+   }
+
    @Override
    public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
+      long key = ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex);
+      if (key == ImageKey.NO_KEY) {
+         return getOutOfRangeImage(channelIndex, sliceIndex, frameIndex, positionIndex);
+      }
 
-      TaggedImage image = writePendingImages_.get(label);
+      TaggedImage image = writePendingImages_.get(key);
       if (image != null) {
          return image;
       }
 
-      MultipageTiffReader reader = tiffReadersByLabel_.get(label);
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
       if (reader == null) {
          return null;
       }
-      return reader.readImage(label);
+      return reader.readImage(key);
+   }
+
+   /**
+    * Returns only the pixels of an image, without reading and parsing its
+    * metadata. Used for display, where the tags are usually not needed.
+    */
+   public Object getPixels(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+      long key = ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex);
+      if (key == ImageKey.NO_KEY) {
+         TaggedImage image = getOutOfRangeImage(channelIndex, sliceIndex, frameIndex, positionIndex);
+         return image == null ? null : image.pix;
+      }
+
+      TaggedImage image = writePendingImages_.get(key);
+      if (image != null) {
+         return image.pix;
+      }
+
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
+      if (reader == null) {
+         return null;
+      }
+      return reader.readPixels(key);
+   }
+
+   /**
+    * Reads the pixels of a grayscale image into a caller supplied byte[]
+    * or short[] array
+    * @return false if the image is not available or is not grayscale
+    */
+   public boolean getPixels(int channelIndex, int sliceIndex, int frameIndex, int positionIndex,
+           Object destination) {
+      long key = ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex);
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
+      if (reader == null || writePendingImages_.containsKey(key)) {
+         return false;
+      }
+      return reader.readPixels(key, destination);
+   }
+
+   /**
+    * Returns the pixels of an image as they are stored in the file, for
+    * copying them to another multipage tiff data set without conversion
+    * (see putImage).
+    * @return null if the image is not available, or is stored in another
+    * byte order than the one files are written in
+    */
+   public ByteBuffer getPixelBuffer(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+      long key = ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex);
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
+      if (reader == null || writePendingImages_.containsKey(key)
+              || !MultipageTiffWriter.BYTE_ORDER.equals(reader.getByteOrder())) {
+         return null;
+      }
+      return reader.getPixelBuffer(key);
+   }
+
+   /**
+    * Intensity statistics of an image, stored in the file when it was
+    * written, without reading its pixels
+    * @return null if the image is not available or the file has no
+    * statistics of it
+    */
+   public PlaneStats getPlaneStats(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+      long key = ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex);
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
+      if (reader == null || writePendingImages_.containsKey(key)) {
+         return null;
+      }
+      return reader.getPlaneStats(key);
+   }
+
+   /**
+    * Thumbnails and montage of the data set (see DatasetPreview); while it
+    * is being written, of the images so far
+    * @return null if the data set has no preview file
+    */
+   public DatasetPreview getPreview() {
+      if (preview_ == null && !newDataSet_ && !previewRead_) {
+         preview_ = DatasetPreview.read(new File(directory_));
+         previewRead_ = true;
+      }
+      return preview_;
+   }
+
+   /**
+    * Table of the metadata of all images (see MetadataTable); while the
+    * data set is being written, of the images so far
+    * @return null if the data set has no metadata table file
+    */
+   public MetadataTable getMetadataTable() {
+      if (metadataTable_ == null && !newDataSet_ && !metadataTableRead_) {
+         metadataTable_ = MetadataTable.read(new File(directory_));
+         metadataTableRead_ = true;
+      }
+      return metadataTable_;
    }
 
    @Override
    public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      TaggedImage image = getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
-      if (image == null) {
+      long key = ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex);
+      if (key == ImageKey.NO_KEY) {
+         TaggedImage image = getOutOfRangeImage(channelIndex, sliceIndex, frameIndex, positionIndex);
+         return image == null ? null : image.tags;
+      }
+
+      TaggedImage image = writePendingImages_.get(key);
+      if (image != null) {
+         return image.tags;
+      }
+
+      MultipageTiffReader reader = tiffReadersByKey_.get(key);
+      if (reader == null) {
          return null;
       }
-      return image.tags;
+      return reader.readImageTags(key);
    }
 
    /*
@@ -251,10 +591,26 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       fileSets_.get(position).overwritePixels(pix, channel, slice, frame, position); 
    }
 
+   /**
+    * The pixels of the image may also be given as a ByteBuffer laid out as
+    * in the file (see getPixelBuffer). Such images can't be read back until
+    * they have been written.
+    */
    @Override
    public void putImage(TaggedImage taggedImage) throws MMException, IOException {
-      final String label = MDUtils.getLabel(taggedImage.tags);
-      startWritingTask(label, taggedImage);
+      final long key;
+      try {
+         key = ImageKey.fromTags(taggedImage.tags);
+      } catch (JSONException ex) {
+         throw new MMException("Image indices missing from tags: " + ex.getMessage());
+      }
+      ThreadPoolExecutor writeLane = startWritingTask(key, taggedImage);
+      if (preview_ != null) {
+         preview_.offer(taggedImage);
+      }
+      if (metadataTable_ != null) {
+         metadataTable_.addImage(key, taggedImage.tags);
+      }
 
       // Now, we must hold on to taggedImage, so that we can return it if
       // somebody calls getImage() before the writing is finished.
@@ -262,25 +618,31 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       // that would be a bad thing to do anyway (will break the writer) and is
       // considered forbidden.
 
-      // We are here depending on the fact that writingExecutor_ is a
-      // single-thread ThreadPoolExecutor, and that submitted tasks are
-      // executed in order. A better implementation might use Guava's
+      // We are here depending on the fact that every write lane is a
+      // single-thread ThreadPoolExecutor, that submitted tasks are executed
+      // in order, and that all tasks writing this image went to the lane of
+      // its file set. A better implementation might use Guava's
       // ListenableFuture.
       // Also note that the image will be dropped if the writing fails due to
       // any error. This is acceptable for disk-backed storage.
-      writePendingImages_.put(label, taggedImage);
-      writingExecutor_.submit(new Runnable() {
+      if (writeLane == null || taggedImage.pix instanceof ByteBuffer) {
+         // Written synchronously, or can't be returned by getImage()
+         return;
+      }
+      writePendingImages_.put(key, taggedImage);
+      writeLane.submit(new Runnable() {
          @Override public void run() {
-            writePendingImages_.remove(label);
+            writePendingImages_.remove(key);
          }
       });
    }
 
    /*
     * Sets up and kicks off the writing of a new image. This, in an indirect
-    * way, ends up submitting the writing task to writingExecutor_.
+    * way, ends up submitting the writing task to the write lane of the image's
+    * file set, which is returned.
     */
-   private void startWritingTask(String label, TaggedImage taggedImage)
+   private ThreadPoolExecutor startWritingTask(long key, TaggedImage taggedImage)
       throws MMException, IOException
    {
       if (!newDataSet_) {
@@ -289,10 +651,22 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       }
       //initialize writing executor
       if (fastStorageMode_ && writingExecutor_ == null) {
-         // Note: Code elsewhere assumes that the writing task is performed on
-         // a _single_ background thread.
-         writingExecutor_ = new ThreadPoolExecutor(1, 1, 0, TimeUnit.NANOSECONDS,
-                 new LinkedBlockingQueue<java.lang.Runnable>());
+         // Note: Code elsewhere assumes that all writing tasks of a file set
+         // are performed on a _single_ background thread.
+         writingExecutor_ = createWriteLane();
+         if (parallelWriting_ && splitByXYPosition_) {
+            int numLanes = Math.min(MAX_WRITE_LANES, Runtime.getRuntime().availableProcessors());
+            try {
+               numLanes = Math.min(numLanes, Math.max(1, MDUtils.getNumPositions(summaryMetadata_)));
+            } catch (JSONException ex) {
+               // Number of positions unknown, use as many lanes as allowed
+            }
+            writeLanes_ = new ThreadPoolExecutor[numLanes];
+            writeLanes_[0] = writingExecutor_;
+            for (int i = 1; i < numLanes; i++) {
+               writeLanes_[i] = createWriteLane();
+            }
+         }
       }
       int fileSetIndex = 0;
       if (splitByXYPosition_) {
@@ -306,9 +680,12 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          try {
             fileSets_ = new HashMap<Integer, FileSet>();
             JavaUtils.createDirectory(directory_);
+            datasetIndex_ = DatasetIndex.create(directory_);
          } catch (Exception ex) {
             ReportingUtils.logError(ex);
          }
+         preview_ = DatasetPreview.create();
+         metadataTable_ = new MetadataTable();
       }
           
       if (omeTiff_) {
@@ -318,12 +695,15 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       }
       
       if (fileSets_.get(fileSetIndex) == null) {
-         fileSets_.put(fileSetIndex, new FileSet(taggedImage.tags, this));
+         fileSets_.put(fileSetIndex, new FileSet(taggedImage.tags, this,
+                 getWriteLane(fileSetIndex)));
       }
       FileSet set = fileSets_.get(fileSetIndex);
       try {
          set.writeImage(taggedImage);
-         tiffReadersByLabel_.put(label, set.getCurrentReader());
+         MultipageTiffReader reader = set.getCurrentReader();
+         reader.setVerifyChecksums(verifyChecksums_);
+         tiffReadersByKey_.put(key, reader);
       } catch (IOException ex) {
         ReportingUtils.showError("problem writing image to file");
       }
@@ -336,11 +716,14 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          frame = 0;
       }
       lastFrameOpenedDataSet_ = Math.max(frame, lastFrameOpenedDataSet_);
+      return set.getWriteLane();
    }
 
    @Override
    public Set<String> imageKeys() {
-      return tiffReadersByLabel_.keySet();
+      Set<String> labels = ImageKey.toLabelSet(tiffReadersByKey_.keys(), slicesFirst_, timeFirst_);
+      labels.addAll(tiffReadersByLabel_.keySet());
+      return labels;
    }
 
    /**
@@ -359,6 +742,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          finished_ = true;
          return;
       }
+      if (preview_ != null) {
+         preview_.finish(directory_);
+      }
       ProgressBar progressBar = new ProgressBar("Finishing Files", 0, fileSets_.size());
       try {
          int count = 0;
@@ -382,35 +768,42 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             ReportingUtils.logError("Couldn't fill in missing frames in OME");
          }
 
-         //figure out where the full string of OME metadata can be stored 
-         String fullOMEXMLMetadata = omeMetadata_.toString();
-         int length = fullOMEXMLMetadata.length();
-         String uuid = null, filename = null;
+         //figure out where the full OME metadata can be stored 
+         long length = omeMetadata_.getXMLLength();
+         String uuid, filename;
          FileSet master = null;
          for (FileSet p : fileSets_.values()) {
             if (p.hasSpaceForFullOMEXML(length)) {
-               uuid = p.getCurrentUUID();
-               filename = p.getCurrentFilename();
-               p.finished(fullOMEXMLMetadata);
                master = p;
-               count++;
-               progressBar.setProgress(count);
                break;
             }
          }
          
-         if (uuid == null) {
+         if (master != null) {
+            uuid = master.getCurrentUUID();
+            filename = master.getCurrentFilename();
+         } else {
             //in the rare case that no files have extra space to fit the full block of OME XML,
             //generate a file specifically for holding it that all other files can point to
             //simplest way to do this is to make a .ome text file 
              filename = "OMEXMLMetadata.ome";
              uuid = "urn:uuid:" + UUID.randomUUID().toString();
-             PrintWriter pw = new PrintWriter(directory_ + File.separator + filename);
-             pw.print(fullOMEXMLMetadata);
-             pw.close();
+             FileOutputStream out = new FileOutputStream(directory_ + File.separator + filename);
+             try {
+                omeMetadata_.writeXML(out.getChannel(), 0);
+             } finally {
+                out.close();
+             }
          }
          
+         //the last file of the master set holds the full metadata, all
+         //others point to it
          String partialOME = OMEMetadata.getOMEStringPointerToMasterFile(filename, uuid);
+         if (master != null) {
+            master.finished(partialOME, omeMetadata_);
+            count++;
+            progressBar.setProgress(count);
+         }
 
          for (FileSet p : fileSets_.values()) {
             if (p == master) {
@@ -424,17 +817,34 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          //so that no attempt is made to close the dataset (and thus the FileChannel)
          //before everything has finished writing
          //mkae sure all images have finished writing if they are on seperate thread 
-         if (writingExecutor_ != null && !writingExecutor_.isShutdown()) {
-            writingExecutor_.shutdown();
-            try {
-               //now that shutdown has been called, need to wait for tasks to finish
-               while (!writingExecutor_.awaitTermination(4, TimeUnit.SECONDS)) {
+         ThreadPoolExecutor[] lanes = writeLanes_ != null ? writeLanes_
+                 : new ThreadPoolExecutor[] {writingExecutor_};
+         for (ThreadPoolExecutor lane : lanes) {
+            if (lane != null && !lane.isShutdown()) {
+               lane.shutdown();
+            }
+         }
+         try {
+            //now that shutdown has been called, need to wait for tasks to finish
+            for (ThreadPoolExecutor lane : lanes) {
+               while (lane != null && !lane.awaitTermination(4, TimeUnit.SECONDS)) {
                   ReportingUtils.logMessage("Waiting for image stack file finishing to complete");
                }
-            } catch (InterruptedException e) {
-               ReportingUtils.logError("File finishing thread interrupted");
-               Thread.interrupted();
             }
+         } catch (InterruptedException e) {
+            ReportingUtils.logError("File finishing thread interrupted");
+            Thread.interrupted();
+         }
+         //all files now have their final length
+         omeMetadata_.close();
+         if (datasetIndex_ != null) {
+            datasetIndex_.finish(directory_);
+         }
+         if (metadataTable_ != null) {
+            metadataTable_.write(directory_);
+         }
+         if (preview_ != null) {
+            preview_.awaitFinished();
          }
       } catch (IOException ex) {
          ReportingUtils.logError(ex);
@@ -450,7 +860,13 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
     */
    @Override
    public void close() {
-      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
+      if (datasetIndex_ != null) {
+         datasetIndex_.close();
+      }
+      if (preview_ != null && !finished_) {
+         preview_.abandon();
+      }
+      for (MultipageTiffReader r : getReaders()) {
          try {
             r.close();
          } catch (IOException ex) {
@@ -466,38 +882,18 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    @Override
    public void setSummaryMetadata(JSONObject md) {
-      setSummaryMetadata(md, false);
-   }
-   
-   private void setSummaryMetadata(JSONObject md, boolean showProgress) {
       summaryMetadata_ = md;
       summaryMetadataString_ = null;
       if (summaryMetadata_ != null) {
          summaryMetadataString_ = md.toString();
-         boolean slicesFirst = summaryMetadata_.optBoolean("SlicesFirst", true);
-         boolean timeFirst = summaryMetadata_.optBoolean("TimeFirst", false);
-         TreeMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
-         tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator(slicesFirst, timeFirst));
-         if (showProgress) {
-            ProgressBar progressBar = new ProgressBar("Building image location map", 0, oldImageMap.keySet().size());
-            progressBar.setProgress(0);
-            progressBar.setVisible(true);
-            int i = 1;
-            for (String label : oldImageMap.keySet()) {
-               tiffReadersByLabel_.put(label, oldImageMap.get(label));
-               progressBar.setProgress(i);
-               i++;
-            }
-            progressBar.setVisible(false);
-         } else {
-            tiffReadersByLabel_.putAll(oldImageMap);
-         }
-         if (summaryMetadata_ != null && summaryMetadata_.length() > 0) {
+         slicesFirst_ = summaryMetadata_.optBoolean("SlicesFirst", true);
+         timeFirst_ = summaryMetadata_.optBoolean("TimeFirst", false);
+         if (summaryMetadata_.length() > 0) {
             processSummaryMD();
          }
       }
    }
-
+   
    @Override
    public JSONObject getSummaryMetadata() {
       return summaryMetadata_;
@@ -519,7 +915,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
           
    @Override   
    public void writeDisplaySettings() {
-      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
+      for (MultipageTiffReader r : getReaders()) {
          try {
             r.rewriteDisplaySettings(displayAndComments_.getJSONArray("Channels"));
             r.rewriteComments(displayAndComments_.getJSONObject("Comments"));
@@ -574,7 +970,10 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    //Default is one file series per xy posititon
    private class FileSet {
       private LinkedList<MultipageTiffWriter> tiffWriters_;
-      private FileWriter mdWriter_;
+      private OutputStream mdWriter_;
+      // Escapes non-ASCII characters, as the file is read with the default
+      // charset
+      private final JSONEncoder mdEncoder_ = new JSONEncoder(true);
       private String baseFilename_;
       private String currentTiffFilename_;
       private String currentTiffUUID_;;
@@ -582,13 +981,16 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       private boolean finished_ = false;
       private int ifdCount_ = 0;
       private TaggedImageStorageMultipageTiff mpTiff_;
+      private final ThreadPoolExecutor writeLane_;
       int nextExpectedChannel_ = 0, nextExpectedSlice_ = 0, nextExpectedFrame_ = 0;
       int currentFrame_ = 0;
 
       
-      public FileSet(JSONObject firstImageTags, TaggedImageStorageMultipageTiff mpt) throws IOException {
+      public FileSet(JSONObject firstImageTags, TaggedImageStorageMultipageTiff mpt,
+              ThreadPoolExecutor writeLane) throws IOException {
          tiffWriters_ = new LinkedList<MultipageTiffWriter>();  
          mpTiff_ = mpt;
+         writeLane_ = writeLane;
          
          //get file path and name
          baseFilename_ = createBaseFilename(firstImageTags);
@@ -596,7 +998,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          currentTiffUUID_ = "urn:uuid:" + UUID.randomUUID().toString();
          //make first writer
          tiffWriters_.add(new MultipageTiffWriter(directory_, currentTiffFilename_, summaryMetadata_, mpt,
-                 fastStorageMode_, splitByXYPosition_));
+                 fastStorageMode_, splitByXYPosition_, bigTiff_, writeLane_));
    
          try {
             if (separateMetadataFile_) {
@@ -615,11 +1017,19 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          return currentTiffFilename_;
       }
       
-      public boolean hasSpaceForFullOMEXML(int mdLength) {
+      public boolean hasSpaceForFullOMEXML(long mdLength) {
          return tiffWriters_.getLast().hasSpaceForFullOMEMetadata(mdLength);
       }
       
       public void finished(String omeXML) throws IOException {
+         finished(omeXML, null);
+      }
+
+      /**
+       * @param fullOME - if not null, the complete OME metadata, which is
+       * written to the last file instead of omeXML
+       */
+      public void finished(String omeXML, OMEMetadata fullOME) throws IOException {
          if (finished_) {
             return;
          }
@@ -636,18 +1046,26 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          tiffWriters_.getLast().finish();
          //close all
          for (MultipageTiffWriter w : tiffWriters_) {
-            w.close(omeXML);
+            if (fullOME != null && w == tiffWriters_.getLast()) {
+               w.close(fullOME);
+            } else {
+               w.close(omeXML);
+            }
          }
          finished_ = true;
       }
 
+      public ThreadPoolExecutor getWriteLane() {
+         return writeLane_;
+      }
+
       public MultipageTiffReader getCurrentReader() {
          return tiffWriters_.getLast().getReader();
       }
       
       public void overwritePixels(Object pixels, int channel, int slice, int frame, int position) throws IOException {
          for (MultipageTiffWriter w : tiffWriters_) {
-            if (w.getIndexMap().containsKey(MDUtils.generateLabel(channel, slice, frame, position))) {
+            if (w.getIndexMap().containsKey(ImageKey.packIfValid(channel, slice, frame, position))) {
                w.overwritePixels(pixels, channel, slice, frame, position);
             }
          }
@@ -667,7 +1085,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             currentTiffUUID_ = "urn:uuid:" + UUID.randomUUID().toString();
             ifdCount_ = 0;
             tiffWriters_.add(new MultipageTiffWriter(directory_ ,currentTiffFilename_, summaryMetadata_, mpTiff_,
-                    fastStorageMode_, splitByXYPosition_));
+                    fastStorageMode_, splitByXYPosition_, bigTiff_, writeLane_));
          }      
 
          //Add filename to image tags
@@ -738,9 +1156,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
       private void writeToMetadataFile(JSONObject md) throws JSONException {
          try {
-            mdWriter_.write(",\n\"FrameKey-" + MDUtils.getFrameIndex(md)
+            mdEncoder_.reset().append(",\n\"FrameKey-" + MDUtils.getFrameIndex(md)
                     + "-" + MDUtils.getChannelIndex(md) + "-" + MDUtils.getSliceIndex(md) + "\": ");
-            mdWriter_.write(md.toString(2));
+            mdEncoder_.append(md, 2).writeTo(mdWriter_);
          } catch (IOException ex) {
             ReportingUtils.logError("Problem writing to metadata.txt file");
          }
@@ -749,10 +1167,10 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       private void startMetadataFile() throws JSONException {
             metadataFileFullPath_ = directory_ + "/" + baseFilename_ + "_metadata.txt";
             try {
-               mdWriter_ = new FileWriter(metadataFileFullPath_);
-               mdWriter_.write("{" + "\n");
-               mdWriter_.write("\"Summary\": ");
-               mdWriter_.write(summaryMetadata_.toString(2));
+               mdWriter_ = new BufferedOutputStream(new FileOutputStream(metadataFileFullPath_));
+               mdEncoder_.reset().append("{" + "\n");
+               mdEncoder_.append("\"Summary\": ");
+               mdEncoder_.append(summaryMetadata_, 2).writeTo(mdWriter_);
             } catch (IOException ex) {
                ReportingUtils.logError("Problem creating metadata.txt file");
             }
@@ -760,7 +1178,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
       private void finishMetadataFile() throws JSONException {
          try {
-            mdWriter_.write("\n}\n");
+            mdEncoder_.reset().append("\n}\n").writeTo(mdWriter_);
             mdWriter_.close();
          } catch (IOException ex) {
             ReportingUtils.logError("Problem creating metadata.txt file");
@@ -825,7 +1243,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          if (numFrames > frame + 1 ) {
             TreeSet<String> writtenImages = new TreeSet<String>();
             for (MultipageTiffWriter w : tiffWriters_) {
-               writtenImages.addAll(w.getIndexMap().keySet());
+               for (long key : w.getIndexMap().keys()) {
+                  writtenImages.add(ImageKey.toLabel(key));
+               }
                w.setAbortedNumFrames(frame + 1);
             }
             int positionIndex = MDUtils.getIndices(writtenImages.first())[3];
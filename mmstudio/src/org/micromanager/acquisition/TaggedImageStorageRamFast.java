@@ -1,37 +1,31 @@
 
 package org.micromanager.acquisition;
 
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.api.TaggedImageStorage;
-import org.micromanager.utils.DirectBuffers;
-import org.micromanager.utils.ImageLabelComparator;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ImageKeyMap;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
-import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
 /**
  *
  * @author arthur
  *
- * This class stores a collection of TaggedImages, all in ram.
+ * This class stores a collection of TaggedImages, all in ram. Images are
+ * kept off the Java heap in an ImageArena; when they exceed its memory
+ * budget, the oldest are moved to a scratch file on disk.
  */
 public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
    
-   private class DirectTaggedImage {
-       Buffer pixelBuffer;
-       ByteBuffer tagsBuffer;
-   }
-   
    private class LRUCache<T,U> extends LinkedHashMap<T,U> {
       final long max_size_;
       
@@ -47,8 +41,10 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
 
    private boolean finished_ = false;
 
-   private TreeMap<String, DirectTaggedImage> imageMap_;
-   private LRUCache<String, TaggedImage> lruCache_;
+   private final ImageArena arena_ = new ImageArena();
+   private ImageKeyMap<ImageArena.Record> imageMap_;
+   private LRUCache<Long, TaggedImage> lruCache_;
+   private boolean slicesFirst_ = false, timeFirst_ = false;
    private JSONObject summaryMetadata_;
    private JSONObject displaySettings_;
    private int lastFrame_ = -1;
@@ -56,53 +52,39 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    private String diskLocation_;
    
    public TaggedImageStorageRamFast(JSONObject summaryMetadata) {
-      imageMap_ = new TreeMap<String, DirectTaggedImage>(new ImageLabelComparator());
+      imageMap_ = new ImageKeyMap<ImageArena.Record>();
       setSummaryMetadata(summaryMetadata);
       displaySettings_ = new JSONObject();
-      lruCache_ = new LRUCache<String, TaggedImage>(10);
+      lruCache_ = new LRUCache<Long, TaggedImage>(10);
    }
 
-   private ByteBuffer bufferFromJSON(JSONObject json) {
-      return DirectBuffers.bufferFromString(json.toString());
-   }
-   
-   private JSONObject JSONFromBuffer(ByteBuffer byteBuffer) throws JSONException {
-      return new JSONObject(DirectBuffers.stringFromBuffer(byteBuffer));
-   }
-   
-   private DirectTaggedImage taggedImageToDirectTaggedImage(TaggedImage taggedImage) throws JSONException, MMScriptException{
-      DirectTaggedImage direct = new DirectTaggedImage();
-      direct.tagsBuffer = bufferFromJSON(taggedImage.tags);
-      direct.pixelBuffer = DirectBuffers.bufferFromArray(taggedImage.pix);
-      return direct;
-   }
-   
-   private TaggedImage directTaggedImageToTaggedImage(DirectTaggedImage directImage) {
-        if (directImage != null) {
-            try {
-                return new TaggedImage(DirectBuffers.arrayFromBuffer(directImage.pixelBuffer),
-                                       JSONFromBuffer(directImage.tagsBuffer));
-            } catch (JSONException ex) {
-               ReportingUtils.logError(ex);
-               return null;
-            }
-        } else {
-           return null;
-        } 
+   private TaggedImage recordToTaggedImage(ImageArena.Record record) {
+      if (record == null) {
+         return null;
+      }
+      try {
+         return new TaggedImage(arena_.readPixels(record),
+                 new JSONObject(arena_.readTags(record)));
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
    }
    
    @Override
    public void putImage(final TaggedImage taggedImage) throws MMException {
-      String label = MDUtils.getLabel(taggedImage.tags);
       try {
-         // Allocate the direct tagged image before altering any data, in case
+         long key = ImageKey.fromTags(taggedImage.tags);
+         // Copy the image before altering any data, in case
          // OutOfMemoryError is thrown.
-         DirectTaggedImage directImage =
-               taggedImageToDirectTaggedImage(taggedImage);
+         ImageArena.Record record =
+               arena_.add(taggedImage.pix, taggedImage.tags.toString());
 
-         lruCache_.put(label, taggedImage);
-         imageMap_.put(label, directImage);
+         lruCache_.put(key, taggedImage);
+         imageMap_.put(key, record);
          lastFrame_ = Math.max(lastFrame_, MDUtils.getFrameIndex(taggedImage.tags));
+      } catch (MMException ex) {
+         throw ex;
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
       }
@@ -113,23 +95,58 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
         if (imageMap_ == null) {
             return null;
         }
-        String label = MDUtils.generateLabel(channel, slice, frame, position);
-        TaggedImage cachedImage = lruCache_.get(label);
+        long key = ImageKey.packIfValid(channel, slice, frame, position);
+        TaggedImage cachedImage = lruCache_.get(key);
         if (cachedImage != null) {
            return cachedImage;
         } else { // cache miss
-           return directTaggedImageToTaggedImage(imageMap_.get(label));
+           return recordToTaggedImage(imageMap_.get(key));
         }
     }
 
+   /**
+    * Returns the pixels of a grayscale image as bytes in native order, the
+    * layout of multipage tiff files, so that they can be saved without
+    * conversion (see TaggedImageStorageMultipageTiff.putImage)
+    * @return null if the image is not available or is RGB
+    */
+   public ByteBuffer getPixelBuffer(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+      ImageArena.Record record = imageMap_.get(
+              ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex));
+      try {
+         if (record == null || summaryMetadata_ == null || MDUtils.isRGB(summaryMetadata_)) {
+            return null;
+         }
+         return arena_.readPixelBuffer(record);
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
+   }
+
    @Override
    public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      return this.getImage(channelIndex, sliceIndex, frameIndex, positionIndex).tags;
+      long key = ImageKey.packIfValid(channelIndex, sliceIndex, frameIndex, positionIndex);
+      TaggedImage cachedImage = lruCache_.get(key);
+      if (cachedImage != null) {
+         return cachedImage.tags;
+      }
+      ImageArena.Record record = imageMap_.get(key);
+      if (record == null) {
+         return null;
+      }
+      // Metadata only; pixels that were moved to disk stay there
+      try {
+         return new JSONObject(arena_.readTags(record));
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex);
+         return null;
+      }
    }
 
    @Override
    public Set<String> imageKeys() {
-      return imageMap_.keySet();
+      return ImageKey.toLabelSet(imageMap_.keys(), slicesFirst_, timeFirst_);
    }
 
    @Override
@@ -147,11 +164,8 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
       summaryMetadata_ = md;
       if (summaryMetadata_ != null) {
          try {
-            boolean slicesFirst = summaryMetadata_.getBoolean("SlicesFirst");
-            boolean timeFirst = summaryMetadata_.getBoolean("TimeFirst");
-            TreeMap<String, DirectTaggedImage> oldImageMap = imageMap_;
-            imageMap_ = new TreeMap<String,DirectTaggedImage>(new ImageLabelComparator(slicesFirst,timeFirst));    
-            imageMap_.putAll(oldImageMap);
+            slicesFirst_ = summaryMetadata_.getBoolean("SlicesFirst");
+            timeFirst_ = summaryMetadata_.getBoolean("TimeFirst");
          } catch (JSONException ex) {
             ReportingUtils.logError("Couldn't find SlicesFirst or TimeFirst in summary metadata");
          }
@@ -176,6 +190,7 @@ public class TaggedImageStorageRamFast implements TaggedImageStorage {
    @Override
    public void close() {
       imageMap_.clear();
+      arena_.close();
       lruCache_.clear();
       summaryMetadata_ = null;
       displaySettings_ = null;
@@ -0,0 +1,290 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TiffStripCodec.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless compression of the pixels of multipage tiff files: each image is
+ * split into strips of rows, which are Deflate (TIFF compression 8)
+ * compressed after horizontal differencing (TIFF predictor 2), as read by
+ * ImageJ, Bio-Formats and libtiff. The strips of an image are encoded and
+ * decoded in parallel on a pool of worker threads shared by all files.
+ */
+public final class TiffStripCodec {
+
+   public static final int COMPRESSION_NONE = 1;
+   public static final int COMPRESSION_DEFLATE = 8;
+   public static final int PREDICTOR_NONE = 1;
+   public static final int PREDICTOR_HORIZONTAL = 2;
+
+   // Uncompressed size strips are aimed at
+   private static final int STRIP_TARGET_BYTES = 64 * 1024;
+
+   private static final ThreadPoolExecutor workers_;
+   static {
+      int numThreads = Runtime.getRuntime().availableProcessors();
+      workers_ = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.NANOSECONDS,
+              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Tiff strip codec");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   private static final ThreadLocal<Deflater> deflaters_ = new ThreadLocal<Deflater>() {
+      @Override
+      protected Deflater initialValue() {
+         return new Deflater(Deflater.BEST_SPEED);
+      }
+   };
+
+   private static final ThreadLocal<Inflater> inflaters_ = new ThreadLocal<Inflater>() {
+      @Override
+      protected Inflater initialValue() {
+         return new Inflater();
+      }
+   };
+
+   private TiffStripCodec() {
+   }
+
+   /**
+    * Set the number of threads that compress and decompress strips
+    */
+   public static synchronized void setNumThreads(int numThreads) {
+      numThreads = Math.max(1, numThreads);
+      if (numThreads > workers_.getMaximumPoolSize()) {
+         workers_.setMaximumPoolSize(numThreads);
+         workers_.setCorePoolSize(numThreads);
+      } else {
+         workers_.setCorePoolSize(numThreads);
+         workers_.setMaximumPoolSize(numThreads);
+      }
+   }
+
+   public static int getNumThreads() {
+      return workers_.getMaximumPoolSize();
+   }
+
+   /**
+    * @return number of rows per strip for images with rows of rowBytes bytes
+    */
+   static int getRowsPerStrip(int rowBytes, int height) {
+      return Math.max(1, Math.min(height, STRIP_TARGET_BYTES / Math.max(1, rowBytes)));
+   }
+
+   /**
+    * Compress the pixels of an image
+    * @param pixels - pixels in the given byte order, from position 0 to the limit
+    * @return compressed strips
+    */
+   static byte[][] encode(final ByteBuffer pixels, final int rowBytes, int height,
+           final int rowsPerStrip, final int bytesPerSample, final int samplesPerPixel,
+           final ByteOrder order) throws IOException {
+      final int numStrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+      final int imageBytes = rowBytes * height;
+      List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>(numStrips);
+      for (int i = 0; i < numStrips; i++) {
+         final int strip = i;
+         tasks.add(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+               int start = strip * rowsPerStrip * rowBytes;
+               byte[] raw = new byte[Math.min(imageBytes, start + rowsPerStrip * rowBytes) - start];
+               ByteBuffer source = pixels.duplicate();
+               source.position(start);
+               source.get(raw);
+               difference(raw, rowBytes, bytesPerSample, samplesPerPixel, order);
+               return deflate(raw);
+            }
+         });
+      }
+      return invokeAll(tasks).toArray(new byte[numStrips][]);
+   }
+
+   /**
+    * Decompress the strips of an image into destination, from its current
+    * position
+    */
+   static void decode(List<byte[]> strips, final ByteBuffer destination, final int rowBytes,
+           int height, final int rowsPerStrip, final int bytesPerSample,
+           final int samplesPerPixel, final boolean predictor, final ByteOrder order)
+           throws IOException {
+      final int imageBytes = rowBytes * height;
+      final int base = destination.position();
+      List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>(strips.size());
+      for (int i = 0; i < strips.size(); i++) {
+         final int strip = i;
+         final byte[] compressed = strips.get(i);
+         tasks.add(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+               int start = strip * rowsPerStrip * rowBytes;
+               byte[] raw = inflate(compressed,
+                       Math.min(imageBytes, start + rowsPerStrip * rowBytes) - start);
+               if (predictor) {
+                  undifference(raw, rowBytes, bytesPerSample, samplesPerPixel, order);
+               }
+               ByteBuffer target = destination.duplicate();
+               target.position(base + start);
+               target.put(raw);
+               return raw;
+            }
+         });
+      }
+      invokeAll(tasks);
+   }
+
+   private static <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+      List<T> results = new ArrayList<T>(tasks.size());
+      try {
+         if (tasks.size() == 1) {
+            results.add(tasks.get(0).call());
+            return results;
+         }
+         for (Future<T> future : workers_.invokeAll(tasks)) {
+            results.add(future.get());
+         }
+         return results;
+      } catch (ExecutionException ex) {
+         if (ex.getCause() instanceof IOException) {
+            throw (IOException) ex.getCause();
+         }
+         throw new IOException("Strip compression failed", ex.getCause());
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while compressing strips", ex);
+      } catch (IOException ex) {
+         throw ex;
+      } catch (Exception ex) {
+         throw new IOException("Strip compression failed", ex);
+      }
+   }
+
+   /**
+    * Deflate (zlib) compress raw, on the calling thread
+    */
+   static byte[] deflate(byte[] raw) {
+      Deflater deflater = deflaters_.get();
+      deflater.reset();
+      deflater.setInput(raw);
+      deflater.finish();
+      byte[] out = new byte[raw.length + raw.length / 100 + 64];
+      int length = 0;
+      while (!deflater.finished()) {
+         if (length == out.length) {
+            out = Arrays.copyOf(out, 2 * out.length);
+         }
+         length += deflater.deflate(out, length, out.length - length);
+      }
+      return Arrays.copyOf(out, length);
+   }
+
+   /**
+    * Decompress data that deflate() compressed from rawLength bytes
+    */
+   static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+      Inflater inflater = inflaters_.get();
+      inflater.reset();
+      inflater.setInput(compressed);
+      byte[] raw = new byte[rawLength];
+      try {
+         int length = 0;
+         while (length < rawLength && !inflater.finished()) {
+            int n = inflater.inflate(raw, length, rawLength - length);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               break;
+            }
+            length += n;
+         }
+         if (length != rawLength) {
+            throw new IOException("Compressed strip is truncated");
+         }
+      } catch (DataFormatException ex) {
+         throw new IOException("Compressed strip is corrupt", ex);
+      }
+      return raw;
+   }
+
+   // Horizontal differencing: each sample becomes the difference with the
+   // same sample of the previous pixel in the row
+   private static void difference(byte[] raw, int rowBytes, int bytesPerSample,
+           int samplesPerPixel, ByteOrder order) {
+      int stride = bytesPerSample * samplesPerPixel;
+      for (int row = 0; row < raw.length; row += rowBytes) {
+         for (int i = row + rowBytes - bytesPerSample; i >= row + stride; i -= bytesPerSample) {
+            if (bytesPerSample == 1) {
+               raw[i] -= raw[i - stride];
+            } else {
+               put16(raw, i, get16(raw, i, order) - get16(raw, i - stride, order), order);
+            }
+         }
+      }
+   }
+
+   private static void undifference(byte[] raw, int rowBytes, int bytesPerSample,
+           int samplesPerPixel, ByteOrder order) {
+      int stride = bytesPerSample * samplesPerPixel;
+      for (int row = 0; row < raw.length; row += rowBytes) {
+         for (int i = row + stride; i < row + rowBytes; i += bytesPerSample) {
+            if (bytesPerSample == 1) {
+               raw[i] += raw[i - stride];
+            } else {
+               put16(raw, i, get16(raw, i, order) + get16(raw, i - stride, order), order);
+            }
+         }
+      }
+   }
+
+   private static int get16(byte[] b, int i, ByteOrder order) {
+      return order == ByteOrder.LITTLE_ENDIAN
+              ? (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8)
+              : ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+   }
+
+   private static void put16(byte[] b, int i, int value, ByteOrder order) {
+      if (order == ByteOrder.LITTLE_ENDIAN) {
+         b[i] = (byte) value;
+         b[i + 1] = (byte) (value >> 8);
+      } else {
+         b[i] = (byte) (value >> 8);
+         b[i + 1] = (byte) value;
+      }
+   }
+}
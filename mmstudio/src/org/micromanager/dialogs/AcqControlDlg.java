@@ -47,6 +47,7 @@ import mmcorej.CMMCore;
 
 import org.micromanager.acquisition.AcquisitionEngine;
 import org.micromanager.acquisition.ComponentTitledBorder;
+import org.micromanager.acquisition.TaggedImageStorageChunked;
 import org.micromanager.acquisition.TaggedImageStorageDiskDefault;
 import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
 import org.micromanager.api.ScriptInterface;
@@ -123,6 +124,7 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
    private final JLabel saveTypeLabel_;
    private final JRadioButton singleButton_;
    private final JRadioButton multiButton_;
+   private final JRadioButton chunkedButton_;
    private final JLabel rootLabel_;
    private final JButton browseRootButton_;
    private final JLabel displayMode_;
@@ -926,17 +928,29 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
 
       multiButton_ = new JRadioButton("Image stack file");
       multiButton_.setFont(new Font("Arial", Font.PLAIN, 10));      
-      multiButton_.setBounds(260,80,200,22);
+      multiButton_.setBounds(260,80,120,22);
       savePanel_.add(multiButton_);
       multiButton_.addActionListener(new ActionListener() {
          @Override
          public void actionPerformed(ActionEvent e) {
             ImageUtils.setImageStorageClass(TaggedImageStorageMultipageTiff.class);
          }});
+
+      chunkedButton_ = new JRadioButton("Chunked directory");
+      chunkedButton_.setFont(new Font("Arial", Font.PLAIN, 10));
+      chunkedButton_.setBounds(380,80,120,22);
+      chunkedButton_.setToolTipText("Images cut into compressed chunks, so that parts of images can be read quickly");
+      savePanel_.add(chunkedButton_);
+      chunkedButton_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            ImageUtils.setImageStorageClass(TaggedImageStorageChunked.class);
+         }});
       
       ButtonGroup buttonGroup = new ButtonGroup();
       buttonGroup.add(singleButton_);
       buttonGroup.add(multiButton_);
+      buttonGroup.add(chunkedButton_);
       updateSavingTypeButtons();
 
       JScrollPane commentScrollPane = new JScrollPane();
@@ -1170,6 +1184,8 @@ public class AcqControlDlg extends MMFrame implements PropertyChangeListener,
          singleButton_.setSelected(true);
       } else if (ImageUtils.getImageStorageClass().equals(TaggedImageStorageMultipageTiff.class)) {
          multiButton_.setSelected(true);
+      } else if (ImageUtils.getImageStorageClass().equals(TaggedImageStorageChunked.class)) {
+         chunkedButton_.setSelected(true);
       }
    }
 
@@ -46,6 +46,9 @@ import org.micromanager.api.ScriptInterface;
 import org.micromanager.logging.LogFileManager;
 import org.micromanager.MMOptions;
 import org.micromanager.MMStudio;
+import org.micromanager.acquisition.ImageArena;
+import org.micromanager.acquisition.ImageWriteQueue;
+import org.micromanager.acquisition.TiffStripCodec;
 import org.micromanager.utils.GUIColors;
 import org.micromanager.utils.MMDialog;
 import org.micromanager.utils.NumberUtils;
@@ -61,6 +64,9 @@ public class OptionsDlg extends MMDialog {
 
    private final JTextField startupScriptFile_;
    private final JTextField bufSizeField_;
+   private final JTextField writeQueueSizeField_;
+   private final JTextField ramStorageBudgetField_;
+   private final JTextField compressionThreadsField_;
    private JTextField logDeleteDaysField_;
    private final JComboBox comboDisplayBackground_;
 
@@ -204,6 +210,12 @@ public class OptionsDlg extends MMDialog {
       });
 
       bufSizeField_ = new JTextField(Integer.toString(opts_.circularBufferSizeMB_), 5);
+      writeQueueSizeField_ = new JTextField(Integer.toString(opts_.writeQueueSizeMB_), 5);
+      writeQueueSizeField_.setToolTipText("Amount of image data that may be waiting to be saved before the acquisition is slowed down to the speed of the disk");
+      ramStorageBudgetField_ = new JTextField(Integer.toString(opts_.ramStorageBudgetMB_), 5);
+      ramStorageBudgetField_.setToolTipText("Amount of memory for images of acquisitions that are not saved to disk; beyond this, the oldest images are moved to a temporary file");
+      compressionThreadsField_ = new JTextField(Integer.toString(opts_.compressionThreads_), 5);
+      compressionThreadsField_.setToolTipText("Number of threads that compress and decompress the images of compressed Image Stack Files");
 
       comboDisplayBackground_ = new JComboBox(guiColors_.styleOptions);
       comboDisplayBackground_.setMaximumRowCount(2);
@@ -328,6 +340,72 @@ public class OptionsDlg extends MMDialog {
             opts_.mpTiffSeparateFilesForPositions_ = separateFilesForPositionsMPTiffCheckBox.isSelected();
          }
       });
+
+      final JCheckBox bigTiffMPTiffCheckBox = new JCheckBox();
+      bigTiffMPTiffCheckBox.setText("Write Image Stack Files as BigTIFF (no 4 GB file size limit)");
+      bigTiffMPTiffCheckBox.setToolTipText("BigTIFF files can be read by Micro-Manager, ImageJ/Fiji (Bio-Formats) and most recent Tiff readers, but not by older ones");
+      bigTiffMPTiffCheckBox.setSelected(opts_.mpTiffBigTiff_);
+      bigTiffMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffBigTiff_ = bigTiffMPTiffCheckBox.isSelected();
+         }
+      });
+
+      final JCheckBox parallelWritingMPTiffCheckBox = new JCheckBox();
+      parallelWritingMPTiffCheckBox.setText("Write separate XY position files in parallel");
+      parallelWritingMPTiffCheckBox.setToolTipText("Speeds up saving of multi-position acquisitions to fast disks (SSD or RAID); has no effect unless positions are saved in separate files");
+      parallelWritingMPTiffCheckBox.setSelected(opts_.mpTiffParallelWriting_);
+      parallelWritingMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffParallelWriting_ = parallelWritingMPTiffCheckBox.isSelected();
+         }
+      });
+
+      final JCheckBox deltaMetadataMPTiffCheckBox = new JCheckBox();
+      deltaMetadataMPTiffCheckBox.setText("Store only changed image metadata in Image Stack Files");
+      deltaMetadataMPTiffCheckBox.setToolTipText("Makes files of fast, small images smaller; Micro-Manager shows the full metadata, but other programs only see the changes");
+      deltaMetadataMPTiffCheckBox.setSelected(opts_.mpTiffDeltaMetadata_);
+      deltaMetadataMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffDeltaMetadata_ = deltaMetadataMPTiffCheckBox.isSelected();
+         }
+      });
+
+      final JCheckBox compressionMPTiffCheckBox = new JCheckBox();
+      compressionMPTiffCheckBox.setText("Compress Image Stack Files (lossless)");
+      compressionMPTiffCheckBox.setToolTipText("Makes files smaller at the cost of processor time; compressed images can't be overwritten");
+      compressionMPTiffCheckBox.setSelected(opts_.mpTiffCompression_);
+      compressionMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffCompression_ = compressionMPTiffCheckBox.isSelected();
+         }
+      });
+
+      final JCheckBox checksumsMPTiffCheckBox = new JCheckBox();
+      checksumsMPTiffCheckBox.setText("Store pixel checksums in Image Stack Files");
+      checksumsMPTiffCheckBox.setToolTipText("Lets damaged images be found with DatasetTool verify. Writing is about 6% slower when the disk keeps up with the camera. Files can't be opened by versions of Micro-Manager without checksum support");
+      checksumsMPTiffCheckBox.setSelected(opts_.mpTiffChecksums_);
+      checksumsMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffChecksums_ = checksumsMPTiffCheckBox.isSelected();
+         }
+      });
+
+      final JCheckBox planeStatsMPTiffCheckBox = new JCheckBox();
+      planeStatsMPTiffCheckBox.setText("Store image statistics in Image Stack Files");
+      planeStatsMPTiffCheckBox.setToolTipText("Lets reopened data sets set their contrast without reading all pixels, but slows down saving");
+      planeStatsMPTiffCheckBox.setSelected(opts_.mpTiffPlaneStats_);
+      planeStatsMPTiffCheckBox.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffPlaneStats_ = planeStatsMPTiffCheckBox.isSelected();
+         }
+      });
   
       final JCheckBox syncExposureMainAndMDA = new JCheckBox();
       syncExposureMainAndMDA.setText("Sync exposure between Main and MDA windows");
@@ -380,6 +458,20 @@ public class OptionsDlg extends MMDialog {
 
       add(metadataFileWithMultipageTiffCheckBox, "wrap");
       add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      add(bigTiffMPTiffCheckBox, "wrap");
+      add(parallelWritingMPTiffCheckBox, "wrap");
+      add(deltaMetadataMPTiffCheckBox, "wrap");
+      add(compressionMPTiffCheckBox, "wrap");
+      add(new JLabel("Compression Threads:"), "split 2, gapright push");
+      add(compressionThreadsField_, "wrap");
+      add(checksumsMPTiffCheckBox, "wrap");
+      add(planeStatsMPTiffCheckBox, "wrap");
+      add(new JLabel("Image Stack Write Queue Size:"), "split 3, gapright push");
+      add(writeQueueSizeField_, "gapright related");
+      add(new JLabel("MB"), "wrap");
+      add(new JLabel("Memory for Unsaved Images:"), "split 3, gapright push");
+      add(ramStorageBudgetField_, "gapright related");
+      add(new JLabel("MB"), "wrap");
 
       add(new JSeparator(), "wrap");
 
@@ -429,10 +521,19 @@ public class OptionsDlg extends MMDialog {
 
    private void closeRequested() {
       int seqBufSize;
+      int writeQueueSize;
+      int ramStorageBudget;
+      int compressionThreads;
       int deleteLogDays;
       try {
          seqBufSize =
             NumberUtils.displayStringToInt(bufSizeField_.getText());
+         writeQueueSize =
+            NumberUtils.displayStringToInt(writeQueueSizeField_.getText());
+         ramStorageBudget =
+            NumberUtils.displayStringToInt(ramStorageBudgetField_.getText());
+         compressionThreads =
+            NumberUtils.displayStringToInt(compressionThreadsField_.getText());
          deleteLogDays =
             NumberUtils.displayStringToInt(logDeleteDaysField_.getText());
       }
@@ -442,6 +543,12 @@ public class OptionsDlg extends MMDialog {
       }
 
       opts_.circularBufferSizeMB_ = seqBufSize;
+      opts_.writeQueueSizeMB_ = writeQueueSize;
+      ImageWriteQueue.getInstance().setCapacityMB(writeQueueSize);
+      opts_.ramStorageBudgetMB_ = ramStorageBudget;
+      ImageArena.setBudgetMB(ramStorageBudget);
+      opts_.compressionThreads_ = Math.max(1, compressionThreads);
+      TiffStripCodec.setNumThreads(opts_.compressionThreads_);
       opts_.startupScript_ = startupScriptFile_.getText();
       opts_.deleteCoreLogAfterDays_ = deleteLogDays;
       opts_.saveSettings();
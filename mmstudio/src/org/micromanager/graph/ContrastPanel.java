@@ -27,6 +27,7 @@ import ij.gui.Overlay;
 import java.awt.*;
 import java.util.prefs.Preferences;
 import javax.swing.DefaultComboBoxModel;
+import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
@@ -70,6 +71,7 @@ public class ContrastPanel extends JPanel {
    private JComboBox sizeBarColorComboBox_;
    private JCheckBox syncChannelsCheckBox_;
    private JCheckBox slowHistCheckBox_;
+   private JButton allPlanesButton_;
    private JLabel displayModeLabel_;
    private Preferences prefs_;
    private Color overlayColor_ = Color.white;
@@ -124,6 +126,7 @@ public class ContrastPanel extends JPanel {
          sizeBarColorComboBox_.setEnabled(false);
          autostretchCheckBox_.setEnabled(false);
          slowHistCheckBox_.setEnabled(false);
+         allPlanesButton_.setEnabled(false);
          logHistCheckBox_.setEnabled(false);
          rejectOutliersCheckBox_.setEnabled(false);
          rejectPercentSpinner_.setEnabled(false);
@@ -137,6 +140,7 @@ public class ContrastPanel extends JPanel {
          syncChannelsCheckBox_.setEnabled(false);
          logHistCheckBox_.setEnabled(true);
          slowHistCheckBox_.setEnabled(true);
+         allPlanesButton_.setEnabled(true);
          autostretchCheckBox_.setEnabled(true);
          if (autostretchCheckBox_.isSelected()) {
             rejectOutliersCheckBox_.setEnabled(true);
@@ -153,6 +157,7 @@ public class ContrastPanel extends JPanel {
          sizeBarColorComboBox_.setEnabled(sizeBarCheckBox_.isSelected());
          logHistCheckBox_.setEnabled(true);
          slowHistCheckBox_.setEnabled(true);
+         allPlanesButton_.setEnabled(true);
          syncChannelsCheckBox_.setEnabled(true);
 
       }
@@ -350,6 +355,16 @@ public class ContrastPanel extends JPanel {
             slowHistCheckboxAction();
          }
       });
+
+      allPlanesButton_ = new JButton("All planes");
+      allPlanesButton_.setToolTipText("Set the contrast to the range of all images of this position, from the image statistics stored in Image Stack Files");
+      allPlanesButton_.addActionListener(new java.awt.event.ActionListener() {
+
+         @Override
+         public void actionPerformed(java.awt.event.ActionEvent evt) {
+            allPlanesButtonAction();
+         }
+      });
       
      
       javax.swing.GroupLayout channelsTablePanel_Layout = new javax.swing.GroupLayout(this);
@@ -360,7 +375,8 @@ public class ContrastPanel extends JPanel {
               .addComponent(sizeBarComboBox_, GroupLayout.PREFERRED_SIZE, 100, GroupLayout.PREFERRED_SIZE).addPreferredGap(LayoutStyle.ComponentPlacement.RELATED)
               .addComponent(sizeBarColorComboBox_, GroupLayout.PREFERRED_SIZE, 60, GroupLayout.PREFERRED_SIZE).addPreferredGap(LayoutStyle.ComponentPlacement.UNRELATED)
               .addComponent(syncChannelsCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
-              .addComponent(slowHistCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
+              .addComponent(slowHistCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+              .addComponent(allPlanesButton_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
               .addComponent(jPanel1, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
               .addGroup(channelsTablePanel_Layout.createParallelGroup(GroupLayout.Alignment.LEADING)
               .addComponent(histDisplayScrollPane_, GroupLayout.DEFAULT_SIZE, 620, Short.MAX_VALUE)));
@@ -372,7 +388,8 @@ public class ContrastPanel extends JPanel {
               .addComponent(sizeBarComboBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
               .addComponent(sizeBarColorComboBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
               .addComponent(syncChannelsCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
-              .addComponent(slowHistCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
+              .addComponent(slowHistCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+              .addComponent(allPlanesButton_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
               .addPreferredGap(LayoutStyle.ComponentPlacement.UNRELATED)
               .addComponent(jPanel1, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
               .addContainerGap(589, Short.MAX_VALUE))
@@ -569,6 +586,12 @@ public class ContrastPanel extends JPanel {
       }
    }
 
+   private void allPlanesButtonAction() {
+      if (currentDisplay_ != null && !currentDisplay_.autostretchAllPlanes()) {
+         JOptionPane.showMessageDialog(this, "No image statistics are stored with these images");
+      }
+   }
+
    public void imageChanged() {
       if (currentHistograms_ != null) {
          ((JPanel) currentHistograms_).repaint();
@@ -44,6 +44,7 @@ import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import org.micromanager.MMStudio;
+import org.micromanager.acquisition.PlaneStats;
 import org.micromanager.imagedisplay.VirtualAcquisitionDisplay;
 import org.micromanager.internalinterfaces.Histograms;
 import org.micromanager.api.ImageCache;
@@ -742,11 +743,21 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
       }
       if (drawHist) {
 
-         ImageStatistics stats = img_.getStatistics(ImageStatistics.MEAN | ImageStatistics.MIN_MAX | ImageStatistics.STD_DEV);
-         pixelMax_ = (int) stats.max;
-         pixelMin_ = (int) stats.min;
-         mean_ = stats.mean;
-         stdDev_ = stats.stdDev;
+         // Statistics stored with the image save a pass over its pixels,
+         // but only describe the whole image
+         PlaneStats stored = img_.getRoi() == null ? display_.getCurrentPlaneStats(0) : null;
+         if (stored != null) {
+            pixelMax_ = stored.getMax();
+            pixelMin_ = stored.getMin();
+            mean_ = stored.getMean();
+            stdDev_ = stored.getStdDev();
+         } else {
+            ImageStatistics stats = img_.getStatistics(ImageStatistics.MEAN | ImageStatistics.MIN_MAX | ImageStatistics.STD_DEV);
+            pixelMax_ = (int) stats.max;
+            pixelMin_ = (int) stats.min;
+            mean_ = stats.mean;
+            stdDev_ = stats.stdDev;
+         }
          
          //Draw histogram and stats
          histogramData.setData(histogram);
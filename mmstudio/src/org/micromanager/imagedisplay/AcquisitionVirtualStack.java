@@ -7,6 +7,7 @@ import java.awt.image.ColorModel;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.micromanager.acquisition.MMImageCache;
 import org.micromanager.api.TaggedImageStorage;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
@@ -136,9 +137,36 @@ public class AcquisitionVirtualStack extends ij.VirtualStack {
       
    }
 
+   //Whether pixels may be read straight from the cache, bypassing getTaggedImage.
+   //Subclasses that override getTaggedImage to substitute other images for
+   //display should override this to return false
+   protected boolean canReadPixelsDirectly() {
+      return true;
+   }
+
+   //Display only needs the pixels, so for grayscale images that are present
+   //the metadata is not read. Returns null whenever the full path is needed:
+   //missing images, RGB images, or subclasses that substitute other images
+   private Object getGrayPixels(int flatIndex) {
+      if (!canReadPixelsDirectly() || !(imageCache_ instanceof MMImageCache)) {
+         return null;
+      }
+      MMImageCache cache = (MMImageCache) imageCache_;
+      String pixelType = cache.getPixelType();
+      ImagePlus imagePlus = acq_.getImagePlus();
+      if (pixelType == null || !pixelType.startsWith("GRAY") || imagePlus == null) {
+         return null;
+      }
+      int[] pos = imagePlus.convertIndexToPosition(flatIndex);
+      return cache.getPixels(pos[0] - 1, pos[1] - 1, pos[2] - 1, positionIndex_);
+   }
+
    @Override
    public Object getPixels(int flatIndex) {
-      Object pixels = null;
+      Object pixels = getGrayPixels(flatIndex);
+      if (pixels != null) {
+         return pixels;
+      }
       try {
          TaggedImage image = getTaggedImage(flatIndex);
          if (image == null) {
@@ -434,6 +434,7 @@ public class HyperstackControls extends DisplayControls implements LiveModeListe
             }
          }
          plus.setPosition(channel, slice, frame);
+         display_.prefetchImages(channel - 1, slice - 1, frame - 1, position);
          display_.updateAndDraw(true);
       }
       catch (Exception e) {
@@ -32,6 +32,7 @@ import ij.WindowManager;
 import ij.gui.ImageWindow;
 import ij.io.FileInfo;
 import ij.measure.Calibration;
+import ij.process.ByteProcessor;
 
 import java.awt.MouseInfo;
 import java.awt.Point;
@@ -41,7 +42,9 @@ import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -60,6 +63,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.MMStudio;
 import org.micromanager.acquisition.AcquisitionEngine;
+import org.micromanager.acquisition.DatasetPreview;
+import org.micromanager.acquisition.MMImageCache;
+import org.micromanager.acquisition.PlaneStats;
+import org.micromanager.acquisition.TaggedImageStorageChunked;
 import org.micromanager.acquisition.TaggedImageStorageDiskDefault;
 import org.micromanager.acquisition.TaggedImageStorageMultipageTiff;
 import org.micromanager.api.events.PixelSizeChangedEvent;
@@ -79,6 +86,7 @@ import org.micromanager.utils.CanvasPaintPending;
 import org.micromanager.utils.ContrastSettings;
 import org.micromanager.utils.FileDialogs;
 import org.micromanager.utils.GUIUtils;
+import org.micromanager.utils.ImageKey;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
@@ -145,6 +153,15 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
 
    private EventBus bus_;
 
+   // Number of steps along the moving axis that are loaded ahead of the
+   // display
+   private static final int PREFETCH_DEPTH = 8;
+   // Last image selected by the scrollbars (channel, slice, frame, position),
+   // and the axis and step of the last move
+   private int[] lastSetPosition_ = null;
+   private int prefetchAxis_ = -1;
+   private int prefetchStep_ = 0;
+
    @Subscribe
    public void onPixelSizeChanged(PixelSizeChangedEvent event) {
       // Signal that pixel size has changed so that the next image will update
@@ -851,6 +868,88 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       updateAndDraw(true);
    }
 
+   /**
+    * The scrollbars selected a new image. If it is a step along a single
+    * axis from the previous one, as during animation or scrolling, start
+    * loading the next images along that axis in the background.
+    */
+   public void prefetchImages(int channel, int slice, int frame, int position) {
+      if (!(imageCache_ instanceof MMImageCache) || hyperImage_ == null) {
+         return;
+      }
+      int[] current = {channel, slice, frame, position};
+      int[] last = lastSetPosition_;
+      lastSetPosition_ = current;
+      if (last == null) {
+         return;
+      }
+      int axis = -1;
+      for (int i = 0; i < current.length; ++i) {
+         if (current[i] != last[i]) {
+            if (axis != -1) {
+               // Jumped, e.g. to a newly acquired image
+               prefetchAxis_ = -1;
+               return;
+            }
+            axis = i;
+         }
+      }
+      if (axis == -1) {
+         return;
+      }
+      int step = current[axis] - last[axis];
+      if (step < 0 && axis == prefetchAxis_ && prefetchStep_ > 0
+              && current[axis] < prefetchStep_) {
+         // Animation wrapped around to the start
+         step = prefetchStep_;
+      }
+      prefetchAxis_ = axis;
+      prefetchStep_ = step;
+
+      int axisSize;
+      try {
+         int[] sizes = {getNumChannels(), getNumSlices(), getNumFrames(), getNumPositions()};
+         axisSize = Math.max(sizes[axis], current[axis] + 1);
+      } catch (JSONException ex) {
+         ReportingUtils.logError(ex);
+         return;
+      }
+      // In composite mode all channels are shown at once
+      List<Integer> channels = new ArrayList<Integer>();
+      if (hyperImage_.isComposite()
+              && ((CompositeImage) hyperImage_).getMode() == CompositeImage.COMPOSITE) {
+         for (int c = 0; c < getNumChannels(); ++c) {
+            if (!channels.contains(grayToRGBChannel(c))) {
+               channels.add(grayToRGBChannel(c));
+            }
+         }
+      } else {
+         channels.add(grayToRGBChannel(channel));
+      }
+      List<Long> keys = new ArrayList<Long>();
+      int[] next = current.clone();
+      for (int i = 1; i <= PREFETCH_DEPTH; ++i) {
+         int index = current[axis] + i * step;
+         if (step > 0) {
+            index %= axisSize;
+         } else if (index < 0) {
+            break;
+         }
+         if (index == current[axis]) {
+            break;
+         }
+         next[axis] = index;
+         if (axis == 0) {
+            keys.add(ImageKey.pack(grayToRGBChannel(index), next[1], next[2], next[3]));
+         } else {
+            for (int c : channels) {
+               keys.add(ImageKey.pack(c, next[1], next[2], next[3]));
+            }
+         }
+      }
+      ((MMImageCache) imageCache_).prefetch(keys);
+   }
+
    // TODO: remove this function and all others that adjust the image index 
    // via the VirtualAcquisitionDisplay. It should not know or care about this
    // kind of thing.
@@ -940,11 +1039,13 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       saveTypePopup_ = menu;
       JMenuItem single = new JMenuItem("Save as separate image files");
       JMenuItem multi = new JMenuItem("Save as image stack file");
+      JMenuItem chunked = new JMenuItem("Save as chunked directory");
       JMenuItem cancel = new JMenuItem("Cancel");
       menu.add(single);
       if (pixelType_ != 2) {
          menu.add(multi);
       }
+      menu.add(chunked);
       menu.addSeparator();
       menu.add(cancel);
       final AtomicInteger ai = new AtomicInteger(-1);
@@ -966,6 +1067,12 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
             ai.set(2);
          }
       });
+      chunked.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            ai.set(3);
+         }
+      });
       MouseInputAdapter highlighter = new MouseInputAdapter() {
          @Override
          public void mouseEntered(MouseEvent e) {
@@ -978,6 +1085,7 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       };
       single.addMouseListener(highlighter);
       multi.addMouseListener(highlighter);
+      chunked.addMouseListener(highlighter);
       cancel.addMouseListener(highlighter);  
       Point mouseLocation = MouseInfo.getPointerInfo().getLocation();
       menu.show(null, mouseLocation.x, mouseLocation.y);
@@ -995,6 +1103,8 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
          return null;
       } else if (ai.get() == 1) {
          return TaggedImageStorageDiskDefault.class;
+      } else if (ai.get() == 3) {
+         return TaggedImageStorageChunked.class;
       } else {
          return TaggedImageStorageMultipageTiff.class;
       }  
@@ -1496,6 +1606,75 @@ public class VirtualAcquisitionDisplay implements ImageCacheListener {
       return histograms_.getChannelContrastSettings(channel);
    }
 
+   /**
+    * Statistics of the displayed image of a channel, as stored with it when
+    * it was written (see PlaneStats)
+    * @return null if there are none
+    */
+   public PlaneStats getCurrentPlaneStats(int channel) {
+      if (!(imageCache_ instanceof MMImageCache) || hyperImage_ == null) {
+         return null;
+      }
+      return ((MMImageCache) imageCache_).getPlaneStats(channel,
+              hyperImage_.getSlice() - 1, hyperImage_.getFrame() - 1, getCurrentPosition());
+   }
+
+   /**
+    * Thumbnail of the first image of a channel at a position, stored with
+    * the data set (see DatasetPreview), e.g. to show other positions
+    * without reading their images
+    * @return null if there is none
+    */
+   public ByteProcessor getThumbnail(int channel, int position) {
+      if (!(imageCache_ instanceof MMImageCache)) {
+         return null;
+      }
+      DatasetPreview preview = ((MMImageCache) imageCache_).getPreview();
+      return preview == null ? null : preview.getThumbnail(channel, position);
+   }
+
+   /**
+    * Set the contrast of every channel to the range of intensities of all of
+    * its images at the current position, leaving out outliers if the
+    * histogram controls say so. The range comes from the statistics stored
+    * with the images, so no pixels are read. Turns off autostretching of
+    * the single displayed image.
+    * @return false if there are no stored statistics of the images
+    */
+   public boolean autostretchAllPlanes() {
+      if (!(imageCache_ instanceof MMImageCache) || histograms_ == null) {
+         return false;
+      }
+      MMImageCache cache = (MMImageCache) imageCache_;
+      boolean stretched = false;
+      for (int channel = 0; channel < imageCache_.getNumDisplayChannels(); channel++) {
+         PlaneStats stats = cache.getChannelStats(channel, getCurrentPosition());
+         if (stats == null) {
+            continue;
+         }
+         int min = stats.getMin();
+         int max = stats.getMax();
+         if (histogramControlsState_.ignoreOutliers) {
+            double fraction = 0.01 * histogramControlsState_.percentToIgnore;
+            min = stats.getMinAfterRejectingOutliers(fraction);
+            max = stats.getMaxAfterRejectingOutliers(fraction);
+         }
+         if (max <= min) {
+            max = min + 1;
+         }
+         ContrastSettings current = histograms_.getChannelContrastSettings(channel);
+         histograms_.setChannelContrast(channel, min, max,
+                 current == null ? 1.0 : current.gamma);
+         stretched = true;
+      }
+      if (stretched) {
+         disableAutoStretchCheckBox();
+         histograms_.applyLUTToImage();
+         drawWithoutUpdate();
+      }
+      return stretched;
+   }
+
    /**
     * Retrieve the displayed intensity at the specified coordinates.
     * TODO: for now only returning the value in the first channel.
@@ -0,0 +1,226 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DirectBufferPool.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Process-wide pool of direct ByteBuffers, so that image writers and storage
+ * don't allocate (and have the garbage collector free) native memory for
+ * every image.
+ *
+ * Buffers are kept in power-of-two size classes. A leased buffer is a slice
+ * of a pooled block with exactly the requested capacity, and must be given
+ * back with release() once it is no longer used. A leased buffer that is
+ * garbage collected without having been released is logged as a leak, and
+ * its block is reused. The memory held by the pool (leased and idle blocks)
+ * is capped; leases beyond the cap are served by unpooled buffers that are
+ * left to the garbage collector.
+ */
+public final class DirectBufferPool {
+
+   private static final int MIN_CLASS_SHIFT = 8;  // 256 bytes
+   private static final int MAX_CLASS_SHIFT = 26; // 64 MB
+   private static final byte[] ZEROS = new byte[64 * 1024];
+
+   private static final DirectBufferPool INSTANCE = new DirectBufferPool();
+
+   private static final class Lease extends WeakReference<ByteBuffer> {
+      final ByteBuffer block;
+      final int hash;
+      Lease next;
+
+      Lease(ByteBuffer buffer, ByteBuffer block, ReferenceQueue<ByteBuffer> queue) {
+         super(buffer, queue);
+         this.block = block;
+         this.hash = System.identityHashCode(buffer);
+      }
+   }
+
+   // Idle blocks by size class
+   private final List<ArrayDeque<ByteBuffer>> idle_ =
+           new ArrayList<ArrayDeque<ByteBuffer>>(MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1);
+   // Outstanding leases, chained by identity hash code of the leased buffer
+   private final HashMap<Integer, Lease> leases_ = new HashMap<Integer, Lease>();
+   private final ReferenceQueue<ByteBuffer> collected_ = new ReferenceQueue<ByteBuffer>();
+   private final long capBytes_;
+   private long pooledBytes_ = 0;
+   private boolean leakLogged_ = false;
+
+   private DirectBufferPool() {
+      for (int i = MIN_CLASS_SHIFT; i <= MAX_CLASS_SHIFT; i++) {
+         idle_.add(new ArrayDeque<ByteBuffer>());
+      }
+      boolean is64BitJVM =
+         System.getProperty("sun.arch.data.model", "32").equals("64");
+      capBytes_ = (is64BitJVM ? 512 : 32) * 1024L * 1024L;
+   }
+
+   public static DirectBufferPool getInstance() {
+      return INSTANCE;
+   }
+
+   /**
+    * Lease a direct buffer of the given capacity, with position 0, limit
+    * equal to its capacity and big-endian byte order. Its contents are
+    * undefined.
+    */
+   public ByteBuffer lease(int capacity) {
+      int sizeClass = sizeClass(capacity);
+      if (sizeClass < 0) {
+         return ByteBuffer.allocateDirect(capacity);
+      }
+      synchronized (this) {
+         expungeLeaks();
+         ByteBuffer block = idle_.get(sizeClass).poll();
+         if (block == null) {
+            int blockSize = 1 << (sizeClass + MIN_CLASS_SHIFT);
+            if (pooledBytes_ + blockSize > capBytes_) {
+               trimIdle(pooledBytes_ + blockSize - capBytes_);
+            }
+            if (pooledBytes_ + blockSize > capBytes_) {
+               return ByteBuffer.allocateDirect(capacity);
+            }
+            block = ByteBuffer.allocateDirect(blockSize);
+            pooledBytes_ += blockSize;
+         }
+         block.clear();
+         block.limit(capacity);
+         ByteBuffer buffer = block.slice();
+         Lease lease = new Lease(buffer, block, collected_);
+         lease.next = leases_.put(lease.hash, lease);
+         return buffer;
+      }
+   }
+
+   /**
+    * As lease, but the buffer is filled with zeros
+    */
+   public ByteBuffer leaseZeroed(int capacity) {
+      ByteBuffer buffer = lease(capacity);
+      while (buffer.hasRemaining()) {
+         buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+      }
+      buffer.clear();
+      return buffer;
+   }
+
+   /**
+    * Give a leased buffer back to the pool. The buffer, and any view of it,
+    * must not be used afterwards. Buffers that were not leased from the pool
+    * are ignored.
+    * @return true if the buffer was leased from the pool
+    */
+   public boolean release(ByteBuffer buffer) {
+      if (buffer == null || !buffer.isDirect()) {
+         return false;
+      }
+      synchronized (this) {
+         Lease lease = removeLease(buffer);
+         if (lease == null) {
+            return false;
+         }
+         returnBlock(lease.block);
+         expungeLeaks();
+         return true;
+      }
+   }
+
+   private static int sizeClass(int capacity) {
+      int shift = MIN_CLASS_SHIFT;
+      while ((1 << shift) < capacity) {
+         shift++;
+         if (shift > MAX_CLASS_SHIFT) {
+            return -1;
+         }
+      }
+      return shift - MIN_CLASS_SHIFT;
+   }
+
+   private Lease removeLease(ByteBuffer buffer) {
+      Integer hash = System.identityHashCode(buffer);
+      Lease previous = null;
+      for (Lease lease = leases_.get(hash); lease != null; lease = lease.next) {
+         if (lease.get() == buffer) {
+            unlink(hash, previous, lease);
+            return lease;
+         }
+         previous = lease;
+      }
+      return null;
+   }
+
+   private void unlink(Integer hash, Lease previous, Lease lease) {
+      if (previous != null) {
+         previous.next = lease.next;
+      } else if (lease.next != null) {
+         leases_.put(hash, lease.next);
+      } else {
+         leases_.remove(hash);
+      }
+      lease.clear();
+   }
+
+   private void returnBlock(ByteBuffer block) {
+      if (pooledBytes_ > capBytes_) {
+         pooledBytes_ -= block.capacity();
+      } else {
+         idle_.get(sizeClass(block.capacity())).push(block);
+      }
+   }
+
+   // Reclaim the blocks of leased buffers that were garbage collected
+   private void expungeLeaks() {
+      Lease lease;
+      while ((lease = (Lease) collected_.poll()) != null) {
+         Integer hash = lease.hash;
+         Lease previous = null;
+         for (Lease l = leases_.get(hash); l != null; l = l.next) {
+            if (l == lease) {
+               unlink(hash, previous, lease);
+               if (!leakLogged_) {
+                  leakLogged_ = true;
+                  ReportingUtils.logMessage("Warning: direct buffer of "
+                          + lease.block.capacity() + " bytes was never released");
+               }
+               returnBlock(lease.block);
+               break;
+            }
+            previous = l;
+         }
+      }
+   }
+
+   private void trimIdle(long bytes) {
+      for (int i = idle_.size() - 1; i >= 0 && bytes > 0; i--) {
+         while (bytes > 0 && !idle_.get(i).isEmpty()) {
+            int size = idle_.get(i).pop().capacity();
+            pooledBytes_ -= size;
+            bytes -= size;
+         }
+      }
+   }
+}
@@ -0,0 +1,156 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageIndexMap.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Open addressing hash map from ImageKey keys to non-negative longs (file
+ * offsets), with neither keys nor values boxed. Same threading rules as
+ * ImageKeyMap: one writing thread, any number of reading threads.
+ */
+public class ImageIndexMap {
+
+   public static final long NO_VALUE = -1L;
+
+   private static final int DEFAULT_CAPACITY = 64;
+
+   // As in ImageKeyMap, entries go through atomic arrays so that a reader
+   // that sees a key also sees its value (and never half of a long)
+   private static class Table {
+      final AtomicLongArray keys;
+      final AtomicLongArray values;
+
+      Table(int capacity) {
+         keys = new AtomicLongArray(capacity);
+         for (int i = 0; i < capacity; i++) {
+            keys.set(i, ImageKey.NO_KEY);
+         }
+         values = new AtomicLongArray(capacity);
+      }
+   }
+
+   private volatile Table table_;
+   private volatile int size_ = 0;
+
+   public ImageIndexMap() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   /**
+    * @param expectedSize number of entries the map should hold before growing
+    */
+   public ImageIndexMap(int expectedSize) {
+      int capacity = DEFAULT_CAPACITY;
+      while (capacity < 2 * expectedSize) {
+         capacity *= 2;
+      }
+      table_ = new Table(capacity);
+   }
+
+   /**
+    * @return the value stored under key, or NO_VALUE
+    */
+   public long get(long key) {
+      if (size_ == 0 || key == ImageKey.NO_KEY) {
+         return NO_VALUE;
+      }
+      Table table = table_;
+      int mask = table.keys.length() - 1;
+      for (int i = ImageKeyMap.slot(key, mask); ; i = (i + 1) & mask) {
+         long k = table.keys.get(i);
+         if (k == key) {
+            return table.values.get(i);
+         }
+         if (k == ImageKey.NO_KEY) {
+            return NO_VALUE;
+         }
+      }
+   }
+
+   public boolean containsKey(long key) {
+      return get(key) != NO_VALUE;
+   }
+
+   /**
+    * Stores value under key, replacing any previous value
+    */
+   public void put(long key, long value) {
+      if (value < 0 || key == ImageKey.NO_KEY) {
+         throw new IllegalArgumentException("ImageIndexMap can only hold non-negative values");
+      }
+      if (2 * (size_ + 1) > table_.keys.length()) {
+         resize(2 * table_.keys.length());
+      }
+      Table table = table_;
+      int mask = table.keys.length() - 1;
+      for (int i = ImageKeyMap.slot(key, mask); ; i = (i + 1) & mask) {
+         long k = table.keys.get(i);
+         if (k == key) {
+            table.values.set(i, value);
+            return;
+         }
+         if (k == ImageKey.NO_KEY) {
+            table.values.set(i, value);
+            table.keys.set(i, key);
+            size_++;
+            return;
+         }
+      }
+   }
+
+   private void resize(int capacity) {
+      Table old = table_;
+      Table table = new Table(capacity);
+      int mask = capacity - 1;
+      for (int j = 0; j < old.keys.length(); j++) {
+         long key = old.keys.get(j);
+         if (key != ImageKey.NO_KEY) {
+            int i = ImageKeyMap.slot(key, mask);
+            while (table.keys.get(i) != ImageKey.NO_KEY) {
+               i = (i + 1) & mask;
+            }
+            table.keys.set(i, key);
+            table.values.set(i, old.values.get(j));
+         }
+      }
+      table_ = table;
+   }
+
+   public int size() {
+      return size_;
+   }
+
+   /**
+    * @return all keys, in no particular order
+    */
+   public long[] keys() {
+      Table table = table_;
+      long[] keys = new long[size_];
+      int n = 0;
+      for (int i = 0; i < table.keys.length() && n < keys.length; i++) {
+         if (table.keys.get(i) != ImageKey.NO_KEY) {
+            keys[n++] = table.keys.get(i);
+         }
+      }
+      return n == keys.length ? keys : Arrays.copyOf(keys, n);
+   }
+}
@@ -0,0 +1,228 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageKey.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Image coordinates (channel, slice, frame, position) packed into a single
+ * long, for use as a key in place of the "c_s_f_p" labels generated by
+ * MDUtils.generateLabel. Bits 0-11 hold the channel, 12-27 the slice,
+ * 28-41 the position and 42-63 the frame. The MAX_*_INDEX constants are
+ * the largest index each field can hold; the one combination of all of
+ * them together is NO_KEY and so is not a valid key either.
+ */
+public final class ImageKey {
+
+   public static final long NO_KEY = -1L;
+
+   public static final int MAX_CHANNEL_INDEX = (1 << 12) - 1;
+   public static final int MAX_SLICE_INDEX = (1 << 16) - 1;
+   public static final int MAX_POSITION_INDEX = (1 << 14) - 1;
+   public static final int MAX_FRAME_INDEX = (1 << 22) - 1;
+
+   private static final int SLICE_SHIFT = 12;
+   private static final int POSITION_SHIFT = 28;
+   private static final int FRAME_SHIFT = 42;
+
+   private ImageKey() {
+   }
+
+   /**
+    * @throws IllegalArgumentException if the indices can't be packed (see
+    * isValid). Use fromTags for indices that come from image metadata.
+    */
+   public static long pack(int channel, int slice, int frame, int position) {
+      long key = packIfValid(channel, slice, frame, position);
+      if (key == NO_KEY) {
+         throw new IllegalArgumentException(getRangeMessage(channel, slice, frame, position));
+      }
+      return key;
+   }
+
+   /**
+    * As pack, but returns NO_KEY instead of throwing for indices that can't
+    * belong to any stored image (e.g. -1), for use in lookups
+    */
+   public static long packIfValid(int channel, int slice, int frame, int position) {
+      if (channel < 0 || channel > MAX_CHANNEL_INDEX || slice < 0 || slice > MAX_SLICE_INDEX
+              || frame < 0 || frame > MAX_FRAME_INDEX || position < 0 || position > MAX_POSITION_INDEX) {
+         return NO_KEY;
+      }
+      return channel | ((long) slice << SLICE_SHIFT) | ((long) position << POSITION_SHIFT)
+              | ((long) frame << FRAME_SHIFT);
+   }
+
+   /**
+    * @return whether the indices can be packed into a key
+    */
+   public static boolean isValid(int channel, int slice, int frame, int position) {
+      return packIfValid(channel, slice, frame, position) != NO_KEY;
+   }
+
+   private static String getRangeMessage(int channel, int slice, int frame, int position) {
+      return "Image indices " + MDUtils.generateLabel(channel, slice, frame, position)
+              + " (channel_slice_frame_position) are out of range. Images can have at most "
+              + "channel index " + MAX_CHANNEL_INDEX + ", slice index " + MAX_SLICE_INDEX
+              + ", frame index " + MAX_FRAME_INDEX + " and position index " + MAX_POSITION_INDEX;
+   }
+
+   public static int getChannel(long key) {
+      return (int) (key & 0xfff);
+   }
+
+   public static int getSlice(long key) {
+      return (int) ((key >>> SLICE_SHIFT) & 0xffff);
+   }
+
+   public static int getFrame(long key) {
+      return (int) (key >>> FRAME_SHIFT);
+   }
+
+   public static int getPosition(long key) {
+      return (int) ((key >>> POSITION_SHIFT) & 0x3fff);
+   }
+
+   /**
+    * @throws MMException if the indices of the image can't be packed into a
+    * key, so that it can't be stored
+    */
+   public static long fromTags(JSONObject tags) throws JSONException, MMException {
+      int channel = MDUtils.getChannelIndex(tags);
+      int slice = MDUtils.getSliceIndex(tags);
+      int frame = MDUtils.getFrameIndex(tags);
+      int position = MDUtils.getPositionIndex(tags);
+      long key = packIfValid(channel, slice, frame, position);
+      if (key == NO_KEY) {
+         throw new MMException(getRangeMessage(channel, slice, frame, position));
+      }
+      return key;
+   }
+
+   /**
+    * Parses a "c_s_f_p" label without splitting it into Strings
+    */
+   public static long fromLabel(String label) {
+      int[] indices = new int[4];
+      int index = 0;
+      int value = 0;
+      for (int i = 0; i < label.length(); i++) {
+         char c = label.charAt(i);
+         if (c == '_') {
+            if (index == 3) {
+               throw new IllegalArgumentException("Invalid image label: " + label);
+            }
+            indices[index++] = value;
+            value = 0;
+         } else if (c >= '0' && c <= '9') {
+            value = 10 * value + (c - '0');
+         } else {
+            throw new IllegalArgumentException("Invalid image label: " + label);
+         }
+      }
+      if (index != 3) {
+         throw new IllegalArgumentException("Invalid image label: " + label);
+      }
+      indices[3] = value;
+      return pack(indices[0], indices[1], indices[2], indices[3]);
+   }
+
+   public static String toLabel(long key) {
+      return MDUtils.generateLabel(getChannel(key), getSlice(key), getFrame(key),
+              getPosition(key));
+   }
+
+   /**
+    * Returns a long whose (unsigned) order is the acquisition order of the
+    * image, as defined by ImageLabelComparator: position and frame in the
+    * order given by timeFirst, followed by channel and slice in the order
+    * given by slicesFirst
+    */
+   private static long sortKey(long key, boolean slicesFirst, boolean timeFirst) {
+      long outer = timeFirst
+              ? ((long) getPosition(key) << 22) | getFrame(key)
+              : ((long) getFrame(key) << 14) | getPosition(key);
+      long inner = slicesFirst
+              ? ((long) getChannel(key) << 16) | getSlice(key)
+              : ((long) getSlice(key) << 12) | getChannel(key);
+      return (outer << 28) | inner;
+   }
+
+   /**
+    * Compares keys by acquisition order, as ImageLabelComparator does labels
+    */
+   public static int compare(long key1, long key2, boolean slicesFirst, boolean timeFirst) {
+      long sortKey1 = sortKey(key1, slicesFirst, timeFirst) ^ Long.MIN_VALUE;
+      long sortKey2 = sortKey(key2, slicesFirst, timeFirst) ^ Long.MIN_VALUE;
+      return sortKey1 < sortKey2 ? -1 : (sortKey1 == sortKey2 ? 0 : 1);
+   }
+
+   /**
+    * Sorts keys into acquisition order, in place
+    */
+   public static void sort(long[] keys, boolean slicesFirst, boolean timeFirst) {
+      // Flipping the sign bit turns unsigned into signed order
+      for (int i = 0; i < keys.length; i++) {
+         keys[i] = sortKey(keys[i], slicesFirst, timeFirst) ^ Long.MIN_VALUE;
+      }
+      Arrays.sort(keys);
+      for (int i = 0; i < keys.length; i++) {
+         keys[i] = fromSortKey(keys[i] ^ Long.MIN_VALUE, slicesFirst, timeFirst);
+      }
+   }
+
+   private static long fromSortKey(long sortKey, boolean slicesFirst, boolean timeFirst) {
+      long outer = sortKey >>> 28;
+      long inner = sortKey & 0xfffffffL;
+      int channel, slice, frame, position;
+      if (timeFirst) {
+         position = (int) (outer >>> 22);
+         frame = (int) (outer & 0x3fffff);
+      } else {
+         frame = (int) (outer >>> 14);
+         position = (int) (outer & 0x3fff);
+      }
+      if (slicesFirst) {
+         channel = (int) (inner >>> 16);
+         slice = (int) (inner & 0xffff);
+      } else {
+         slice = (int) (inner >>> 12);
+         channel = (int) (inner & 0xfff);
+      }
+      return pack(channel, slice, frame, position);
+   }
+
+   /**
+    * String adapter for the TaggedImageStorage API: the labels of the given
+    * keys, iterating in acquisition order
+    */
+   public static Set<String> toLabelSet(long[] keys, boolean slicesFirst, boolean timeFirst) {
+      sort(keys, slicesFirst, timeFirst);
+      Set<String> labels = new LinkedHashSet<String>(2 * keys.length);
+      for (long key : keys) {
+         labels.add(toLabel(key));
+      }
+      return labels;
+   }
+}
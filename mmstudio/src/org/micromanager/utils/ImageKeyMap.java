@@ -0,0 +1,187 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageKeyMap.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing (linear probing) hash map from ImageKey keys to objects,
+ * without boxing of the keys.
+ *
+ * Supports a single writing thread with concurrent readers: the table is
+ * replaced as a whole when it grows, and a value is stored before its key,
+ * so a reader sees either no entry or a complete one. Removal is not
+ * supported, overwriting an entry is.
+ */
+public class ImageKeyMap<V> {
+
+   private static final int DEFAULT_CAPACITY = 64;
+
+   // Entries are written and read through atomic arrays, so that a reader
+   // that sees a key also sees the value stored before it
+   private static class Table {
+      final AtomicLongArray keys;
+      final AtomicReferenceArray<Object> values;
+
+      Table(int capacity) {
+         keys = new AtomicLongArray(capacity);
+         for (int i = 0; i < capacity; i++) {
+            keys.set(i, ImageKey.NO_KEY);
+         }
+         values = new AtomicReferenceArray<Object>(capacity);
+      }
+   }
+
+   private volatile Table table_;
+   private volatile int size_ = 0;
+
+   public ImageKeyMap() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   /**
+    * @param expectedSize number of entries the map should hold before growing
+    */
+   public ImageKeyMap(int expectedSize) {
+      int capacity = DEFAULT_CAPACITY;
+      while (capacity < 2 * expectedSize) {
+         capacity *= 2;
+      }
+      table_ = new Table(capacity);
+   }
+
+   static int slot(long key, int mask) {
+      // Mix the bits, since the keys differ mostly in their upper fields
+      long h = key * 0x9e3779b97f4a7c15L;
+      return (int) (h ^ (h >>> 32)) & mask;
+   }
+
+   @SuppressWarnings("unchecked")
+   public V get(long key) {
+      if (size_ == 0 || key == ImageKey.NO_KEY) {
+         return null;
+      }
+      Table table = table_;
+      int mask = table.keys.length() - 1;
+      for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+         long k = table.keys.get(i);
+         if (k == key) {
+            return (V) table.values.get(i);
+         }
+         if (k == ImageKey.NO_KEY) {
+            return null;
+         }
+      }
+   }
+
+   public boolean containsKey(long key) {
+      return get(key) != null;
+   }
+
+   /**
+    * @return the previous value stored under key, or null
+    */
+   @SuppressWarnings("unchecked")
+   public V put(long key, V value) {
+      if (value == null || key == ImageKey.NO_KEY) {
+         throw new IllegalArgumentException("ImageKeyMap can't hold null values or NO_KEY");
+      }
+      if (2 * (size_ + 1) > table_.keys.length()) {
+         resize(2 * table_.keys.length());
+      }
+      Table table = table_;
+      int mask = table.keys.length() - 1;
+      for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+         long k = table.keys.get(i);
+         if (k == key) {
+            V old = (V) table.values.get(i);
+            table.values.set(i, value);
+            return old;
+         }
+         if (k == ImageKey.NO_KEY) {
+            table.values.set(i, value);
+            table.keys.set(i, key);
+            size_++;
+            return null;
+         }
+      }
+   }
+
+   private void resize(int capacity) {
+      Table old = table_;
+      Table table = new Table(capacity);
+      int mask = capacity - 1;
+      for (int j = 0; j < old.keys.length(); j++) {
+         long key = old.keys.get(j);
+         if (key != ImageKey.NO_KEY) {
+            int i = slot(key, mask);
+            while (table.keys.get(i) != ImageKey.NO_KEY) {
+               i = (i + 1) & mask;
+            }
+            table.keys.set(i, key);
+            table.values.set(i, old.values.get(j));
+         }
+      }
+      table_ = table;
+   }
+
+   public int size() {
+      return size_;
+   }
+
+   public void clear() {
+      table_ = new Table(DEFAULT_CAPACITY);
+      size_ = 0;
+   }
+
+   /**
+    * @return all keys, in no particular order
+    */
+   public long[] keys() {
+      Table table = table_;
+      long[] keys = new long[size_];
+      int n = 0;
+      for (int i = 0; i < table.keys.length() && n < keys.length; i++) {
+         if (table.keys.get(i) != ImageKey.NO_KEY) {
+            keys[n++] = table.keys.get(i);
+         }
+      }
+      return n == keys.length ? keys : Arrays.copyOf(keys, n);
+   }
+
+   /**
+    * @return all distinct values, in no particular order
+    */
+   @SuppressWarnings("unchecked")
+   public Set<V> values() {
+      Table table = table_;
+      Set<V> values = new HashSet<V>();
+      for (int i = 0; i < table.keys.length(); i++) {
+         if (table.keys.get(i) != ImageKey.NO_KEY && table.values.get(i) != null) {
+            values.add((V) table.values.get(i));
+         }
+      }
+      return values;
+   }
+}
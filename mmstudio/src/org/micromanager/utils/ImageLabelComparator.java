@@ -48,6 +48,16 @@ public class ImageLabelComparator implements Comparator<String> {
 
    @Override
    public int compare(String s1, String s2) {
+      try {
+         return ImageKey.compare(ImageKey.fromLabel(s1), ImageKey.fromLabel(s2),
+                 slicesFirst_, timeFirst_);
+      } catch (IllegalArgumentException ex) {
+         // Indices that don't fit in an ImageKey, e.g. negative ones
+         return compareSplitLabels(s1, s2);
+      }
+   }
+
+   private int compareSplitLabels(String s1, String s2) {
       //c_s_f_p
       String[] indices1 = s1.split("_");
       String[] indices2 = s2.split("_");
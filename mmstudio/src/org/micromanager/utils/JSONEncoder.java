@@ -0,0 +1,414 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          JSONEncoder.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Encodes JSONObjects as UTF-8 JSON text straight into a byte array that is
+ * reused for every object, instead of building a String with toString()
+ * and then converting it to bytes. The text is the same as that of
+ * JSONObject.toString() (or toString(indentFactor)), so it is read back by
+ * JSONObject unchanged. Image writers keep an encoder for as long as they
+ * write images, so that the metadata of an image costs no garbage beyond
+ * the formatting of its floating point numbers.
+ *
+ * An encoder created with asciiOnly escapes all non-ASCII characters
+ * (as \\uXXXX), for text files that are read in the platform's default
+ * encoding.
+ *
+ * Not thread safe; the encoded text is valid until the next reset().
+ */
+public final class JSONEncoder {
+
+   private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7',
+      '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+   private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+   private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+   private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+   private final boolean asciiOnly_;
+   private byte[] bytes_;
+   private int length_ = 0;
+
+   public JSONEncoder() {
+      this(false);
+   }
+
+   public JSONEncoder(boolean asciiOnly) {
+      asciiOnly_ = asciiOnly;
+      bytes_ = new byte[4096];
+   }
+
+   /**
+    * Discard the encoded text, keeping the memory for the next object
+    */
+   public JSONEncoder reset() {
+      length_ = 0;
+      return this;
+   }
+
+   /**
+    * @return number of bytes encoded since the last reset()
+    */
+   public int length() {
+      return length_;
+   }
+
+   /**
+    * Append obj as compact JSON text, as JSONObject.toString() writes it.
+    * Like toString(), this writes nested objects and arrays that hold a
+    * non-finite number as null.
+    * @throws JSONException if obj itself holds a non-finite number (where
+    * toString() returns null); nothing is appended then
+    */
+   public JSONEncoder append(JSONObject obj) throws JSONException {
+      return append(obj, 0);
+   }
+
+   /**
+    * Append obj as indented JSON text, as JSONObject.toString(indentFactor)
+    * writes it
+    * @throws JSONException if obj holds a non-finite number, at any depth;
+    * nothing is appended then
+    */
+   public JSONEncoder append(JSONObject obj, int indentFactor) throws JSONException {
+      int start = length_;
+      try {
+         writeObject(obj, indentFactor, 0);
+      } catch (JSONException ex) {
+         length_ = start;
+         throw ex;
+      }
+      return this;
+   }
+
+   /**
+    * Append text as it is, e.g. separators between encoded objects
+    */
+   public JSONEncoder append(String text) {
+      ensureCapacity(3 * text.length());
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         if (c < 0x80) {
+            bytes_[length_++] = (byte) c;
+         } else if (writeChar(c, i + 1 < text.length() ? text.charAt(i + 1) : 0)) {
+            i++;
+         }
+      }
+      return this;
+   }
+
+   public JSONEncoder appendByte(int b) {
+      ensureCapacity(1);
+      bytes_[length_++] = (byte) b;
+      return this;
+   }
+
+   /**
+    * @return the encoded text, valid until the next reset() and not to be
+    * modified
+    */
+   public ByteBuffer getBuffer() {
+      return ByteBuffer.wrap(bytes_, 0, length_);
+   }
+
+   /**
+    * @return a copy of the encoded text in a direct buffer leased from the
+    * DirectBufferPool, which has to be released once it has been written
+    */
+   public ByteBuffer toPooledBuffer() {
+      ByteBuffer buffer = DirectBufferPool.getInstance().lease(length_);
+      buffer.put(bytes_, 0, length_);
+      buffer.rewind();
+      return buffer;
+   }
+
+   public void writeTo(OutputStream out) throws IOException {
+      out.write(bytes_, 0, length_);
+   }
+
+   /**
+    * @return the encoded text as a String, mostly for testing
+    */
+   @Override
+   public String toString() {
+      try {
+         return new String(bytes_, 0, length_, "UTF-8");
+      } catch (UnsupportedEncodingException ex) {
+         throw new RuntimeException(ex); // UTF-8 is always supported
+      }
+   }
+
+   private void ensureCapacity(int extra) {
+      if (length_ + extra > bytes_.length) {
+         byte[] bytes = new byte[Math.max(2 * bytes_.length, length_ + extra)];
+         System.arraycopy(bytes_, 0, bytes, 0, length_);
+         bytes_ = bytes;
+      }
+   }
+
+   private void writeIndent(int indent) {
+      ensureCapacity(indent);
+      for (int i = 0; i < indent; i++) {
+         bytes_[length_++] = ' ';
+      }
+   }
+
+   private void writeObject(JSONObject obj, int indentFactor, int indent)
+           throws JSONException {
+      int n = obj.length();
+      Iterator<String> keys = obj.keys();
+      appendByte('{');
+      if (indentFactor == 0) {
+         boolean first = true;
+         while (keys.hasNext()) {
+            if (!first) {
+               appendByte(',');
+            }
+            first = false;
+            String key = keys.next();
+            writeString(key);
+            appendByte(':');
+            writeValue(obj.opt(key), 0, 0);
+         }
+      } else if (n == 1) {
+         String key = keys.next();
+         writeString(key);
+         appendByte(':');
+         appendByte(' ');
+         writeValue(obj.opt(key), indentFactor, indent);
+      } else if (n > 1) {
+         int newIndent = indent + indentFactor;
+         boolean first = true;
+         while (keys.hasNext()) {
+            if (!first) {
+               appendByte(',');
+            }
+            first = false;
+            appendByte('\n');
+            writeIndent(newIndent);
+            String key = keys.next();
+            writeString(key);
+            appendByte(':');
+            appendByte(' ');
+            writeValue(obj.opt(key), indentFactor, newIndent);
+         }
+         appendByte('\n');
+         writeIndent(indent);
+      }
+      appendByte('}');
+   }
+
+   private void writeArray(JSONArray array, int indentFactor, int indent)
+           throws JSONException {
+      int n = array.length();
+      appendByte('[');
+      if (indentFactor == 0) {
+         for (int i = 0; i < n; i++) {
+            if (i > 0) {
+               appendByte(',');
+            }
+            writeValue(array.opt(i), 0, 0);
+         }
+      } else if (n == 1) {
+         writeValue(array.opt(0), indentFactor, indent);
+      } else if (n > 1) {
+         int newIndent = indent + indentFactor;
+         appendByte('\n');
+         for (int i = 0; i < n; i++) {
+            if (i > 0) {
+               appendByte(',');
+               appendByte('\n');
+            }
+            writeIndent(newIndent);
+            writeValue(array.opt(i), indentFactor, newIndent);
+         }
+         appendByte('\n');
+         writeIndent(indent);
+      }
+      appendByte(']');
+   }
+
+   private void writeValue(Object value, int indentFactor, int indent)
+           throws JSONException {
+      if (value == null || value.equals(null)) {
+         writeBytes(NULL);
+      } else if (value instanceof Integer || value instanceof Long
+              || value instanceof Short || value instanceof Byte) {
+         writeLong(((Number) value).longValue());
+      } else if (value instanceof Number) {
+         writeAscii(JSONObject.numberToString((Number) value));
+      } else if (value instanceof Boolean) {
+         writeBytes((Boolean) value ? TRUE : FALSE);
+      } else if ((value instanceof JSONObject || value instanceof JSONArray)
+              && indentFactor == 0) {
+         // In compact text, toString() of a nested value that can't be
+         // written returns null, which is then written as such
+         int start = length_;
+         try {
+            if (value instanceof JSONObject) {
+               writeObject((JSONObject) value, 0, 0);
+            } else {
+               writeArray((JSONArray) value, 0, 0);
+            }
+         } catch (JSONException ex) {
+            length_ = start;
+            writeBytes(NULL);
+         }
+      } else if (value instanceof JSONObject) {
+         writeObject((JSONObject) value, indentFactor, indent);
+      } else if (value instanceof JSONArray) {
+         writeArray((JSONArray) value, indentFactor, indent);
+      } else {
+         writeString(value.toString());
+      }
+   }
+
+   private void writeBytes(byte[] bytes) {
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, bytes_, length_, bytes.length);
+      length_ += bytes.length;
+   }
+
+   private void writeAscii(String s) {
+      ensureCapacity(s.length());
+      for (int i = 0; i < s.length(); i++) {
+         bytes_[length_++] = (byte) s.charAt(i);
+      }
+   }
+
+   private void writeLong(long value) {
+      if (value == Long.MIN_VALUE) {
+         writeAscii(Long.toString(value));
+         return;
+      }
+      ensureCapacity(20);
+      if (value < 0) {
+         bytes_[length_++] = '-';
+         value = -value;
+      }
+      int start = length_;
+      do {
+         bytes_[length_++] = (byte) ('0' + value % 10);
+         value /= 10;
+      } while (value != 0);
+      // Digits were written from the least significant one
+      for (int i = start, j = length_ - 1; i < j; i++, j--) {
+         byte b = bytes_[i];
+         bytes_[i] = bytes_[j];
+         bytes_[j] = b;
+      }
+   }
+
+   /**
+    * Write s as a JSON string, escaped as JSONObject.quote() does
+    */
+   private void writeString(String s) {
+      int n = s.length();
+      // Enough for every character to be escaped as \\uXXXX
+      ensureCapacity(6 * n + 2);
+      byte[] bytes = bytes_;
+      int pos = length_;
+      bytes[pos++] = '"';
+      char previous = 0;
+      for (int i = 0; i < n; i++) {
+         char c = s.charAt(i);
+         if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\' && c != '/') {
+            bytes[pos++] = (byte) c;
+         } else if (c == '"' || c == '\\') {
+            bytes[pos++] = '\\';
+            bytes[pos++] = (byte) c;
+         } else if (c == '/') {
+            if (previous == '<') {
+               bytes[pos++] = '\\';
+            }
+            bytes[pos++] = '/';
+         } else if (c == '\b') {
+            bytes[pos++] = '\\';
+            bytes[pos++] = 'b';
+         } else if (c == '\t') {
+            bytes[pos++] = '\\';
+            bytes[pos++] = 't';
+         } else if (c == '\n') {
+            bytes[pos++] = '\\';
+            bytes[pos++] = 'n';
+         } else if (c == '\f') {
+            bytes[pos++] = '\\';
+            bytes[pos++] = 'f';
+         } else if (c == '\r') {
+            bytes[pos++] = '\\';
+            bytes[pos++] = 'r';
+         } else if (c < 0x20 || asciiOnly_) {
+            bytes[pos++] = '\\';
+            bytes[pos++] = 'u';
+            bytes[pos++] = HEX[(c >> 12) & 0xf];
+            bytes[pos++] = HEX[(c >> 8) & 0xf];
+            bytes[pos++] = HEX[(c >> 4) & 0xf];
+            bytes[pos++] = HEX[c & 0xf];
+         } else {
+            length_ = pos;
+            if (writeChar(c, i + 1 < n ? s.charAt(i + 1) : 0)) {
+               i++;
+            }
+            pos = length_;
+         }
+         previous = c;
+      }
+      bytes[pos++] = '"';
+      length_ = pos;
+   }
+
+   /**
+    * Write a non-ASCII character as UTF-8, with room for it already
+    * ensured. Unpaired surrogates are written as '?', as String.getBytes()
+    * does.
+    * @return true if c and next were written as a surrogate pair
+    */
+   private boolean writeChar(char c, char next) {
+      ensureCapacity(4);
+      byte[] bytes = bytes_;
+      if (c < 0x800) {
+         bytes[length_++] = (byte) (0xc0 | (c >> 6));
+         bytes[length_++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+         int codePoint = Character.toCodePoint(c, next);
+         bytes[length_++] = (byte) (0xf0 | (codePoint >> 18));
+         bytes[length_++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+         bytes[length_++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+         bytes[length_++] = (byte) (0x80 | (codePoint & 0x3f));
+         return true;
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+         bytes[length_++] = '?';
+      } else {
+         bytes[length_++] = (byte) (0xe0 | (c >> 12));
+         bytes[length_++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+         bytes[length_++] = (byte) (0x80 | (c & 0x3f));
+      }
+      return false;
+   }
+}
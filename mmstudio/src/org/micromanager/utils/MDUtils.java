@@ -10,6 +10,7 @@ import java.util.Iterator;
 import java.util.UUID;
 
 import mmcorej.Configuration;
+import mmcorej.ImageMetadata;
 import mmcorej.PropertySetting;
 import mmcorej.TaggedImage;
 
@@ -42,6 +43,9 @@ public class MDUtils {
    }
 
    public static JSONObject copy(JSONObject map) {
+      if (map instanceof ImageMetadata) {
+         return ((ImageMetadata) map).copy();
+      }
       try {
          return new JSONObject(map.toString());
       } catch (JSONException e) {
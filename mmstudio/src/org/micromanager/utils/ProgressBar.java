@@ -24,6 +24,7 @@
 package org.micromanager.utils;
 
 import java.awt.BorderLayout;
+import java.awt.GraphicsEnvironment;
 
 import javax.swing.BorderFactory;
 import javax.swing.JComponent;
@@ -37,15 +38,23 @@ public class ProgressBar extends JPanel {
    private JProgressBar progressBar;
    private JFrame frame;
 
+   /**
+    * Without a display (e.g. when data sets are processed from the command
+    * line) no window is shown, and progress is only tracked
+    */
    public ProgressBar (String windowName, int start, int end) {
       super(new BorderLayout());
+
+      progressBar = new JProgressBar(start,end);
+      progressBar.setValue(0);
+      if (GraphicsEnvironment.isHeadless()) {
+         return;
+      }
       
       frame = new JFrame(windowName);
       frame.setDefaultCloseOperation (JFrame.DISPOSE_ON_CLOSE);
       frame.setBounds(0,0,150 + 6 * windowName.length() ,100);
 
-      progressBar = new JProgressBar(start,end);
-      progressBar.setValue(0);
       JPanel panel = new JPanel(new BorderLayout());
       panel.add(progressBar, BorderLayout.CENTER);
       add(panel, BorderLayout.CENTER);
@@ -66,7 +75,9 @@ public class ProgressBar extends JPanel {
 
    @Override
    public void setVisible(boolean visible) {
-      frame.setVisible(visible);
+      if (frame != null) {
+         frame.setVisible(visible);
+      }
    }
 
     public void setRange(int min, int max) {
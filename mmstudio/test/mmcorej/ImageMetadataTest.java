@@ -0,0 +1,244 @@
+package mmcorej;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImageMetadataTest {
+   private static ImageMetadata sample() throws JSONException {
+      ImageMetadata md = new ImageMetadata();
+      md.put("ChannelIndex", 1);
+      md.put("SliceIndex", 2);
+      md.put("FrameIndex", 3);
+      md.put("PositionIndex", 0);
+      md.put("Width", 512);
+      md.put("Height", 256);
+      md.put("PixelType", "GRAY16");
+      md.put("ElapsedTime-ms", 1234.5);
+      md.put("Exposure-ms", 10.0);
+      md.put("Camera-Binning", "1");
+      md.put("Core-Focus", 12.25);
+      md.put("Count", 7L);
+      md.put("Flag", true);
+      md.put("Missing", JSONObject.NULL);
+      md.put("Text", "a \"quoted\" \\ value\n");
+      return md;
+   }
+
+   private static Set<String> keySet(JSONObject o) {
+      Set<String> keys = new HashSet<String>();
+      Iterator<String> it = o.keys();
+      while (it.hasNext()) {
+         assertTrue(keys.add(it.next()));
+      }
+      return keys;
+   }
+
+   /**
+    * Text of a single key and value, as JSONObject writes it
+    */
+   private static String jsonMember(String key, Object value) throws JSONException {
+      String text = new JSONObject().put(key, value).toString();
+      return text.substring(1, text.length() - 1);
+   }
+
+   @Test
+   public void typedTagsRoundTrip() throws JSONException {
+      ImageMetadata md = sample();
+      assertEquals(1, md.getInt("ChannelIndex"));
+      assertEquals(2, md.getInt("SliceIndex"));
+      assertEquals(3, md.getInt("FrameIndex"));
+      assertEquals(0, md.getInt("PositionIndex"));
+      assertEquals(Integer.valueOf(512), md.opt("Width"));
+      assertEquals(256.0, md.getDouble("Height"), 0);
+      assertEquals("GRAY16", md.getString("PixelType"));
+      assertEquals(1234.5, md.getDouble("ElapsedTime-ms"), 0);
+      assertEquals(Double.valueOf(10.0), md.opt("Exposure-ms"));
+
+      // Longs in the int range are stored as ints, others are kept as they are
+      md.put("FrameIndex", 5L);
+      assertEquals(Integer.valueOf(5), md.opt("FrameIndex"));
+      md.put("FrameIndex", 1L << 40);
+      assertEquals(Long.valueOf(1L << 40), md.opt("FrameIndex"));
+      // Values of other types than expected are kept as they are
+      md.put("ChannelIndex", "3");
+      assertEquals("3", md.opt("ChannelIndex"));
+      md.put("ChannelIndex", 4);
+      assertEquals(Integer.valueOf(4), md.opt("ChannelIndex"));
+      assertEquals(keySet(sample()), keySet(md));
+
+      assertEquals(Integer.valueOf(2), md.remove("SliceIndex"));
+      assertFalse(md.has("SliceIndex"));
+      assertNull(md.opt("SliceIndex"));
+      md.put("PixelType", (Object) null);
+      assertFalse(md.has("PixelType"));
+   }
+
+   @Test
+   public void untypedTagsRoundTrip() throws JSONException {
+      ImageMetadata md = sample();
+      assertEquals("1", md.getString("Camera-Binning"));
+      assertEquals(12.25, md.getDouble("Core-Focus"), 0);
+      assertEquals(Long.valueOf(7), md.opt("Count"));
+      assertEquals(Boolean.TRUE, md.opt("Flag"));
+      assertTrue(md.isNull("Missing"));
+      assertTrue(md.has("Missing"));
+      assertEquals("a \"quoted\" \\ value\n", md.getString("Text"));
+      assertFalse(md.has("Absent"));
+      assertNull(md.opt("Absent"));
+      assertEquals("1", md.remove("Camera-Binning"));
+      assertFalse(md.has("Camera-Binning"));
+      assertNull(md.remove("Camera-Binning"));
+   }
+
+   @Test(expected = JSONException.class)
+   public void nonFiniteNumbersAreRejected() throws JSONException {
+      new ImageMetadata().put("ElapsedTime-ms", Double.NaN);
+   }
+
+   @Test
+   public void fromCopiesOtherObjects() throws JSONException {
+      ImageMetadata md = sample();
+      assertSame(md, ImageMetadata.from(md));
+      JSONObject json = new JSONObject(md.toString());
+      ImageMetadata fromJson = ImageMetadata.from(json);
+      assertEquals(keySet(json), keySet(fromJson));
+      for (String key : keySet(json)) {
+         assertEquals(key, json.opt(key), fromJson.opt(key));
+      }
+      assertEquals(0, ImageMetadata.from(null).length());
+   }
+
+   @Test
+   public void copiesAreIndependent() throws JSONException {
+      ImageMetadata md = sample();
+      ImageMetadata copy = md.copy();
+      copy.put("ChannelIndex", 9);
+      copy.put("Camera-Binning", "2");
+      copy.put("New", "x");
+      copy.remove("Text");
+      assertEquals(1, md.getInt("ChannelIndex"));
+      assertEquals("1", md.getString("Camera-Binning"));
+      assertFalse(md.has("New"));
+      assertTrue(md.has("Text"));
+
+      // Changing the original doesn't change a copy either
+      ImageMetadata second = md.copy();
+      md.put("Camera-Binning", "4");
+      md.remove("Flag");
+      assertEquals("1", second.getString("Camera-Binning"));
+      assertTrue(second.has("Flag"));
+      assertEquals(keySet(sample()), keySet(second));
+   }
+
+   @Test
+   public void tagsChangedByCopiesOfCopiesAreKeptApart() throws JSONException {
+      // Enough tags that copies share a base map and keep their own changes
+      ImageMetadata state = sample();
+      for (int i = 0; i < 200; i++) {
+         state.put("Device-Property" + i, "Value " + i);
+      }
+      ImageMetadata snapshot = state.copy();
+      Set<String> stateKeys = keySet(state);
+      ImageMetadata[] frames = new ImageMetadata[50];
+      for (int i = 0; i < frames.length; i++) {
+         frames[i] = snapshot.copy();
+         frames[i].put("ImageNumber", Integer.toString(i));
+         frames[i].put("Camera-Binning", Integer.toString(i));
+         frames[i].remove("Device-Property" + i);
+         frames[i].put("FrameIndex", i);
+      }
+      assertEquals(stateKeys, keySet(snapshot));
+      assertEquals("1", snapshot.getString("Camera-Binning"));
+      for (int i = 0; i < frames.length; i++) {
+         ImageMetadata frame = frames[i];
+         assertEquals(Integer.toString(i), frame.getString("ImageNumber"));
+         assertEquals(Integer.toString(i), frame.getString("Camera-Binning"));
+         assertFalse(frame.has("Device-Property" + i));
+         assertNull(frame.opt("Device-Property" + i));
+         assertEquals("Value " + (i + 1), frame.getString("Device-Property" + (i + 1)));
+         assertEquals(i, frame.getInt("FrameIndex"));
+         assertEquals(stateKeys.size(), frame.length());
+         assertEquals(frame.length(), keySet(frame).size());
+         assertEquals(frame.length(), new JSONObject(frame.toString()).length());
+      }
+
+      // Copies of a frame, with more changes than it has tags of its own
+      ImageMetadata processed = frames[3].copy();
+      for (int i = 0; i < 100; i++) {
+         processed.remove("Device-Property" + i);
+      }
+      processed.put("Device-Property3", "again");
+      ImageMetadata copy = processed.copy();
+      assertEquals(keySet(processed), keySet(copy));
+      assertEquals("again", copy.getString("Device-Property3"));
+      assertFalse(copy.has("Device-Property4"));
+      assertEquals(stateKeys.size() - 98, copy.length());
+      copy.put("Device-Property4", "back");
+      assertFalse(processed.has("Device-Property4"));
+      assertFalse(frames[3].has("Device-Property3"));
+      assertEquals("Value 4", frames[3].getString("Device-Property4"));
+   }
+
+   @Test
+   public void nestedValuesAreCopied() throws JSONException {
+      ImageMetadata md = sample();
+      md.put("Summary", new JSONObject().put("Prefix", "acq"));
+      md.put("List", new JSONArray("[1,2]"));
+      ImageMetadata copy = md.copy();
+      copy.getJSONObject("Summary").put("Prefix", "changed");
+      copy.getJSONArray("List").put(3);
+      assertEquals("acq", md.getJSONObject("Summary").getString("Prefix"));
+      assertEquals(2, md.getJSONArray("List").length());
+
+      md.getJSONObject("Summary").put("Extra", 1);
+      assertFalse(copy.getJSONObject("Summary").has("Extra"));
+   }
+
+   @Test
+   public void keysAreIteratedOnce() throws JSONException {
+      ImageMetadata md = sample();
+      Set<String> keys = keySet(md);
+      assertEquals(md.length(), keys.size());
+      assertEquals(keySet(new JSONObject(md.toString())), keys);
+
+      Iterator<String> it = md.keys();
+      while (it.hasNext()) {
+         String key = it.next();
+         if (key.equals("FrameIndex") || key.equals("Flag")) {
+            it.remove();
+         }
+      }
+      assertFalse(md.has("FrameIndex"));
+      assertFalse(md.has("Flag"));
+      assertEquals(keys.size() - 2, md.length());
+   }
+
+   @Test
+   public void toStringMatchesJSONObject() throws JSONException {
+      ImageMetadata md = sample();
+      md.put("Summary", new JSONObject().put("Prefix", "acq </script>"));
+      md.put("List", new JSONArray("[1,2.5,\"three\"]"));
+      md.put("Unicode", "\u00B5m \u4E2D \u0001");
+      md.put("Whole", 3.0);
+      String text = md.toString();
+      JSONObject parsed = new JSONObject(text);
+      assertEquals(md.length(), parsed.length());
+      // Members are in a different order, but each is written the same way
+      int members = 0;
+      Iterator<String> keys = md.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         assertTrue(key, text.contains(jsonMember(key, md.opt(key))));
+         members++;
+      }
+      assertEquals(md.length(), members);
+      assertEquals(text.length(), new JSONObject(text).toString().length());
+      assertEquals("{}", new ImageMetadata().toString());
+   }
+}
@@ -0,0 +1,161 @@
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.utils.ImageIndexMap;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ReportingUtils;
+import static org.junit.Assert.*;
+
+public class DatasetIndexTest {
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private File dir_;
+
+   @Before
+   public void setUp() {
+      ReportingUtils.showErrorOn(false);
+      dir_ = folder.getRoot();
+   }
+
+   private void writeFile(String name, int length) throws IOException {
+      FileOutputStream out = new FileOutputStream(new File(dir_, name));
+      try {
+         out.write(new byte[length]);
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Index two files of three channels and two frames each, with images
+    * of position 1 in the second one
+    */
+   private void writeIndex(boolean finish) throws IOException {
+      writeFile("a.ome.tif", 1000);
+      writeFile("a_1.ome.tif", 2000);
+      DatasetIndex index = DatasetIndex.create(dir_.getPath());
+      int first = index.addFile("a.ome.tif", false);
+      int second = index.addFile("a_1.ome.tif", true);
+      assertEquals(0, first);
+      assertEquals(1, second);
+      for (int frame = 0; frame < 2; frame++) {
+         for (int channel = 0; channel < 3; channel++) {
+            index.addImage(first, ImageKey.pack(channel, 0, frame, 0), 100 + 10 * channel + frame);
+            index.addImage(second, ImageKey.pack(channel, 0, frame, 1), 200 + 10 * channel + frame);
+         }
+      }
+      // A later entry replaces an earlier one
+      index.addImage(first, ImageKey.pack(2, 0, 1, 0), 999);
+      if (finish) {
+         index.finish(dir_.getPath());
+      } else {
+         index.close();
+      }
+   }
+
+   private File indexFile() {
+      return new File(dir_, DatasetIndex.FILENAME);
+   }
+
+   @Test
+   public void indexRoundTrips() throws Exception {
+      writeIndex(true);
+      DatasetIndex index = DatasetIndex.read(dir_);
+      assertNotNull(index);
+      assertEquals(2, index.getNumFiles());
+      assertEquals(new File(dir_, "a.ome.tif"), index.getFile(0));
+      assertEquals(new File(dir_, "a_1.ome.tif"), index.getFile(1));
+      assertFalse(index.isBigTiff(0));
+      assertTrue(index.isBigTiff(1));
+      ImageIndexMap first = index.getIndexMap(0);
+      ImageIndexMap second = index.getIndexMap(1);
+      assertEquals(6, first.size());
+      assertEquals(6, second.size());
+      assertEquals(110, first.get(ImageKey.pack(1, 0, 0, 0)));
+      assertEquals(999, first.get(ImageKey.pack(2, 0, 1, 0)));
+      assertEquals(211, second.get(ImageKey.pack(1, 0, 1, 1)));
+      assertFalse(first.containsKey(ImageKey.pack(0, 0, 0, 1)));
+   }
+
+   @Test
+   public void missingOrUnsealedIndexIsNotUsed() throws Exception {
+      assertNull(DatasetIndex.read(dir_));
+      writeIndex(false);
+      assertTrue(indexFile().exists());
+      assertNull(DatasetIndex.read(dir_));
+   }
+
+   @Test
+   public void truncatedIndexIsNotUsed() throws Exception {
+      writeIndex(true);
+      long length = indexFile().length();
+      // Cut in the middle of the last seal, and right after the header
+      for (long truncated : new long[] {length - 3, 8, 5}) {
+         RandomAccessFile raf = new RandomAccessFile(indexFile(), "rw");
+         try {
+            raf.setLength(truncated);
+         } finally {
+            raf.close();
+         }
+         assertNull(DatasetIndex.read(dir_));
+      }
+   }
+
+   @Test
+   public void indexOfChangedFilesIsNotUsed() throws Exception {
+      writeIndex(true);
+      assertNotNull(DatasetIndex.read(dir_));
+      // E.g. a file that was appended to, or repaired, after the index was
+      // sealed
+      writeFile("a_1.ome.tif", 2001);
+      assertNull(DatasetIndex.read(dir_));
+      writeFile("a_1.ome.tif", 2000);
+      assertNotNull(DatasetIndex.read(dir_));
+      assertTrue(new File(dir_, "a.ome.tif").delete());
+      assertNull(DatasetIndex.read(dir_));
+   }
+
+   @Test
+   public void indexOfOtherVersionIsNotUsed() throws Exception {
+      writeIndex(true);
+      RandomAccessFile raf = new RandomAccessFile(indexFile(), "rw");
+      try {
+         raf.seek(4);
+         raf.writeInt(1);
+      } finally {
+         raf.close();
+      }
+      assertNull(DatasetIndex.read(dir_));
+   }
+
+   @Test
+   public void moreThan32767FilesAreIndexed() throws Exception {
+      // Files that don't exist have length 0, as they are sealed with
+      int numFiles = 40000;
+      DatasetIndex index = DatasetIndex.create(dir_.getPath());
+      for (int i = 0; i < numFiles; i++) {
+         assertEquals(i, index.addFile("f" + i + ".ome.tif", false));
+      }
+      index.addImage(32767, ImageKey.pack(0, 0, 1, 0), 32767);
+      index.addImage(32768, ImageKey.pack(0, 0, 2, 0), 32768);
+      index.addImage(numFiles - 1, ImageKey.pack(0, 0, 3, 0), 39999);
+      index.finish(dir_.getPath());
+
+      DatasetIndex read = DatasetIndex.read(dir_);
+      assertNotNull(read);
+      assertEquals(numFiles, read.getNumFiles());
+      assertEquals(new File(dir_, "f32768.ome.tif"), read.getFile(32768));
+      assertEquals(32767, read.getIndexMap(32767).get(ImageKey.pack(0, 0, 1, 0)));
+      assertEquals(32768, read.getIndexMap(32768).get(ImageKey.pack(0, 0, 2, 0)));
+      assertEquals(39999, read.getIndexMap(numFiles - 1).get(ImageKey.pack(0, 0, 3, 0)));
+      assertEquals(0, read.getIndexMap(0).size());
+   }
+}
@@ -0,0 +1,172 @@
+package org.micromanager.acquisition;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.utils.ReportingUtils;
+import static org.junit.Assert.*;
+
+public class ImageArenaTest {
+   // Planes of 8 MB with a budget of 130 MB: two 64 MB slabs fit in memory
+   // (on a 64 bit JVM), so writing 40 of them spills most of them
+   private static final int PLANE_PIXELS = 4 * 1024 * 1024;
+   private static final int BUDGET_MB = 130;
+   private static final long BUDGET_BYTES = BUDGET_MB * 1024L * 1024L;
+   // Memory an idle slab may keep after all arenas are closed
+   private static final long FREE_SLAB_BYTES = 64L * 1024 * 1024;
+
+   private int oldBudgetMB_;
+   private long oldAllocatedBytes_;
+   private final List<ImageArena> arenas_ = new ArrayList<ImageArena>();
+
+   @Before
+   public void setUp() {
+      ReportingUtils.showErrorOn(false);
+      oldBudgetMB_ = ImageArena.getBudgetMB();
+      oldAllocatedBytes_ = ImageArena.getAllocatedBytes();
+      ImageArena.setBudgetMB(BUDGET_MB);
+   }
+
+   @After
+   public void tearDown() {
+      for (ImageArena arena : arenas_) {
+         arena.close();
+      }
+      ImageArena.setBudgetMB(oldBudgetMB_);
+   }
+
+   private ImageArena newArena() {
+      ImageArena arena = new ImageArena();
+      arenas_.add(arena);
+      return arena;
+   }
+
+   private static short[] plane(int seed) {
+      short[] pixels = new short[PLANE_PIXELS];
+      for (int i = 0; i < pixels.length; i++) {
+         pixels[i] = (short) (31 * i + seed);
+      }
+      return pixels;
+   }
+
+   private static String tags(int seed) {
+      return "{\"FrameIndex\":" + seed + ",\"Note\":\"\u00b5m " + seed + "\"}";
+   }
+
+   private static List<ImageArena.Record> addPlanes(ImageArena arena, int first, int count) {
+      List<ImageArena.Record> records = new ArrayList<ImageArena.Record>();
+      for (int i = first; i < first + count; i++) {
+         records.add(arena.add(plane(i), tags(i)));
+         assertTrue(ImageArena.getAllocatedBytes() <= BUDGET_BYTES);
+      }
+      return records;
+   }
+
+   private static void assertPlanes(ImageArena arena, List<ImageArena.Record> records, int first)
+         throws IOException {
+      for (int i = 0; i < records.size(); i++) {
+         ImageArena.Record record = records.get(i);
+         // Arrays.equals, since assertArrayEquals compares element by
+         // element through reflection
+         assertTrue(Arrays.equals(plane(first + i), (short[]) arena.readPixels(record)));
+         assertEquals(tags(first + i), arena.readTags(record));
+      }
+   }
+
+   @Test
+   public void spilledImagesAreReadBack() throws Exception {
+      long spilledBefore = ImageArena.getSpilledBytes();
+      ImageArena arena = newArena();
+      List<ImageArena.Record> records = addPlanes(arena, 0, 40);
+      assertTrue(ImageArena.getSpilledBytes() - spilledBefore >= 40L * 2 * PLANE_PIXELS - BUDGET_BYTES);
+      assertPlanes(arena, records, 0);
+
+      // Bytes and ints come back as they went in
+      byte[] bytes = new byte[1000];
+      bytes[999] = 7;
+      int[] ints = new int[] {1, -2, Integer.MAX_VALUE};
+      ImageArena.Record byteRecord = arena.add(bytes, "{}");
+      ImageArena.Record intRecord = arena.add(ints, "");
+      addPlanes(arena, 40, 20);
+      assertArrayEquals(bytes, (byte[]) arena.readPixels(byteRecord));
+      assertArrayEquals(ints, (int[]) arena.readPixels(intRecord));
+      assertEquals("", arena.readTags(intRecord));
+
+      arena.close();
+      assertTrue(ImageArena.getAllocatedBytes() <= oldAllocatedBytes_ + FREE_SLAB_BYTES);
+      try {
+         arena.readPixels(records.get(0));
+         fail("Read an image of a closed arena");
+      } catch (IOException expected) {
+      }
+   }
+
+   @Test
+   public void arenasShareTheBudget() throws Exception {
+      ImageArena first = newArena();
+      ImageArena second = newArena();
+      List<ImageArena.Record> firstRecords = new ArrayList<ImageArena.Record>();
+      List<ImageArena.Record> secondRecords = new ArrayList<ImageArena.Record>();
+      for (int i = 0; i < 20; i++) {
+         firstRecords.addAll(addPlanes(first, i, 1));
+         secondRecords.addAll(addPlanes(second, 100 + i, 1));
+      }
+      assertPlanes(first, firstRecords, 0);
+      assertPlanes(second, secondRecords, 100);
+
+      // Closing one arena makes room for the other without spilling
+      first.close();
+      long spillCount = ImageArena.getSpillCount();
+      addPlanes(second, 200, 7);
+      assertEquals(spillCount, ImageArena.getSpillCount());
+      assertPlanes(second, secondRecords, 100);
+   }
+
+   @Test
+   public void arenaCanBeClosedWhileItIsSpilled() throws Exception {
+      // Closed after increasing delays, so that the spill of its slab by
+      // another arena is under way in some of the rounds
+      final short[][] planes = new short[14][];
+      for (int i = 0; i < planes.length; i++) {
+         planes[i] = plane(50 + i);
+      }
+      for (int delayMs = 0; delayMs <= 64; delayMs = 2 * delayMs + 1) {
+         ImageArena closed = newArena();
+         final ImageArena other = newArena();
+         List<ImageArena.Record> closedRecords = addPlanes(closed, 0, 14);
+         final List<ImageArena.Record> otherRecords = new ArrayList<ImageArena.Record>();
+         final Throwable[] failure = new Throwable[1];
+         Thread adder = new Thread() {
+            @Override
+            public void run() {
+               try {
+                  for (int i = 0; i < planes.length; i++) {
+                     otherRecords.add(other.add(planes[i], tags(50 + i)));
+                  }
+               } catch (Throwable ex) {
+                  failure[0] = ex;
+               }
+            }
+         };
+         adder.start();
+         Thread.sleep(delayMs);
+         closed.close();
+         adder.join();
+         assertNull(String.valueOf(failure[0]), failure[0]);
+         assertPlanes(other, otherRecords, 50);
+         for (ImageArena.Record record : closedRecords) {
+            try {
+               closed.readTags(record);
+               fail("Read an image of a closed arena");
+            } catch (IOException expected) {
+            }
+         }
+         other.close();
+         assertTrue(ImageArena.getAllocatedBytes() <= oldAllocatedBytes_ + FREE_SLAB_BYTES);
+      }
+   }
+}
@@ -0,0 +1,222 @@
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.MDUtils;
+import org.micromanager.utils.ReportingUtils;
+import static org.junit.Assert.*;
+
+public class MetadataTableTest {
+   private static final String[] CHANNELS = {"DAPI", "FITC", "Cy5"};
+   private static final int FRAMES = 4;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Before
+   public void setUp() {
+      ReportingUtils.showErrorOn(false);
+   }
+
+   /**
+    * Metadata of the image of a channel and frame, in the row
+    * 3 * frame + channel
+    */
+   private static JSONObject tags(int channel, int frame) throws Exception {
+      JSONObject tags = new JSONObject();
+      tags.put("ChannelIndex", channel);
+      tags.put("SliceIndex", 0);
+      tags.put("FrameIndex", frame);
+      tags.put("PositionIndex", 0);
+      tags.put("Camera", "Cam \u00b5");
+      tags.put("Channel", CHANNELS[channel]);
+      tags.put("Exposure-ms", channel == 1 && frame == 2 ? 20 : 10);
+      tags.put("ElapsedTime-ms", 100.5 * frame + channel);
+      tags.put("XPositionUm", "12.5");
+      tags.put("Time", "12:00:0" + (3 * frame + channel));
+      if (frame == 0) {
+         tags.put("Optional", "first frame");
+      }
+      // A number that turns out not to be one, and a constant that changes
+      // to something else
+      tags.put("Mixed", frame < 3 ? Double.valueOf(frame + 0.5) : (Object) "n/a");
+      tags.put("Gain", frame < 2 ? (Object) 1 : "high");
+      return tags;
+   }
+
+   private static MetadataTable makeTable() throws Exception {
+      MetadataTable table = new MetadataTable();
+      for (int frame = 0; frame < FRAMES; frame++) {
+         for (int channel = 0; channel < CHANNELS.length; channel++) {
+            table.addImage(ImageKey.pack(channel, 0, frame, 0), tags(channel, frame));
+         }
+      }
+      return table;
+   }
+
+   private static Set<String> keySet(JSONObject o) {
+      Set<String> keys = new HashSet<String>();
+      Iterator<String> it = o.keys();
+      while (it.hasNext()) {
+         keys.add(it.next());
+      }
+      return keys;
+   }
+
+   /**
+    * Check that the table gives the values of the metadata as they are
+    * read back from a file
+    */
+   private static void assertTable(MetadataTable table) throws Exception {
+      assertEquals(CHANNELS.length * FRAMES, table.getNumImages());
+      Set<String> allKeys = new HashSet<String>();
+      for (int frame = 0; frame < FRAMES; frame++) {
+         for (int channel = 0; channel < CHANNELS.length; channel++) {
+            int row = 3 * frame + channel;
+            assertEquals(channel, table.getChannel(row));
+            assertEquals(0, table.getSlice(row));
+            assertEquals(frame, table.getFrame(row));
+            assertEquals(0, table.getPosition(row));
+            assertEquals(MDUtils.generateLabel(channel, 0, frame, 0), table.getLabel(row));
+            JSONObject tags = new JSONObject(tags(channel, frame).toString());
+            allKeys.addAll(keySet(tags));
+            for (String key : keySet(tags)) {
+               if (!key.equals("XPositionUm")) {
+                  assertEquals(key, tags.getString(key), table.getString(row, key));
+               }
+            }
+            assertNull(table.getString(row, "Absent"));
+         }
+      }
+      assertEquals(allKeys, table.getKeys());
+      assertEquals(new HashSet<String>(Arrays.asList("Channel", "ElapsedTime-ms",
+              "Exposure-ms", "Gain", "Mixed", "Optional", "Time")),
+              table.getChangingKeys());
+
+      // Stage positions are numbers, also if the metadata has them as text
+      assertEquals("12.5", table.getString(0, "XPositionUm"));
+      assertEquals(12.5, table.getNumber(0, "XPositionUm"), 0);
+      assertEquals(20, table.getNumber(7, "Exposure-ms"), 0);
+      assertEquals(1, table.getNumber(0, "Gain"), 0);
+      assertTrue(Double.isNaN(table.getNumber(9, "Gain")));
+      assertTrue(Double.isNaN(table.getNumber(0, "Channel")));
+      double[] elapsed = table.getNumbers("ElapsedTime-ms");
+      assertEquals(table.getNumImages(), elapsed.length);
+      assertEquals(100.5 * 3 + 2, elapsed[11], 0);
+      assertEquals(1.5, table.getNumbers("Mixed")[4], 0);
+      assertTrue(Double.isNaN(table.getNumbers("Mixed")[10]));
+      assertTrue(Double.isNaN(table.getNumbers("Optional")[0]));
+   }
+
+   @Test
+   public void valuesAreKeptPerImage() throws Exception {
+      assertTable(makeTable());
+   }
+
+   @Test
+   public void tableRoundTrips() throws Exception {
+      MetadataTable table = makeTable();
+      File dir = folder.getRoot();
+      table.write(dir.getPath());
+      MetadataTable read = MetadataTable.read(dir);
+      assertNotNull(read);
+      assertTable(read);
+      assertArrayEquals(table.find("Channel", "FITC"), read.find("Channel", "FITC"));
+   }
+
+   @Test
+   public void missingOrTruncatedTableIsNotRead() throws Exception {
+      File dir = folder.getRoot();
+      assertNull(MetadataTable.read(dir));
+      makeTable().write(dir.getPath());
+      File file = new File(dir, MetadataTable.FILENAME);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         raf.setLength(raf.length() - 5);
+      } finally {
+         raf.close();
+      }
+      assertNull(MetadataTable.read(dir));
+   }
+
+   @Test
+   public void rowsAreSelectedAndGrouped() throws Exception {
+      MetadataTable table = makeTable();
+      assertArrayEquals(new int[] {6, 7, 8}, table.select(-1, 0, 2, -1));
+      assertArrayEquals(new int[] {1, 4, 7, 10}, table.select(1, -1, -1, -1));
+      assertArrayEquals(new int[0], table.select(0, 0, FRAMES, 0));
+
+      // String, number, constant, index and absent keys
+      assertArrayEquals(new int[] {1, 4, 7, 10}, table.find("Channel", "FITC"));
+      assertArrayEquals(new int[] {7}, table.find("Exposure-ms", "20"));
+      assertArrayEquals(new int[] {7}, table.find("Exposure-ms", "20.0"));
+      assertEquals(11, table.find("Exposure-ms", "10").length);
+      assertEquals(12, table.find("Camera", "Cam \u00b5").length);
+      assertArrayEquals(new int[] {2, 5, 8, 11}, table.find("ChannelIndex", "2"));
+      assertArrayEquals(new int[] {0, 1, 2}, table.find("Optional", "first frame"));
+      assertEquals(9, table.find("Optional", null).length);
+      assertArrayEquals(new int[] {9, 10, 11}, table.find("Mixed", "n/a"));
+      assertArrayEquals(new int[0], table.find("Channel", "TRITC"));
+      assertArrayEquals(new int[0], table.find("Absent", "x"));
+      assertEquals(12, table.find("Absent", null).length);
+
+      Map<String, int[]> byExposure = table.groupBy("Exposure-ms");
+      assertEquals(Arrays.asList("10", "20"), Arrays.asList(byExposure.keySet().toArray()));
+      assertEquals(11, byExposure.get("10").length);
+      assertArrayEquals(new int[] {7}, byExposure.get("20"));
+      Map<String, int[]> byChannel = table.groupBy("Channel");
+      assertEquals(Arrays.asList(CHANNELS), Arrays.asList(byChannel.keySet().toArray()));
+      assertArrayEquals(new int[] {0, 3, 6, 9}, byChannel.get("DAPI"));
+      Map<String, int[]> byOptional = table.groupBy("Optional");
+      assertArrayEquals(new int[] {0, 1, 2}, byOptional.get("first frame"));
+      assertEquals(9, byOptional.get(null).length);
+      Map<String, int[]> byFrame = table.groupBy("FrameIndex");
+      assertEquals(FRAMES, byFrame.size());
+      assertArrayEquals(new int[] {9, 10, 11}, byFrame.get("3"));
+      assertEquals(1, table.groupBy("Camera").size());
+   }
+
+   @Test
+   public void keysWithTooManyValuesAreDropped() throws Exception {
+      MetadataTable table = new MetadataTable();
+      int numImages = MetadataTable.MAX_DISTINCT_VALUES + 10;
+      for (int frame = 0; frame < numImages; frame++) {
+         JSONObject tags = new JSONObject();
+         tags.put("FrameIndex", frame);
+         tags.put("Stamp", "t" + frame);
+         tags.put("Counter", frame);
+         tags.put("Parity", frame % 2 == 0 ? "even" : "odd");
+         table.addImage(ImageKey.pack(0, 0, frame, 0), tags);
+      }
+      // Text values are no longer kept once there are too many, numbers are
+      assertNull(table.getString(0, "Stamp"));
+      assertNull(table.getString(numImages - 1, "Stamp"));
+      assertEquals(0, table.find("Stamp", "t0").length);
+      assertEquals(Integer.toString(numImages - 1), table.getString(numImages - 1, "Counter"));
+      assertEquals("odd", table.getString(numImages - 1, "Parity"));
+      assertTrue(table.getKeys().contains("Stamp"));
+      assertEquals(new HashSet<String>(Arrays.asList("Counter", "Parity", "Stamp")),
+              table.getChangingKeys());
+
+      File dir = folder.getRoot();
+      table.write(dir.getPath());
+      MetadataTable read = MetadataTable.read(dir);
+      assertNotNull(read);
+      assertEquals(numImages, read.getNumImages());
+      assertNull(read.getString(5, "Stamp"));
+      assertEquals("5", read.getString(5, "Counter"));
+      assertEquals(table.getChangingKeys(), read.getChangingKeys());
+      assertEquals(table.getKeys(), read.getKeys());
+   }
+}
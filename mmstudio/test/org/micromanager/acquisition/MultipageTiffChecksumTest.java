@@ -0,0 +1,153 @@
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.RandomAccessFile;
+import mmcorej.TaggedImage;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.micromanager.utils.ImageKey;
+import org.micromanager.utils.ReportingUtils;
+import static org.junit.Assert.*;
+
+public class MultipageTiffChecksumTest {
+   private static final int WIDTH = 64;
+   private static final int HEIGHT = 48;
+   private static final int CHANNELS = 2;
+   private static final int FRAMES = 3;
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private static byte[] pixels(int channel, int frame, int seed) {
+      byte[] pix = new byte[WIDTH * HEIGHT];
+      for (int i = 0; i < pix.length; i++) {
+         pix[i] = (byte) (i * (seed + 1) + 31 * channel + 7 * frame);
+      }
+      return pix;
+   }
+
+   /**
+    * Write a data set of one file, overwriting the pixels of channel 1,
+    * frame 1 before it is finished
+    */
+   private File writeDataSet(boolean checksums) throws Exception {
+      ReportingUtils.showErrorOn(false);
+      JSONObject summary = new JSONObject();
+      summary.put("Prefix", "checksums");
+      summary.put("Width", WIDTH);
+      summary.put("Height", HEIGHT);
+      summary.put("PixelType", "GRAY8");
+      summary.put("Channels", CHANNELS);
+      summary.put("Slices", 1);
+      summary.put("Frames", FRAMES);
+      summary.put("Positions", 1);
+      File dir = new File(folder.getRoot(), "data");
+      // Written synchronously, since overwritePixels reads back the IFD
+      TaggedImageStorageMultipageTiff storage = new TaggedImageStorageMultipageTiff(
+              dir.getPath(), true, summary, false, true, false, false);
+      storage.setChecksums(checksums);
+      for (int frame = 0; frame < FRAMES; frame++) {
+         for (int channel = 0; channel < CHANNELS; channel++) {
+            JSONObject tags = new JSONObject(summary.toString());
+            tags.put("ChannelIndex", channel);
+            tags.put("SliceIndex", 0);
+            tags.put("FrameIndex", frame);
+            tags.put("PositionIndex", 0);
+            storage.putImage(new TaggedImage(pixels(channel, frame, 0), tags));
+         }
+      }
+      storage.overwritePixels(pixels(1, 1, 1), 1, 0, 1, 0);
+      storage.finished();
+      storage.close();
+      File[] files = dir.listFiles(new FileFilter() {
+         @Override
+         public boolean accept(File f) {
+            return f.getName().endsWith(".tif");
+         }
+      });
+      assertEquals(1, files.length);
+      return files[0];
+   }
+
+   @Test
+   public void checksumsAreReadFromTheIndexMap() throws Exception {
+      File file = writeDataSet(true);
+      MultipageTiffReader reader = new MultipageTiffReader(file);
+      try {
+         assertTrue(reader.hasChecksums());
+         for (int frame = 0; frame < FRAMES; frame++) {
+            for (int channel = 0; channel < CHANNELS; channel++) {
+               long key = ImageKey.pack(channel, 0, frame, 0);
+               assertTrue(reader.hasChecksum(key));
+               assertTrue(reader.verifyChecksum(key));
+            }
+         }
+         assertFalse(reader.hasChecksum(ImageKey.pack(0, 0, FRAMES, 0)));
+         // The checksum of the overwritten pixels replaces the original one
+         assertArrayEquals(pixels(1, 1, 1), (byte[]) reader.readPixels(ImageKey.pack(1, 0, 1, 0)));
+      } finally {
+         reader.close();
+      }
+   }
+
+   @Test
+   public void changedPixelsDontMatchTheirChecksum() throws Exception {
+      File file = writeDataSet(true);
+      byte[] pix = pixels(0, 2, 0);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         byte[] contents = new byte[(int) raf.length()];
+         raf.readFully(contents);
+         long offset = indexOf(contents, pix);
+         assertTrue(offset >= 0);
+         raf.seek(offset + pix.length / 2);
+         raf.write(~pix[pix.length / 2]);
+      } finally {
+         raf.close();
+      }
+
+      MultipageTiffReader reader = new MultipageTiffReader(file);
+      try {
+         long key = ImageKey.pack(0, 0, 2, 0);
+         assertFalse(reader.verifyChecksum(key));
+         assertTrue(reader.verifyChecksum(ImageKey.pack(1, 0, 2, 0)));
+         assertNotNull(reader.readImage(key));
+         reader.setVerifyChecksums(true);
+         assertNull(reader.readImage(key));
+         assertNotNull(reader.readImage(ImageKey.pack(1, 0, 2, 0)));
+      } finally {
+         reader.close();
+      }
+   }
+
+   @Test
+   public void filesWithoutChecksumsAlwaysVerify() throws Exception {
+      File file = writeDataSet(false);
+      MultipageTiffReader reader = new MultipageTiffReader(file);
+      try {
+         assertFalse(reader.hasChecksums());
+         long key = ImageKey.pack(1, 0, 1, 0);
+         assertFalse(reader.hasChecksum(key));
+         assertTrue(reader.verifyChecksum(key));
+         assertArrayEquals(pixels(1, 1, 1), (byte[]) reader.readPixels(key));
+      } finally {
+         reader.close();
+      }
+   }
+
+   private static int indexOf(byte[] contents, byte[] pattern) {
+      for (int i = 0; i + pattern.length <= contents.length; i++) {
+         int j = 0;
+         while (j < pattern.length && contents[i + j] == pattern[j]) {
+            j++;
+         }
+         if (j == pattern.length) {
+            return i;
+         }
+      }
+      return -1;
+   }
+}
@@ -0,0 +1,75 @@
+package org.micromanager.acquisition;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PixelChecksumTest {
+   private static byte[] randomBytes(int length, long seed) {
+      byte[] bytes = new byte[length];
+      new Random(seed).nextBytes(bytes);
+      return bytes;
+   }
+
+   private static long crc32(byte[] bytes, int offset, int length) {
+      CRC32 crc = new CRC32();
+      crc.update(bytes, offset, length);
+      return crc.getValue();
+   }
+
+   private static ByteBuffer direct(byte[] bytes) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+      buffer.put(bytes);
+      buffer.rewind();
+      return buffer;
+   }
+
+   @Test
+   public void checksumIsCRC32OfRemainingBytes() {
+      // Larger than the chunks direct buffers are copied in
+      byte[] bytes = randomBytes(200000, 1);
+      long expected = crc32(bytes, 0, bytes.length);
+      assertEquals(expected, PixelChecksum.compute(ByteBuffer.wrap(bytes)));
+      assertEquals(expected, PixelChecksum.compute(direct(bytes)));
+
+      ByteBuffer heap = ByteBuffer.wrap(bytes);
+      heap.position(10);
+      heap.limit(1000);
+      assertEquals(crc32(bytes, 10, 990), PixelChecksum.compute(heap));
+      ByteBuffer directPart = direct(bytes);
+      directPart.position(10);
+      directPart.limit(1000);
+      assertEquals(crc32(bytes, 10, 990), PixelChecksum.compute(directPart));
+      // A buffer that is a view of part of an array
+      assertEquals(crc32(bytes, 10, 990), PixelChecksum.compute(heap.slice()));
+   }
+
+   @Test
+   public void positionIsNotChanged() {
+      byte[] bytes = randomBytes(100000, 2);
+      for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.wrap(bytes), direct(bytes)}) {
+         buffer.position(3);
+         PixelChecksum.compute(buffer);
+         assertEquals(3, buffer.position());
+         assertEquals(bytes.length, buffer.limit());
+      }
+   }
+
+   @Test
+   public void buffersAreChecksummedInOrder() {
+      byte[] bytes = randomBytes(150000, 3);
+      List<ByteBuffer> strips = new ArrayList<ByteBuffer>();
+      int[] ends = {0, 1, 70000, 70000, 140000, bytes.length};
+      for (int i = 1; i < ends.length; i++) {
+         byte[] strip = Arrays.copyOfRange(bytes, ends[i - 1], ends[i]);
+         strips.add(i % 2 == 0 ? ByteBuffer.wrap(strip) : direct(strip));
+      }
+      assertEquals(crc32(bytes, 0, bytes.length), PixelChecksum.compute(strips));
+      assertEquals(crc32(bytes, 0, 0), PixelChecksum.compute(new ArrayList<ByteBuffer>()));
+   }
+}
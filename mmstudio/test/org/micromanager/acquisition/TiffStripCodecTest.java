@@ -0,0 +1,117 @@
+package org.micromanager.acquisition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Inflater;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TiffStripCodecTest {
+   private static byte[] randomPixels(int length, long seed) {
+      // Smooth data, as from a camera, so that differencing matters
+      Random random = new Random(seed);
+      byte[] pixels = new byte[length];
+      int value = 0;
+      for (int i = 0; i < length; i++) {
+         value += random.nextInt(7) - 3;
+         pixels[i] = (byte) value;
+      }
+      return pixels;
+   }
+
+   private static byte[] roundTrip(byte[] pixels, int width, int height, int rowsPerStrip,
+         int bytesPerSample, int samplesPerPixel, ByteOrder order) throws IOException {
+      int rowBytes = width * bytesPerSample * samplesPerPixel;
+      byte[][] strips = TiffStripCodec.encode(ByteBuffer.wrap(pixels), rowBytes, height,
+            rowsPerStrip, bytesPerSample, samplesPerPixel, order);
+      assertEquals((height + rowsPerStrip - 1) / rowsPerStrip, strips.length);
+      // Decoding starts at the position of the destination
+      ByteBuffer destination = ByteBuffer.allocate(pixels.length + 3);
+      destination.position(3);
+      TiffStripCodec.decode(Arrays.asList(strips), destination, rowBytes, height,
+            rowsPerStrip, bytesPerSample, samplesPerPixel, true, order);
+      return Arrays.copyOfRange(destination.array(), 3, destination.capacity());
+   }
+
+   @Test
+   public void pixelsSurviveRoundTrip() throws IOException {
+      int[][] shapes = {
+         // width, height, rowsPerStrip, bytesPerSample, samplesPerPixel
+         {64, 48, 16, 1, 1},
+         {64, 48, 16, 2, 1},
+         {33, 17, 5, 2, 1},   // last strip is partial
+         {33, 17, 17, 2, 1},  // single strip
+         {33, 17, 100, 1, 1}, // more rows per strip than rows
+         {20, 9, 1, 1, 3},    // one row per strip, RGB
+         {1, 7, 2, 2, 1},     // one pixel per row
+      };
+      for (int[] shape : shapes) {
+         for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            byte[] pixels = randomPixels(shape[0] * shape[1] * shape[3] * shape[4], shape[0]);
+            assertArrayEquals(Arrays.toString(shape) + " " + order, pixels,
+                  roundTrip(pixels, shape[0], shape[1], shape[2], shape[3], shape[4], order));
+         }
+      }
+   }
+
+   @Test
+   public void stripsAreIndependentDeflateStreams() throws Exception {
+      int width = 40;
+      int height = 10;
+      int rowsPerStrip = 4;
+      byte[] pixels = randomPixels(width * height, 1);
+      byte[][] strips = TiffStripCodec.encode(ByteBuffer.wrap(pixels), width, height,
+            rowsPerStrip, 1, 1, ByteOrder.BIG_ENDIAN);
+      // Each strip holds horizontally differenced rows of its own
+      for (int strip = 0; strip < strips.length; strip++) {
+         int start = strip * rowsPerStrip * width;
+         int length = Math.min(pixels.length, start + rowsPerStrip * width) - start;
+         Inflater inflater = new Inflater();
+         inflater.setInput(strips[strip]);
+         byte[] raw = new byte[length];
+         assertEquals(length, inflater.inflate(raw));
+         assertTrue(inflater.finished());
+         for (int i = 0; i < length; i++) {
+            byte expected = i % width == 0 ? pixels[start + i]
+                  : (byte) (pixels[start + i] - pixels[start + i - 1]);
+            assertEquals(expected, raw[i]);
+         }
+      }
+   }
+
+   @Test
+   public void deflateAndInflateRoundTrip() throws IOException {
+      byte[] empty = new byte[0];
+      assertArrayEquals(empty, TiffStripCodec.inflate(TiffStripCodec.deflate(empty), 0));
+      byte[] raw = randomPixels(100000, 2);
+      assertArrayEquals(raw, TiffStripCodec.inflate(TiffStripCodec.deflate(raw), raw.length));
+   }
+
+   @Test(expected = IOException.class)
+   public void truncatedStripIsRejected() throws IOException {
+      byte[] raw = randomPixels(10000, 3);
+      byte[] compressed = TiffStripCodec.deflate(raw);
+      TiffStripCodec.inflate(Arrays.copyOf(compressed, compressed.length / 2), raw.length);
+   }
+
+   @Test
+   public void threadCountCanChange() throws IOException {
+      int numThreads = TiffStripCodec.getNumThreads();
+      try {
+         TiffStripCodec.setNumThreads(1);
+         assertEquals(1, TiffStripCodec.getNumThreads());
+         byte[] pixels = randomPixels(64 * 64 * 2, 4);
+         assertArrayEquals(pixels, roundTrip(pixels, 64, 64, 8, 2, 1, ByteOrder.BIG_ENDIAN));
+         TiffStripCodec.setNumThreads(numThreads + 2);
+         assertEquals(numThreads + 2, TiffStripCodec.getNumThreads());
+         assertArrayEquals(pixels, roundTrip(pixels, 64, 64, 8, 2, 1, ByteOrder.BIG_ENDIAN));
+         TiffStripCodec.setNumThreads(0);
+         assertEquals(1, TiffStripCodec.getNumThreads());
+      } finally {
+         TiffStripCodec.setNumThreads(numThreads);
+      }
+   }
+}
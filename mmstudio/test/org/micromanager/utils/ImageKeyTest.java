@@ -0,0 +1,93 @@
+package org.micromanager.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ImageKeyTest {
+   @Test
+   public void packedIndicesRoundTrip() {
+      long key = ImageKey.pack(3, 200, 100000, 77);
+      assertEquals(3, ImageKey.getChannel(key));
+      assertEquals(200, ImageKey.getSlice(key));
+      assertEquals(100000, ImageKey.getFrame(key));
+      assertEquals(77, ImageKey.getPosition(key));
+      assertEquals("3_200_100000_77", ImageKey.toLabel(key));
+      assertEquals(key, ImageKey.fromLabel("3_200_100000_77"));
+
+      long max = ImageKey.pack(ImageKey.MAX_CHANNEL_INDEX - 1, ImageKey.MAX_SLICE_INDEX,
+            ImageKey.MAX_FRAME_INDEX, ImageKey.MAX_POSITION_INDEX);
+      assertTrue(max != ImageKey.NO_KEY);
+      assertEquals(ImageKey.MAX_CHANNEL_INDEX - 1, ImageKey.getChannel(max));
+      assertEquals(ImageKey.MAX_SLICE_INDEX, ImageKey.getSlice(max));
+      assertEquals(ImageKey.MAX_FRAME_INDEX, ImageKey.getFrame(max));
+      assertEquals(ImageKey.MAX_POSITION_INDEX, ImageKey.getPosition(max));
+      assertEquals(ImageKey.NO_KEY, ImageKey.packIfValid(-1, 0, 0, 0));
+      assertEquals(ImageKey.NO_KEY, ImageKey.packIfValid(ImageKey.MAX_CHANNEL_INDEX + 1, 0, 0, 0));
+      assertEquals(ImageKey.NO_KEY, ImageKey.packIfValid(ImageKey.MAX_CHANNEL_INDEX,
+            ImageKey.MAX_SLICE_INDEX, ImageKey.MAX_FRAME_INDEX, ImageKey.MAX_POSITION_INDEX));
+      assertTrue(ImageKey.isValid(ImageKey.MAX_CHANNEL_INDEX, 0, 0, 0));
+   }
+
+   @Test(expected = MMException.class)
+   public void outOfRangeTagsAreRejected() throws Exception {
+      JSONObject tags = new JSONObject();
+      MDUtils.setChannelIndex(tags, 0);
+      MDUtils.setSliceIndex(tags, 0);
+      MDUtils.setFrameIndex(tags, ImageKey.MAX_FRAME_INDEX + 1);
+      MDUtils.setPositionIndex(tags, 0);
+      ImageKey.fromTags(tags);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void malformedLabelIsRejected() {
+      ImageKey.fromLabel("1_2_3");
+   }
+
+   @Test
+   public void sortOrderMatchesLabelComparator() {
+      Random random = new Random(1);
+      for (int flags = 0; flags < 4; flags++) {
+         boolean slicesFirst = (flags & 1) != 0;
+         boolean timeFirst = (flags & 2) != 0;
+         List<String> labels = new ArrayList<String>();
+         long[] keys = new long[500];
+         for (int i = 0; i < keys.length; i++) {
+            keys[i] = ImageKey.pack(random.nextInt(4), random.nextInt(30),
+                  random.nextInt(2000), random.nextInt(10));
+            labels.add(ImageKey.toLabel(keys[i]));
+         }
+         ImageLabelComparator comparator = new ImageLabelComparator(slicesFirst, timeFirst);
+         Collections.sort(labels, comparator);
+         ImageKey.sort(keys, slicesFirst, timeFirst);
+         for (int i = 0; i < keys.length; i++) {
+            assertEquals(0, comparator.compare(labels.get(i), ImageKey.toLabel(keys[i])));
+         }
+      }
+   }
+
+   @Test
+   public void mapsStoreAndReplaceEntries() {
+      ImageKeyMap<String> map = new ImageKeyMap<String>();
+      ImageIndexMap indexMap = new ImageIndexMap();
+      for (int frame = 0; frame < 5000; frame++) {
+         long key = ImageKey.pack(frame % 3, frame % 7, frame, 0);
+         map.put(key, ImageKey.toLabel(key));
+         indexMap.put(key, 1000L * frame);
+      }
+      assertEquals(5000, map.size());
+      assertEquals(5000, indexMap.keys().length);
+      long key = ImageKey.pack(1, 2, 1234, 0);
+      assertEquals("1_2_1234_0", map.get(key));
+      assertEquals(1234000L, indexMap.get(key));
+      indexMap.put(key, 5L);
+      assertEquals(5L, indexMap.get(key));
+      assertEquals(5000, indexMap.size());
+      assertNull(map.get(ImageKey.pack(2, 2, 1234, 0)));
+      assertEquals(ImageIndexMap.NO_VALUE, indexMap.get(ImageKey.NO_KEY));
+   }
+}
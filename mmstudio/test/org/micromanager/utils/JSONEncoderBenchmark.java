@@ -0,0 +1,93 @@
+package org.micromanager.utils;
+
+import java.nio.ByteBuffer;
+import mmcorej.ImageMetadata;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the time it takes to turn image metadata of 1, 10 and 100 KB
+ * into the UTF-8 bytes that are written to a file: with toString() and
+ * String.getBytes(), as the writers used to do, and with a JSONEncoder.
+ * Only runs when the system property mm.benchmark is true, or from main().
+ */
+public class JSONEncoderBenchmark {
+   private static final int[] SIZES_KB = {1, 10, 100};
+
+   /**
+    * Metadata like that of a camera image, padded with device properties
+    * to the given size
+    */
+   private static JSONObject makeTags(int bytes) throws Exception {
+      JSONObject tags = new ImageMetadata();
+      tags.put("ChannelIndex", 1);
+      tags.put("SliceIndex", 2);
+      tags.put("FrameIndex", 3);
+      tags.put("PositionIndex", 0);
+      tags.put("Width", 512);
+      tags.put("Height", 512);
+      tags.put("PixelType", "GRAY16");
+      tags.put("ElapsedTime-ms", 1234.5678);
+      tags.put("Exposure-ms", 10.0);
+      for (int i = 0; tags.toString().length() < bytes; i++) {
+         tags.put("Device" + (i / 10) + "-Property" + i, "Value " + i * 31);
+      }
+      return tags;
+   }
+
+   private static long timeToString(JSONObject tags, int reps) throws Exception {
+      long start = System.nanoTime();
+      long bytes = 0;
+      for (int i = 0; i < reps; i++) {
+         bytes += tags.toString().getBytes("UTF-8").length;
+      }
+      assertTrue(bytes > 0);
+      return System.nanoTime() - start;
+   }
+
+   private static long timeEncoder(JSONEncoder encoder, JSONObject tags, int reps)
+         throws Exception {
+      long start = System.nanoTime();
+      long bytes = 0;
+      for (int i = 0; i < reps; i++) {
+         ByteBuffer buffer = encoder.reset().append(tags).toPooledBuffer();
+         bytes += buffer.limit();
+         DirectBufferPool.getInstance().release(buffer);
+      }
+      assertTrue(bytes > 0);
+      return System.nanoTime() - start;
+   }
+
+   private static void run() throws Exception {
+      JSONEncoder encoder = new JSONEncoder();
+      for (int kb : SIZES_KB) {
+         JSONObject tags = makeTags(kb * 1024);
+         encoder.reset().append(tags);
+         assertEquals(tags.toString(), encoder.toString());
+         int reps = 100000 / kb;
+         // The first round warms up the JIT compiler
+         long toStringNanos = 0;
+         long encoderNanos = 0;
+         for (int round = 0; round < 2; round++) {
+            toStringNanos = timeToString(tags, reps);
+            encoderNanos = timeEncoder(encoder, tags, reps);
+         }
+         System.out.println(String.format(
+               "%3d KB of tags: toString+getBytes %.1f us, JSONEncoder %.1f us (%.1fx)",
+               kb, toStringNanos / 1e3 / reps, encoderNanos / 1e3 / reps,
+               (double) toStringNanos / encoderNanos));
+      }
+   }
+
+   @Test
+   public void compareWithToString() throws Exception {
+      Assume.assumeTrue(Boolean.getBoolean("mm.benchmark"));
+      run();
+   }
+
+   public static void main(String[] args) throws Exception {
+      run();
+   }
+}
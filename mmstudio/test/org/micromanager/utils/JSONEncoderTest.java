@@ -0,0 +1,217 @@
+package org.micromanager.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JSONEncoderTest {
+   private static byte[] utf8(String text) throws UnsupportedEncodingException {
+      return text.getBytes("UTF-8");
+   }
+
+   private static byte[] encoded(JSONEncoder encoder) {
+      ByteBuffer buffer = encoder.getBuffer();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return bytes;
+   }
+
+   /**
+    * Check that the encoder writes obj exactly as toString() and
+    * toString(indentFactor) do, in UTF-8
+    */
+   private static void assertSameAsJSONObject(JSONObject obj) throws Exception {
+      JSONEncoder encoder = new JSONEncoder();
+      encoder.reset().append(obj);
+      assertSameText(obj.toString(), encoder);
+      for (int indentFactor : new int[] {1, 2, 4}) {
+         encoder.reset().append(obj, indentFactor);
+         assertSameText(obj.toString(indentFactor), encoder);
+      }
+   }
+
+   private static void assertSameText(String expected, JSONEncoder encoder)
+         throws UnsupportedEncodingException {
+      // Compared after a round trip through UTF-8, which replaces unpaired
+      // surrogates
+      assertEquals(new String(utf8(expected), "UTF-8"), encoder.toString());
+      assertArrayEquals(utf8(expected), encoded(encoder));
+   }
+
+   private static JSONObject withString(String value) throws JSONException {
+      return new JSONObject().put("key " + value, value);
+   }
+
+   @Test
+   public void escapesMatch() throws Exception {
+      assertSameAsJSONObject(withString("\"quoted\" back\\slash"));
+      assertSameAsJSONObject(withString("\b\f\n\r\t"));
+      assertSameAsJSONObject(withString("\u0000 \u0001 \u001f \u007f"));
+      assertSameAsJSONObject(withString("\u0080 \u0085 \u009f \u00a0 \u2000 \u2028 \u20ff \u2100"));
+      assertSameAsJSONObject(withString(""));
+   }
+
+   @Test
+   public void slashIsEscapedOnlyAfterLessThan() throws Exception {
+      JSONObject obj = withString("</script> a/b // <tag/> </");
+      assertSameAsJSONObject(obj);
+      String text = new JSONEncoder().append(obj).toString();
+      assertTrue(text.contains("<\\/script>"));
+      assertTrue(text.contains("a/b //"));
+   }
+
+   @Test
+   public void nonAsciiCharactersAreUTF8() throws Exception {
+      assertSameAsJSONObject(withString("\u00b5m \u00e9 \u4e2d \uffff"));
+      // A pair of surrogates is one four byte character
+      JSONObject emoji = withString("\ud83d\ude00");
+      assertSameAsJSONObject(emoji);
+      assertEquals(4, utf8("\ud83d\ude00").length);
+      // Unpaired surrogates come out as String.getBytes writes them
+      assertSameAsJSONObject(withString("\ud800x \udc00 x\ud83d"));
+      assertSameAsJSONObject(withString("\ude00\ud83d"));
+   }
+
+   @Test
+   public void asciiOnlyEscapesNonAsciiCharacters() throws Exception {
+      JSONObject obj = new JSONObject();
+      obj.put("\u00b5m", "\u00b5m \u4e2d \ud83d\ude00 \u2028 </ \"q\"");
+      obj.put("plain", "text");
+      obj.put("nested", new JSONObject().put("\u00e9", new JSONArray().put("\u00e9")));
+      JSONEncoder encoder = new JSONEncoder(true);
+      encoder.append(obj, 2);
+      String text = encoder.toString();
+      for (int i = 0; i < text.length(); i++) {
+         assertTrue(text, text.charAt(i) < 0x80);
+      }
+      assertTrue(text.contains("\\u00b5m"));
+      // It reads back as the same object
+      JSONObject parsed = new JSONObject(text);
+      assertEquals(obj.length(), parsed.length());
+      Iterator<String> keys = obj.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         assertEquals(key, obj.get(key).toString(), parsed.get(key).toString());
+      }
+      // ASCII text is the same as that of an ordinary encoder
+      JSONObject ascii = new JSONObject().put("a", "b</c\n\u0001");
+      assertEquals(ascii.toString(), new JSONEncoder(true).append(ascii).toString());
+   }
+
+   @Test
+   public void numbersMatch() throws Exception {
+      JSONObject obj = new JSONObject();
+      obj.put("int", -42);
+      obj.put("zero", 0);
+      obj.put("long", Long.MIN_VALUE);
+      obj.put("maxLong", Long.MAX_VALUE);
+      obj.put("whole", 3.0);
+      obj.put("small", 1.5e-7);
+      obj.put("large", 1.0e20);
+      obj.put("negative", -1234.5678);
+      obj.put("float", Float.valueOf(0.1f));
+      obj.put("bool", true);
+      obj.put("null", JSONObject.NULL);
+      assertSameAsJSONObject(obj);
+   }
+
+   @Test
+   public void nonFiniteNumbersAreHandledAsByJSONObject() throws Exception {
+      // JSONObject.put rejects them, but maps and collections can hold them
+      JSONObject obj = new JSONObject();
+      obj.put("array", new JSONArray(Arrays.asList(1.0, Double.NaN)));
+      obj.put("object", new JSONObject(Collections.singletonMap("x", Double.NaN)));
+      obj.put("fine", new JSONArray("[1]"));
+      // Nested values that can't be written are null in compact text...
+      assertEquals("{\"a\":null}", new JSONObject().put("a", obj.get("array")).toString());
+      assertSameText(obj.toString(), new JSONEncoder().append(obj));
+      // ...but make indented text fail
+      JSONEncoder encoder = new JSONEncoder();
+      encoder.append(new JSONObject().put("before", 1));
+      int length = encoder.length();
+      try {
+         encoder.append(obj, 2);
+         fail("Encoded " + Double.NaN);
+      } catch (JSONException expected) {
+      }
+      assertEquals(length, encoder.length());
+
+      // A non-finite member of the object itself makes toString() return null
+      JSONObject member = new JSONObject(
+            Collections.singletonMap("x", Double.POSITIVE_INFINITY));
+      assertNull(member.toString());
+      try {
+         encoder.append(member);
+         fail("Encoded " + Double.POSITIVE_INFINITY);
+      } catch (JSONException expected) {
+      }
+      assertEquals(length, encoder.length());
+   }
+
+   @Test
+   public void nestingMatches() throws Exception {
+      JSONObject obj = new JSONObject();
+      obj.put("empty", new JSONObject());
+      obj.put("emptyArray", new JSONArray());
+      obj.put("one", new JSONObject().put("k", new JSONArray("[1]")));
+      obj.put("array", new JSONArray("[1,\"two\",{\"x\":[3,4]},[],null,2.5,[[{}]]]"));
+      JSONObject deep = new JSONObject().put("leaf", "value").put("n", 1);
+      for (int i = 0; i < 10; i++) {
+         deep = new JSONObject().put("level" + i, deep).put("list" + i, new JSONArray().put(i));
+      }
+      obj.put("deep", deep);
+      assertSameAsJSONObject(obj);
+      assertSameAsJSONObject(new JSONObject());
+      assertSameAsJSONObject(new JSONObject().put("single", new JSONObject().put("a", 1)));
+   }
+
+   @Test
+   public void imageMetadataMatches() throws Exception {
+      mmcorej.ImageMetadata md = new mmcorej.ImageMetadata();
+      md.put("ChannelIndex", 1);
+      md.put("ElapsedTime-ms", 1234.5);
+      md.put("PixelType", "GRAY16");
+      md.put("Camera-Name", "\u00b5Manager </camera>");
+      md.put("Summary", new JSONObject().put("Prefix", "acq"));
+      assertSameAsJSONObject(md);
+   }
+
+   @Test
+   public void encoderIsReusable() throws Exception {
+      JSONEncoder encoder = new JSONEncoder();
+      StringBuilder large = new StringBuilder();
+      for (int i = 0; i < 10000; i++) {
+         large.append("\u00e9");
+      }
+      JSONObject first = withString(large.toString());
+      JSONObject second = new JSONObject().put("a", 1);
+      encoder.append(first);
+      assertEquals(first.toString(), encoder.toString());
+      encoder.reset().append(second).append("\n").appendByte('x');
+      assertEquals(second.toString() + "\nx", encoder.toString());
+      assertEquals(utf8(encoder.toString()).length, encoder.length());
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      encoder.writeTo(out);
+      assertArrayEquals(utf8(encoder.toString()), out.toByteArray());
+
+      ByteBuffer pooled = encoder.toPooledBuffer();
+      try {
+         assertEquals(0, pooled.position());
+         assertEquals(encoder.length(), pooled.limit());
+         byte[] bytes = new byte[pooled.remaining()];
+         pooled.get(bytes);
+         assertArrayEquals(out.toByteArray(), bytes);
+      } finally {
+         DirectBufferPool.getInstance().release(pooled);
+      }
+   }
+}
@@ -15,21 +15,22 @@
 (ns org.micromanager.browser.core
   (:import [javax.swing BorderFactory JButton JComboBox JFrame JLabel JOptionPane
                         JList JPanel JScrollPane JSplitPane SortOrder JCheckBox
-                        JPopupMenu
+                        JPopupMenu ImageIcon SwingConstants
                         JTable JTextField RowFilter RowSorter$SortKey SpringLayout]
            [javax.swing.table AbstractTableModel DefaultTableModel
                               TableColumn TableRowSorter]
-           [javax.swing.event DocumentListener TableModelListener]
+           [javax.swing.event DocumentListener ListSelectionListener
+                              TableModelListener]
            [java.io BufferedReader File FileReader PrintWriter]
            [java.util Comparator Vector]
            [java.util.prefs Preferences]
            [java.util.concurrent LinkedBlockingQueue ScheduledThreadPoolExecutor]
-           [java.awt Color Dimension Font Insets]
+           [java.awt Color Dimension Font Image Insets]
            [java.awt.event ItemEvent ItemListener KeyAdapter MouseAdapter
                            WindowAdapter WindowListener]
            [com.swtdesigner SwingResourceManager]
            [org.micromanager.api ImageCacheListener]
-           [org.micromanager.acquisition MMImageCache]
+           [org.micromanager.acquisition DatasetPreview MMImageCache]
            [org.micromanager.utils GUIUpdater JavaUtils ReportingUtils])
   (:use [org.micromanager.browser.utils
             :only (gen-map constrain-to-parent create-button create-icon-button
@@ -152,6 +153,42 @@
         (.openAcquisitionData gui f @open-in-ram)
         (ReportingUtils/showError "File not found.")))))
 
+;; preview of the selected data set, from the thumbnails stored with it
+
+(def preview-width 200)
+
+(def preview-agent (agent nil))
+
+(defn read-preview-icon [path]
+  (when-let [preview (and path (DatasetPreview/read (file path)))]
+    (when-let [montage (.getMontage preview)]
+      (let [scale (min 1 (/ preview-width (.getWidth montage)))]
+        (ImageIcon.
+          (.getScaledInstance (.createImage montage)
+                              (max 1 (int (* scale (.getWidth montage))))
+                              (max 1 (int (* scale (.getHeight montage))))
+                              Image/SCALE_FAST))))))
+
+(defn show-preview [table]
+  (let [row (.getSelectedRow table)
+        path (when (<= 0 row) (row-index-to-path row))]
+    (send-off preview-agent
+              (fn [_]
+                (let [icon (try (read-preview-icon path)
+                                (catch Exception e (ReportingUtils/logError e) nil))]
+                  (awt-event
+                    (doto (@browser :preview-label)
+                      (.setIcon icon)
+                      (.setText (if (or icon (nil? path)) nil "No preview")))))))))
+
+(defn listen-to-selection [table]
+  (.. table getSelectionModel
+      (addListSelectionListener
+        (reify ListSelectionListener
+          (valueChanged [_ e]
+            (when-not (.getValueIsAdjusting e)
+              (show-preview table)))))))
+
 (defn listen-to-open [table]
   (.addMouseListener table
     (proxy [MouseAdapter] []
@@ -706,12 +743,16 @@ inside an existing location in your collection."
                                        #(.show (:frame @settings-window)))
         open-in-ram-checkbox (create-checkbox "Open in RAM" open-in-ram)
         collection-label (JLabel. "Collection:")
-        collection-menu (JComboBox.)]
+        collection-menu (JComboBox.)
+        preview-label (doto (JLabel.)
+                        (.setVerticalAlignment SwingConstants/TOP)
+                        (.setHorizontalAlignment SwingConstants/CENTER))]
     (doto panel
       (.add scroll-pane) (.add search-field) (.add refresh-button)
       (.add settings-button) (.add search-label)
       (.add open-in-ram-checkbox)
-      (.add collection-label) (.add collection-menu))
+      (.add collection-label) (.add collection-menu)
+      (.add preview-label))
     (doto table
       (.setAutoCreateRowSorter true)
       (.setShowGrid false)
@@ -721,7 +762,8 @@ inside an existing location in your collection."
     (attach-action-key table "ENTER" #(open-selected-files table))
     (.setFont search-field (.getFont table))
     (.setLayout panel (SpringLayout.))
-    (constrain-to-parent scroll-pane :n 32 :w 5 :s -5 :e -5
+    (constrain-to-parent scroll-pane :n 32 :w 5 :s -5 :e (- -10 preview-width)
+                         preview-label :n 32 :e (- -5 preview-width) :s -5 :e -5
                          search-field :n 5 :w 25 :n 28 :w 200
                          settings-button :n 5 :w 500 :n 28 :w 600
                          open-in-ram-checkbox :n 5 :w 600 :n 28 :w 720
@@ -732,9 +774,10 @@ inside an existing location in your collection."
     (connect-search search-field table)
     (.setSortsOnUpdates (.getRowSorter table) false)
     (listen-to-open table)
+    (listen-to-selection table)
     (attach-action-key search-field "ESCAPE" #(.setText search-field ""))
     (doto frame
-      (.setBounds 50 50 620 500)
+      (.setBounds 50 50 (+ 630 preview-width) 500)
       (.addWindowListener
         (proxy [WindowAdapter] []
           (windowClosing [e]
@@ -751,7 +794,7 @@ inside an existing location in your collection."
                                             #(awt-event (update-browser-table))
                                             1000))))
     (gen-map frame table scroll-pane settings-button search-field
-             collection-menu refresh-button)))
+             collection-menu refresh-button preview-label)))
 
 (defn init-columns []
   (vec (map #(vec (list % false)) tags)))
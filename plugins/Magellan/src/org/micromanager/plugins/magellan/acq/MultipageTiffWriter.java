@@ -37,8 +37,6 @@ import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -47,6 +45,7 @@ import org.micromanager.plugins.magellan.json.JSONException;
 import org.micromanager.plugins.magellan.json.JSONObject;
 import org.micromanager.plugins.magellan.misc.Log;
 import org.micromanager.plugins.magellan.misc.MD;
+import org.micromanager.utils.DirectBufferPool;
 
 public class MultipageTiffWriter {
    
@@ -152,26 +151,15 @@ public class MultipageTiffWriter {
       writeMMHeaderAndSummaryMD(summaryMD);
    }
    
+   // Buffers are leased from the DirectBufferPool, and given back once
+   // they have been written to the file (see fileChannelWrite)
    private ByteBuffer allocateByteBuffer(int capacity) {
-      try {
-       ByteBuffer buffer =  ByteBuffer.allocateDirect(capacity).order(BYTE_ORDER);
-       return buffer;
-      } catch (Exception e) {
-          throw new RuntimeException();
-      }  
+      return DirectBufferPool.getInstance().leaseZeroed(capacity).order(BYTE_ORDER);
    }
-   
-   private BlockingQueue<ByteBuffer> currentImageByteBuffers_ = new LinkedBlockingQueue<ByteBuffer>(10);
-   private int currentImageByteBufferCapacity_ = 0;
-           
+
+   // For buffers that are completely overwritten, so need not be cleared
    private ByteBuffer allocateByteBufferMemo(int capacity) {
-       if (capacity != currentImageByteBufferCapacity_) {
-           currentImageByteBuffers_.clear();
-           currentImageByteBufferCapacity_ = capacity;
-       }
-       
-       ByteBuffer cachedBuf = currentImageByteBuffers_.poll();
-       return (cachedBuf != null) ? cachedBuf : allocateByteBuffer(capacity);
+      return DirectBufferPool.getInstance().lease(capacity).order(BYTE_ORDER);
    }
    
    private void executeWritingTask(Runnable writingTask) {
@@ -190,11 +178,10 @@ public class MultipageTiffWriter {
              try {
                 buffer.rewind();
                 fileChannel_.write(buffer, position);
-                if (buffer.limit() == currentImageByteBufferCapacity_) {
-                    currentImageByteBuffers_.offer(buffer);
-                }
               } catch (IOException e) {
                 Log.log(e);
+              } finally {
+                DirectBufferPool.getInstance().release(buffer);
               }
            }
         });
@@ -207,14 +194,13 @@ public class MultipageTiffWriter {
            public void run() {
              try {
                 fileChannel_.write(buffers);
-                for (ByteBuffer buffer:buffers) {
-                    if (buffer.limit() == currentImageByteBufferCapacity_) {
-                        currentImageByteBuffers_.offer(buffer);
-                    }
-                }
               } catch (IOException e) {
                 Log.log(e);
-              } 
+              } finally {
+                for (ByteBuffer buffer : buffers) {
+                   DirectBufferPool.getInstance().release(buffer);
+                }
+              }
            }
         });
    }
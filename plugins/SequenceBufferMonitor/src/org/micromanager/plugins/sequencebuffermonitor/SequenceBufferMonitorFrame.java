@@ -23,10 +23,14 @@ import javax.swing.JProgressBar;
 import javax.swing.JTextField;
 import javax.swing.Timer;
 
+import org.micromanager.acquisition.ImageWriteQueue;
+
 
 class SequenceBufferMonitorFrame extends javax.swing.JFrame {
    org.micromanager.api.ScriptInterface app_;
    JProgressBar usageBar_;
+   JProgressBar writeQueueBar_;
+   JLabel writeQueueStallLabel_;
    Timer timer_;
 
    int previousTotalCapacity_ = -1;
@@ -41,6 +45,10 @@ class SequenceBufferMonitorFrame extends javax.swing.JFrame {
       usageBar_ = new JProgressBar();
       usageBar_.setStringPainted(true);
 
+      writeQueueBar_ = new JProgressBar();
+      writeQueueBar_.setStringPainted(true);
+      writeQueueStallLabel_ = new JLabel();
+
       JTextField intervalField =
          new JTextField(Integer.toString(updateIntervalMs_), 4);
       intervalField.addActionListener(new ActionListener() {
@@ -67,13 +75,18 @@ class SequenceBufferMonitorFrame extends javax.swing.JFrame {
                "insets dialog",
                "[grow, fill]",
                "[]related[]"));
+      add(new JLabel("Sequence Buffer:"), "wrap");
       add(usageBar_, "wrap");
+      add(new JLabel("Image Write Queue:"), "wrap");
+      add(writeQueueBar_, "wrap");
+      add(writeQueueStallLabel_, "wrap");
       add(new JLabel("Update Interval:"), "split 3, gapleft push");
       add(intervalField);
       add(new JLabel("ms"));
 
       Dimension size = usageBar_.getPreferredSize();
       usageBar_.setPreferredSize(new Dimension(2 * size.width, size.height));
+      writeQueueBar_.setPreferredSize(new Dimension(2 * size.width, size.height));
 
       pack();
       setMinimumSize(getPreferredSize());
@@ -90,6 +103,8 @@ class SequenceBufferMonitorFrame extends javax.swing.JFrame {
    }
 
    private void update() {
+      updateWriteQueue();
+
       mmcorej.CMMCore core = app_.getMMCore();
       if (core == null) {
          usageBar_.setValue(0);
@@ -111,6 +126,20 @@ class SequenceBufferMonitorFrame extends javax.swing.JFrame {
             Integer.toString((int)Math.round(percentage)) + "%)");
    }
 
+   private void updateWriteQueue() {
+      ImageWriteQueue queue = ImageWriteQueue.getInstance();
+      int capacityMB = queue.getCapacityMB();
+      int usedMB = (int) (queue.getBytesInFlight() / (1024 * 1024));
+      writeQueueBar_.setMaximum(capacityMB);
+      writeQueueBar_.setValue(usedMB);
+      writeQueueBar_.setString(Integer.toString(usedMB) + "/" +
+            Integer.toString(capacityMB) + " MB (" +
+            Integer.toString(queue.getQueueDepth()) + " writes)");
+      writeQueueStallLabel_.setText("Stalled " + queue.getStallCount() +
+            " times, " + queue.getStallTimeMs() + " ms; peak " +
+            queue.getPeakBytesInFlight() / (1024 * 1024) + " MB");
+   }
+
    void start() {
       if (timer_ != null) {
          return;
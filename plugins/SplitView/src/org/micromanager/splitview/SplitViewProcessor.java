@@ -138,8 +138,7 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
             
             // first channel
 
-            // Weird way of copying a JSONObject
-            JSONObject tags = new JSONObject(taggedImage.tags.toString());
+            JSONObject tags = MDUtils.copy(taggedImage.tags);
             MDUtils.setWidth(tags, width);
             MDUtils.setHeight(tags, height);
             MDUtils.setChannelIndex(tags, channelIndex * 2);
@@ -149,7 +148,7 @@ public class SplitViewProcessor extends DataProcessor<TaggedImage> {
             TaggedImage firstIm = new TaggedImage(tmpImg.crop().getPixels(), tags);
 
             // second channel
-            JSONObject tags2 = new JSONObject(tags.toString());
+            JSONObject tags2 = MDUtils.copy(tags);
             tags2.put("Channel", MDUtils.getChannelName(taggedImage.tags)  + getChannelSuffix(channelIndex*2+1));
 
             if (orientation_.equals(SplitViewFrame.LR)) {